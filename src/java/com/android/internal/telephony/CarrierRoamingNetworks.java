@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.BaseBundle;
+import android.telephony.CarrierConfigManager;
+import android.util.SparseBooleanArray;
+
+import java.util.HashSet;
+
+/**
+ * The roaming overrides of a carrier config bundle, read once so that ServiceStateTracker can
+ * check the network on every poll without going back to the bundle. Lookups do not allocate.
+ */
+class CarrierRoamingNetworks {
+    private final boolean mAlwaysOnHomeNetwork;
+    private final HashSet<String> mGsmRoaming;
+    private final HashSet<String> mGsmNonRoaming;
+    // CDMA system ids, which ServiceStateTracker has as numbers
+    private final SparseBooleanArray mCdmaRoaming;
+    private final SparseBooleanArray mCdmaNonRoaming;
+
+    CarrierRoamingNetworks(BaseBundle b) {
+        mAlwaysOnHomeNetwork = b.getBoolean(CarrierConfigManager.KEY_FORCE_HOME_NETWORK_BOOL);
+        mGsmRoaming = toSet(
+                b.getStringArray(CarrierConfigManager.KEY_GSM_ROAMING_NETWORKS_STRING_ARRAY));
+        mGsmNonRoaming = toSet(
+                b.getStringArray(CarrierConfigManager.KEY_GSM_NONROAMING_NETWORKS_STRING_ARRAY));
+        mCdmaRoaming = toSystemIds(
+                b.getStringArray(CarrierConfigManager.KEY_CDMA_ROAMING_NETWORKS_STRING_ARRAY));
+        mCdmaNonRoaming = toSystemIds(
+                b.getStringArray(CarrierConfigManager.KEY_CDMA_NONROAMING_NETWORKS_STRING_ARRAY));
+    }
+
+    private static HashSet<String> toSet(String[] networks) {
+        HashSet<String> set = new HashSet<String>();
+        if (networks != null) {
+            for (String network : networks) {
+                set.add(network);
+            }
+        }
+        return set;
+    }
+
+    private static SparseBooleanArray toSystemIds(String[] networks) {
+        SparseBooleanArray systemIds = new SparseBooleanArray();
+        if (networks != null) {
+            for (String network : networks) {
+                try {
+                    int systemId = Integer.parseInt(network);
+                    // only what Integer.toString() of a system id could have matched
+                    if (Integer.toString(systemId).equals(network)) {
+                        systemIds.put(systemId, true);
+                    }
+                } catch (NumberFormatException e) {
+                    // can never match a system id
+                }
+            }
+        }
+        return systemIds;
+    }
+
+    boolean alwaysOnHomeNetwork() {
+        return mAlwaysOnHomeNetwork;
+    }
+
+    boolean isRoamingInGsmNetwork(String network) {
+        return mGsmRoaming.contains(network);
+    }
+
+    boolean isNonRoamingInGsmNetwork(String network) {
+        return mGsmNonRoaming.contains(network);
+    }
+
+    boolean isRoamingInCdmaNetwork(int systemId) {
+        return mCdmaRoaming.get(systemId);
+    }
+
+    boolean isNonRoamingInCdmaNetwork(int systemId) {
+        return mCdmaNonRoaming.get(systemId);
+    }
+}
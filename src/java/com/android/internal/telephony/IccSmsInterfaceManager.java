@@ -28,6 +28,7 @@ import android.os.AsyncResult;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemProperties;
 import android.os.UserManager;
 import android.provider.Telephony;
 import android.telephony.Rlog;
@@ -43,6 +44,8 @@ import com.android.internal.telephony.uicc.IccUtils;
 import com.android.internal.telephony.uicc.UiccController;
 import com.android.internal.util.HexDump;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -65,6 +68,13 @@ public class IccSmsInterfaceManager {
     protected boolean mSuccess;
     private List<SmsRawData> mSms;
 
+    /**
+     * Whether the radio adds and removes the cell broadcast ranges it is sent, rather than
+     * replacing its configuration with them, so that only the changes need to be sent.
+     */
+    private static final boolean INCREMENTAL_CB_CONFIG = SystemProperties.getBoolean(
+            "ro.ril.incremental_cb_config", false);
+
     private CellBroadcastRangeManager mCellBroadcastRangeManager =
             new CellBroadcastRangeManager();
     private CdmaBroadcastRangeManager mCdmaBroadcastRangeManager =
@@ -756,6 +766,10 @@ public class IccSmsInterfaceManager {
         private ArrayList<SmsBroadcastConfigInfo> mConfigList =
                 new ArrayList<SmsBroadcastConfigInfo>();
 
+        CellBroadcastRangeManager() {
+            super(INCREMENTAL_CB_CONFIG);
+        }
+
         /**
          * Called when the list of enabled ranges has changed. This will be
          * followed by zero or more calls to {@link #addRange} followed by
@@ -796,6 +810,10 @@ public class IccSmsInterfaceManager {
         private ArrayList<CdmaSmsBroadcastConfigInfo> mConfigList =
                 new ArrayList<CdmaSmsBroadcastConfigInfo>();
 
+        CdmaBroadcastRangeManager() {
+            super(INCREMENTAL_CB_CONFIG);
+        }
+
         /**
          * Called when the list of enabled ranges has changed. This will be
          * followed by zero or more calls to {@link #addRange} followed by a
@@ -1120,4 +1138,8 @@ public class IccSmsInterfaceManager {
         return result != null ? result : destAddr;
     }
 
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("IccSmsInterfaceManager:");
+        mDispatcher.dump(fd, pw, args);
+    }
 }
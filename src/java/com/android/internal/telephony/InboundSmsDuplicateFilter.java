@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.telephony.Rlog;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Bloom filter over the duplicate detection columns of every row in the SMS raw table, shared by
+ * all {@link InboundSmsHandler}s since they share the raw table. A negative answer from
+ * {@link #mightContain} means the segment is certainly not in the raw table, so the de-dup query
+ * can be skipped; a positive answer still has to be confirmed by the query.
+ *
+ * Negative answers are only trustworthy once the filter has been loaded with the rows persisted
+ * before this process started, see {@link #loadFromRawTable}. Until then every lookup is
+ * positive. Rows are never removed from a bloom filter, so once it holds more than
+ * {@link #MAX_INSERTIONS} rows it is cleared and loaded again. If the raw table itself is too
+ * large, the filter stays unloaded and the de-dup query is always run as before.
+ *
+ * All methods are synchronized, as the filter is used from the handler threads and from the
+ * raw table scan thread.
+ */
+public class InboundSmsDuplicateFilter {
+    private static final String TAG = "InboundSmsDuplicateFilter";
+    private static final boolean DBG = InboundSmsHandler.DBG;
+
+    /** Number of bits in the filter, a power of 2. */
+    private static final int NUM_BITS = 1 << 16;
+
+    /** Number of bits set per row. */
+    private static final int NUM_HASHES = 4;
+
+    /** Rows inserted before the false positive rate (about 2.4% here) requires a rebuild. */
+    @VisibleForTesting
+    static final int MAX_INSERTIONS = 8192;
+
+    /** Results of {@link #lookup}. */
+    public static final int RESULT_NOT_PRESENT = 0;
+    public static final int RESULT_MAYBE_PRESENT = 1;
+    public static final int RESULT_NOT_LOADED = 2;
+
+    /** Query projection for loading the filter; includes rows marked deleted. */
+    private static final String[] DUPLICATE_PROJECTION = {
+            "address",
+            "reference_number",
+            "count",
+            "sequence",
+            "date",
+            "message_body"
+    };
+
+    private static InboundSmsDuplicateFilter sInstance;
+
+    private final long[] mBits = new long[NUM_BITS / 64];
+    private int mInsertions;
+    private boolean mLoaded;
+    // incremented on every clear, so a load racing with a clear does not mark the filter loaded
+    private int mGeneration;
+
+    // Statistics
+    private long mHitCount;         // possible duplicate, provider queried
+    private long mMissCount;        // certainly new, provider query skipped
+    private long mNotLoadedCount;   // provider queried because the filter was not loaded
+    private long mFalsePositiveCount;
+    private int mRebuildCount;
+
+    public static synchronized InboundSmsDuplicateFilter getInstance() {
+        if (sInstance == null) {
+            sInstance = new InboundSmsDuplicateFilter();
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    InboundSmsDuplicateFilter() {
+    }
+
+    /**
+     * Returns false if the segment is certainly not in the raw table.
+     */
+    public boolean mightContain(InboundSmsTracker tracker) {
+        return lookup(tracker) != RESULT_NOT_PRESENT;
+    }
+
+    /**
+     * Looks up a segment.
+     *
+     * @return {@link #RESULT_NOT_PRESENT} if the segment is certainly not in the raw table,
+     *         {@link #RESULT_MAYBE_PRESENT} if the filter holds it, or
+     *         {@link #RESULT_NOT_LOADED} if the filter cannot tell yet
+     */
+    public synchronized int lookup(InboundSmsTracker tracker) {
+        if (!mLoaded) {
+            mNotLoadedCount++;
+            return RESULT_NOT_LOADED;
+        }
+        long hash = tracker.getDuplicateHash();
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = (h1 + i * h2) & (NUM_BITS - 1);
+            if ((mBits[bit >>> 6] & (1L << bit)) == 0) {
+                mMissCount++;
+                return RESULT_NOT_PRESENT;
+            }
+        }
+        mHitCount++;
+        return RESULT_MAYBE_PRESENT;
+    }
+
+    /**
+     * Records that the de-dup query for a {@link #RESULT_MAYBE_PRESENT} lookup found no
+     * duplicate.
+     */
+    public synchronized void onFalsePositive() {
+        mFalsePositiveCount++;
+    }
+
+    /**
+     * Adds a segment that was just inserted into the raw table.
+     *
+     * @return true if the filter is full and {@link #loadFromRawTable} should be called
+     */
+    public synchronized boolean add(InboundSmsTracker tracker) {
+        addHash(tracker.getDuplicateHash());
+        if (mLoaded && mInsertions > MAX_INSERTIONS) {
+            clear();
+            mRebuildCount++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds every row of the raw table, including rows marked deleted, and starts answering
+     * negative lookups. Must not be called with the filter locked by the caller.
+     */
+    public void loadFromRawTable(ContentResolver resolver) {
+        long startTime = System.nanoTime();
+        Cursor cursor = null;
+        int rows = 0;
+        int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+        try {
+            cursor = resolver.query(InboundSmsHandler.sRawUri, DUPLICATE_PROJECTION, null, null,
+                    null);
+            if (cursor == null) {
+                Rlog.e(TAG, "error getting raw table cursor");
+                return;
+            }
+            synchronized (this) {
+                while (cursor.moveToNext()) {
+                    addHash(InboundSmsTracker.getDuplicateHash(cursor.getString(0),
+                            cursor.getInt(1), cursor.getInt(2), cursor.getInt(3),
+                            cursor.getLong(4), cursor.getString(5)));
+                    rows++;
+                }
+                if (rows > MAX_INSERTIONS / 2) {
+                    // the filter would fill up again right away; keep querying the raw table
+                    Rlog.w(TAG, "raw table too large for duplicate filter, rows=" + rows);
+                } else {
+                    mLoaded = (generation == mGeneration);
+                }
+            }
+        } catch (SQLException e) {
+            Rlog.e(TAG, "error loading duplicate filter", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            if (DBG) Rlog.d(TAG, "loaded " + rows + " rows in "
+                    + ((System.nanoTime() - startTime) / 1000000) + " ms");
+        }
+    }
+
+    private void addHash(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = (h1 + i * h2) & (NUM_BITS - 1);
+            mBits[bit >>> 6] |= (1L << bit);
+        }
+        mInsertions++;
+    }
+
+    private void clear() {
+        Arrays.fill(mBits, 0);
+        mInsertions = 0;
+        mLoaded = false;
+        mGeneration++;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getFalsePositiveCount() {
+        return mFalsePositiveCount;
+    }
+
+    public synchronized void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println(" InboundSmsDuplicateFilter: loaded=" + mLoaded + " insertions=" + mInsertions
+                + " hits=" + mHitCount + " misses=" + mMissCount
+                + " notLoaded=" + mNotLoadedCount + " falsePositives=" + mFalsePositiveCount
+                + " rebuilds=" + mRebuildCount);
+    }
+}
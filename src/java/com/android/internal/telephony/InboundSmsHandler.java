@@ -77,6 +77,8 @@ import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -171,6 +173,9 @@ public abstract class InboundSmsHandler extends StateMachine {
     protected final Context mContext;
     private final ContentResolver mResolver;
 
+    /** In-memory index of the multi-part segments in the raw table. */
+    private final SmsReassemblyIndex mReassemblyIndex = new SmsReassemblyIndex();
+
     /** Special handler for WAP push messages. */
     private final WapPushOverSms mWapPush;
 
@@ -731,54 +736,33 @@ public abstract class InboundSmsHandler extends StateMachine {
             pdus = new byte[][]{tracker.getPdu()};
         } else {
             // multi-part message
-            Cursor cursor = null;
-            try {
-                // used by several query selection arguments
-                String address = tracker.getAddress();
-                String refNumber = Integer.toString(tracker.getReferenceNumber());
-                String count = Integer.toString(tracker.getMessageCount());
-
-                // query for all segments and broadcast message if we have all the parts
-                String[] whereArgs = {address, refNumber, count};
-                cursor = mResolver.query(sRawUri, PDU_SEQUENCE_PORT_PROJECTION,
-                        SELECT_BY_REFERENCE, whereArgs, null);
-
-                int cursorCount = cursor.getCount();
-                if (cursorCount < messageCount) {
-                    // Wait for the other message parts to arrive. It's also possible for the last
-                    // segment to arrive before processing the EVENT_BROADCAST_SMS for one of the
-                    // earlier segments. In that case, the broadcast will be sent as soon as all
-                    // segments are in the table, and any later EVENT_BROADCAST_SMS messages will
-                    // get a row count of 0 and return.
+            pdus = new byte[messageCount][];
+            int[] firstDestPort = {-1};
+            int lookup = mReassemblyIndex.lookup(tracker, pdus, firstDestPort);
+            if (lookup == SmsReassemblyIndex.LOOKUP_UNKNOWN) {
+                // segments may have been stored before this process started, or the entry was
+                // evicted; rebuild the entry from the raw table
+                int found = loadSegmentsFromRawTable(tracker, pdus, firstDestPort);
+                if (found <= 0) {
                     return false;
                 }
+                mReassemblyIndex.setVerifiedSegments(tracker, pdus, firstDestPort[0]);
+                lookup = mReassemblyIndex.lookup(tracker, pdus, firstDestPort);
+            }
 
-                // All the parts are in place, deal with them
-                pdus = new byte[messageCount][];
-                while (cursor.moveToNext()) {
-                    // subtract offset to convert sequence to 0-based array index
-                    int index = cursor.getInt(SEQUENCE_COLUMN) - tracker.getIndexOffset();
-
-                    pdus[index] = HexDump.hexStringToByteArray(cursor.getString(PDU_COLUMN));
-
-                    // Read the destination port from the first segment (needed for CDMA WAP PDU).
-                    // It's not a bad idea to prefer the port from the first segment in other cases.
-                    if (index == 0 && !cursor.isNull(DESTINATION_PORT_COLUMN)) {
-                        int port = cursor.getInt(DESTINATION_PORT_COLUMN);
-                        // strip format flags and convert to real port number, or -1
-                        port = InboundSmsTracker.getRealDestPort(port);
-                        if (port != -1) {
-                            destPort = port;
-                        }
-                    }
-                }
-            } catch (SQLException e) {
-                loge("Can't access multipart SMS database", e);
+            if (lookup != SmsReassemblyIndex.LOOKUP_COMPLETE) {
+                // Wait for the other message parts to arrive. It's also possible for the last
+                // segment to arrive before processing the EVENT_BROADCAST_SMS for one of the
+                // earlier segments. In that case, the broadcast is sent for the first event that
+                // finds all segments, and any later EVENT_BROADCAST_SMS messages find the
+                // message already dispatched and return.
                 return false;
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
+            }
+
+            // Read the destination port from the first segment (needed for CDMA WAP PDU).
+            // It's not a bad idea to prefer the port from the first segment in other cases.
+            if (firstDestPort[0] != -1) {
+                destPort = firstDestPort[0];
             }
         }
 
@@ -840,6 +824,58 @@ public abstract class InboundSmsHandler extends StateMachine {
         return true;
     }
 
+    /**
+     * Reads the stored segments of a multi-part message from the raw table. Only needed when
+     * {@link SmsReassemblyIndex} cannot answer on its own.
+     *
+     * @param tracker a segment of the message
+     * @param pdus filled in with the PDUs found, indexed by 0-based sequence
+     * @param firstDestPort set to the real destination port of the first segment, or -1
+     * @return the number of rows found, or -1 if the raw table could not be read
+     */
+    private int loadSegmentsFromRawTable(InboundSmsTracker tracker, byte[][] pdus,
+            int[] firstDestPort) {
+        Cursor cursor = null;
+        try {
+            // used by several query selection arguments
+            String address = tracker.getAddress();
+            String refNumber = Integer.toString(tracker.getReferenceNumber());
+            String count = Integer.toString(tracker.getMessageCount());
+
+            // query for all segments of this message
+            String[] whereArgs = {address, refNumber, count};
+            cursor = mResolver.query(sRawUri, PDU_SEQUENCE_PORT_PROJECTION,
+                    SELECT_BY_REFERENCE, whereArgs, null);
+
+            int rows = 0;
+            while (cursor.moveToNext()) {
+                // subtract offset to convert sequence to 0-based array index
+                int index = cursor.getInt(SEQUENCE_COLUMN) - tracker.getIndexOffset();
+                if (index < 0 || index >= pdus.length) {
+                    loge("loadSegmentsFromRawTable: invalid sequence index " + index);
+                    continue;
+                }
+
+                pdus[index] = HexDump.hexStringToByteArray(cursor.getString(PDU_COLUMN));
+                rows++;
+
+                if (index == 0 && !cursor.isNull(DESTINATION_PORT_COLUMN)) {
+                    int port = cursor.getInt(DESTINATION_PORT_COLUMN);
+                    // strip format flags and convert to real port number, or -1
+                    firstDestPort[0] = InboundSmsTracker.getRealDestPort(port);
+                }
+            }
+            return rows;
+        } catch (SQLException e) {
+            loge("Can't access multipart SMS database", e);
+            return -1;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
     /**
      * Processes the message part while the credential-encrypted storage is still locked.
      *
@@ -1121,7 +1157,12 @@ public abstract class InboundSmsHandler extends StateMachine {
         String address = tracker.getAddress();
         String refNumber = Integer.toString(tracker.getReferenceNumber());
         String count = Integer.toString(tracker.getMessageCount());
-        if (deDup) {
+        int filterResult = deDup ? InboundSmsDuplicateFilter.getInstance().lookup(tracker)
+                : InboundSmsDuplicateFilter.RESULT_NOT_LOADED;
+        if (filterResult == InboundSmsDuplicateFilter.RESULT_NOT_PRESENT) {
+            // the segment is certainly not in the raw table, skip the query
+            if (VDBG) log("Duplicate filter miss, skipped message de-duping query");
+        } else if (deDup) {
             // check for duplicate message segments
             Cursor cursor = null;
             try {
@@ -1157,6 +1198,10 @@ public abstract class InboundSmsHandler extends StateMachine {
                     }
                     return Intents.RESULT_SMS_DUPLICATED;   // reject message
                 }
+                if (filterResult == InboundSmsDuplicateFilter.RESULT_MAYBE_PRESENT) {
+                    // only a loaded filter's positive answer can be false
+                    InboundSmsDuplicateFilter.getInstance().onFalsePositive();
+                }
             } catch (SQLException e) {
                 loge("Can't access SMS database", e);
                 return Intents.RESULT_SMS_GENERIC_ERROR;    // reject message
@@ -1174,6 +1219,10 @@ public abstract class InboundSmsHandler extends StateMachine {
         if (VDBG) log("adding content values to raw table: " + values.toString());
         Uri newUri = mResolver.insert(sRawUri, values);
         if (DBG) log("URI of new row -> " + newUri);
+        if (newUri != null && InboundSmsDuplicateFilter.getInstance().add(tracker)) {
+            // the filter was full and has been cleared, reload it from the raw table
+            InboundSmsDuplicateFilter.getInstance().loadFromRawTable(mResolver);
+        }
 
         try {
             long rowId = ContentUris.parseId(newUri);
@@ -1184,6 +1233,8 @@ public abstract class InboundSmsHandler extends StateMachine {
                 // set the delete selection args for multi-part message
                 String[] deleteWhereArgs = {address, refNumber, count};
                 tracker.setDeleteWhere(SELECT_BY_REFERENCE, deleteWhereArgs);
+                // the row is durable now, track it in memory for reassembly
+                mReassemblyIndex.recordSegment(tracker);
             }
             return Intents.RESULT_SMS_HANDLED;
         } catch (Exception e) {
@@ -1521,6 +1572,20 @@ public abstract class InboundSmsHandler extends StateMachine {
         return s == null ? "" : s.replace('\f', '\n');
     }
 
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        super.dump(fd, pw, args);
+        mReassemblyIndex.dump(fd, pw, args);
+        InboundSmsDuplicateFilter.getInstance().dump(fd, pw, args);
+    }
+
+    /**
+     * Returns the multi-part reassembly index, seeded by {@link SmsBroadcastUndelivered}.
+     */
+    SmsReassemblyIndex getReassemblyIndex() {
+        return mReassemblyIndex;
+    }
+
     @VisibleForTesting
     public PowerManager.WakeLock getWakeLock() {
         return mWakeLock;
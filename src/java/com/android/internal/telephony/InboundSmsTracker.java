@@ -224,6 +224,37 @@ public class InboundSmsTracker {
         }
     }
 
+    /**
+     * Get the 64-bit hash of the columns used to detect duplicate segments in the raw table:
+     * address, reference number, count, sequence, date and message body.
+     * @return the hash used by {@link InboundSmsDuplicateFilter}
+     */
+    public long getDuplicateHash() {
+        return getDuplicateHash(mAddress, mReferenceNumber, mMessageCount, mSequenceNumber,
+                mTimestamp, mMessageBody);
+    }
+
+    /**
+     * Get the duplicate detection hash for the given raw table column values.
+     * @see #getDuplicateHash()
+     */
+    public static long getDuplicateHash(String address, int referenceNumber, int messageCount,
+            int sequenceNumber, long timestamp, String messageBody) {
+        long h = (address == null) ? 0 : address.hashCode();
+        h = h * 31 + referenceNumber;
+        h = h * 31 + messageCount;
+        h = h * 31 + sequenceNumber;
+        h = h * 31 + timestamp;
+        h = h * 31 + ((messageBody == null) ? 0 : messageBody.hashCode());
+        // finalizer from MurmurHash3 to spread the bits for the bloom filter
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
     /**
      * Update the values to delete all rows of the message from raw table.
      * @param deleteWhere the selection to use
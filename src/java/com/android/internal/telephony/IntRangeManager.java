@@ -32,6 +32,11 @@ import java.util.Iterator;
  * A full update operation (i.e. after a radio reset) can be performed
  * by a call to {@link #updateRanges}.
  *
+ * By default every incremental update sends all of the enabled ranges,
+ * for radios that replace their configuration on each update. A manager
+ * created with incremental updates sends only the message identifiers
+ * that were enabled (selected) or disabled (not selected) by the change.
+ *
  * Clients are identified by String (the name associated with the User ID
  * of the caller) so that a call to remove a range can be mapped to the
  * client that enabled that range (or else rejected).
@@ -105,39 +110,35 @@ public abstract class IntRangeManager {
          * <p>If the new ClientRange is known to be sorted before or after the
          * existing ClientRanges, or at a particular index, it can be added
          * to the clients array list directly, instead of via this method.
-         * <p>Note that this can be changed from linear to binary search if the
-         * number of clients grows large enough that it would make a difference.
          * @param range the new ClientRange to insert
          */
         void insert(ClientRange range) {
+            // binary search for the first client not sorted before the new one
+            // new [1, 5] existing [1, 2] [1, 4] [1, 7]: insert before [1, 7]
+            int low = 0;
+            int high = mClients.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                ClientRange midRange = mClients.get(mid);
+                if (midRange.mStartId < range.mStartId || (midRange.mStartId == range.mStartId
+                        && midRange.mEndId < range.mEndId)) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            // ignore duplicate ranges from the same client
             int len = mClients.size();
-            int insert = -1;
-            for (int i=0; i < len; i++) {
+            for (int i = low; i < len; i++) {
                 ClientRange nextRange = mClients.get(i);
-                if (range.mStartId <= nextRange.mStartId) {
-                    // ignore duplicate ranges from the same client
-                    if (!range.equals(nextRange)) {
-                        // check if same startId, then order by endId
-                        if (range.mStartId == nextRange.mStartId
-                                && range.mEndId > nextRange.mEndId) {
-                            insert = i + 1;
-                            if (insert < len) {
-                                // there may be more client following with same startId
-                                // new [1, 5] existing [1, 2] [1, 4] [1, 7]
-                                continue;
-                            }
-                            break;
-                        }
-                        mClients.add(i, range);
-                    }
+                if (nextRange.mStartId != range.mStartId || nextRange.mEndId != range.mEndId) {
+                    break;
+                }
+                if (range.equals(nextRange)) {
                     return;
                 }
             }
-            if (insert != -1 && insert < len) {
-                mClients.add(insert, range);
-                return;
-            }
-            mClients.add(range);    // append to end of list
+            mClients.add(low, range);
         }
     }
 
@@ -178,7 +179,39 @@ public abstract class IntRangeManager {
      */
     private ArrayList<IntRange> mRanges = new ArrayList<IntRange>();
 
-    protected IntRangeManager() {}
+    /** Whether updates only send the ranges that changed. */
+    private final boolean mIncrementalUpdates;
+
+    protected IntRangeManager() {
+        this(false);
+    }
+
+    /**
+     * @param incrementalUpdates true if the radio accepts updates that only contain the
+     *        enabled and disabled changes, false if every update must contain all enabled ranges
+     */
+    protected IntRangeManager(boolean incrementalUpdates) {
+        mIncrementalUpdates = incrementalUpdates;
+    }
+
+    /**
+     * Return the index of the first IntRange that ends at or after the specified id.
+     * @param id the message identifier
+     * @return the index, or the number of IntRanges if they all end before the id
+     */
+    private int findRangeIndex(int id) {
+        int low = 0;
+        int high = mRanges.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mRanges.get(mid).mEndId < id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
 
     /**
      * Enable a range for the specified client and update ranges
@@ -195,7 +228,7 @@ public abstract class IntRangeManager {
 
         // empty range list: add the initial IntRange
         if (len == 0) {
-            if (tryAddRanges(startId, endId, true)) {
+            if (tryEnableRanges(startId, endId, startId, endId)) {
                 mRanges.add(new IntRange(startId, endId, client));
                 return true;
             } else {
@@ -203,7 +236,8 @@ public abstract class IntRangeManager {
             }
         }
 
-        for (int startIndex = 0; startIndex < len; startIndex++) {
+        // IntRanges ending before startId - 1 can neither enclose nor join the new range
+        for (int startIndex = findRangeIndex(startId - 1); startIndex < len; startIndex++) {
             IntRange range = mRanges.get(startIndex);
             if ((startId) >= range.mStartId && (endId) <= range.mEndId) {
                 // exact same range:  new [1, 1] existing [1, 1]
@@ -230,7 +264,7 @@ public abstract class IntRangeManager {
                         nextRange = null;
                     }
                 }
-                if (tryAddRanges(startId, newRangeEndId, true)) {
+                if (tryEnableRanges(startId, endId, startId, newRangeEndId)) {
                     range.mEndId = endId;
                     range.insert(new ClientRange(startId, endId, client));
 
@@ -241,7 +275,7 @@ public abstract class IntRangeManager {
                             range.mEndId = nextRange.mEndId;
                         }
                         range.mClients.addAll(nextRange.mClients);
-                        mRanges.remove(nextRange);
+                        mRanges.remove(startIndex + 1);
                     }
                     return true;
                 } else {
@@ -254,7 +288,7 @@ public abstract class IntRangeManager {
                 if ((endId + 1) < range.mStartId) {
                     // new [1, 3] existing [5, 6] non contiguous case
                     // insert new int range before previous first range
-                    if (tryAddRanges(startId, endId, true)) {
+                    if (tryEnableRanges(startId, endId, startId, endId)) {
                         mRanges.add(startIndex, new IntRange(startId, endId, client));
                         return true;
                     } else {
@@ -263,7 +297,7 @@ public abstract class IntRangeManager {
                 } else if (endId <= range.mEndId) {
                     // new [1, 4] existing [5, 6]  or  new [1, 1] existing [2, 2]
                     // extend the start of this range
-                    if (tryAddRanges(startId, range.mStartId - 1, true)) {
+                    if (tryEnableRanges(startId, endId, startId, range.mStartId - 1)) {
                         range.mStartId = startId;
                         range.mClients.add(0, new ClientRange(startId, endId, client));
                         return true;
@@ -277,23 +311,19 @@ public abstract class IntRangeManager {
                         if ((endId + 1) < endRange.mStartId) {
                             // new [1, 10] existing [2, 3] [14, 15]
                             // try to add entire new range
-                            if (tryAddRanges(startId, endId, true)) {
+                            if (tryEnableRanges(startId, endId, startId, endId)) {
                                 range.mStartId = startId;
                                 range.mEndId = endId;
                                 // insert new ClientRange before existing ranges
                                 range.mClients.add(0, new ClientRange(startId, endId, client));
                                 // coalesce range with following ranges up to endIndex-1
-                                // remove each range after adding its elements, so the index
-                                // of the next range to join is always startIndex+1.
-                                // i is the index if no elements were removed: we only care
-                                // about the number of loop iterations, not the value of i.
+                                // then remove the joined ranges all at once
                                 int joinIndex = startIndex + 1;
                                 for (int i = joinIndex; i < endIndex; i++) {
                                     // new [1, 10] existing [2, 3] [5, 6] [14, 15]
-                                    IntRange joinRange = mRanges.get(joinIndex);
-                                    range.mClients.addAll(joinRange.mClients);
-                                    mRanges.remove(joinRange);
+                                    range.mClients.addAll(mRanges.get(i).mClients);
                                 }
+                                mRanges.subList(joinIndex, endIndex).clear();
                                 return true;
                             } else {
                                 return false;   // failed to update radio
@@ -302,22 +332,18 @@ public abstract class IntRangeManager {
                             // new [1, 10] existing [2, 3] [5, 15]
                             // add range from start id to start of last overlapping range,
                             // values from endRange.startId to endId are already enabled
-                            if (tryAddRanges(startId, endRange.mStartId - 1, true)) {
+                            if (tryEnableRanges(startId, endId, startId, endRange.mStartId - 1)) {
                                 range.mStartId = startId;
                                 range.mEndId = endRange.mEndId;
                                 // insert new ClientRange before existing ranges
                                 range.mClients.add(0, new ClientRange(startId, endId, client));
                                 // coalesce range with following ranges up to endIndex
-                                // remove each range after adding its elements, so the index
-                                // of the next range to join is always startIndex+1.
-                                // i is the index if no elements were removed: we only care
-                                // about the number of loop iterations, not the value of i.
+                                // then remove the joined ranges all at once
                                 int joinIndex = startIndex + 1;
                                 for (int i = joinIndex; i <= endIndex; i++) {
-                                    IntRange joinRange = mRanges.get(joinIndex);
-                                    range.mClients.addAll(joinRange.mClients);
-                                    mRanges.remove(joinRange);
+                                    range.mClients.addAll(mRanges.get(i).mClients);
                                 }
+                                mRanges.subList(joinIndex, endIndex + 1).clear();
                                 return true;
                             } else {
                                 return false;   // failed to update radio
@@ -327,23 +353,19 @@ public abstract class IntRangeManager {
 
                     // new [1, 10] existing [2, 3]
                     // endId extends past all existing IntRanges: combine them all together
-                    if (tryAddRanges(startId, endId, true)) {
+                    if (tryEnableRanges(startId, endId, startId, endId)) {
                         range.mStartId = startId;
                         range.mEndId = endId;
                         // insert new ClientRange before existing ranges
                         range.mClients.add(0, new ClientRange(startId, endId, client));
                         // coalesce range with following ranges up to len-1
-                        // remove each range after adding its elements, so the index
-                        // of the next range to join is always startIndex+1.
-                        // i is the index if no elements were removed: we only care
-                        // about the number of loop iterations, not the value of i.
+                        // then remove the joined ranges all at once
                         int joinIndex = startIndex + 1;
                         for (int i = joinIndex; i < len; i++) {
                             // new [1, 10] existing [2, 3] [5, 6]
-                            IntRange joinRange = mRanges.get(joinIndex);
-                            range.mClients.addAll(joinRange.mClients);
-                            mRanges.remove(joinRange);
+                            range.mClients.addAll(mRanges.get(i).mClients);
                         }
+                        mRanges.subList(joinIndex, len).clear();
                         return true;
                     } else {
                         return false;   // failed to update radio
@@ -373,7 +395,7 @@ public abstract class IntRangeManager {
                         // new [2, 5] existing [1, 4]
                         // add range from range.endId+1 to endId,
                         // values from startId to range.endId are already enabled
-                        if (tryAddRanges(range.mEndId + 1, endId, true)) {
+                        if (tryEnableRanges(startId, endId, range.mEndId + 1, endId)) {
                             range.mEndId = endId;
                             range.insert(new ClientRange(startId, endId, client));
                             return true;
@@ -390,22 +412,18 @@ public abstract class IntRangeManager {
                     int newRangeEndId = (endId <= endRange.mEndId) ? endRange.mStartId - 1 : endId;
                     // new [2, 10] existing [1, 4] [7, 8] OR
                     // new [2, 10] existing [1, 4] [7, 15]
-                    if (tryAddRanges(range.mEndId + 1, newRangeEndId, true)) {
+                    if (tryEnableRanges(startId, endId, range.mEndId + 1, newRangeEndId)) {
                         newRangeEndId = (endId <= endRange.mEndId) ? endRange.mEndId : endId;
                         range.mEndId = newRangeEndId;
                         // insert new ClientRange in place
                         range.insert(new ClientRange(startId, endId, client));
                         // coalesce range with following ranges up to endIndex
-                        // remove each range after adding its elements, so the index
-                        // of the next range to join is always startIndex+1 (joinIndex).
-                        // i is the index if no elements had been removed: we only care
-                        // about the number of loop iterations, not the value of i.
+                        // then remove the joined ranges all at once
                         int joinIndex = startIndex + 1;
                         for (int i = joinIndex; i <= endIndex; i++) {
-                            IntRange joinRange = mRanges.get(joinIndex);
-                            range.mClients.addAll(joinRange.mClients);
-                            mRanges.remove(joinRange);
+                            range.mClients.addAll(mRanges.get(i).mClients);
                         }
+                        mRanges.subList(joinIndex, endIndex + 1).clear();
                         return true;
                     } else {
                         return false;   // failed to update radio
@@ -416,7 +434,7 @@ public abstract class IntRangeManager {
 
         // new [5, 6], existing [1, 3]
         // append new range after existing IntRanges
-        if (tryAddRanges(startId, endId, true)) {
+        if (tryEnableRanges(startId, endId, startId, endId)) {
             mRanges.add(new IntRange(startId, endId, client));
             return true;
         } else {
@@ -437,7 +455,8 @@ public abstract class IntRangeManager {
     public synchronized boolean disableRange(int startId, int endId, String client) {
         int len = mRanges.size();
 
-        for (int i=0; i < len; i++) {
+        // only the first IntRange ending at or after endId can enclose the client range
+        for (int i = findRangeIndex(endId); i < len; i++) {
             IntRange range = mRanges.get(i);
             if (startId < range.mStartId) {
                 return false;   // not found
@@ -454,7 +473,7 @@ public abstract class IntRangeManager {
                         // mRange contains only what's enabled.
                         // remove the range from mRange then update the radio
                         mRanges.remove(i);
-                        if (updateRanges()) {
+                        if (tryDisableRanges(startId, endId)) {
                             return true;
                         } else {
                             // failed to update radio.  insert back the range
@@ -490,7 +509,7 @@ public abstract class IntRangeManager {
                                 // disable the channels at the end and lower the end id
                                 clients.remove(crIndex);
                                 range.mEndId = largestEndId;
-                                if (updateRanges()) {
+                                if (tryDisableRanges(startId, endId)) {
                                     return true;
                                 } else {
                                     clients.add(crIndex, cr);
@@ -555,9 +574,9 @@ public abstract class IntRangeManager {
                         // replace the original IntRange with newRanges
                         mRanges.remove(i);
                         mRanges.addAll(i, newRanges);
-                        if (updateStarted && !updateRanges()) {
+                        if (updateStarted && !tryDisableRanges(startId, endId)) {
                             // failed to update radio.  revert back mRange.
-                            mRanges.removeAll(newRanges);
+                            mRanges.subList(i, i + newRanges.size()).clear();
                             mRanges.add(i, range);
                             return false;
                         }
@@ -605,6 +624,67 @@ public abstract class IntRangeManager {
         return finishUpdate();
     }
 
+    /**
+     * Update the radio for a client range that is about to be enabled.
+     * Must be called before the IntRanges are changed.
+     * @param startId the first id of the client range
+     * @param endId the last id of the client range
+     * @param addStartId the first id of the range to send if all ranges are sent
+     * @param addEndId the last id of the range to send if all ranges are sent
+     * @return true if successful, false otherwise
+     */
+    private boolean tryEnableRanges(int startId, int endId, int addStartId, int addEndId) {
+        if (!mIncrementalUpdates) {
+            return tryAddRanges(addStartId, addEndId, true);
+        }
+        startUpdate();
+        addUncoveredRanges(startId, endId, true);
+        return finishUpdate();
+    }
+
+    /**
+     * Update the radio for a client range that has been disabled.
+     * Must be called after the IntRanges are changed.
+     * @param startId the first id of the client range
+     * @param endId the last id of the client range
+     * @return true if successful, false otherwise
+     */
+    private boolean tryDisableRanges(int startId, int endId) {
+        if (!mIncrementalUpdates) {
+            return updateRanges();
+        }
+        startUpdate();
+        addUncoveredRanges(startId, endId, false);
+        return finishUpdate();
+    }
+
+    /**
+     * Call {@link #addRange} for each part of [startId, endId] that is not in an IntRange.
+     * Before enabling a client range these are the ids it enables; after disabling one,
+     * the ids it disabled.
+     * @param startId the first id to check
+     * @param endId the last id to check
+     * @param selected true to enable the ranges, false to disable them
+     */
+    private void addUncoveredRanges(int startId, int endId, boolean selected) {
+        int nextId = startId;
+        int len = mRanges.size();
+        for (int i = findRangeIndex(startId); i < len; i++) {
+            IntRange range = mRanges.get(i);
+            if (range.mStartId > endId) {
+                break;
+            }
+            if (range.mStartId > nextId) {
+                addRange(nextId, range.mStartId - 1, selected);
+            }
+            if (range.mEndId >= endId) {
+                return;
+            }
+            nextId = range.mEndId + 1;
+        }
+        addRange(nextId, endId, selected);
+    }
+
     /**
      * Returns whether the list of ranges is completely empty.
      * @return true if there are no enabled ranges
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.util.SparseArray;
+import android.util.TimeUtils;
+
+import libcore.util.ZoneInfoDB;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Objects;
+import java.util.TimeZone;
+
+/**
+ * Time zone guesses for NITZ, as used by ServiceStateTracker.
+ *
+ * Guessing from the offset alone means instantiating every zone with the raw offset, and
+ * guessing with a country means scanning the zones of the country. Both are repeated for every
+ * NITZ, and networks tend to send NITZ in bursts when the device moves between cells. Here the
+ * candidate zones for each raw offset are created once, and each answer is kept for the
+ * (offset, dst, country) it was asked for until the NITZ time moves to another quarter hour:
+ * zone offsets only change at transitions, which fall on quarter hour boundaries.
+ *
+ * Everything is dropped when the time zone data version changes. Zones handed out are shared
+ * and must not be modified.
+ */
+public class NitzTimeZoneLookup {
+    private static final long BUCKET_MILLIS = 15 * 60 * 1000;
+    private static final int MS_PER_HOUR = 60 * 60 * 1000;
+    // answers kept before starting again; a device rarely sees more than a few
+    private static final int MAX_ANSWERS = 32;
+
+    private static final class Key {
+        final int mOffset;
+        final boolean mDst;
+        final String mIso;
+        final long mBucket;
+
+        Key(int offset, boolean dst, String iso, long when) {
+            mOffset = offset;
+            mDst = dst;
+            mIso = iso;
+            mBucket = Math.floorDiv(when, BUCKET_MILLIS);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * (31 * mOffset + (mDst ? 1 : 0)) + Objects.hashCode(mIso))
+                    + (int) (mBucket ^ (mBucket >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return mOffset == other.mOffset && mDst == other.mDst && mBucket == other.mBucket
+                    && Objects.equals(mIso, other.mIso);
+        }
+    }
+
+    private String mTzDataVersion;
+    // zones with a raw offset, in TimeZone.getAvailableIDs() order
+    private final SparseArray<TimeZone[]> mZonesByRawOffset = new SparseArray<TimeZone[]>();
+    // null values are answers too
+    private final HashMap<Key, TimeZone> mAnswers = new HashMap<Key, TimeZone>();
+
+    // Statistics
+    private long mHits;
+    private long mMisses;
+    private int mInvalidations;
+
+    /**
+     * Returns a TimeZone object based only on parameters from the NITZ string. If no zone has
+     * the offset with the DST flag, the DST flag is assumed to be wrong.
+     *
+     * @return the zone, or null if there is none
+     */
+    public synchronized TimeZone getNitzTimeZone(int offset, boolean dst, long when) {
+        checkTzDataVersion();
+        Key key = new Key(offset, dst, null, when);
+        TimeZone zone = mAnswers.get(key);
+        if (zone != null || mAnswers.containsKey(key)) {
+            mHits++;
+            return zone;
+        }
+        mMisses++;
+        zone = findTimeZone(offset, dst, when);
+        if (zone == null) {
+            // Couldn't find a proper timezone.  Perhaps the DST data is wrong.
+            zone = findTimeZone(offset, !dst, when);
+        }
+        putAnswer(key, zone);
+        return zone;
+    }
+
+    /**
+     * The cached equivalent of {@link TimeUtils#getTimeZone(int, boolean, long, String)}.
+     *
+     * @return the zone, or null if there is none
+     */
+    public synchronized TimeZone getTimeZone(int offset, boolean dst, long when, String iso) {
+        checkTzDataVersion();
+        Key key = new Key(offset, dst, iso, when);
+        TimeZone zone = mAnswers.get(key);
+        if (zone != null || mAnswers.containsKey(key)) {
+            mHits++;
+            return zone;
+        }
+        mMisses++;
+        zone = TimeUtils.getTimeZone(offset, dst, when, iso);
+        putAnswer(key, zone);
+        return zone;
+    }
+
+    /**
+     * Forget everything, as when the time zone data changes.
+     */
+    public synchronized void invalidate() {
+        mZonesByRawOffset.clear();
+        mAnswers.clear();
+        mInvalidations++;
+    }
+
+    private void checkTzDataVersion() {
+        String version = ZoneInfoDB.getInstance().getVersion();
+        if (!Objects.equals(version, mTzDataVersion)) {
+            if (mTzDataVersion != null) {
+                invalidate();
+            }
+            mTzDataVersion = version;
+        }
+    }
+
+    private void putAnswer(Key key, TimeZone zone) {
+        if (mAnswers.size() >= MAX_ANSWERS) {
+            mAnswers.clear();
+        }
+        mAnswers.put(key, zone);
+    }
+
+    /**
+     * @return the first zone with the raw offset that has the offset and DST flag at the time
+     */
+    private TimeZone findTimeZone(int offset, boolean dst, long when) {
+        int rawOffset = offset;
+        if (dst) {
+            rawOffset -= MS_PER_HOUR;
+        }
+        TimeZone[] zones = mZonesByRawOffset.get(rawOffset);
+        if (zones == null) {
+            String[] ids = TimeZone.getAvailableIDs(rawOffset);
+            zones = new TimeZone[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                zones[i] = TimeZone.getTimeZone(ids[i]);
+            }
+            mZonesByRawOffset.put(rawOffset, zones);
+        }
+
+        Date d = new Date(when);
+        for (TimeZone tz : zones) {
+            if (tz.getOffset(when) == offset &&
+                    tz.inDaylightTime(d) == dst) {
+                return tz;
+            }
+        }
+        return null;
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println(" NitzTimeZoneLookup: tzDataVersion=" + mTzDataVersion
+                + " rawOffsets=" + mZonesByRawOffset.size() + " answers=" + mAnswers.size());
+        pw.println("  hits=" + mHits + " misses=" + mMisses + " invalidations=" + mInvalidations);
+    }
+}
@@ -57,9 +57,10 @@ import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.telephony.ModemActivityInfo;
 import android.text.TextUtils;
-import android.util.SparseArray;
+import android.util.SparseIntArray;
 import android.view.Display;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.gsm.SmsBroadcastConfigInfo;
 import com.android.internal.telephony.gsm.SsData;
 import com.android.internal.telephony.gsm.SuppServiceNotification;
@@ -89,6 +90,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.Random;
 
 /**
@@ -104,7 +106,44 @@ class RILRequest {
     private static Object sPoolSync = new Object();
     private static RILRequest sPool = null;
     private static int sPoolSize = 0;
-    private static final int MAX_POOL_SIZE = 4;
+
+    /**
+     * Requests kept in the shared pool. SIM loading and cell info bursts have a few dozen
+     * requests in flight at once.
+     */
+    private static final int MAX_POOL_SIZE =
+            SystemProperties.getInt("ro.ril.request_pool_size", 32);
+
+    /**
+     * Requests each thread keeps for itself. They move between a thread and the shared
+     * pool half this many at a time, under one lock.
+     */
+    private static final int MAX_THREAD_POOL_SIZE =
+            SystemProperties.getInt("ro.ril.request_thread_pool_size", 8);
+
+    /** Parcels that have grown larger than this are not kept with a pooled request. */
+    private static final int MAX_POOLED_PARCEL_BYTES = 1024;
+
+    /** The requests kept by one thread, only used by that thread. */
+    private static class ThreadPool {
+        RILRequest mHead;
+        int mSize;
+    }
+
+    private static final ThreadLocal<ThreadPool> sThreadPool = new ThreadLocal<ThreadPool>() {
+        @Override
+        protected ThreadPool initialValue() {
+            return new ThreadPool();
+        }
+    };
+
+    // Statistics
+    private static final AtomicLong sThreadPoolHits = new AtomicLong();
+    private static final AtomicLong sPoolHits = new AtomicLong();
+    private static final AtomicLong sPoolMisses = new AtomicLong();
+    private static final AtomicLong sParcelReuses = new AtomicLong();
+    private static final AtomicLong sParcelMisses = new AtomicLong();
+
     private Context mContext;
 
     //***** Instance Variables
@@ -113,7 +152,12 @@ class RILRequest {
     Message mResult;
     Parcel mParcel;
     RILRequest mNext;
+    // The Parcel of an earlier use, emptied, for the next obtain()
+    Parcel mSpareParcel;
     int mWakeLockType;
+    // SystemClock.elapsedRealtime() when obtained and when handed to the socket
+    long mObtainTime;
+    long mSendTime;
 
     /**
      * Retrieves a new RILRequest instance from the pool.
@@ -124,17 +168,35 @@ class RILRequest {
      */
     static RILRequest obtain(int request, Message result) {
         RILRequest rr = null;
-
-        synchronized(sPoolSync) {
-            if (sPool != null) {
-                rr = sPool;
-                sPool = rr.mNext;
-                rr.mNext = null;
-                sPoolSize--;
+        ThreadPool threadPool = sThreadPool.get();
+
+        if (threadPool.mHead == null) {
+            // refill from the shared pool
+            synchronized(sPoolSync) {
+                int count = Math.max(MAX_THREAD_POOL_SIZE / 2, 1);
+                while (sPool != null && count-- > 0) {
+                    RILRequest next = sPool;
+                    sPool = next.mNext;
+                    sPoolSize--;
+                    next.mNext = threadPool.mHead;
+                    threadPool.mHead = next;
+                    threadPool.mSize++;
+                }
+            }
+            if (threadPool.mHead != null) {
+                sPoolHits.incrementAndGet();
             }
+        } else {
+            sThreadPoolHits.incrementAndGet();
         }
 
-        if (rr == null) {
+        if (threadPool.mHead != null) {
+            rr = threadPool.mHead;
+            threadPool.mHead = rr.mNext;
+            threadPool.mSize--;
+            rr.mNext = null;
+        } else {
+            sPoolMisses.incrementAndGet();
             rr = new RILRequest();
         }
 
@@ -142,9 +204,18 @@ class RILRequest {
 
         rr.mRequest = request;
         rr.mResult = result;
-        rr.mParcel = Parcel.obtain();
+        if (rr.mSpareParcel != null) {
+            sParcelReuses.incrementAndGet();
+            rr.mParcel = rr.mSpareParcel;
+            rr.mSpareParcel = null;
+        } else {
+            sParcelMisses.incrementAndGet();
+            rr.mParcel = Parcel.obtain();
+        }
 
         rr.mWakeLockType = RIL.INVALID_WAKELOCK;
+        rr.mObtainTime = SystemClock.elapsedRealtime();
+        rr.mSendTime = 0;
         if (result != null && result.getTarget() == null) {
             throw new NullPointerException("Message target must not be null");
         }
@@ -162,23 +233,88 @@ class RILRequest {
      * Note: This should only be called once per use.
      */
     void release() {
+        mResult = null;
+        if(mWakeLockType != RIL.INVALID_WAKELOCK) {
+            //This is OK for some wakelock types and not others
+            if(mWakeLockType == RIL.FOR_WAKELOCK) {
+                Rlog.e(LOG_TAG, "RILRequest releasing with held wake lock: "
+                        + serialString());
+            }
+        }
+        if (mParcel != null) {
+            // never sent
+            recycleParcel();
+        }
+
+        ThreadPool threadPool = sThreadPool.get();
+        mNext = threadPool.mHead;
+        threadPool.mHead = this;
+        threadPool.mSize++;
+        if (threadPool.mSize <= MAX_THREAD_POOL_SIZE) {
+            return;
+        }
+
+        // hand half to the shared pool, dropping what does not fit
+        int count = Math.max(MAX_THREAD_POOL_SIZE / 2, 1);
         synchronized (sPoolSync) {
-            if (sPoolSize < MAX_POOL_SIZE) {
-                mNext = sPool;
-                sPool = this;
-                sPoolSize++;
-                mResult = null;
-                if(mWakeLockType != RIL.INVALID_WAKELOCK) {
-                    //This is OK for some wakelock types and not others
-                    if(mWakeLockType == RIL.FOR_WAKELOCK) {
-                        Rlog.e(LOG_TAG, "RILRequest releasing with held wake lock: "
-                                + serialString());
+            while (count-- > 0) {
+                RILRequest rr = threadPool.mHead;
+                threadPool.mHead = rr.mNext;
+                threadPool.mSize--;
+                if (sPoolSize < MAX_POOL_SIZE) {
+                    rr.mNext = sPool;
+                    sPool = rr;
+                    sPoolSize++;
+                } else {
+                    rr.mNext = null;
+                    if (rr.mSpareParcel != null) {
+                        rr.mSpareParcel.recycle();
+                        rr.mSpareParcel = null;
                     }
                 }
             }
         }
     }
 
+    /**
+     * Empties {@link #mParcel} once it has been marshalled, keeping it for the next use of
+     * this request unless it has grown large.
+     */
+    void recycleParcel() {
+        if (mSpareParcel == null && mParcel.dataCapacity() <= MAX_POOLED_PARCEL_BYTES) {
+            mParcel.setDataSize(0);
+            mParcel.setDataPosition(0);
+            mSpareParcel = mParcel;
+        } else {
+            mParcel.recycle();
+        }
+        mParcel = null;
+    }
+
+    /** @return number of requests obtain() had to allocate */
+    @VisibleForTesting
+    static long getPoolMissCount() {
+        return sPoolMisses.get();
+    }
+
+    /** @return number of Parcels obtain() could not reuse */
+    @VisibleForTesting
+    static long getParcelMissCount() {
+        return sParcelMisses.get();
+    }
+
+    static void dumpPool(PrintWriter pw) {
+        int poolSize;
+        synchronized (sPoolSync) {
+            poolSize = sPoolSize;
+        }
+        pw.println(" RILRequest pool: size=" + poolSize + " max=" + MAX_POOL_SIZE
+                + " threadMax=" + MAX_THREAD_POOL_SIZE
+                + " threadHits=" + sThreadPoolHits.get() + " sharedHits=" + sPoolHits.get()
+                + " misses=" + sPoolMisses.get()
+                + " parcelReuses=" + sParcelReuses.get() + " parcelMisses=" + sParcelMisses.get());
+    }
+
     private RILRequest() {
     }
 
@@ -226,8 +362,7 @@ class RILRequest {
         }
 
         if (mParcel != null) {
-            mParcel.recycle();
-            mParcel = null;
+            recycleParcel();
         }
     }
 }
@@ -260,6 +395,12 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
     private static final int DEFAULT_BLOCKING_MESSAGE_RESPONSE_TIMEOUT_MS = 2000;
 
+    /**
+     * Deadlines of request types in addition to the defaults, as a comma separated list of
+     * RIL_REQUEST_* code and milliseconds, e.g. "61:5000,75:10000".
+     */
+    private static final String PROPERTY_REQUEST_DEADLINES = "ro.ril.request_deadlines";
+
     // Variables used to differentiate ack messages from request while calling clearWakeLock()
     public static final int INVALID_WAKELOCK = -1;
     public static final int FOR_WAKELOCK = 0;
@@ -288,7 +429,12 @@ public class RIL extends BaseCommands implements CommandsInterface {
     volatile int mWlSequenceNum = 0;
     volatile int mAckWlSequenceNum = 0;
 
-    SparseArray<RILRequest> mRequestList = new SparseArray<RILRequest>();
+    RilRequestTable mRequestList = new RilRequestTable(RIL_REQUEST_TABLE_SIZE);
+
+    // Milliseconds after which a request of each RIL_REQUEST_* type is failed
+    private final SparseIntArray mRequestDeadlines = new SparseIntArray();
+
+    final RilLatencyStats mLatencyStats = new RilLatencyStats();
 
     Object[]     mLastNITZTimeInfo;
 
@@ -316,6 +462,12 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
     // match with constant in ril.cpp
     static final int RIL_MAX_COMMAND_BYTES = (8 * 1024);
+    // Room for several frames so bursts of unsolicited responses need one read
+    static final int RIL_RECEIVE_BUFFER_BYTES = (4 * RIL_MAX_COMMAND_BYTES);
+    // Room for several frames so queued requests go out in one write
+    static final int RIL_SEND_BUFFER_BYTES = (4 * RIL_MAX_COMMAND_BYTES);
+    // Serials of outstanding requests rarely span more than this
+    static final int RIL_REQUEST_TABLE_SIZE = 256;
     static final int RESPONSE_SOLICITED = 0;
     static final int RESPONSE_UNSOLICITED = 1;
     static final int RESPONSE_SOLICITED_ACK = 2;
@@ -370,7 +522,13 @@ public class RIL extends BaseCommands implements CommandsInterface {
         }
 
         // Only allocated once
-        byte[] dataLength = new byte[4];
+        final RilFrameWriter mFrameWriter =
+                new RilFrameWriter(RIL_MAX_COMMAND_BYTES, RIL_SEND_BUFFER_BYTES);
+
+        // Serials of the requests, and the acks, whose frames are in mFrameWriter
+        private int[] mPendingSerials = new int[16];
+        private int mPendingSerialCount;
+        private final ArrayList<RILRequest> mPendingAcks = new ArrayList<RILRequest>();
 
         //***** Runnable implementation
         @Override
@@ -395,24 +553,26 @@ public class RIL extends BaseCommands implements CommandsInterface {
                         s = mSocket;
 
                         if (s == null) {
+                            flushPending(null);
                             rr.onError(RADIO_NOT_AVAILABLE, null);
                             decrementWakeLock(rr);
                             rr.release();
                             return;
                         }
 
-                        // Acks should not be stored in list before sending
-                        if (msg.what != EVENT_SEND_ACK) {
-                            synchronized (mRequestList) {
-                                mRequestList.append(rr.mSerial, rr);
-                            }
-                        }
+                        rr.mSendTime = SystemClock.elapsedRealtime();
 
                         byte[] data;
 
                         data = rr.mParcel.marshall();
-                        rr.mParcel.recycle();
-                        rr.mParcel = null;
+                        // Done with the Parcel before the request is listed: from then on
+                        // RILReceiver may release the request, and with it an unsent Parcel.
+                        rr.recycleParcel();
+
+                        // Acks should not be stored in list before sending
+                        if (msg.what != EVENT_SEND_ACK) {
+                            mRequestList.put(rr);
+                        }
 
                         if (data.length > RIL_MAX_COMMAND_BYTES) {
                             throw new RuntimeException(
@@ -420,29 +580,20 @@ public class RIL extends BaseCommands implements CommandsInterface {
                                                           + data.length);
                         }
 
-                        // parcel length in big endian
-                        dataLength[0] = dataLength[1] = 0;
-                        dataLength[2] = (byte)((data.length >> 8) & 0xff);
-                        dataLength[3] = (byte)((data.length) & 0xff);
-
-                        //Rlog.v(RILJ_LOG_TAG, "writing packet: " + data.length + " bytes");
-
-                        s.getOutputStream().write(dataLength);
-                        s.getOutputStream().write(data);
+                        if (!mFrameWriter.hasRoomFor(data.length)) {
+                            flushPending(s);
+                        }
+                        mFrameWriter.append(data);
                         if (msg.what == EVENT_SEND_ACK) {
-                            rr.release();
-                            return;
+                            mPendingAcks.add(rr);
+                        } else {
+                            addPendingSerial(rr.mSerial);
                         }
-                    } catch (IOException ex) {
-                        Rlog.e(RILJ_LOG_TAG, "IOException", ex);
-                        req = findAndRemoveRequestFromList(rr.mSerial);
-                        // make sure this request has not already been handled,
-                        // eg, if RILReceiver cleared the list.
-                        if (req != null) {
-                            rr.onError(RADIO_NOT_AVAILABLE, null);
-                            decrementWakeLock(rr);
-                            rr.release();
-                            return;
+
+                        // Send now unless more frames are already queued behind this one,
+                        // in which case they all go out in one write.
+                        if (!hasMessages(EVENT_SEND) && !hasMessages(EVENT_SEND_ACK)) {
+                            flushPending(s);
                         }
                     } catch (RuntimeException exc) {
                         Rlog.e(RILJ_LOG_TAG, "Uncaught exception ", exc);
@@ -453,7 +604,11 @@ public class RIL extends BaseCommands implements CommandsInterface {
                             rr.onError(GENERIC_FAILURE, null);
                             decrementWakeLock(rr);
                             rr.release();
-                            return;
+                        }
+                        // The frames of the requests before this one in the batch still
+                        // have to go out, or fail, if nothing is queued to flush them.
+                        if (!hasMessages(EVENT_SEND) && !hasMessages(EVENT_SEND_ACK)) {
+                            flushPending(mSocket);
                         }
                     }
 
@@ -471,17 +626,16 @@ public class RIL extends BaseCommands implements CommandsInterface {
                     // Note: Keep mRequestList so that delayed response
                     // can still be handled when response finally comes.
 
-                    synchronized (mRequestList) {
-                        if (msg.arg1 == mWlSequenceNum && clearWakeLock(FOR_WAKELOCK)) {
-                            if (RILJ_LOGD) {
-                                int count = mRequestList.size();
-                                Rlog.d(RILJ_LOG_TAG, "WAKE_LOCK_TIMEOUT " +
-                                        " mRequestList=" + count);
-                                for (int i = 0; i < count; i++) {
-                                    rr = mRequestList.valueAt(i);
-                                    Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
-                                            + requestToString(rr.mRequest));
-                                }
+                    if (msg.arg1 == mWlSequenceNum && clearWakeLock(FOR_WAKELOCK)) {
+                        if (RILJ_LOGD) {
+                            ArrayList<RILRequest> requests = mRequestList.snapshot();
+                            int count = requests.size();
+                            Rlog.d(RILJ_LOG_TAG, "WAKE_LOCK_TIMEOUT " +
+                                    " mRequestList=" + count);
+                            for (int i = 0; i < count; i++) {
+                                rr = requests.get(i);
+                                Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
+                                        + requestToString(rr.mRequest));
                             }
                         }
                     }
@@ -502,12 +656,19 @@ public class RIL extends BaseCommands implements CommandsInterface {
                     if(rr == null) {
                         break;
                     }
+                    mLatencyStats.onTimeout(rr.mRequest);
 
                     //build a response if expected
                     if (rr.mResult != null) {
                         Object timeoutResponse = getResponseForTimedOutRILRequest(rr);
-                        AsyncResult.forMessage( rr.mResult, timeoutResponse, null);
-                        rr.mResult.sendToTarget();
+                        if (timeoutResponse != null) {
+                            AsyncResult.forMessage( rr.mResult, timeoutResponse, null);
+                            rr.mResult.sendToTarget();
+                        } else {
+                            Rlog.w(RILJ_LOG_TAG, rr.serialString() + " "
+                                    + requestToString(rr.mRequest) + " passed its deadline");
+                            rr.onError(GENERIC_FAILURE, null);
+                        }
                         mEventLog.writeOnRilTimeoutResponse(rr.mSerial, rr.mRequest);
                     }
 
@@ -516,6 +677,56 @@ public class RIL extends BaseCommands implements CommandsInterface {
                     break;
             }
         }
+
+        /**
+         * Remember the serial of a request whose frame is buffered in mFrameWriter.
+         */
+        private void addPendingSerial(int serial) {
+            if (mPendingSerialCount == mPendingSerials.length) {
+                mPendingSerials = Arrays.copyOf(mPendingSerials, 2 * mPendingSerialCount);
+            }
+            mPendingSerials[mPendingSerialCount++] = serial;
+        }
+
+        /**
+         * Write the frames buffered in mFrameWriter with one write. If that fails the
+         * requests are completed with RADIO_NOT_AVAILABLE, unless RILReceiver has already
+         * handled them.
+         * @param s the socket to write to, or null if it has been closed
+         */
+        private void flushPending(LocalSocket s) {
+            if (mFrameWriter.getBufferedFrameCount() == 0) {
+                return;
+            }
+            try {
+                if (s == null) {
+                    throw new IOException("RIL socket closed with "
+                            + mFrameWriter.getBufferedFrameCount() + " frames unsent");
+                }
+                //Rlog.v(RILJ_LOG_TAG, "writing " + mFrameWriter.getBufferedFrameCount()
+                //        + " packets");
+                mFrameWriter.writeTo(s.getOutputStream());
+            } catch (IOException ex) {
+                Rlog.e(RILJ_LOG_TAG, "IOException", ex);
+                mFrameWriter.clear();
+                for (int i = 0; i < mPendingSerialCount; i++) {
+                    // make sure this request has not already been handled,
+                    // eg, if RILReceiver cleared the list.
+                    RILRequest rr = findAndRemoveRequestFromList(mPendingSerials[i]);
+                    if (rr != null) {
+                        rr.onError(RADIO_NOT_AVAILABLE, null);
+                        decrementWakeLock(rr);
+                        rr.release();
+                    }
+                }
+            } finally {
+                mPendingSerialCount = 0;
+                for (int i = 0; i < mPendingAcks.size(); i++) {
+                    mPendingAcks.get(i).release();
+                }
+                mPendingAcks.clear();
+            }
+        }
     }
 
     /**
@@ -541,70 +752,8 @@ public class RIL extends BaseCommands implements CommandsInterface {
         return timeoutResponse;
     }
 
-    /**
-     * Reads in a single RIL message off the wire. A RIL message consists
-     * of a 4-byte little-endian length and a subsequent series of bytes.
-     * The final message (length header omitted) is read into
-     * <code>buffer</code> and the length of the final message (less header)
-     * is returned. A return value of -1 indicates end-of-stream.
-     *
-     * @param is non-null; Stream to read from
-     * @param buffer Buffer to fill in. Must be as large as maximum
-     * message size, or an ArrayOutOfBounds exception will be thrown.
-     * @return Length of message less header, or -1 on end of stream.
-     * @throws IOException
-     */
-    private static int readRilMessage(InputStream is, byte[] buffer)
-            throws IOException {
-        int countRead;
-        int offset;
-        int remaining;
-        int messageLength;
-
-        // First, read in the length of the message
-        offset = 0;
-        remaining = 4;
-        do {
-            countRead = is.read(buffer, offset, remaining);
-
-            if (countRead < 0 ) {
-                Rlog.e(RILJ_LOG_TAG, "Hit EOS reading message length");
-                return -1;
-            }
-
-            offset += countRead;
-            remaining -= countRead;
-        } while (remaining > 0);
-
-        messageLength = ((buffer[0] & 0xff) << 24)
-                | ((buffer[1] & 0xff) << 16)
-                | ((buffer[2] & 0xff) << 8)
-                | (buffer[3] & 0xff);
-
-        // Then, re-use the buffer and read in the message itself
-        offset = 0;
-        remaining = messageLength;
-        do {
-            countRead = is.read(buffer, offset, remaining);
-
-            if (countRead < 0 ) {
-                Rlog.e(RILJ_LOG_TAG, "Hit EOS reading message.  messageLength=" + messageLength
-                        + " remaining=" + remaining);
-                return -1;
-            }
-
-            offset += countRead;
-            remaining -= countRead;
-        } while (remaining > 0);
-
-        return messageLength;
-    }
-
     protected class RILReceiver implements Runnable {
-        byte[] buffer;
-
         protected RILReceiver() {
-            buffer = new byte[RIL_MAX_COMMAND_BYTES];
         }
 
         @Override
@@ -669,19 +818,22 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 int length = 0;
                 try {
                     InputStream is = mSocket.getInputStream();
+                    RilFrameReader reader = new RilFrameReader(is, RIL_MAX_COMMAND_BYTES,
+                            RIL_RECEIVE_BUFFER_BYTES);
 
                     for (;;) {
                         Parcel p;
 
-                        length = readRilMessage(is, buffer);
+                        length = reader.readFrame();
 
                         if (length < 0) {
                             // End-of-stream reached
                             break;
                         }
 
+                        // Unmarshall straight out of the receive buffer
                         p = Parcel.obtain();
-                        p.unmarshall(buffer, 0, length);
+                        p.unmarshall(reader.getBuffer(), reader.getFrameOffset(), length);
                         p.setDataPosition(0);
 
                         //Rlog.v(RILJ_LOG_TAG, "Read packet: " + length + " bytes");
@@ -754,6 +906,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         mAckWakeLockTimeout = SystemProperties.getInt(
                 TelephonyProperties.PROPERTY_WAKE_LOCK_TIMEOUT, DEFAULT_ACK_WAKE_LOCK_TIMEOUT_MS);
         mWakeLockCount = 0;
+        initRequestDeadlines(SystemProperties.get(PROPERTY_REQUEST_DEADLINES, ""));
 
         mSenderThread = new HandlerThread("RILSender" + mInstanceId);
         mSenderThread.start();
@@ -2548,9 +2701,64 @@ public class RIL extends BaseCommands implements CommandsInterface {
             return;
         }
 
+        // rr may be answered and released as soon as it is sent
+        int serial = rr.mSerial;
+        int deadline = getRequestDeadline(rr.mRequest);
+
         msg = mSender.obtainMessage(EVENT_SEND, rr);
         acquireWakeLock(rr, FOR_WAKELOCK);
         msg.sendToTarget();
+
+        if (deadline > 0) {
+            msg = mSender.obtainMessage(EVENT_BLOCKING_RESPONSE_TIMEOUT, serial, 0);
+            mSender.sendMessageDelayed(msg, deadline);
+        }
+    }
+
+    /**
+     * Set up the request deadlines: the defaults, then those of the property.
+     * @param deadlines value of {@link #PROPERTY_REQUEST_DEADLINES}
+     */
+    private void initRequestDeadlines(String deadlines) {
+        mRequestDeadlines.put(RIL_REQUEST_GET_ACTIVITY_INFO,
+                DEFAULT_BLOCKING_MESSAGE_RESPONSE_TIMEOUT_MS);
+        if (TextUtils.isEmpty(deadlines)) {
+            return;
+        }
+        for (String deadline : deadlines.split(",")) {
+            String[] parts = deadline.split(":");
+            try {
+                if (parts.length != 2) {
+                    throw new NumberFormatException();
+                }
+                setRequestDeadline(Integer.parseInt(parts[0].trim()),
+                        Integer.parseInt(parts[1].trim()));
+            } catch (NumberFormatException e) {
+                riljLog("Ignoring bad request deadline \"" + deadline + "\"");
+            }
+        }
+    }
+
+    /**
+     * @param request RIL_REQUEST_*
+     * @param deadlineMs milliseconds after which requests of the type are failed if they
+     *        have had no response, or 0 to wait for the response indefinitely
+     */
+    @VisibleForTesting
+    public void setRequestDeadline(int request, int deadlineMs) {
+        synchronized (mRequestDeadlines) {
+            if (deadlineMs > 0) {
+                mRequestDeadlines.put(request, deadlineMs);
+            } else {
+                mRequestDeadlines.delete(request);
+            }
+        }
+    }
+
+    private int getRequestDeadline(int request) {
+        synchronized (mRequestDeadlines) {
+            return mRequestDeadlines.get(request);
+        }
     }
 
     protected void
@@ -2575,9 +2783,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
             serial = p.readInt();
 
             RILRequest rr;
-            synchronized (mRequestList) {
-                rr = mRequestList.get(serial);
-            }
+            rr = mRequestList.get(serial);
             if (rr == null) {
                 Rlog.w(RILJ_LOG_TAG, "Unexpected solicited ack response! sn: " + serial);
             } else {
@@ -2590,44 +2796,35 @@ public class RIL extends BaseCommands implements CommandsInterface {
     }
 
     /**
-     * Release each request in mRequestList then clear the list
+     * Remove each request from mRequestList then release it
      * @param error is the RIL_Errno sent back
      * @param loggable true means to print all requests in mRequestList
      */
     protected void clearRequestList(int error, boolean loggable) {
         RILRequest rr;
-        synchronized (mRequestList) {
-            int count = mRequestList.size();
-            if (RILJ_LOGD && loggable) {
-                Rlog.d(RILJ_LOG_TAG, "clearRequestList " +
-                        " mWakeLockCount=" + mWakeLockCount +
-                        " mRequestList=" + count);
-            }
+        // each request is either removed here or by findAndRemoveRequestFromList()
+        ArrayList<RILRequest> requests = mRequestList.removeAll();
+        int count = requests.size();
+        if (RILJ_LOGD && loggable) {
+            Rlog.d(RILJ_LOG_TAG, "clearRequestList " +
+                    " mWakeLockCount=" + mWakeLockCount +
+                    " mRequestList=" + count);
+        }
 
-            for (int i = 0; i < count ; i++) {
-                rr = mRequestList.valueAt(i);
-                if (RILJ_LOGD && loggable) {
-                    Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] " +
-                            requestToString(rr.mRequest));
-                }
-                rr.onError(error, null);
-                decrementWakeLock(rr);
-                rr.release();
+        for (int i = 0; i < count ; i++) {
+            rr = requests.get(i);
+            if (RILJ_LOGD && loggable) {
+                Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] " +
+                        requestToString(rr.mRequest));
             }
-            mRequestList.clear();
+            rr.onError(error, null);
+            decrementWakeLock(rr);
+            rr.release();
         }
     }
 
     protected RILRequest findAndRemoveRequestFromList(int serial) {
-        RILRequest rr = null;
-        synchronized (mRequestList) {
-            rr = mRequestList.get(serial);
-            if (rr != null) {
-                mRequestList.remove(serial);
-            }
-        }
-
-        return rr;
+        return mRequestList.remove(serial);
     }
 
     protected RILRequest
@@ -2647,6 +2844,8 @@ public class RIL extends BaseCommands implements CommandsInterface {
                             + serial + " error: " + error);
             return null;
         }
+        mLatencyStats.onResponse(rr.mRequest, rr.mSendTime - rr.mObtainTime,
+                SystemClock.elapsedRealtime() - rr.mSendTime);
 
         if (getRilVersion() >= 13 && type == RESPONSE_SOLICITED_ACK_EXP) {
             Message msg;
@@ -4865,21 +5064,30 @@ public class RIL extends BaseCommands implements CommandsInterface {
         pw.println(" mSocket=" + mSocket);
         pw.println(" mSenderThread=" + mSenderThread);
         pw.println(" mSender=" + mSender);
+        if (mSender != null) {
+            pw.println(" mSender frames=" + mSender.mFrameWriter.getFrameCount()
+                    + " writes=" + mSender.mFrameWriter.getWriteCount());
+        }
         pw.println(" mReceiverThread=" + mReceiverThread);
         pw.println(" mReceiver=" + mReceiver);
         pw.println(" mWakeLock=" + mWakeLock);
         pw.println(" mWakeLockTimeout=" + mWakeLockTimeout);
-        synchronized (mRequestList) {
-            synchronized (mWakeLock) {
-                pw.println(" mWakeLockCount=" + mWakeLockCount);
-            }
-            int count = mRequestList.size();
-            pw.println(" mRequestList count=" + count);
-            for (int i = 0; i < count; i++) {
-                RILRequest rr = mRequestList.valueAt(i);
-                pw.println("  [" + rr.mSerial + "] " + requestToString(rr.mRequest));
-            }
+        synchronized (mWakeLock) {
+            pw.println(" mWakeLockCount=" + mWakeLockCount);
+        }
+        ArrayList<RILRequest> requests = mRequestList.snapshot();
+        int count = requests.size();
+        pw.println(" mRequestList count=" + count
+                + " overflowed=" + mRequestList.getOverflowCount());
+        for (int i = 0; i < count; i++) {
+            RILRequest rr = requests.get(i);
+            pw.println("  [" + rr.mSerial + "] " + requestToString(rr.mRequest));
         }
+        synchronized (mRequestDeadlines) {
+            pw.println(" mRequestDeadlines=" + mRequestDeadlines);
+        }
+        mLatencyStats.dump(pw);
+        RILRequest.dumpPool(pw);
         pw.println(" mLastNITZTimeInfo=" + Arrays.toString(mLastNITZTimeInfo));
         pw.println(" mTestingEmergencyCall=" + mTestingEmergencyCall.get());
     }
@@ -5079,11 +5287,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         if (RILJ_LOGD) {
             riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
         }
+        // answered with an empty ModemActivityInfo after its deadline
         send(rr);
-
-        Message msg = mSender.obtainMessage(EVENT_BLOCKING_RESPONSE_TIMEOUT);
-        msg.obj = null;
-        msg.arg1 = rr.mSerial;
-        mSender.sendMessageDelayed(msg, DEFAULT_BLOCKING_MESSAGE_RESPONSE_TIMEOUT_MS);
     }
 }
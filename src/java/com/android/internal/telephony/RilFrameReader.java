@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.telephony.Rlog;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffered reader for the length-prefixed frames sent by rild.
+ *
+ * A frame is a 4-byte big-endian length followed by that many bytes of
+ * marshalled Parcel data. Instead of issuing two blocking reads per frame the
+ * reader fills a single buffer with as many bytes as the socket has available,
+ * so a burst of unsolicited responses is normally drained with one read. Each
+ * frame is exposed in place through {@link #getBuffer()}, {@link #getFrameOffset()}
+ * and {@link #getFrameLength()}; the caller unmarshalls it from there without
+ * copying it into a separate array first.
+ *
+ * Not thread safe, this is only used by the RILReceiver thread.
+ *
+ * {@hide}
+ */
+class RilFrameReader {
+    static final String LOG_TAG = "RilFrameReader";
+
+    private static final int HEADER_BYTES = 4;
+
+    private final InputStream mInputStream;
+    private final int mMaxFrameBytes;
+    private final byte[] mBuffer;
+
+    // Bytes [mReadPos, mWritePos) are buffered but not yet handed out
+    private int mReadPos;
+    private int mWritePos;
+
+    private int mFrameOffset;
+    private int mFrameLength;
+
+    // Statistics
+    private long mFrameCount;
+    private long mReadCount;
+
+    /**
+     * @param is non-null; Stream to read from
+     * @param maxFrameBytes largest frame payload accepted, less header
+     * @param bufferBytes size of the read buffer, must hold at least one
+     *        maximum sized frame plus header
+     */
+    RilFrameReader(InputStream is, int maxFrameBytes, int bufferBytes) {
+        if (bufferBytes < maxFrameBytes + HEADER_BYTES) {
+            throw new IllegalArgumentException("bufferBytes=" + bufferBytes
+                    + " cannot hold a frame of maxFrameBytes=" + maxFrameBytes);
+        }
+        mInputStream = is;
+        mMaxFrameBytes = maxFrameBytes;
+        mBuffer = new byte[bufferBytes];
+    }
+
+    /**
+     * Advances to the next frame, reading from the stream only if the frame
+     * is not already buffered.
+     *
+     * @return Length of the frame less header, or -1 on end of stream.
+     * @throws IOException on a stream error or a frame larger than the maximum
+     */
+    int readFrame() throws IOException {
+        if (!fill(HEADER_BYTES)) {
+            Rlog.e(LOG_TAG, "Hit EOS reading message length");
+            return -1;
+        }
+
+        int messageLength = ((mBuffer[mReadPos] & 0xff) << 24)
+                | ((mBuffer[mReadPos + 1] & 0xff) << 16)
+                | ((mBuffer[mReadPos + 2] & 0xff) << 8)
+                | (mBuffer[mReadPos + 3] & 0xff);
+
+        if (messageLength < 0 || messageLength > mMaxFrameBytes) {
+            throw new IOException("Invalid message length " + messageLength);
+        }
+
+        if (!fill(HEADER_BYTES + messageLength)) {
+            Rlog.e(LOG_TAG, "Hit EOS reading message.  messageLength=" + messageLength
+                    + " remaining=" + (HEADER_BYTES + messageLength - available()));
+            return -1;
+        }
+
+        mFrameOffset = mReadPos + HEADER_BYTES;
+        mFrameLength = messageLength;
+        mReadPos = mFrameOffset + messageLength;
+        mFrameCount++;
+        return messageLength;
+    }
+
+    /** @return the buffer holding the current frame, valid until the next readFrame() */
+    byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /** @return offset of the current frame payload within {@link #getBuffer()} */
+    int getFrameOffset() {
+        return mFrameOffset;
+    }
+
+    /** @return length of the current frame payload */
+    int getFrameLength() {
+        return mFrameLength;
+    }
+
+    /** @return number of frames returned so far */
+    long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /** @return number of reads issued on the underlying stream so far */
+    long getReadCount() {
+        return mReadCount;
+    }
+
+    private int available() {
+        return mWritePos - mReadPos;
+    }
+
+    /**
+     * Makes sure at least <code>needed</code> bytes are buffered starting at
+     * mReadPos, compacting the buffer when the tail is too short.
+     *
+     * @return false if the stream ended first
+     */
+    private boolean fill(int needed) throws IOException {
+        if (available() >= needed) {
+            return true;
+        }
+
+        if (mReadPos + needed > mBuffer.length) {
+            int remaining = available();
+            System.arraycopy(mBuffer, mReadPos, mBuffer, 0, remaining);
+            mReadPos = 0;
+            mWritePos = remaining;
+        } else if (mReadPos == mWritePos) {
+            mReadPos = mWritePos = 0;
+        }
+
+        while (available() < needed) {
+            int countRead = mInputStream.read(mBuffer, mWritePos, mBuffer.length - mWritePos);
+            mReadCount++;
+            if (countRead < 0) {
+                return false;
+            }
+            mWritePos += countRead;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffered writer for the length-prefixed frames sent to rild, the
+ * counterpart of {@link RilFrameReader}.
+ *
+ * Each frame is a 4-byte big-endian length followed by the marshalled Parcel
+ * data. Instead of writing the length and the payload separately, frames are
+ * encoded back to back into one reusable buffer which {@link #writeTo} sends
+ * with a single write, so several queued requests cost one system call.
+ *
+ * Not thread safe, this is only used by the RILSender thread.
+ *
+ * {@hide}
+ */
+class RilFrameWriter {
+    private static final int HEADER_BYTES = 4;
+
+    private final int mMaxFrameBytes;
+    private final byte[] mBuffer;
+
+    // Bytes [0, mWritePos) are encoded but not yet written
+    private int mWritePos;
+    private int mBufferedFrames;
+
+    // Statistics
+    private long mFrameCount;
+    private long mWriteCount;
+
+    /**
+     * @param maxFrameBytes largest frame payload accepted, less header
+     * @param bufferBytes size of the write buffer, must hold at least one
+     *        maximum sized frame plus header
+     */
+    RilFrameWriter(int maxFrameBytes, int bufferBytes) {
+        if (bufferBytes < maxFrameBytes + HEADER_BYTES) {
+            throw new IllegalArgumentException("bufferBytes=" + bufferBytes
+                    + " cannot hold a frame of maxFrameBytes=" + maxFrameBytes);
+        }
+        mMaxFrameBytes = maxFrameBytes;
+        mBuffer = new byte[bufferBytes];
+    }
+
+    /**
+     * @param length length of a frame payload
+     * @return whether a frame of that length fits after the frames already buffered
+     */
+    boolean hasRoomFor(int length) {
+        return mWritePos + HEADER_BYTES + length <= mBuffer.length;
+    }
+
+    /**
+     * Encodes a frame after the frames already buffered.
+     *
+     * @param data the frame payload
+     * @throws IllegalArgumentException if the payload is larger than the maximum
+     * @throws IllegalStateException if there is no room for the frame, see {@link #hasRoomFor}
+     */
+    void append(byte[] data) {
+        if (data.length > mMaxFrameBytes) {
+            throw new IllegalArgumentException("Parcel larger than max bytes allowed! "
+                    + data.length);
+        }
+        if (!hasRoomFor(data.length)) {
+            throw new IllegalStateException("No room for " + data.length + " bytes, "
+                    + mWritePos + " buffered");
+        }
+
+        // parcel length in big endian
+        mBuffer[mWritePos] = (byte) (data.length >>> 24);
+        mBuffer[mWritePos + 1] = (byte) (data.length >>> 16);
+        mBuffer[mWritePos + 2] = (byte) (data.length >>> 8);
+        mBuffer[mWritePos + 3] = (byte) data.length;
+        System.arraycopy(data, 0, mBuffer, mWritePos + HEADER_BYTES, data.length);
+        mWritePos += HEADER_BYTES + data.length;
+        mBufferedFrames++;
+    }
+
+    /** @return number of frames buffered and not yet written */
+    int getBufferedFrameCount() {
+        return mBufferedFrames;
+    }
+
+    /**
+     * Writes all buffered frames with a single write. The buffer is emptied
+     * even if the write fails, since the stream state is then unknown.
+     */
+    void writeTo(OutputStream os) throws IOException {
+        if (mWritePos == 0) {
+            return;
+        }
+        try {
+            os.write(mBuffer, 0, mWritePos);
+            mWriteCount++;
+            mFrameCount += mBufferedFrames;
+        } finally {
+            clear();
+        }
+    }
+
+    /** Drops the buffered frames without writing them. */
+    void clear() {
+        mWritePos = 0;
+        mBufferedFrames = 0;
+    }
+
+    /** @return number of frames written so far */
+    long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /** @return number of writes issued on the stream so far */
+    long getWriteCount() {
+        return mWriteCount;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms of solicited RIL requests, one per RIL_REQUEST_* type.
+ *
+ * The response time of a request is counted from when RILSender sends it to
+ * when RILReceiver gets its response, in buckets of roughly doubling width.
+ * The time the request waited to be sent is summed separately. Recording
+ * only uses atomic operations, so the RILReceiver thread never waits for a
+ * lock to record a response.
+ *
+ * {@hide}
+ */
+class RilLatencyStats {
+    /** Requests with a larger code are counted together. */
+    static final int MAX_REQUEST = 255;
+    private static final int OTHER_SLOT = MAX_REQUEST + 1;
+    private static final int SLOTS = OTHER_SLOT + 1;
+
+    /** Upper bounds of the buckets, the last bucket has no bound. */
+    private static final long[] BUCKET_LIMITS_MS = {
+        1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000
+    };
+    private static final int BUCKETS = BUCKET_LIMITS_MS.length + 1;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(SLOTS * BUCKETS);
+    private final AtomicLongArray mCounts = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray mTotalMs = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray mQueueMs = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray mMaxMs = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray mTimeouts = new AtomicLongArray(SLOTS);
+
+    private static int slot(int request) {
+        return (request >= 0 && request <= MAX_REQUEST) ? request : OTHER_SLOT;
+    }
+
+    private static int bucket(long latencyMs) {
+        for (int i = 0; i < BUCKET_LIMITS_MS.length; i++) {
+            if (latencyMs <= BUCKET_LIMITS_MS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_LIMITS_MS.length;
+    }
+
+    /**
+     * Records the response to a request.
+     * @param request RIL_REQUEST_*
+     * @param queueMs time from obtaining the request to sending it
+     * @param latencyMs time from sending the request to its response
+     */
+    void onResponse(int request, long queueMs, long latencyMs) {
+        int slot = slot(request);
+        mBuckets.incrementAndGet(slot * BUCKETS + bucket(latencyMs));
+        mCounts.incrementAndGet(slot);
+        mTotalMs.addAndGet(slot, latencyMs);
+        mQueueMs.addAndGet(slot, queueMs);
+        long max;
+        do {
+            max = mMaxMs.get(slot);
+        } while (latencyMs > max && !mMaxMs.compareAndSet(slot, max, latencyMs));
+    }
+
+    /**
+     * Records a request that was failed because it passed its deadline.
+     * @param request RIL_REQUEST_*
+     */
+    void onTimeout(int request) {
+        mTimeouts.incrementAndGet(slot(request));
+    }
+
+    /** @return number of responses recorded for the request type */
+    long getCount(int request) {
+        return mCounts.get(slot(request));
+    }
+
+    /** @return number of requests of the type that passed their deadline */
+    long getTimeoutCount(int request) {
+        return mTimeouts.get(slot(request));
+    }
+
+    /**
+     * @param request RIL_REQUEST_*
+     * @param percent the percentile, 1 to 100
+     * @return upper bound in milliseconds of the bucket holding the percentile, the longest
+     *         response if that is in the last bucket, or 0 if nothing has been recorded
+     */
+    long getPercentile(int request, int percent) {
+        int slot = slot(request);
+        long count = 0;
+        long[] buckets = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = mBuckets.get(slot * BUCKETS + i);
+            count += buckets[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (count * percent + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < BUCKET_LIMITS_MS.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return BUCKET_LIMITS_MS[i];
+            }
+        }
+        return mMaxMs.get(slot);
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println(" RIL request latency (ms):");
+        for (int slot = 0; slot < SLOTS; slot++) {
+            long count = mCounts.get(slot);
+            long timeouts = mTimeouts.get(slot);
+            if (count == 0 && timeouts == 0) {
+                continue;
+            }
+            pw.println("  " + (slot == OTHER_SLOT ? "OTHER" : RIL.requestToString(slot))
+                    + " count=" + count
+                    + " mean=" + (count > 0 ? mTotalMs.get(slot) / count : 0)
+                    + " p50=" + getPercentile(slot, 50)
+                    + " p90=" + getPercentile(slot, 90)
+                    + " p99=" + getPercentile(slot, 99)
+                    + " max=" + mMaxMs.get(slot)
+                    + " meanQueued=" + (count > 0 ? mQueueMs.get(slot) / count : 0)
+                    + " timeouts=" + timeouts);
+        }
+    }
+}
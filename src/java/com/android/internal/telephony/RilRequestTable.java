@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The outstanding RIL requests, by serial.
+ *
+ * Serials are handed out in sequence, so the requests outstanding at any
+ * time fall in a narrow window of serials. Each request goes into the slot
+ * given by the low bits of its serial, which is claimed and emptied with a
+ * compare-and-set; RILSender adding a request and RILReceiver removing one
+ * never wait for each other. Only a request whose slot is still held by one
+ * at least a table's worth of serials older goes into a locked overflow map.
+ *
+ * {@hide}
+ */
+class RilRequestTable {
+    private final AtomicReferenceArray<RILRequest> mSlots;
+    private final int mMask;
+    private final AtomicInteger mSize = new AtomicInteger();
+
+    // Requests whose slot was taken, guarded by itself
+    private final SparseArray<RILRequest> mOverflow = new SparseArray<RILRequest>();
+    private final AtomicInteger mOverflowSize = new AtomicInteger();
+
+    // Statistics
+    private final AtomicLong mOverflowCount = new AtomicLong();
+
+    /**
+     * @param capacity number of slots, a power of two larger than the usual number of
+     *        outstanding requests
+     */
+    RilRequestTable(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity " + capacity + " is not a power of two");
+        }
+        mSlots = new AtomicReferenceArray<RILRequest>(capacity);
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Adds a request. Its serial must not be in the table already.
+     */
+    void put(RILRequest rr) {
+        if (!mSlots.compareAndSet(rr.mSerial & mMask, null, rr)) {
+            synchronized (mOverflow) {
+                mOverflow.put(rr.mSerial, rr);
+                mOverflowSize.incrementAndGet();
+            }
+            mOverflowCount.incrementAndGet();
+        }
+        mSize.incrementAndGet();
+    }
+
+    /**
+     * @return the request with the serial, or null if it is not in the table
+     */
+    RILRequest get(int serial) {
+        RILRequest rr = mSlots.get(serial & mMask);
+        if (rr != null && rr.mSerial == serial) {
+            return rr;
+        }
+        if (mOverflowSize.get() > 0) {
+            synchronized (mOverflow) {
+                return mOverflow.get(serial);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes a request.
+     * @return the request with the serial, or null if it is not in the table
+     */
+    RILRequest remove(int serial) {
+        int slot = serial & mMask;
+        RILRequest rr = mSlots.get(slot);
+        if (rr != null && rr.mSerial == serial && mSlots.compareAndSet(slot, rr, null)) {
+            if (rr.mSerial == serial) {
+                mSize.decrementAndGet();
+                return rr;
+            }
+            // rr was answered, released and reused for a later serial in the same slot
+            // between the check and the compare-and-set: put it back.
+            mSize.decrementAndGet();
+            put(rr);
+        }
+        if (mOverflowSize.get() > 0) {
+            synchronized (mOverflow) {
+                rr = mOverflow.get(serial);
+                if (rr != null) {
+                    mOverflow.remove(serial);
+                    mOverflowSize.decrementAndGet();
+                    mSize.decrementAndGet();
+                    return rr;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes all requests.
+     * @return the removed requests
+     */
+    ArrayList<RILRequest> removeAll() {
+        ArrayList<RILRequest> removed = new ArrayList<RILRequest>();
+        for (int i = 0; i < mSlots.length(); i++) {
+            RILRequest rr = mSlots.getAndSet(i, null);
+            if (rr != null) {
+                removed.add(rr);
+                mSize.decrementAndGet();
+            }
+        }
+        synchronized (mOverflow) {
+            for (int i = 0; i < mOverflow.size(); i++) {
+                removed.add(mOverflow.valueAt(i));
+                mSize.decrementAndGet();
+            }
+            mOverflow.clear();
+            mOverflowSize.set(0);
+        }
+        return removed;
+    }
+
+    /**
+     * @return the requests in the table, which may change while it is being read
+     */
+    ArrayList<RILRequest> snapshot() {
+        ArrayList<RILRequest> requests = new ArrayList<RILRequest>();
+        for (int i = 0; i < mSlots.length(); i++) {
+            RILRequest rr = mSlots.get(i);
+            if (rr != null) {
+                requests.add(rr);
+            }
+        }
+        synchronized (mOverflow) {
+            for (int i = 0; i < mOverflow.size(); i++) {
+                requests.add(mOverflow.valueAt(i));
+            }
+        }
+        return requests;
+    }
+
+    /** @return number of requests in the table */
+    int size() {
+        return mSize.get();
+    }
+
+    /** @return number of requests that have gone into the overflow map */
+    long getOverflowCount() {
+        return mOverflowCount.get();
+    }
+}
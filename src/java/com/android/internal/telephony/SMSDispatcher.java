@@ -39,6 +39,7 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.provider.Telephony;
@@ -70,6 +71,8 @@ import com.android.internal.telephony.GsmAlphabet.TextEncodingDetails;
 import com.android.internal.telephony.uicc.UiccCard;
 import com.android.internal.telephony.uicc.UiccController;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -134,6 +137,9 @@ public abstract class SMSDispatcher extends Handler {
     protected static final int EVENT_NEW_ICC_SMS = 14;
     protected static final int EVENT_ICC_CHANGED = 15;
 
+    /** Give up on delivery status reports that did not arrive in time. */
+    private static final int EVENT_EXPIRE_DELIVERY_PENDING = 16;
+
     protected Phone mPhone;
     protected final Context mContext;
     protected final ContentResolver mResolver;
@@ -148,6 +154,8 @@ public abstract class SMSDispatcher extends Handler {
     private static final int SINGLE_PART_SMS = 1;
     /** Message sending queue limit */
     private static final int MO_MSG_QUEUE_LIMIT = 5;
+    /** How long to wait for a delivery status report, in milliseconds. */
+    private static final long DELIVERY_PENDING_TTL = 3 * 24 * 60 * 60 * 1000L;
 
     /**
      * Message reference for a CONCATENATED_8_BIT_REFERENCE or
@@ -262,7 +270,8 @@ public abstract class SMSDispatcher extends Handler {
      *       will be dropped.
      */
     /** Sent messages awaiting a delivery status report. */
-    protected final ArrayList<SmsTracker> deliveryPendingList = new ArrayList<SmsTracker>();
+    protected final SmsDeliveryPendingIndex mDeliveryPending =
+            new SmsDeliveryPendingIndex(DELIVERY_PENDING_TTL);
 
     /**
      * Handles events coming from the phone stack. Overridden from handler.
@@ -323,6 +332,10 @@ public abstract class SMSDispatcher extends Handler {
             handleStatusReport(msg.obj);
             break;
 
+        case EVENT_EXPIRE_DELIVERY_PENDING:
+            expireDeliveryPending();
+            break;
+
         default:
             Rlog.e(TAG, "handleMessage() ignoring message of unexpected type " + msg.what);
         }
@@ -607,6 +620,38 @@ public abstract class SMSDispatcher extends Handler {
         }
     }
 
+    /**
+     * Schedule EVENT_EXPIRE_DELIVERY_PENDING for when the oldest pending tracker expires.
+     */
+    private void scheduleDeliveryPendingExpiry() {
+        removeMessages(EVENT_EXPIRE_DELIVERY_PENDING);
+        long expiry = mDeliveryPending.getNextExpiryTime();
+        if (expiry >= 0) {
+            long delay = Math.max(0, expiry - SystemClock.elapsedRealtime());
+            sendMessageDelayed(obtainMessage(EVENT_EXPIRE_DELIVERY_PENDING), delay);
+        }
+    }
+
+    /**
+     * Drop the trackers whose status report did not arrive within DELIVERY_PENDING_TTL. Their
+     * senders get the deliveryIntent with {@link Activity#RESULT_CANCELED} and no "pdu" extra.
+     * The status of the stored message is left as it is, since the message may still have been
+     * delivered.
+     */
+    private void expireDeliveryPending() {
+        List<SmsTracker> expired = mDeliveryPending.removeExpired(SystemClock.elapsedRealtime());
+        for (SmsTracker tracker : expired) {
+            Rlog.d(TAG, "No status report for messageRef=" + tracker.mMessageRef
+                    + ", giving up");
+            Intent fillIn = new Intent();
+            fillIn.putExtra("format", getFormat());
+            try {
+                tracker.mDeliveryIntent.send(mContext, Activity.RESULT_CANCELED, fillIn);
+            } catch (CanceledException ex) {}
+        }
+        scheduleDeliveryPendingExpiry();
+    }
+
     /**
      * Send an SMS PDU. Usually just calls {@link sendRawPdu}.
      */
@@ -636,7 +681,10 @@ public abstract class SMSDispatcher extends Handler {
 
             if (tracker.mDeliveryIntent != null) {
                 // Expecting a status report.  Add it to the list.
-                deliveryPendingList.add(tracker);
+                mDeliveryPending.add(tracker, SystemClock.elapsedRealtime());
+                if (!hasMessages(EVENT_EXPIRE_DELIVERY_PENDING)) {
+                    scheduleDeliveryPendingExpiry();
+                }
             }
             tracker.onSent(mContext);
         } else {
@@ -1789,6 +1837,11 @@ public abstract class SMSDispatcher extends Handler {
                 carrierPackages.get(0) : null;
     }
 
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println(getClass().getSimpleName() + ": format=" + getFormat());
+        mDeliveryPending.dump(fd, pw, args, SystemClock.elapsedRealtime());
+    }
+
     protected int getSubId() {
         return SubscriptionController.getInstance().getSubIdUsingPhoneId(mPhone.getPhoneId());
     }
@@ -29,7 +29,6 @@ import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.database.ContentObserver;
 import android.os.AsyncResult;
-import android.os.BaseBundle;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
@@ -67,6 +66,7 @@ import android.telephony.gsm.GsmCellLocation;
 import android.text.TextUtils;
 import android.util.EventLog;
 import android.util.Pair;
+import android.util.SparseArray;
 import android.util.TimeUtils;
 
 import java.io.FileDescriptor;
@@ -74,7 +74,6 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Date;
 import java.util.List;
 import java.util.TimeZone;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -112,8 +111,21 @@ public class ServiceStateTracker extends Handler {
     private ServiceState mNewSS;
 
     private static final long LAST_CELL_INFO_LIST_MAX_AGE_MS = 2000;
+    private static final long CELL_INFO_LIST_QUERY_TIMEOUT = 5000;
+    /** A cell info list request the modem has not answered in this time is sent again. */
+    private volatile long mCellInfoListQueryTimeoutMs = CELL_INFO_LIST_QUERY_TIMEOUT;
+    /** A cell info list younger than this is returned instead of asking the modem again. */
+    private long mCellInfoListMaxAgeMs = SystemProperties.getLong(
+            "ro.ril.cell_info_list_max_age_ms", LAST_CELL_INFO_LIST_MAX_AGE_MS);
+    // guards the cell info fields below, which are used from binder threads too
+    private final Object mCellInfoLock = new Object();
     private long mLastCellInfoListTime;
     private List<CellInfo> mLastCellInfoList = null;
+    // the RIL_REQUEST_GET_CELL_INFO_LIST in flight, shared by all callers wanting a new list
+    private CellInfoResult mPendingCellInfoResult;
+    private long mCellInfoListHits;
+    private long mCellInfoListMisses;
+    private long mCellInfoListCoalesced;
 
     private SignalStrength mSignalStrength;
 
@@ -160,8 +172,9 @@ public class ServiceStateTracker extends Handler {
     private boolean mPendingRadioPowerOffAfterDataOff = false;
     private int mPendingRadioPowerOffAfterDataOffTag = 0;
 
-    /** Signal strength poll rate. */
-    private static final int POLL_PERIOD_MILLIS = 20 * 1000;
+    /** Signal strength poll rate, adapted to the screen state, stability and handovers. */
+    private final SignalStrengthPollScheduler mSignalStrengthPollScheduler =
+            new SignalStrengthPollScheduler(SystemClock.elapsedRealtime());
 
     /** Waiting period before recheck gprs and voice registration. */
     public static final int DEFAULT_GPRS_CHECK_PERIOD_MILLIS = 60 * 1000;
@@ -244,6 +257,11 @@ public class ServiceStateTracker extends Handler {
     private class CellInfoResult {
         List<CellInfo> list;
         Object lockObj = new Object();
+        // set under lockObj once the modem has answered
+        boolean done;
+        long requestTime;
+        // requestAllCellInfo() responses waiting for the list, guarded by mCellInfoLock
+        ArrayList<Message> responses = new ArrayList<Message>();
     }
 
     /** Reason for registration denial. */
@@ -362,6 +380,7 @@ public class ServiceStateTracker extends Handler {
     private long mZoneTime;
     private boolean mGotCountryCode = false;
     private String mSavedTimeZone;
+    private final NitzTimeZoneLookup mNitzTimeZoneLookup = new NitzTimeZoneLookup();
     private long mSavedTime;
     private long mSavedAtTime;
     /** Wake lock used while setting time of day. */
@@ -424,6 +443,30 @@ public class ServiceStateTracker extends Handler {
     /** Notification id. */
     public static final int PS_NOTIFICATION = 888;  // Id to update and cancel PS restricted
     public static final int CS_NOTIFICATION = 999;  // Id to update and cancel CS restricted
+    // roaming overrides of each subscription's carrier config, dropped when any config changes
+    private final SparseArray<CarrierRoamingNetworks> mCarrierRoamingNetworks =
+            new SparseArray<CarrierRoamingNetworks>();
+
+    private BroadcastReceiver mCarrierConfigReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (DBG) log("Carrier config changed, dropping cached roaming networks");
+            mCarrierRoamingNetworks.clear();
+        }
+    };
+
+    private BroadcastReceiver mScreenStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            boolean screenOn = intent.getAction().equals(Intent.ACTION_SCREEN_ON);
+            if (screenOn == mSignalStrengthPollScheduler.isScreenOn()) return;
+            if (DBG) log("Screen on=" + screenOn + ", rescheduling signal strength poll");
+            mSignalStrengthPollScheduler.setScreenOn(screenOn);
+            // catch up at once with what the screen shows, or slow down
+            rescheduleSignalStrengthPoll(screenOn);
+        }
+    };
+
     private BroadcastReceiver mIntentReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -507,6 +550,7 @@ public class ServiceStateTracker extends Handler {
         PowerManager powerManager =
                 (PowerManager)phone.getContext().getSystemService(Context.POWER_SERVICE);
         mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, WAKELOCK_TAG);
+        mSignalStrengthPollScheduler.setScreenOn(powerManager.isInteractive());
 
         mCi.registerForRadioStateChanged(this, EVENT_RADIO_STATE_CHANGED, null);
         mCi.registerForVoiceNetworkStateChanged(this, EVENT_NETWORK_STATE_CHANGED, null);
@@ -535,6 +579,13 @@ public class ServiceStateTracker extends Handler {
         filter = new IntentFilter();
         filter.addAction(ACTION_RADIO_OFF);
         context.registerReceiver(mIntentReceiver, filter);
+        filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        context.registerReceiver(mScreenStateReceiver, filter, null, this);
+        filter = new IntentFilter();
+        filter.addAction(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
+        context.registerReceiver(mCarrierConfigReceiver, filter, null, this);
 
         mEventLog = new TelephonyEventLog(mPhone.getPhoneId());
         mPhone.notifyOtaspChanged(OTASP_UNINITIALIZED);
@@ -544,8 +595,10 @@ public class ServiceStateTracker extends Handler {
     public void updatePhoneType() {
         mSS = new ServiceState();
         mNewSS = new ServiceState();
-        mLastCellInfoListTime = 0;
-        mLastCellInfoList = null;
+        synchronized (mCellInfoLock) {
+            mLastCellInfoListTime = 0;
+            mLastCellInfoList = null;
+        }
         mSignalStrength = new SignalStrength();
         mRestrictedState = new RestrictedState();
         mStartedGprsRegCheck = false;
@@ -627,6 +680,8 @@ public class ServiceStateTracker extends Handler {
         mSubscriptionManager
             .removeOnSubscriptionsChangedListener(mOnSubscriptionsChangedListener);
         mCi.unregisterForImsNetworkStateChanged(this);
+        mPhone.getContext().unregisterReceiver(mScreenStateReceiver);
+        mPhone.getContext().unregisterReceiver(mCarrierConfigReceiver);
     }
 
     public boolean getDesiredPowerState() {
@@ -864,21 +919,35 @@ public class ServiceStateTracker extends Handler {
             case EVENT_GET_CELL_INFO_LIST: {
                 ar = (AsyncResult) msg.obj;
                 CellInfoResult result = (CellInfoResult) ar.userObj;
-                synchronized(result.lockObj) {
-                    if (ar.exception != null) {
-                        log("EVENT_GET_CELL_INFO_LIST: error ret null, e=" + ar.exception);
-                        result.list = null;
-                    } else {
-                        result.list = (List<CellInfo>) ar.result;
+                List<CellInfo> list = null;
+                if (ar.exception != null) {
+                    log("EVENT_GET_CELL_INFO_LIST: error ret null, e=" + ar.exception);
+                } else {
+                    list = (List<CellInfo>) ar.result;
 
-                        if (VDBG) {
-                            log("EVENT_GET_CELL_INFO_LIST: size=" + result.list.size()
-                                    + " list=" + result.list);
-                        }
+                    if (VDBG) {
+                        log("EVENT_GET_CELL_INFO_LIST: size=" + list.size()
+                                + " list=" + list);
                     }
+                }
+                ArrayList<Message> responses;
+                synchronized (mCellInfoLock) {
                     mLastCellInfoListTime = SystemClock.elapsedRealtime();
-                    mLastCellInfoList = result.list;
-                    result.lockObj.notify();
+                    mLastCellInfoList = list;
+                    if (mPendingCellInfoResult == result) {
+                        mPendingCellInfoResult = null;
+                    }
+                    responses = result.responses;
+                    result.responses = new ArrayList<Message>();
+                }
+                synchronized(result.lockObj) {
+                    result.list = list;
+                    result.done = true;
+                    result.lockObj.notifyAll();
+                }
+                for (Message response : responses) {
+                    AsyncResult.forMessage(response, list, ar.exception);
+                    response.sendToTarget();
                 }
                 break;
             }
@@ -892,8 +961,10 @@ public class ServiceStateTracker extends Handler {
                     if (VDBG) {
                         log("EVENT_UNSOL_CELL_INFO_LIST: size=" + list.size() + " list=" + list);
                     }
-                    mLastCellInfoListTime = SystemClock.elapsedRealtime();
-                    mLastCellInfoList = list;
+                    synchronized (mCellInfoLock) {
+                        mLastCellInfoListTime = SystemClock.elapsedRealtime();
+                        mLastCellInfoList = list;
+                    }
                     mPhone.notifyCellInfo(list);
                 }
                 break;
@@ -953,7 +1024,7 @@ public class ServiceStateTracker extends Handler {
                     return;
                 }
                 ar = (AsyncResult) msg.obj;
-                onSignalStrengthResult(ar);
+                mSignalStrengthPollScheduler.onPollResult(onSignalStrengthResult(ar));
                 queueNextSignalStrengthPoll();
 
                 break;
@@ -1994,30 +2065,20 @@ public class ServiceStateTracker extends Handler {
             // Save the roaming state before carrier config possibly overrides it.
             mNewSS.setDataRoamingFromRegistration(roaming);
 
-            CarrierConfigManager configLoader = (CarrierConfigManager)
-                    mPhone.getContext().getSystemService(Context.CARRIER_CONFIG_SERVICE);
-
-            if (configLoader != null) {
-                try {
-                    PersistableBundle b = configLoader.getConfigForSubId(mPhone.getSubId());
-
-                    if (alwaysOnHomeNetwork(b)) {
-                        log("updateRoamingState: carrier config override always on home network");
-                        roaming = false;
-                    } else if (isNonRoamingInGsmNetwork(b, mNewSS.getOperatorNumeric())) {
-                        log("updateRoamingState: carrier config override set non roaming:"
-                                + mNewSS.getOperatorNumeric());
-                        roaming = false;
-                    } else if (isRoamingInGsmNetwork(b, mNewSS.getOperatorNumeric())) {
-                        log("updateRoamingState: carrier config override set roaming:"
-                                + mNewSS.getOperatorNumeric());
-                        roaming = true;
-                    }
-                } catch (Exception e) {
-                    loge("updateRoamingState: unable to access carrier config service");
+            CarrierRoamingNetworks networks = getCarrierRoamingNetworks();
+            if (networks != null) {
+                if (networks.alwaysOnHomeNetwork()) {
+                    log("updateRoamingState: carrier config override always on home network");
+                    roaming = false;
+                } else if (networks.isNonRoamingInGsmNetwork(mNewSS.getOperatorNumeric())) {
+                    log("updateRoamingState: carrier config override set non roaming:"
+                            + mNewSS.getOperatorNumeric());
+                    roaming = false;
+                } else if (networks.isRoamingInGsmNetwork(mNewSS.getOperatorNumeric())) {
+                    log("updateRoamingState: carrier config override set roaming:"
+                            + mNewSS.getOperatorNumeric());
+                    roaming = true;
                 }
-            } else {
-                log("updateRoamingState: no carrier config service available");
             }
 
             mNewSS.setVoiceRoaming(roaming);
@@ -2026,32 +2087,24 @@ public class ServiceStateTracker extends Handler {
             // Save the roaming state before carrier config possibly overrides it.
             mNewSS.setDataRoamingFromRegistration(mNewSS.getDataRoaming());
 
-            CarrierConfigManager configLoader = (CarrierConfigManager)
-                    mPhone.getContext().getSystemService(Context.CARRIER_CONFIG_SERVICE);
-            if (configLoader != null) {
-                try {
-                    PersistableBundle b = configLoader.getConfigForSubId(mPhone.getSubId());
-                    String systemId = Integer.toString(mNewSS.getSystemId());
-
-                    if (alwaysOnHomeNetwork(b)) {
-                        log("updateRoamingState: carrier config override always on home network");
-                        setRoamingOff();
-                    } else if (isNonRoamingInGsmNetwork(b, mNewSS.getOperatorNumeric())
-                            || isNonRoamingInCdmaNetwork(b, systemId)) {
-                        log("updateRoamingState: carrier config override set non-roaming:"
-                                + mNewSS.getOperatorNumeric() + ", " + systemId);
-                        setRoamingOff();
-                    } else if (isRoamingInGsmNetwork(b, mNewSS.getOperatorNumeric())
-                            || isRoamingInCdmaNetwork(b, systemId)) {
-                        log("updateRoamingState: carrier config override set roaming:"
-                                + mNewSS.getOperatorNumeric() + ", " + systemId);
-                        setRoamingOn();
-                    }
-                } catch (Exception e) {
-                    loge("updateRoamingState: unable to access carrier config service");
+            CarrierRoamingNetworks networks = getCarrierRoamingNetworks();
+            if (networks != null) {
+                int systemId = mNewSS.getSystemId();
+
+                if (networks.alwaysOnHomeNetwork()) {
+                    log("updateRoamingState: carrier config override always on home network");
+                    setRoamingOff();
+                } else if (networks.isNonRoamingInGsmNetwork(mNewSS.getOperatorNumeric())
+                        || networks.isNonRoamingInCdmaNetwork(systemId)) {
+                    log("updateRoamingState: carrier config override set non-roaming:"
+                            + mNewSS.getOperatorNumeric() + ", " + systemId);
+                    setRoamingOff();
+                } else if (networks.isRoamingInGsmNetwork(mNewSS.getOperatorNumeric())
+                        || networks.isRoamingInCdmaNetwork(systemId)) {
+                    log("updateRoamingState: carrier config override set roaming:"
+                            + mNewSS.getOperatorNumeric() + ", " + systemId);
+                    setRoamingOn();
                 }
-            } else {
-                log("updateRoamingState: no carrier config service available");
             }
 
             if (Build.IS_DEBUGGABLE && SystemProperties.getBoolean(PROP_FORCE_ROAMING, false)) {
@@ -2479,6 +2532,11 @@ public class ServiceStateTracker extends Handler {
 
     //todo: try to merge pollstate functions
     private void pollStateDone() {
+        // a new cell or radio technology means the signal strength is about to move
+        boolean isHandover = !mNewCellLoc.equals(mCellLoc)
+                || mNewSS.getRilVoiceRadioTechnology() != mSS.getRilVoiceRadioTechnology()
+                || mNewSS.getRilDataRadioTechnology() != mSS.getRilDataRadioTechnology();
+
         if (mPhone.isPhoneTypeGsm()) {
             pollStateDoneGsm();
         } else if (mPhone.isPhoneTypeCdma()) {
@@ -2486,6 +2544,11 @@ public class ServiceStateTracker extends Handler {
         } else {
             pollStateDoneCdmaLte();
         }
+
+        if (isHandover) {
+            mSignalStrengthPollScheduler.onHandover(SystemClock.elapsedRealtime());
+            rescheduleSignalStrengthPoll(false);
+        }
     }
 
     private void pollStateDoneGsm() {
@@ -3311,7 +3374,8 @@ public class ServiceStateTracker extends Handler {
             }
             if (DBG) log("fixTimeZone: using default TimeZone");
         } else {
-            zone = TimeUtils.getTimeZone(mZoneOffset, mZoneDst, mZoneTime, isoCountryCode);
+            zone = mNitzTimeZoneLookup.getTimeZone(mZoneOffset, mZoneDst, mZoneTime,
+                    isoCountryCode);
             if (DBG) log("fixTimeZone: using getTimeZone(off, dst, time, iso)");
         }
 
@@ -3346,35 +3410,11 @@ public class ServiceStateTracker extends Handler {
      * Returns a TimeZone object based only on parameters from the NITZ string.
      */
     private TimeZone getNitzTimeZone(int offset, boolean dst, long when) {
-        TimeZone guess = findTimeZone(offset, dst, when);
-        if (guess == null) {
-            // Couldn't find a proper timezone.  Perhaps the DST data is wrong.
-            guess = findTimeZone(offset, !dst, when);
-        }
+        TimeZone guess = mNitzTimeZoneLookup.getNitzTimeZone(offset, dst, when);
         if (DBG) log("getNitzTimeZone returning " + (guess == null ? guess : guess.getID()));
         return guess;
     }
 
-    private TimeZone findTimeZone(int offset, boolean dst, long when) {
-        int rawOffset = offset;
-        if (dst) {
-            rawOffset -= MS_PER_HOUR;
-        }
-        String[] zones = TimeZone.getAvailableIDs(rawOffset);
-        TimeZone guess = null;
-        Date d = new Date(when);
-        for (String zone : zones) {
-            TimeZone tz = TimeZone.getTimeZone(zone);
-            if (tz.getOffset(when) == offset &&
-                    tz.inDaylightTime(d) == dst) {
-                guess = tz;
-                break;
-            }
-        }
-
-        return guess;
-    }
-
     /** code is registration state 0-5 from TS 27.007 7.2 */
     private int regCodeToServiceState(int code) {
         switch (code) {
@@ -3744,7 +3784,7 @@ public class ServiceStateTracker extends Handler {
 
                 if (mGotCountryCode) {
                     if (iso != null && iso.length() > 0) {
-                        zone = TimeUtils.getTimeZone(tzOffset, dst != 0,
+                        zone = mNitzTimeZoneLookup.getTimeZone(tzOffset, dst != 0,
                                 c.getTimeInMillis(),
                                 iso);
                     } else {
@@ -4053,10 +4093,26 @@ public class ServiceStateTracker extends Handler {
         msg = obtainMessage();
         msg.what = EVENT_POLL_SIGNAL_STRENGTH;
 
-        long nextTime;
+        sendMessageDelayed(msg,
+                mSignalStrengthPollScheduler.getNextPollDelay(SystemClock.elapsedRealtime()));
+    }
 
-        // TODO Don't poll signal strength if screen is off
-        sendMessageDelayed(msg, POLL_PERIOD_MILLIS);
+    /**
+     * Move the queued signal strength poll, if any, to the time the scheduler now wants.
+     * Nothing is queued while the radio is off or a poll is in progress; the next poll is then
+     * queued as usual.
+     * @param now poll at once instead
+     */
+    private void rescheduleSignalStrengthPoll(boolean now) {
+        if (mDontPollSignalStrength || !hasMessages(EVENT_POLL_SIGNAL_STRENGTH)) {
+            return;
+        }
+        removeMessages(EVENT_POLL_SIGNAL_STRENGTH);
+        if (now) {
+            sendMessage(obtainMessage(EVENT_POLL_SIGNAL_STRENGTH));
+        } else {
+            queueNextSignalStrengthPoll();
+        }
     }
 
     private void notifyCdmaSubscriptionInfoReady() {
@@ -4406,44 +4462,130 @@ public class ServiceStateTracker extends Handler {
      * @return all available cell information or null if none.
      */
     public List<CellInfo> getAllCellInfo() {
-        CellInfoResult result = new CellInfoResult();
+        List<CellInfo> list = null;
         if (VDBG) log("SST.getAllCellInfo(): E");
         int ver = mCi.getRilVersion();
         if (ver >= 8) {
             if (isCallerOnDifferentThread()) {
-                if ((SystemClock.elapsedRealtime() - mLastCellInfoListTime)
-                        > LAST_CELL_INFO_LIST_MAX_AGE_MS) {
-                    Message msg = obtainMessage(EVENT_GET_CELL_INFO_LIST, result);
-                    synchronized(result.lockObj) {
-                        result.list = null;
-                        mCi.getCellInfoList(msg);
-                        try {
-                            result.lockObj.wait(5000);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
+                CellInfoResult result = null;
+                synchronized (mCellInfoLock) {
+                    if (isLastCellInfoListFresh()) {
+                        if (DBG) log("SST.getAllCellInfo(): return last, back to back calls");
+                        mCellInfoListHits++;
+                        list = mLastCellInfoList;
+                    } else {
+                        result = queryCellInfoList();
                     }
-                } else {
-                    if (DBG) log("SST.getAllCellInfo(): return last, back to back calls");
-                    result.list = mLastCellInfoList;
+                }
+                if (result != null) {
+                    list = waitForCellInfoList(result);
                 }
             } else {
                 if (DBG) log("SST.getAllCellInfo(): return last, same thread can't block");
-                result.list = mLastCellInfoList;
+                synchronized (mCellInfoLock) {
+                    list = mLastCellInfoList;
+                }
             }
         } else {
             if (DBG) log("SST.getAllCellInfo(): not implemented");
-            result.list = null;
         }
-        synchronized(result.lockObj) {
-            if (result.list != null) {
-                if (VDBG) log("SST.getAllCellInfo(): X size=" + result.list.size()
-                        + " list=" + result.list);
-                return result.list;
-            } else {
-                if (DBG) log("SST.getAllCellInfo(): X size=0 list=null");
-                return null;
+        if (list != null) {
+            if (VDBG) log("SST.getAllCellInfo(): X size=" + list.size() + " list=" + list);
+        } else {
+            if (DBG) log("SST.getAllCellInfo(): X size=0 list=null");
+        }
+        return list;
+    }
+
+    /**
+     * Asynchronous version of {@link #getAllCellInfo}, which can also be used from the SST
+     * thread. The list, or null if none, is sent to the response as an AsyncResult: at once if
+     * the last list is recent enough, otherwise when the modem request in flight completes.
+     */
+    public void requestAllCellInfo(Message response) {
+        List<CellInfo> list = null;
+        if (mCi.getRilVersion() >= 8) {
+            synchronized (mCellInfoLock) {
+                if (!isLastCellInfoListFresh()) {
+                    queryCellInfoList().responses.add(response);
+                    return;
+                }
+                mCellInfoListHits++;
+                list = mLastCellInfoList;
             }
+        } else {
+            if (DBG) log("SST.requestAllCellInfo(): not implemented");
+        }
+        AsyncResult.forMessage(response, list, null);
+        response.sendToTarget();
+    }
+
+    /**
+     * Set how long a cell info list is returned to callers before the modem is asked again.
+     */
+    @VisibleForTesting
+    public void setCellInfoListMaxAge(long maxAgeMs) {
+        synchronized (mCellInfoLock) {
+            mCellInfoListMaxAgeMs = maxAgeMs;
+        }
+    }
+
+    /**
+     * Set how long a cell info list request may go unanswered before it is sent again.
+     */
+    @VisibleForTesting
+    public void setCellInfoListQueryTimeout(long timeoutMs) {
+        mCellInfoListQueryTimeoutMs = timeoutMs;
+    }
+
+    // must be called with mCellInfoLock held
+    private boolean isLastCellInfoListFresh() {
+        return (SystemClock.elapsedRealtime() - mLastCellInfoListTime) <= mCellInfoListMaxAgeMs;
+    }
+
+    /**
+     * Get the RIL_REQUEST_GET_CELL_INFO_LIST in flight, sending one if there is none or the one in
+     * flight has timed out, so that concurrent callers share a single modem request. Must be
+     * called with mCellInfoLock held.
+     */
+    private CellInfoResult queryCellInfoList() {
+        long now = SystemClock.elapsedRealtime();
+        CellInfoResult pending = mPendingCellInfoResult;
+        if (pending != null && now - pending.requestTime < mCellInfoListQueryTimeoutMs) {
+            mCellInfoListCoalesced++;
+            return pending;
+        }
+
+        mCellInfoListMisses++;
+        CellInfoResult result = new CellInfoResult();
+        result.requestTime = now;
+        if (pending != null) {
+            // the modem never answered, let the new request answer the async callers
+            result.responses.addAll(pending.responses);
+            pending.responses.clear();
+        }
+        mPendingCellInfoResult = result;
+        mCi.getCellInfoList(obtainMessage(EVENT_GET_CELL_INFO_LIST, result));
+        return result;
+    }
+
+    /**
+     * Wait until the modem answers the request or the request times out.
+     */
+    private List<CellInfo> waitForCellInfoList(CellInfoResult result) {
+        synchronized (result.lockObj) {
+            while (!result.done) {
+                long remaining = result.requestTime + mCellInfoListQueryTimeoutMs
+                        - SystemClock.elapsedRealtime();
+                if (remaining <= 0) break;
+                try {
+                    result.lockObj.wait(remaining);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    break;
+                }
+            }
+            return result.list;
         }
     }
 
@@ -4516,6 +4658,7 @@ public class ServiceStateTracker extends Handler {
                 (mPollingContext != null ? mPollingContext[0] : ""));
         pw.println(" mDesiredPowerState=" + mDesiredPowerState);
         pw.println(" mDontPollSignalStrength=" + mDontPollSignalStrength);
+        mSignalStrengthPollScheduler.dump(fd, pw, args, SystemClock.elapsedRealtime());
         pw.println(" mSignalStrength=" + mSignalStrength);
         pw.println(" mLastSignalStrength=" + mLastSignalStrength);
         pw.println(" mRestrictedState=" + mRestrictedState);
@@ -4524,6 +4667,13 @@ public class ServiceStateTracker extends Handler {
         pw.println(" mCellLoc=" + mCellLoc);
         pw.println(" mNewCellLoc=" + mNewCellLoc);
         pw.println(" mLastCellInfoListTime=" + mLastCellInfoListTime);
+        synchronized (mCellInfoLock) {
+            pw.println(" mCellInfoListMaxAgeMs=" + mCellInfoListMaxAgeMs
+                    + " hits=" + mCellInfoListHits + " misses=" + mCellInfoListMisses
+                    + " coalesced=" + mCellInfoListCoalesced
+                    + " pending=" + (mPendingCellInfoResult != null));
+        }
+        mNitzTimeZoneLookup.dump(fd, pw, args);
         pw.println(" mPreferredNetworkType=" + mPreferredNetworkType);
         pw.println(" mMaxDataCalls=" + mMaxDataCalls);
         pw.println(" mNewMaxDataCalls=" + mNewMaxDataCalls);
@@ -4782,50 +4932,30 @@ public class ServiceStateTracker extends Handler {
     }
 
     /**
-     * Check if device is non-roaming and always on home network.
-     *
-     * @param b carrier config bundle obtained from CarrierConfigManager
-     * @return true if network is always on home network, false otherwise
-     * @see CarrierConfigManager
-     */
-    protected final boolean alwaysOnHomeNetwork(BaseBundle b) {
-        return b.getBoolean(CarrierConfigManager.KEY_FORCE_HOME_NETWORK_BOOL);
-    }
-
-    /**
-     * Check if the network identifier has membership in the set of
-     * network identifiers stored in the carrier config bundle.
-     *
-     * @param b carrier config bundle obtained from CarrierConfigManager
-     * @param network The network identifier to check network existence in bundle
-     * @param key The key to index into the bundle presenting a string array of
-     *            networks to check membership
-     * @return true if network has membership in bundle networks, false otherwise
-     * @see CarrierConfigManager
+     * @return the roaming overrides in the carrier config of the current subscription, or null
+     *         if the carrier config cannot be read
      */
-    private boolean isInNetwork(BaseBundle b, String network, String key) {
-        String[] networks = b.getStringArray(key);
-
-        if (networks != null && Arrays.asList(networks).contains(network)) {
-            return true;
+    private CarrierRoamingNetworks getCarrierRoamingNetworks() {
+        int subId = mPhone.getSubId();
+        CarrierRoamingNetworks networks = mCarrierRoamingNetworks.get(subId);
+        if (networks != null) {
+            return networks;
         }
-        return false;
-    }
-
-    protected final boolean isRoamingInGsmNetwork(BaseBundle b, String network) {
-        return isInNetwork(b, network, CarrierConfigManager.KEY_GSM_ROAMING_NETWORKS_STRING_ARRAY);
-    }
-
-    protected final boolean isNonRoamingInGsmNetwork(BaseBundle b, String network) {
-        return isInNetwork(b, network, CarrierConfigManager.KEY_GSM_NONROAMING_NETWORKS_STRING_ARRAY);
-    }
 
-    protected final boolean isRoamingInCdmaNetwork(BaseBundle b, String network) {
-        return isInNetwork(b, network, CarrierConfigManager.KEY_CDMA_ROAMING_NETWORKS_STRING_ARRAY);
-    }
-
-    protected final boolean isNonRoamingInCdmaNetwork(BaseBundle b, String network) {
-        return isInNetwork(b, network, CarrierConfigManager.KEY_CDMA_NONROAMING_NETWORKS_STRING_ARRAY);
+        CarrierConfigManager configLoader = (CarrierConfigManager)
+                mPhone.getContext().getSystemService(Context.CARRIER_CONFIG_SERVICE);
+        if (configLoader == null) {
+            log("updateRoamingState: no carrier config service available");
+            return null;
+        }
+        try {
+            networks = new CarrierRoamingNetworks(configLoader.getConfigForSubId(subId));
+        } catch (Exception e) {
+            loge("updateRoamingState: unable to access carrier config service");
+            return null;
+        }
+        mCarrierRoamingNetworks.put(subId, networks);
+        return networks;
     }
 
     /** Check if the device is shutting down. */
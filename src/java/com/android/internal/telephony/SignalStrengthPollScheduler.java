@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * Decides when ServiceStateTracker polls the signal strength of radios that do not report it
+ * unsolicited.
+ *
+ * The poll period starts at {@link #DEFAULT_PERIOD_MILLIS}. It doubles after every
+ * {@link #STABLE_READINGS_BEFORE_BACKOFF} unchanged readings up to
+ * {@link #MAX_STABLE_PERIOD_MILLIS}, is {@link #SCREEN_OFF_PERIOD_MILLIS} while the screen is
+ * off, and is {@link #HANDOVER_PERIOD_MILLIS} for a while after a change of cell or radio
+ * technology, when the signal is expected to move.
+ *
+ * Times are {@link android.os.SystemClock#elapsedRealtime} values supplied by the caller. Only
+ * used from the SST handler thread.
+ */
+public class SignalStrengthPollScheduler {
+    public static final long DEFAULT_PERIOD_MILLIS = 20 * 1000;
+    public static final long MAX_STABLE_PERIOD_MILLIS = 160 * 1000;
+    public static final long SCREEN_OFF_PERIOD_MILLIS = 10 * 60 * 1000;
+    public static final long HANDOVER_PERIOD_MILLIS = 5 * 1000;
+    public static final long HANDOVER_WINDOW_MILLIS = 30 * 1000;
+    public static final int STABLE_READINGS_BEFORE_BACKOFF = 3;
+
+    private boolean mScreenOn = true;
+    private int mStableReadings;
+    private long mHandoverUntil = -1;
+
+    // Statistics
+    private final long mStartTime;
+    private long mPollCount;
+    private long mLastPeriod = DEFAULT_PERIOD_MILLIS;
+
+    /**
+     * @param now the current elapsed realtime, from which the saved polls are counted
+     */
+    public SignalStrengthPollScheduler(long now) {
+        mStartTime = now;
+    }
+
+    public void setScreenOn(boolean screenOn) {
+        mScreenOn = screenOn;
+    }
+
+    public boolean isScreenOn() {
+        return mScreenOn;
+    }
+
+    /**
+     * A polled reading has arrived.
+     * @param changed whether it differs from the previous one
+     */
+    public void onPollResult(boolean changed) {
+        mPollCount++;
+        if (changed) {
+            mStableReadings = 0;
+        } else {
+            mStableReadings++;
+        }
+    }
+
+    /**
+     * The cell or radio technology has changed.
+     * @param now the current elapsed realtime
+     */
+    public void onHandover(long now) {
+        mHandoverUntil = now + HANDOVER_WINDOW_MILLIS;
+        mStableReadings = 0;
+    }
+
+    /**
+     * @param now the current elapsed realtime
+     * @return the delay before the next poll
+     */
+    public long getNextPollDelay(long now) {
+        long period;
+        if (!mScreenOn) {
+            period = SCREEN_OFF_PERIOD_MILLIS;
+        } else if (now < mHandoverUntil) {
+            period = HANDOVER_PERIOD_MILLIS;
+        } else {
+            int doublings = Math.min(mStableReadings / STABLE_READINGS_BEFORE_BACKOFF, 16);
+            period = Math.min(DEFAULT_PERIOD_MILLIS << doublings, MAX_STABLE_PERIOD_MILLIS);
+        }
+        mLastPeriod = period;
+        return period;
+    }
+
+    public long getPollCount() {
+        return mPollCount;
+    }
+
+    /**
+     * @param now the current elapsed realtime
+     * @return how many fewer polls were sent than at the fixed {@link #DEFAULT_PERIOD_MILLIS},
+     *         or a negative number if more were sent
+     */
+    public long getPollsSaved(long now) {
+        return (now - mStartTime) / DEFAULT_PERIOD_MILLIS - mPollCount;
+    }
+
+    /**
+     * @param now the current elapsed realtime
+     */
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args, long now) {
+        long elapsed = now - mStartTime;
+        long pollsPerHour = (elapsed > 0) ? mPollCount * 60 * 60 * 1000 / elapsed : 0;
+        pw.println(" SignalStrengthPollScheduler: periodMs=" + mLastPeriod
+                + " pollsPerHour=" + pollsPerHour + " polls=" + mPollCount
+                + " pollsSaved=" + getPollsSaved(now));
+        pw.println("  screenOn=" + mScreenOn + " stableReadings=" + mStableReadings
+                + " inHandover=" + (now < mHandoverUntil));
+    }
+}
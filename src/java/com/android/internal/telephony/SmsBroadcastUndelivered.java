@@ -140,6 +140,9 @@ public class SmsBroadcastUndelivered {
      * Scan the raw table for complete SMS messages to broadcast, and old PDUs to delete.
      */
     private void scanRawTable() {
+        // let the handlers skip the de-dup query for segments that are certainly new
+        InboundSmsDuplicateFilter.getInstance().loadFromRawTable(mResolver);
+
         if (DBG) Rlog.d(TAG, "scanning raw table for undelivered messages");
         long startTime = System.nanoTime();
         HashMap<SmsReferenceKey, Integer> multiPartReceivedCount =
@@ -171,6 +174,8 @@ public class SmsBroadcastUndelivered {
                     // deliver single-part message
                     broadcastSms(tracker);
                 } else {
+                    // let the handler reassemble this message in memory from now on
+                    seedReassemblyIndex(tracker);
                     SmsReferenceKey reference = new SmsReferenceKey(tracker);
                     Integer receivedCount = multiPartReceivedCount.get(reference);
                     if (receivedCount == null) {
@@ -185,6 +190,7 @@ public class SmsBroadcastUndelivered {
                         if (newCount == tracker.getMessageCount()) {
                             // looks like we've got all the pieces; send a single tracker
                             // to state machine which will find the other pieces to broadcast
+                            // in its reassembly index
                             if (DBG) Rlog.d(TAG, "found complete multi-part message");
                             broadcastSms(tracker);
                             // don't delete this old message until after we broadcast it
@@ -197,6 +203,12 @@ public class SmsBroadcastUndelivered {
             }
             // Delete old incomplete message segments
             for (SmsReferenceKey message : oldMultiPartMessages) {
+                if (mGsmInboundSmsHandler != null) {
+                    mGsmInboundSmsHandler.getReassemblyIndex().removeMessage(message);
+                }
+                if (mCdmaInboundSmsHandler != null) {
+                    mCdmaInboundSmsHandler.getReassemblyIndex().removeMessage(message);
+                }
                 // delete permanently
                 int rows = mResolver.delete(InboundSmsHandler.sRawUriPermanentDelete,
                         InboundSmsHandler.SELECT_BY_REFERENCE, message.getDeleteWhereArgs());
@@ -207,6 +219,13 @@ public class SmsBroadcastUndelivered {
                             + message.mMessageCount + " part message");
                 }
             }
+            // Every undelivered segment is now known to the handlers
+            if (mGsmInboundSmsHandler != null) {
+                mGsmInboundSmsHandler.getReassemblyIndex().setPrimed();
+            }
+            if (mCdmaInboundSmsHandler != null) {
+                mCdmaInboundSmsHandler.getReassemblyIndex().setPrimed();
+            }
         } catch (SQLException e) {
             Rlog.e(TAG, "error reading pending SMS messages", e);
         } finally {
@@ -219,15 +238,31 @@ public class SmsBroadcastUndelivered {
     }
 
     /**
-     * Send tracker to appropriate (3GPP or 3GPP2) inbound SMS handler for broadcast.
+     * Return the appropriate (3GPP or 3GPP2) inbound SMS handler for the tracker.
      */
-    private void broadcastSms(InboundSmsTracker tracker) {
-        InboundSmsHandler handler;
+    private InboundSmsHandler getHandler(InboundSmsTracker tracker) {
         if (tracker.is3gpp2()) {
-            handler = mCdmaInboundSmsHandler;
+            return mCdmaInboundSmsHandler;
         } else {
-            handler = mGsmInboundSmsHandler;
+            return mGsmInboundSmsHandler;
         }
+    }
+
+    /**
+     * Add a multi-part segment read from the raw table to its handler's reassembly index.
+     */
+    private void seedReassemblyIndex(InboundSmsTracker tracker) {
+        InboundSmsHandler handler = getHandler(tracker);
+        if (handler != null) {
+            handler.getReassemblyIndex().seedSegment(tracker);
+        }
+    }
+
+    /**
+     * Send tracker to appropriate (3GPP or 3GPP2) inbound SMS handler for broadcast.
+     */
+    private void broadcastSms(InboundSmsTracker tracker) {
+        InboundSmsHandler handler = getHandler(tracker);
         if (handler != null) {
             handler.sendMessage(InboundSmsHandler.EVENT_BROADCAST_SMS, tracker);
         } else {
@@ -238,7 +273,7 @@ public class SmsBroadcastUndelivered {
     /**
      * Used as the HashMap key for matching concatenated message segments.
      */
-    private static class SmsReferenceKey {
+    static class SmsReferenceKey {
         final String mAddress;
         final int mReferenceNumber;
         final int mMessageCount;
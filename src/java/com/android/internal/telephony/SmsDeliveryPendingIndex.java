@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.util.SparseArray;
+
+import com.android.internal.telephony.SMSDispatcher.SmsTracker;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sent messages awaiting a delivery status report, indexed by message reference.
+ *
+ * Message references are only 8 bits for GSM and 16 bits for CDMA, so several trackers may share
+ * one; they are handed out oldest first, which is the order the old linear scan used. Entries
+ * older than the time to live are handed back by {@link #removeExpired} so that a lost status
+ * report does not keep its tracker forever.
+ *
+ * Times are {@link android.os.SystemClock#elapsedRealtime} values supplied by the caller. Used
+ * from the dispatcher's handler thread and from dump(), so all methods are synchronized.
+ */
+public class SmsDeliveryPendingIndex {
+
+    private static final class Node {
+        final SmsTracker mTracker;
+        final int mMessageRef;
+        final long mAddedTime;
+        // neighbours in the order the trackers were added
+        Node mOlder;
+        Node mNewer;
+        // next newer tracker with the same message reference
+        Node mNextSameRef;
+
+        Node(SmsTracker tracker, long addedTime) {
+            mTracker = tracker;
+            mMessageRef = tracker.mMessageRef;
+            mAddedTime = addedTime;
+        }
+    }
+
+    private final long mTtlMillis;
+    // oldest tracker for each message reference
+    private final SparseArray<Node> mByMessageRef = new SparseArray<Node>();
+    private Node mOldest;
+    private Node mNewest;
+    private int mSize;
+
+    // Statistics
+    private int mPeakSize;
+    private long mAddedCount;
+    private long mMatchedCount;
+    private long mExpiredCount;
+
+    /**
+     * @param ttlMillis time after which a tracker without a status report is expired
+     */
+    public SmsDeliveryPendingIndex(long ttlMillis) {
+        mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * Add a tracker under its current message reference.
+     * @param now the current elapsed realtime
+     */
+    public synchronized void add(SmsTracker tracker, long now) {
+        Node node = new Node(tracker, now);
+
+        Node head = mByMessageRef.get(node.mMessageRef);
+        if (head == null) {
+            mByMessageRef.put(node.mMessageRef, node);
+        } else {
+            while (head.mNextSameRef != null) {
+                head = head.mNextSameRef;
+            }
+            head.mNextSameRef = node;
+        }
+
+        node.mOlder = mNewest;
+        if (mNewest != null) {
+            mNewest.mNewer = node;
+        } else {
+            mOldest = node;
+        }
+        mNewest = node;
+
+        mSize++;
+        mPeakSize = Math.max(mPeakSize, mSize);
+        mAddedCount++;
+    }
+
+    /**
+     * @return the oldest tracker with the message reference, or null if there is none
+     */
+    public synchronized SmsTracker get(int messageRef) {
+        Node head = mByMessageRef.get(messageRef);
+        return (head != null) ? head.mTracker : null;
+    }
+
+    /**
+     * Remove the tracker {@link #get} would return for the message reference, once its final
+     * status report has arrived.
+     * @return the removed tracker, or null if there is none
+     */
+    public synchronized SmsTracker remove(int messageRef) {
+        Node head = mByMessageRef.get(messageRef);
+        if (head == null) {
+            return null;
+        }
+        removeHead(head);
+        mMatchedCount++;
+        return head.mTracker;
+    }
+
+    /**
+     * Remove the trackers that have waited longer than the time to live.
+     * @param now the current elapsed realtime
+     * @return the removed trackers, oldest first, never null
+     */
+    public synchronized List<SmsTracker> removeExpired(long now) {
+        List<SmsTracker> expired = new ArrayList<SmsTracker>();
+        while (mOldest != null && now - mOldest.mAddedTime >= mTtlMillis) {
+            // the oldest tracker is also the oldest one with its message reference
+            Node node = mOldest;
+            removeHead(node);
+            expired.add(node.mTracker);
+        }
+        mExpiredCount += expired.size();
+        return expired;
+    }
+
+    /**
+     * @return the elapsed realtime at which the oldest tracker expires, or -1 if empty
+     */
+    public synchronized long getNextExpiryTime() {
+        return (mOldest != null) ? mOldest.mAddedTime + mTtlMillis : -1;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * @param now the current elapsed realtime
+     * @return how long the oldest tracker has been waiting, or 0 if empty
+     */
+    public synchronized long getOldestAge(long now) {
+        return (mOldest != null) ? now - mOldest.mAddedTime : 0;
+    }
+
+    public synchronized long getExpiredCount() {
+        return mExpiredCount;
+    }
+
+    public synchronized long getMatchedCount() {
+        return mMatchedCount;
+    }
+
+    /**
+     * Unlink a node that is the oldest one with its message reference.
+     */
+    private void removeHead(Node node) {
+        if (node.mNextSameRef != null) {
+            mByMessageRef.put(node.mMessageRef, node.mNextSameRef);
+        } else {
+            mByMessageRef.remove(node.mMessageRef);
+        }
+
+        if (node.mOlder != null) {
+            node.mOlder.mNewer = node.mNewer;
+        } else {
+            mOldest = node.mNewer;
+        }
+        if (node.mNewer != null) {
+            node.mNewer.mOlder = node.mOlder;
+        } else {
+            mNewest = node.mOlder;
+        }
+        node.mOlder = null;
+        node.mNewer = null;
+        node.mNextSameRef = null;
+        mSize--;
+    }
+
+    /**
+     * @param now the current elapsed realtime
+     */
+    public synchronized void dump(FileDescriptor fd, PrintWriter pw, String[] args, long now) {
+        pw.println("SmsDeliveryPendingIndex: size=" + mSize + " peak=" + mPeakSize
+                + " oldestAgeMs=" + getOldestAge(now) + " ttlMs=" + mTtlMillis);
+        pw.println(" added=" + mAddedCount + " matched=" + mMatchedCount
+                + " expired=" + mExpiredCount);
+    }
+}
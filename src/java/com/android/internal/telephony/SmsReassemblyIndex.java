@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.SmsBroadcastUndelivered.SmsReferenceKey;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * In-memory view of the multi-part segments stored in the raw table, keyed by
+ * (address, reference number, count). {@link InboundSmsHandler} records every segment here after
+ * it has been written to the raw table, so it can tell when a message is complete and get its PDUs
+ * without querying and hex-decoding the raw table again. The raw table remains the durable copy.
+ *
+ * The index only answers "incomplete" on its own once it has been primed, i.e. once
+ * {@link SmsBroadcastUndelivered} has merged the segments persisted before this process started.
+ * Until then, and for keys whose entry was evicted, the caller has to fall back to the raw table.
+ *
+ * Accessed from the handler thread and from the raw table scan thread, so all methods are
+ * synchronized.
+ */
+class SmsReassemblyIndex {
+
+    /** Maximum number of messages tracked before the oldest entry is evicted. */
+    @VisibleForTesting
+    static final int MAX_ENTRIES = 256;
+
+    /** Result of {@link #lookup}. */
+    static final int LOOKUP_COMPLETE = 0;
+    static final int LOOKUP_INCOMPLETE = 1;
+    static final int LOOKUP_DISPATCHED = 2;
+    static final int LOOKUP_UNKNOWN = 3;
+
+    private static class Entry {
+        final byte[][] mPdus;
+        int mReceived;
+        int mFirstDestPort = -1;
+        /** True if every segment of this message in the raw table is also in mPdus. */
+        boolean mVerified;
+        /** True once the complete message has been handed out by {@link #lookup}. */
+        boolean mDispatched;
+        /** Number of EVENT_BROADCAST_SMS messages still expected for this key. */
+        int mPendingEvents;
+
+        Entry(int messageCount, boolean verified) {
+            mPdus = new byte[messageCount][];
+            mVerified = verified;
+        }
+
+        void reset() {
+            for (int i = 0; i < mPdus.length; i++) {
+                mPdus[i] = null;
+            }
+            mReceived = 0;
+            mFirstDestPort = -1;
+            mDispatched = false;
+        }
+
+        /**
+         * @param destPort the real destination port of the segment, or -1
+         */
+        void add(int index, byte[] pdu, int destPort) {
+            if (index < 0 || index >= mPdus.length) {
+                return;
+            }
+            if (mPdus[index] == null) {
+                mReceived++;
+            }
+            mPdus[index] = pdu;
+            if (index == 0 && destPort != -1) {
+                mFirstDestPort = destPort;
+            }
+        }
+
+        boolean isComplete() {
+            return mReceived == mPdus.length;
+        }
+    }
+
+    // access order so the least recently touched message is evicted first
+    private final LinkedHashMap<SmsReferenceKey, Entry> mEntries =
+            new LinkedHashMap<SmsReferenceKey, Entry>(16, 0.75f, true);
+
+    // keys evicted while incomplete; a new entry for them must be verified against the raw table
+    private final HashSet<SmsReferenceKey> mEvictedKeys = new HashSet<SmsReferenceKey>();
+
+    private boolean mPrimed;
+
+    // Statistics
+    private int mHitCount;
+    private int mFallbackCount;
+    private int mEvictionCount;
+
+    /**
+     * Records a segment that was just written to the raw table by the handler.
+     */
+    synchronized void recordSegment(InboundSmsTracker tracker) {
+        SmsReferenceKey key = new SmsReferenceKey(tracker);
+        Entry entry = getOrCreateEntry(key, tracker.getMessageCount());
+        if (entry.mDispatched) {
+            // the reference number wrapped around and a new message is reusing the key
+            entry.reset();
+        }
+        entry.mPendingEvents++;
+        entry.add(tracker.getSequenceNumber() - tracker.getIndexOffset(), tracker.getPdu(),
+                tracker.getDestPort());
+    }
+
+    /**
+     * Merges a segment read from the raw table during the startup scan.
+     */
+    synchronized void seedSegment(InboundSmsTracker tracker) {
+        SmsReferenceKey key = new SmsReferenceKey(tracker);
+        Entry entry = getOrCreateEntry(key, tracker.getMessageCount());
+        if (entry.mDispatched) {
+            // rows are still undeleted, so the previous delivery never completed
+            entry.reset();
+        }
+        entry.add(tracker.getSequenceNumber() - tracker.getIndexOffset(), tracker.getPdu(),
+                tracker.getDestPort());
+    }
+
+    /**
+     * Forgets a message whose segments were deleted from the raw table.
+     */
+    synchronized void removeMessage(SmsReferenceKey key) {
+        mEntries.remove(key);
+    }
+
+    /**
+     * Called once the startup scan has merged every undelivered segment from the raw table.
+     */
+    synchronized void setPrimed() {
+        mPrimed = true;
+        mEvictedKeys.clear();
+        for (Entry entry : mEntries.values()) {
+            entry.mVerified = true;
+        }
+    }
+
+    /**
+     * Replaces the segments of a message with the rows just read from the raw table.
+     */
+    synchronized void setVerifiedSegments(InboundSmsTracker tracker, byte[][] pdus,
+            int firstDestPort) {
+        SmsReferenceKey key = new SmsReferenceKey(tracker);
+        Entry entry = getOrCreateEntry(key, tracker.getMessageCount());
+        entry.reset();
+        for (int i = 0; i < pdus.length && i < entry.mPdus.length; i++) {
+            if (pdus[i] != null) {
+                entry.add(i, pdus[i], -1);
+            }
+        }
+        entry.mFirstDestPort = firstDestPort;
+        entry.mVerified = true;
+        mEvictedKeys.remove(key);
+    }
+
+    /**
+     * Looks up the message the segment belongs to. On {@link #LOOKUP_COMPLETE} the PDUs are
+     * copied into <code>pdus</code>, the first segment's destination port (or -1) is returned in
+     * <code>destPort[0]</code>, and the message is marked dispatched.
+     *
+     * @return one of the LOOKUP_* constants; {@link #LOOKUP_UNKNOWN} means the raw table must be
+     *         queried
+     */
+    synchronized int lookup(InboundSmsTracker tracker, byte[][] pdus, int[] destPort) {
+        SmsReferenceKey key = new SmsReferenceKey(tracker);
+        Entry entry = mEntries.get(key);
+        if (entry == null || entry.mPdus.length != pdus.length) {
+            mFallbackCount++;
+            return LOOKUP_UNKNOWN;
+        }
+
+        int result;
+        if (entry.mDispatched) {
+            result = LOOKUP_DISPATCHED;
+        } else if (entry.isComplete()) {
+            System.arraycopy(entry.mPdus, 0, pdus, 0, pdus.length);
+            destPort[0] = entry.mFirstDestPort;
+            entry.mDispatched = true;
+            result = LOOKUP_COMPLETE;
+        } else if (entry.mVerified) {
+            result = LOOKUP_INCOMPLETE;
+        } else {
+            mFallbackCount++;
+            return LOOKUP_UNKNOWN;
+        }
+        mHitCount++;
+
+        // every segment event has been processed, nothing will ask about this message again
+        if (entry.mPendingEvents > 0) {
+            entry.mPendingEvents--;
+        }
+        if (entry.mDispatched && entry.mPendingEvents == 0) {
+            mEntries.remove(key);
+        }
+        return result;
+    }
+
+    private Entry getOrCreateEntry(SmsReferenceKey key, int messageCount) {
+        Entry entry = mEntries.get(key);
+        if (entry != null && entry.mPdus.length == messageCount) {
+            return entry;
+        }
+
+        if (mEntries.size() >= MAX_ENTRIES) {
+            evictEldest();
+        }
+        boolean verified = mPrimed && !mEvictedKeys.remove(key);
+        entry = new Entry(messageCount, verified);
+        mEntries.put(key, entry);
+        return entry;
+    }
+
+    private void evictEldest() {
+        Iterator<java.util.Map.Entry<SmsReferenceKey, Entry>> it =
+                mEntries.entrySet().iterator();
+        java.util.Map.Entry<SmsReferenceKey, Entry> eldest = it.next();
+        it.remove();
+        mEvictionCount++;
+        if (!eldest.getValue().mDispatched) {
+            if (mEvictedKeys.size() >= MAX_ENTRIES) {
+                // too many unknown keys to track, verify everything against the raw table
+                // until the next startup scan
+                mEvictedKeys.clear();
+                mPrimed = false;
+                for (Entry entry : mEntries.values()) {
+                    entry.mVerified = false;
+                }
+            } else {
+                mEvictedKeys.add(eldest.getKey());
+            }
+        }
+    }
+
+    @VisibleForTesting
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    synchronized void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println(" SmsReassemblyIndex: primed=" + mPrimed + " entries=" + mEntries.size()
+                + " hits=" + mHitCount + " fallbacks=" + mFallbackCount
+                + " evictions=" + mEvictionCount + " evictedKeys=" + mEvictedKeys.size());
+    }
+}
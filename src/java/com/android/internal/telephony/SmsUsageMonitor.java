@@ -23,6 +23,7 @@ import android.content.pm.ApplicationInfo;
 import android.content.res.XmlResourceParser;
 import android.database.ContentObserver;
 import android.os.Binder;
+import android.os.FileObserver;
 import android.os.Handler;
 import android.os.Process;
 import android.os.RemoteException;
@@ -30,6 +31,7 @@ import android.os.UserHandle;
 import android.provider.Settings;
 import android.telephony.PhoneNumberUtils;
 import android.util.AtomicFile;
+import android.util.LruCache;
 import android.telephony.Rlog;
 import android.util.Xml;
 
@@ -47,11 +49,11 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Objects;
 import java.util.regex.Pattern;
 
 /**
@@ -111,8 +113,56 @@ public class SmsUsageMonitor {
     private final int mCheckPeriod;
     private final int mMaxAllowed;
 
-    private final HashMap<String, ArrayList<Long>> mSmsStamp =
-            new HashMap<String, ArrayList<Long>>();
+    /**
+     * Send times of the messages an app sent in the last check period, oldest first, in a ring
+     * buffer that holds mMaxAllowed of them, which is all the limit lets in.
+     */
+    private static final class SendWindow {
+        private final long[] mTimes;
+        private int mOldest;
+        private int mSize;
+
+        SendWindow(int capacity) {
+            mTimes = new long[capacity];
+        }
+
+        void removeOlderThan(long time) {
+            while (mSize > 0 && mTimes[mOldest] < time) {
+                mOldest = (mOldest + 1) % mTimes.length;
+                mSize--;
+            }
+        }
+
+        /** @return the newest send time; the window must not be empty */
+        long getNewest() {
+            return mTimes[(mOldest + mSize - 1) % mTimes.length];
+        }
+
+        boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        /** Record count messages sent at the time; there must be room for them. */
+        void add(long time, int count) {
+            for (int i = 0; i < count; i++) {
+                mTimes[(mOldest + mSize) % mTimes.length] = time;
+                mSize++;
+            }
+        }
+    }
+
+    /**
+     * Apps are spread over stripes by package name, each with its own lock, so that apps
+     * sending at the same time do not wait for each other.
+     */
+    private static final int SMS_STAMP_STRIPES = 16;
+
+    @SuppressWarnings("unchecked")
+    private final HashMap<String, SendWindow>[] mSmsStamp = new HashMap[SMS_STAMP_STRIPES];
 
     /** Context for retrieving regexes from XML resource. */
     private final Context mContext;
@@ -132,9 +182,35 @@ public class SmsUsageMonitor {
     /** File holding the patterns */
     private final File mPatternFile = new File(SHORT_CODE_PATH);
 
-    /** Last modified time for pattern file */
+    /** Last modified time for pattern file, only used if the file cannot be watched */
     private long mPatternFileLastModified = 0;
 
+    /**
+     * Watches the directory of the pattern file so that the file does not have to be checked on
+     * every message. Null if the directory does not exist.
+     */
+    private final FileObserver mPatternFileObserver;
+
+    /** Set by {@link #mPatternFileObserver} when the pattern file has been written or removed. */
+    private final AtomicBoolean mPatternFileChanged = new AtomicBoolean(false);
+
+    /**
+     * Regexes of every country in the pattern file or resource, by country: pattern, premium,
+     * free and standard. Null until first needed and after the pattern file changes.
+     */
+    private HashMap<String, String[]> mPatternIndex;
+
+    /** Matchers compiled from {@link #mPatternIndex}, by country. */
+    private final HashMap<String, ShortCodePatternMatcher> mPatternMatchers =
+            new HashMap<String, ShortCodePatternMatcher>();
+
+    /** Number of recent destinations whose category is remembered. */
+    private static final int CLASSIFICATION_CACHE_SIZE = 64;
+
+    /** Category of recent destinations, keyed by country and destination. */
+    private final LruCache<String, Integer> mClassifications =
+            new LruCache<String, Integer>(CLASSIFICATION_CACHE_SIZE);
+
     /** Directory for per-app SMS permission XML file. */
     private static final String SMS_POLICY_FILE_DIRECTORY = "/data/misc/sms";
 
@@ -266,24 +342,44 @@ public class SmsUsageMonitor {
                 Settings.Global.SMS_OUTGOING_CHECK_INTERVAL_MS,
                 DEFAULT_SMS_CHECK_PERIOD);
 
+        for (int i = 0; i < SMS_STAMP_STRIPES; i++) {
+            mSmsStamp[i] = new HashMap<String, SendWindow>();
+        }
+
         mSettingsObserverHandler = new SettingsObserverHandler(mContext, mCheckEnabled);
 
+        File patternDir = mPatternFile.getParentFile();
+        if (patternDir != null && patternDir.isDirectory()) {
+            mPatternFileObserver = new FileObserver(patternDir.getPath(), FileObserver.CLOSE_WRITE
+                    | FileObserver.MOVED_TO | FileObserver.MOVED_FROM | FileObserver.DELETE) {
+                @Override
+                public void onEvent(int event, String path) {
+                    if (mPatternFile.getName().equals(path)) {
+                        if (DBG) Rlog.d(TAG, "Short code pattern file changed, event=" + event);
+                        mPatternFileChanged.set(true);
+                    }
+                }
+            };
+            mPatternFileObserver.startWatching();
+        } else {
+            mPatternFileObserver = null;
+        }
+
         loadPremiumSmsPolicyDb();
     }
 
     /**
-     * Return a pattern matcher object for the specified country.
-     * @param country the country to search for
-     * @return a {@link ShortCodePatternMatcher} for the specified country, or null if not found
+     * Read the regexes of every country from the pattern file into an index.
+     * @return the index, or null if the file cannot be read
      */
-    private ShortCodePatternMatcher getPatternMatcherFromFile(String country) {
+    private HashMap<String, String[]> getPatternIndexFromFile() {
         FileReader patternReader = null;
         XmlPullParser parser = null;
         try {
             patternReader = new FileReader(mPatternFile);
             parser = Xml.newPullParser();
             parser.setInput(patternReader);
-            return getPatternMatcherFromXmlParser(parser, country);
+            return getPatternIndexFromXmlParser(parser);
         } catch (FileNotFoundException e) {
             Rlog.e(TAG, "Short Code Pattern File not found");
         } catch (XmlPullParserException e) {
@@ -299,19 +395,19 @@ public class SmsUsageMonitor {
         return null;
     }
 
-    private ShortCodePatternMatcher getPatternMatcherFromResource(String country) {
+    private HashMap<String, String[]> getPatternIndexFromResource() {
         int id = com.android.internal.R.xml.sms_short_codes;
         XmlResourceParser parser = null;
         try {
             parser = mContext.getResources().getXml(id);
-            return getPatternMatcherFromXmlParser(parser, country);
+            return getPatternIndexFromXmlParser(parser);
         } finally {
             if (parser != null) parser.close();
         }
     }
 
-    private ShortCodePatternMatcher getPatternMatcherFromXmlParser(XmlPullParser parser,
-            String country) {
+    private HashMap<String, String[]> getPatternIndexFromXmlParser(XmlPullParser parser) {
+        HashMap<String, String[]> index = new HashMap<String, String[]>();
         try {
             XmlUtils.beginDocument(parser, TAG_SHORTCODES);
 
@@ -319,19 +415,19 @@ public class SmsUsageMonitor {
                 XmlUtils.nextElement(parser);
                 String element = parser.getName();
                 if (element == null) {
-                    Rlog.e(TAG, "Parsing pattern data found null");
                     break;
                 }
 
                 if (element.equals(TAG_SHORTCODE)) {
-                    String currentCountry = parser.getAttributeValue(null, ATTR_COUNTRY);
-                    if (VDBG) Rlog.d(TAG, "Found country " + currentCountry);
-                    if (country.equals(currentCountry)) {
-                        String pattern = parser.getAttributeValue(null, ATTR_PATTERN);
-                        String premium = parser.getAttributeValue(null, ATTR_PREMIUM);
-                        String free = parser.getAttributeValue(null, ATTR_FREE);
-                        String standard = parser.getAttributeValue(null, ATTR_STANDARD);
-                        return new ShortCodePatternMatcher(pattern, premium, free, standard);
+                    String country = parser.getAttributeValue(null, ATTR_COUNTRY);
+                    if (VDBG) Rlog.d(TAG, "Found country " + country);
+                    // the first entry for a country is the one that counts
+                    if (country != null && !index.containsKey(country)) {
+                        index.put(country, new String[] {
+                                parser.getAttributeValue(null, ATTR_PATTERN),
+                                parser.getAttributeValue(null, ATTR_PREMIUM),
+                                parser.getAttributeValue(null, ATTR_FREE),
+                                parser.getAttributeValue(null, ATTR_STANDARD)});
                     }
                 } else {
                     Rlog.e(TAG, "Error: skipping unknown XML tag " + element);
@@ -342,13 +438,73 @@ public class SmsUsageMonitor {
         } catch (IOException e) {
             Rlog.e(TAG, "I/O exception reading short code patterns", e);
         }
-        if (DBG) Rlog.d(TAG, "Country (" + country + ") not found");
-        return null;    // country not found
+        if (DBG) Rlog.d(TAG, "Loaded short code patterns of " + index.size() + " countries");
+        return index;
+    }
+
+    /**
+     * Load {@link #mPatternIndex} and forget everything derived from the previous one.
+     * Must be called with {@link #mSettingsObserverHandler} locked.
+     */
+    private void loadPatternIndex() {
+        mPatternFileChanged.set(false);
+        if (mPatternFile.exists()) {
+            if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from file");
+            mPatternIndex = getPatternIndexFromFile();
+        } else {
+            if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from resource");
+            mPatternIndex = getPatternIndexFromResource();
+        }
+        if (mPatternIndex == null) {
+            mPatternIndex = new HashMap<String, String[]>();
+        }
+        mPatternMatchers.clear();
+        mClassifications.evictAll();
+        mCurrentCountry = null;
+        mCurrentPatternMatcher = null;
+    }
+
+    /**
+     * @return whether the pattern file has changed since {@link #mPatternIndex} was loaded
+     */
+    private boolean hasPatternFileChanged() {
+        if (mPatternFileObserver != null) {
+            return mPatternFileChanged.get();
+        }
+        return mPatternFile.lastModified() != mPatternFileLastModified;
+    }
+
+    /**
+     * Return a pattern matcher object for the specified country.
+     * Must be called with {@link #mSettingsObserverHandler} locked.
+     * @param country the country to search for
+     * @return a {@link ShortCodePatternMatcher} for the specified country, or null if not found
+     */
+    private ShortCodePatternMatcher getPatternMatcher(String country) {
+        ShortCodePatternMatcher matcher = mPatternMatchers.get(country);
+        if (matcher == null) {
+            String[] regexes = mPatternIndex.get(country);
+            if (regexes == null) {
+                if (DBG) Rlog.d(TAG, "Country (" + country + ") not found");
+                return null;    // country not found
+            }
+            matcher = new ShortCodePatternMatcher(regexes[0], regexes[1], regexes[2],
+                    regexes[3]);
+            mPatternMatchers.put(country, matcher);
+        }
+        return matcher;
     }
 
     /** Clear the SMS application list for disposal. */
     void dispose() {
-        mSmsStamp.clear();
+        for (HashMap<String, SendWindow> stripe : mSmsStamp) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+        if (mPatternFileObserver != null) {
+            mPatternFileObserver.stopWatching();
+        }
     }
 
     /**
@@ -362,16 +518,18 @@ public class SmsUsageMonitor {
      *  of new sms messages
      */
     public boolean check(String appName, int smsWaiting) {
-        synchronized (mSmsStamp) {
-            removeExpiredTimestamps();
-
-            ArrayList<Long> sentList = mSmsStamp.get(appName);
-            if (sentList == null) {
-                sentList = new ArrayList<Long>();
-                mSmsStamp.put(appName, sentList);
+        HashMap<String, SendWindow> stripe = mSmsStamp[
+                (Objects.hashCode(appName) & Integer.MAX_VALUE) % SMS_STAMP_STRIPES];
+        synchronized (stripe) {
+            removeExpiredTimestamps(stripe);
+
+            SendWindow sent = stripe.get(appName);
+            if (sent == null) {
+                sent = new SendWindow(Math.max(mMaxAllowed, 0));
+                stripe.put(appName, sent);
             }
 
-            return isUnderLimit(sentList, smsWaiting);
+            return isUnderLimit(sent, smsWaiting);
         }
     }
 
@@ -403,29 +561,36 @@ public class SmsUsageMonitor {
             }
 
             if (countryIso != null) {
-                if (mCurrentCountry == null || !countryIso.equals(mCurrentCountry) ||
-                        mPatternFile.lastModified() != mPatternFileLastModified) {
-                    if (mPatternFile.exists()) {
-                        if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from file");
-                        mCurrentPatternMatcher = getPatternMatcherFromFile(countryIso);
-                    } else {
-                        if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from resource");
-                        mCurrentPatternMatcher = getPatternMatcherFromResource(countryIso);
-                    }
+                if (mPatternIndex == null || hasPatternFileChanged()) {
+                    loadPatternIndex();
+                }
+                if (!countryIso.equals(mCurrentCountry)) {
+                    mCurrentPatternMatcher = getPatternMatcher(countryIso);
                     mCurrentCountry = countryIso;
                 }
             }
 
-            if (mCurrentPatternMatcher != null) {
-                return mCurrentPatternMatcher.getNumberCategory(destAddress);
+            // the category only depends on the destination and the matcher in use
+            String key = mCurrentCountry + ":" + destAddress;
+            Integer category = mClassifications.get(key);
+            if (category == null) {
+                category = classify(destAddress, countryIso);
+                mClassifications.put(key, category);
+            }
+            return category;
+        }
+    }
+
+    private int classify(String destAddress, String countryIso) {
+        if (mCurrentPatternMatcher != null) {
+            return mCurrentPatternMatcher.getNumberCategory(destAddress);
+        } else {
+            // Generic rule: numbers of 5 digits or less are considered potential short codes
+            Rlog.e(TAG, "No patterns for \"" + countryIso + "\": using generic short code rule");
+            if (destAddress.length() <= 5) {
+                return CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE;
             } else {
-                // Generic rule: numbers of 5 digits or less are considered potential short codes
-                Rlog.e(TAG, "No patterns for \"" + countryIso + "\": using generic short code rule");
-                if (destAddress.length() <= 5) {
-                    return CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE;
-                } else {
-                    return CATEGORY_NOT_SHORT_CODE;
-                }
+                return CATEGORY_NOT_SHORT_CODE;
             }
         }
     }
@@ -608,37 +773,30 @@ public class SmsUsageMonitor {
 
     /**
      * Remove keys containing only old timestamps. This can happen if an SMS app is used
-     * to send messages and then uninstalled.
+     * to send messages and then uninstalled. Must be called with the stripe locked.
      */
-    private void removeExpiredTimestamps() {
+    private void removeExpiredTimestamps(HashMap<String, SendWindow> stripe) {
         long beginCheckPeriod = System.currentTimeMillis() - mCheckPeriod;
 
-        synchronized (mSmsStamp) {
-            Iterator<Map.Entry<String, ArrayList<Long>>> iter = mSmsStamp.entrySet().iterator();
-            while (iter.hasNext()) {
-                Map.Entry<String, ArrayList<Long>> entry = iter.next();
-                ArrayList<Long> oldList = entry.getValue();
-                if (oldList.isEmpty() || oldList.get(oldList.size() - 1) < beginCheckPeriod) {
-                    iter.remove();
-                }
+        Iterator<Map.Entry<String, SendWindow>> iter = stripe.entrySet().iterator();
+        while (iter.hasNext()) {
+            SendWindow oldWindow = iter.next().getValue();
+            if (oldWindow.isEmpty() || oldWindow.getNewest() < beginCheckPeriod) {
+                iter.remove();
             }
         }
     }
 
-    private boolean isUnderLimit(ArrayList<Long> sent, int smsWaiting) {
-        Long ct = System.currentTimeMillis();
+    private boolean isUnderLimit(SendWindow sent, int smsWaiting) {
+        long ct = System.currentTimeMillis();
         long beginCheckPeriod = ct - mCheckPeriod;
 
         if (VDBG) log("SMS send size=" + sent.size() + " time=" + ct);
 
-        while (!sent.isEmpty() && sent.get(0) < beginCheckPeriod) {
-            sent.remove(0);
-        }
+        sent.removeOlderThan(beginCheckPeriod);
 
         if ((sent.size() + smsWaiting) <= mMaxAllowed) {
-            for (int i = 0; i < smsWaiting; i++ ) {
-                sent.add(ct);
-            }
+            sent.add(ct, smsWaiting);
             return true;
         }
         return false;
@@ -21,7 +21,9 @@ import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
@@ -38,12 +40,16 @@ import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.text.format.Time;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 import java.util.Objects;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.IccCardConstants.State;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
@@ -51,8 +57,9 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * SubscriptionController to provide an inter-process communication to
@@ -130,11 +137,27 @@ public class SubscriptionController extends ISub.Stub {
     // FIXME: Does not allow for multiple subs in a slot and change to SparseArray
     private static Map<Integer, Integer> sSlotIdxToSubId =
             new ConcurrentHashMap<Integer, Integer>();
+    // Read-only copy of sSlotIdxToSubId for lookups, see updateSlotIdxToSubId()
+    private static volatile SlotSubIdIndex sSlotSubIdIndex = SlotSubIdIndex.EMPTY;
     private static int mDefaultFallbackSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
     private static int mDefaultPhoneId = SubscriptionManager.DEFAULT_PHONE_INDEX;
 
     private int[] colorArr;
 
+    // Copy of the subinfo table, see getSubInfoSnapshot()
+    private volatile SubInfoSnapshot mSubInfoSnapshot;
+    private final AtomicInteger mSubInfoGeneration = new AtomicInteger();
+    private final AtomicLong mSubInfoSnapshotHits = new AtomicLong();
+    private final AtomicLong mSubInfoSnapshotMisses = new AtomicLong();
+    private final AtomicLong mSubInfoSnapshotInvalidations = new AtomicLong();
+
+    private final ContentObserver mSubInfoObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidateSubInfoSnapshot();
+        }
+    };
+
     public static SubscriptionController init(Phone phone) {
         synchronized (SubscriptionController.class) {
             if (sInstance == null) {
@@ -166,6 +189,95 @@ public class SubscriptionController extends ISub.Stub {
         return sInstance;
     }
 
+    /**
+     * Immutable index of sSlotIdxToSubId in both directions. Lookups neither box nor allocate;
+     * the arrays handed out are shared and must not be modified.
+     */
+    @VisibleForTesting
+    static final class SlotSubIdIndex {
+        static final SlotSubIdIndex EMPTY =
+                new SlotSubIdIndex(new ConcurrentHashMap<Integer, Integer>());
+
+        // subIds in each slot, indexed by slot, null if the slot has none
+        private final int[][] mSubIdsBySlot;
+        private final SparseIntArray mSlotBySubId;
+        private final int[] mSubIds;
+
+        SlotSubIdIndex(Map<Integer, Integer> slotIdxToSubId) {
+            int maxSlot = -1;
+            for (Integer slot : slotIdxToSubId.keySet()) {
+                maxSlot = Math.max(maxSlot, slot);
+            }
+            mSubIdsBySlot = new int[maxSlot + 1][];
+            mSlotBySubId = new SparseIntArray(slotIdxToSubId.size());
+            mSubIds = new int[slotIdxToSubId.size()];
+
+            int i = 0;
+            for (Entry<Integer, Integer> entry : slotIdxToSubId.entrySet()) {
+                int slot = entry.getKey();
+                int sub = entry.getValue();
+                mSubIds[i++] = sub;
+                if (mSlotBySubId.indexOfKey(sub) < 0) {
+                    mSlotBySubId.put(sub, slot);
+                }
+                if (slot >= 0) {
+                    int[] subIds = mSubIdsBySlot[slot];
+                    if (subIds == null) {
+                        mSubIdsBySlot[slot] = new int[] {sub};
+                    } else {
+                        subIds = Arrays.copyOf(subIds, subIds.length + 1);
+                        subIds[subIds.length - 1] = sub;
+                        mSubIdsBySlot[slot] = subIds;
+                    }
+                }
+            }
+        }
+
+        int size() {
+            return mSubIds.length;
+        }
+
+        /** @return the subIds in the slot, or null if there are none */
+        int[] getSubIds(int slotIdx) {
+            return (slotIdx >= 0 && slotIdx < mSubIdsBySlot.length)
+                    ? mSubIdsBySlot[slotIdx] : null;
+        }
+
+        /** @return all subIds */
+        int[] getSubIds() {
+            return mSubIds;
+        }
+
+        /** @return the slot of the subId, or valueIfNotFound */
+        int getSlotId(int subId, int valueIfNotFound) {
+            return mSlotBySubId.get(subId, valueIfNotFound);
+        }
+
+        boolean containsSubId(int subId) {
+            return mSlotBySubId.indexOfKey(subId) >= 0;
+        }
+    }
+
+    /**
+     * Map slotIdx to subId and republish the lookup index.
+     */
+    private static void putSlotIdxToSubId(int slotIdx, int subId) {
+        synchronized (sSlotIdxToSubId) {
+            sSlotIdxToSubId.put(slotIdx, subId);
+            sSlotSubIdIndex = new SlotSubIdIndex(sSlotIdxToSubId);
+        }
+    }
+
+    /**
+     * Remove all slotIdx to subId mappings and republish the lookup index.
+     */
+    private static void clearSlotIdxToSubId() {
+        synchronized (sSlotIdxToSubId) {
+            sSlotIdxToSubId.clear();
+            sSlotSubIdIndex = SlotSubIdIndex.EMPTY;
+        }
+    }
+
     protected SubscriptionController(Context c) {
         init(c);
     }
@@ -181,11 +293,14 @@ public class SubscriptionController extends ISub.Stub {
                 ServiceManager.addService("isub", this);
         }
 
+        mContext.getContentResolver().registerContentObserver(SubscriptionManager.CONTENT_URI,
+                true, mSubInfoObserver);
+
         if (DBG) logdl("[SubscriptionController] init by Context");
     }
 
     private boolean isSubInfoReady() {
-        return sSlotIdxToSubId.size() > 0;
+        return sSlotSubIdIndex.size() > 0;
     }
 
     private SubscriptionController(Phone phone) {
@@ -197,6 +312,9 @@ public class SubscriptionController extends ISub.Stub {
                 ServiceManager.addService("isub", this);
         }
 
+        mContext.getContentResolver().registerContentObserver(SubscriptionManager.CONTENT_URI,
+                true, mSubInfoObserver);
+
         if (DBG) logdl("[SubscriptionController] init by Phone");
     }
 
@@ -243,6 +361,7 @@ public class SubscriptionController extends ISub.Stub {
      }
 
      public void notifySubscriptionInfoChanged() {
+         invalidateSubInfoSnapshot();
          ITelephonyRegistry tr = ITelephonyRegistry.Stub.asInterface(ServiceManager.getService(
                  "telephony.registry"));
          try {
@@ -327,43 +446,113 @@ public class SubscriptionController extends ISub.Stub {
     }
 
     /**
-     * Query SubInfoRecord(s) from subinfo database
-     * @param selection A filter declaring which rows to return
-     * @param queryKey query key content
-     * @return Array list of queried result from database
+     * Immutable copy of the subinfo table, shared by all readers until the table changes.
+     */
+    private static final class SubInfoSnapshot {
+        final int generation;
+        // all records in database order, null if there are none
+        final List<SubscriptionInfo> allSubInfos;
+        // records with a valid slot sorted by slot and subId, null if there are none
+        final List<SubscriptionInfo> activeSubInfos;
+        // raw rows by subId, for the columns SubscriptionInfo does not carry
+        final SparseArray<ContentValues> rows;
+
+        SubInfoSnapshot(int generation, List<SubscriptionInfo> allSubInfos,
+                List<SubscriptionInfo> activeSubInfos, SparseArray<ContentValues> rows) {
+            this.generation = generation;
+            this.allSubInfos = allSubInfos;
+            this.activeSubInfos = activeSubInfos;
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * Drop the cached copy of the subinfo table. Must be called whenever the table, or
+     * sSlotIdxToSubId which the records depend on, changes, including by
+     * SubscriptionInfoUpdater writing the table directly. The content observer also calls
+     * it, but only later on another thread.
      */
-     private List<SubscriptionInfo> getSubInfo(String selection, Object queryKey) {
-        if (VDBG) logd("selection:" + selection + " " + queryKey);
-        String[] selectionArgs = null;
-        if (queryKey != null) {
-            selectionArgs = new String[] {queryKey.toString()};
-        }
-        ArrayList<SubscriptionInfo> subList = null;
-        Cursor cursor = mContext.getContentResolver().query(SubscriptionManager.CONTENT_URI,
-                null, selection, selectionArgs, null);
+    void invalidateSubInfoSnapshot() {
+        mSubInfoGeneration.incrementAndGet();
+        mSubInfoSnapshotInvalidations.incrementAndGet();
+    }
+
+    /**
+     * Return the current copy of the subinfo table, querying the database only if it changed
+     * since the last call.
+     * @return the snapshot, or null if the query failed
+     */
+    private SubInfoSnapshot getSubInfoSnapshot() {
+        // read the generation before querying so that a change made during the query
+        // invalidates the result
+        int generation = mSubInfoGeneration.get();
+        SubInfoSnapshot snapshot = mSubInfoSnapshot;
+        if (snapshot != null && snapshot.generation == generation) {
+            mSubInfoSnapshotHits.incrementAndGet();
+            return snapshot;
+        }
+        mSubInfoSnapshotMisses.incrementAndGet();
+
+        // the snapshot is shared, build it as ourselves whoever the caller is
+        final long identity = Binder.clearCallingIdentity();
+        Cursor cursor = null;
+        ArrayList<SubscriptionInfo> allSubInfos = new ArrayList<SubscriptionInfo>();
+        SparseArray<ContentValues> rows = new SparseArray<ContentValues>();
         try {
-            if (cursor != null) {
-                while (cursor.moveToNext()) {
-                    SubscriptionInfo subInfo = getSubInfoRecord(cursor);
-                    if (subInfo != null)
-                    {
-                        if (subList == null)
-                        {
-                            subList = new ArrayList<SubscriptionInfo>();
-                        }
-                        subList.add(subInfo);
-                }
+            cursor = mContext.getContentResolver().query(SubscriptionManager.CONTENT_URI,
+                    null, null, null, null);
+            if (cursor == null) {
+                if (DBG) logd("[getSubInfoSnapshot] Query fail");
+                return null;
+            }
+            while (cursor.moveToNext()) {
+                SubscriptionInfo subInfo = getSubInfoRecord(cursor);
+                if (subInfo != null) {
+                    allSubInfos.add(subInfo);
+                    ContentValues row = new ContentValues();
+                    DatabaseUtils.cursorRowToContentValues(cursor, row);
+                    rows.put(subInfo.getSubscriptionId(), row);
                 }
-            } else {
-                if (DBG) logd("Query fail");
             }
         } finally {
             if (cursor != null) {
                 cursor.close();
             }
+            Binder.restoreCallingIdentity(identity);
+        }
+
+        ArrayList<SubscriptionInfo> activeSubInfos = new ArrayList<SubscriptionInfo>();
+        for (SubscriptionInfo subInfo : allSubInfos) {
+            if (subInfo.getSimSlotIndex() >= 0) {
+                activeSubInfos.add(subInfo);
+            }
         }
+        Collections.sort(activeSubInfos, new Comparator<SubscriptionInfo>() {
+            @Override
+            public int compare(SubscriptionInfo arg0, SubscriptionInfo arg1) {
+                // Primary sort key on SimSlotIndex
+                int flag = arg0.getSimSlotIndex() - arg1.getSimSlotIndex();
+                if (flag == 0) {
+                    // Secondary sort on SubscriptionId
+                    return arg0.getSubscriptionId() - arg1.getSubscriptionId();
+                }
+                return flag;
+            }
+        });
 
-        return subList;
+        snapshot = new SubInfoSnapshot(generation,
+                allSubInfos.isEmpty() ? null : Collections.unmodifiableList(allSubInfos),
+                activeSubInfos.isEmpty() ? null : Collections.unmodifiableList(activeSubInfos),
+                rows);
+        mSubInfoSnapshot = snapshot;
+        return snapshot;
+    }
+
+    /**
+     * @return a copy of the list the caller may modify, or null if the list is null
+     */
+    private static List<SubscriptionInfo> copyOf(List<SubscriptionInfo> subList) {
+        return (subList != null) ? new ArrayList<SubscriptionInfo>(subList) : null;
     }
 
     /**
@@ -530,8 +719,9 @@ public class SubscriptionController extends ISub.Stub {
         // Now that all security checks passes, perform the operation as ourselves.
         final long identity = Binder.clearCallingIdentity();
         try {
-            List<SubscriptionInfo> subList = null;
-            subList = getSubInfo(null, null);
+            SubInfoSnapshot snapshot = getSubInfoSnapshot();
+            List<SubscriptionInfo> subList =
+                    (snapshot != null) ? copyOf(snapshot.allSubInfos) : null;
             if (subList != null) {
                 if (DBG) logd("[getAllSubInfoList]- " + subList.size() + " infos return");
             } else {
@@ -563,24 +753,12 @@ public class SubscriptionController extends ISub.Stub {
                 return null;
             }
 
-            List<SubscriptionInfo> subList = getSubInfo(
-                    SubscriptionManager.SIM_SLOT_INDEX + ">=0", null);
+            // already sorted by slot and subId
+            SubInfoSnapshot snapshot = getSubInfoSnapshot();
+            List<SubscriptionInfo> subList =
+                    (snapshot != null) ? copyOf(snapshot.activeSubInfos) : null;
 
             if (subList != null) {
-                // FIXME: Unnecessary when an insertion sort is used!
-                Collections.sort(subList, new Comparator<SubscriptionInfo>() {
-                    @Override
-                    public int compare(SubscriptionInfo arg0, SubscriptionInfo arg1) {
-                        // Primary sort key on SimSlotIndex
-                        int flag = arg0.getSimSlotIndex() - arg1.getSimSlotIndex();
-                        if (flag == 0) {
-                            // Secondary sort on SubscriptionId
-                            return arg0.getSubscriptionId() - arg1.getSubscriptionId();
-                        }
-                        return flag;
-                    }
-                });
-
                 if (VDBG) logdl("[getActiveSubInfoList]- " + subList.size() + " infos return");
             } else {
                 if (DBG) logdl("[getActiveSubInfoList]- no info return");
@@ -637,18 +815,11 @@ public class SubscriptionController extends ISub.Stub {
         // Now that all security checks passes, perform the operation as ourselves.
         final long identity = Binder.clearCallingIdentity();
         try {
-            Cursor cursor = mContext.getContentResolver().query(SubscriptionManager.CONTENT_URI,
-                    null, null, null, null);
-            try {
-                if (cursor != null) {
-                    int count = cursor.getCount();
-                    if (DBG) logd("[getAllSubInfoCount]- " + count + " SUB(s) in DB");
-                    return count;
-                }
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
+            SubInfoSnapshot snapshot = getSubInfoSnapshot();
+            if (snapshot != null) {
+                int count = snapshot.rows.size();
+                if (DBG) logd("[getAllSubInfoCount]- " + count + " SUB(s) in DB");
+                return count;
             }
             if (DBG) logd("[getAllSubInfoCount]- no SUB in DB");
 
@@ -706,6 +877,7 @@ public class SubscriptionController extends ISub.Stub {
                     value.put(SubscriptionManager.SIM_SLOT_INDEX, slotId);
                     value.put(SubscriptionManager.CARRIER_NAME, "");
                     Uri uri = resolver.insert(SubscriptionManager.CONTENT_URI, value);
+                    invalidateSubInfoSnapshot();
                     if (DBG) logdl("[addSubInfoRecord] New record created: " + uri);
                 } else {
                     int subId = cursor.getInt(0);
@@ -725,6 +897,7 @@ public class SubscriptionController extends ISub.Stub {
                         resolver.update(SubscriptionManager.CONTENT_URI, value,
                                 SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID +
                                         "=" + Long.toString(subId), null);
+                        invalidateSubInfoSnapshot();
                     }
 
                     if (DBG) logdl("[addSubInfoRecord] Record already exists");
@@ -754,7 +927,8 @@ public class SubscriptionController extends ISub.Stub {
                             // FIXME: Currently we assume phoneId == slotId which in the future
                             // may not be true, for instance with multiple subs per slot.
                             // But is true at the moment.
-                            sSlotIdxToSubId.put(slotId, subId);
+                            putSlotIdxToSubId(slotId, subId);
+                            invalidateSubInfoSnapshot();
                             int subIdCountMax = getActiveSubInfoCountMax();
                             int defaultSubId = getDefaultSubId();
                             if (DBG) {
@@ -817,6 +991,7 @@ public class SubscriptionController extends ISub.Stub {
                 resolver.update(SubscriptionManager.CONTENT_URI, value,
                         SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID +
                                 "=" + Long.toString(subIds[0]), null);
+                invalidateSubInfoSnapshot();
 
                 if (DBG) logdl("[addSubInfoRecord] sim name = " + nameToSet);
             }
@@ -1152,7 +1327,8 @@ public class SubscriptionController extends ISub.Stub {
             return SubscriptionManager.INVALID_SIM_SLOT_INDEX;
         }
 
-        int size = sSlotIdxToSubId.size();
+        SlotSubIdIndex index = sSlotSubIdIndex;
+        int size = index.size();
 
         if (size == 0)
         {
@@ -1160,15 +1336,10 @@ public class SubscriptionController extends ISub.Stub {
             return SubscriptionManager.SIM_NOT_INSERTED;
         }
 
-        for (Entry<Integer, Integer> entry: sSlotIdxToSubId.entrySet()) {
-            int sim = entry.getKey();
-            int sub = entry.getValue();
-
-            if (subId == sub)
-            {
-                if (VDBG) logv("[getSlotId]- return = " + sim);
-                return sim;
-            }
+        int sim = index.getSlotId(subId, SubscriptionManager.INVALID_SIM_SLOT_INDEX);
+        if (sim != SubscriptionManager.INVALID_SIM_SLOT_INDEX) {
+            if (VDBG) logv("[getSlotId]- return = " + sim);
+            return sim;
         }
 
         if (DBG) logd("[getSlotId]- return fail");
@@ -1201,7 +1372,8 @@ public class SubscriptionController extends ISub.Stub {
         }
 
         // Check if we've got any SubscriptionInfo records using slotIdToSubId as a surrogate.
-        int size = sSlotIdxToSubId.size();
+        SlotSubIdIndex index = sSlotSubIdIndex;
+        int size = index.size();
         if (size == 0) {
             if (VDBG) {
                 logd("[getSubId]- sSlotIdxToSubId.size == 0, return DummySubIds slotIdx="
@@ -1210,23 +1382,9 @@ public class SubscriptionController extends ISub.Stub {
             return getDummySubIds(slotIdx);
         }
 
-        // Create an array of subIds that are in this slot?
-        ArrayList<Integer> subIds = new ArrayList<Integer>();
-        for (Entry<Integer, Integer> entry: sSlotIdxToSubId.entrySet()) {
-            int slot = entry.getKey();
-            int sub = entry.getValue();
-            if (slotIdx == slot) {
-                subIds.add(sub);
-            }
-        }
-
-        // Convert ArrayList to array
-        int numSubIds = subIds.size();
-        if (numSubIds > 0) {
-            int[] subIdArr = new int[numSubIds];
-            for (int i = 0; i < numSubIds; i++) {
-                subIdArr[i] = subIds.get(i);
-            }
+        // The subIds that are in this slot, shared with other callers
+        int[] subIdArr = index.getSubIds(slotIdx);
+        if (subIdArr != null) {
             if (VDBG) logd("[getSubId]- subIdArr=" + subIdArr);
             return subIdArr;
         } else {
@@ -1253,7 +1411,8 @@ public class SubscriptionController extends ISub.Stub {
             return SubscriptionManager.INVALID_PHONE_INDEX;
         }
 
-        int size = sSlotIdxToSubId.size();
+        SlotSubIdIndex index = sSlotSubIdIndex;
+        int size = index.size();
         if (size == 0) {
             phoneId = mDefaultPhoneId;
             if (DBG) logdl("[getPhoneId]- no sims, returning default phoneId=" + phoneId);
@@ -1261,14 +1420,10 @@ public class SubscriptionController extends ISub.Stub {
         }
 
         // FIXME: Assumes phoneId == slotId
-        for (Entry<Integer, Integer> entry: sSlotIdxToSubId.entrySet()) {
-            int sim = entry.getKey();
-            int sub = entry.getValue();
-
-            if (subId == sub) {
-                if (VDBG) logdl("[getPhoneId]- found subId=" + subId + " phoneId=" + sim);
-                return sim;
-            }
+        if (index.containsSubId(subId)) {
+            int sim = index.getSlotId(subId, SubscriptionManager.INVALID_SIM_SLOT_INDEX);
+            if (VDBG) logdl("[getPhoneId]- found subId=" + subId + " phoneId=" + sim);
+            return sim;
         }
 
         phoneId = mDefaultPhoneId;
@@ -1317,7 +1472,8 @@ public class SubscriptionController extends ISub.Stub {
                 return 0;
             }
 
-            sSlotIdxToSubId.clear();
+            clearSlotIdxToSubId();
+            invalidateSubInfoSnapshot();
             if (DBG) logdl("[clearSubInfo]- clear size=" + size);
             return size;
         } finally {
@@ -1637,26 +1793,17 @@ public class SubscriptionController extends ISub.Stub {
                 return null;
             }
 
-            Cursor cursor = mContext.getContentResolver().query(SubscriptionManager.CONTENT_URI,
-                    null, SubscriptionManager.SIM_SLOT_INDEX + "=?",
-                    new String[]{String.valueOf(slotId)}, null);
+            SubInfoSnapshot snapshot = getSubInfoSnapshot();
             ArrayList<SubscriptionInfo> subList = null;
-            try {
-                if (cursor != null) {
-                    while (cursor.moveToNext()) {
-                        SubscriptionInfo subInfo = getSubInfoRecord(cursor);
-                        if (subInfo != null) {
-                            if (subList == null) {
-                                subList = new ArrayList<SubscriptionInfo>();
-                            }
-                            subList.add(subInfo);
+            if (snapshot != null && snapshot.allSubInfos != null) {
+                for (SubscriptionInfo subInfo : snapshot.allSubInfos) {
+                    if (subInfo.getSimSlotIndex() == slotId) {
+                        if (subList == null) {
+                            subList = new ArrayList<SubscriptionInfo>();
                         }
+                        subList.add(subInfo);
                     }
                 }
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
             }
             if (DBG) logd("[getSubInfoUsingSlotId]- null info return");
 
@@ -1684,19 +1831,11 @@ public class SubscriptionController extends ISub.Stub {
      */
     @Override
     public int[] getActiveSubIdList() {
-        Set<Entry<Integer, Integer>> simInfoSet = sSlotIdxToSubId.entrySet();
-
-        int[] subIdArr = new int[simInfoSet.size()];
-        int i = 0;
-        for (Entry<Integer, Integer> entry: simInfoSet) {
-            int sub = entry.getValue();
-            subIdArr[i] = sub;
-            i++;
-        }
+        int[] subIdArr = sSlotSubIdIndex.getSubIds().clone();
 
         if (VDBG) {
-            logdl("[getActiveSubIdList] simInfoSet=" + simInfoSet + " subIdArr.length="
-                    + subIdArr.length);
+            logdl("[getActiveSubIdList] subIdArr=" + Arrays.toString(subIdArr)
+                    + " subIdArr.length=" + subIdArr.length);
         }
         return subIdArr;
     }
@@ -1704,7 +1843,7 @@ public class SubscriptionController extends ISub.Stub {
     @Override
     public boolean isActiveSubId(int subId) {
         boolean retVal = SubscriptionManager.isValidSubscriptionId(subId)
-                && sSlotIdxToSubId.containsValue(subId);
+                && sSlotSubIdIndex.containsSubId(subId);
 
         if (VDBG) logdl("[isActiveSubId]- " + retVal);
         return retVal;
@@ -1780,6 +1919,7 @@ public class SubscriptionController extends ISub.Stub {
         resolver.update(SubscriptionManager.CONTENT_URI, value,
                 SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID +
                         "=" + Integer.toString(subId), null);
+        invalidateSubInfoSnapshot();
         Binder.restoreCallingIdentity(token);
     }
 
@@ -1796,44 +1936,36 @@ public class SubscriptionController extends ISub.Stub {
             return null;
         }
         String resultValue = null;
-        ContentResolver resolver = mContext.getContentResolver();
-        Cursor cursor = resolver.query(SubscriptionManager.CONTENT_URI,
-                new String[]{propKey},
-                SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID + "=?",
-                new String[]{subId + ""}, null);
-
-        try {
-            if (cursor != null) {
-                if (cursor.moveToFirst()) {
-                    switch (propKey) {
-                        case SubscriptionManager.CB_EXTREME_THREAT_ALERT:
-                        case SubscriptionManager.CB_SEVERE_THREAT_ALERT:
-                        case SubscriptionManager.CB_AMBER_ALERT:
-                        case SubscriptionManager.CB_EMERGENCY_ALERT:
-                        case SubscriptionManager.CB_ALERT_SOUND_DURATION:
-                        case SubscriptionManager.CB_ALERT_REMINDER_INTERVAL:
-                        case SubscriptionManager.CB_ALERT_VIBRATE:
-                        case SubscriptionManager.CB_ALERT_SPEECH:
-                        case SubscriptionManager.CB_ETWS_TEST_ALERT:
-                        case SubscriptionManager.CB_CHANNEL_50_ALERT:
-                        case SubscriptionManager.CB_CMAS_TEST_ALERT:
-                        case SubscriptionManager.CB_OPT_OUT_DIALOG:
-                            resultValue = cursor.getInt(0) + "";
-                            break;
-                        default:
-                            if(DBG) logd("Invalid column name");
-                            break;
-                    }
-                } else {
-                    if(DBG) logd("Valid row not present in db");
+        SubInfoSnapshot snapshot = getSubInfoSnapshot();
+        if (snapshot != null) {
+            ContentValues row = snapshot.rows.get(subId);
+            if (row != null) {
+                switch (propKey) {
+                    case SubscriptionManager.CB_EXTREME_THREAT_ALERT:
+                    case SubscriptionManager.CB_SEVERE_THREAT_ALERT:
+                    case SubscriptionManager.CB_AMBER_ALERT:
+                    case SubscriptionManager.CB_EMERGENCY_ALERT:
+                    case SubscriptionManager.CB_ALERT_SOUND_DURATION:
+                    case SubscriptionManager.CB_ALERT_REMINDER_INTERVAL:
+                    case SubscriptionManager.CB_ALERT_VIBRATE:
+                    case SubscriptionManager.CB_ALERT_SPEECH:
+                    case SubscriptionManager.CB_ETWS_TEST_ALERT:
+                    case SubscriptionManager.CB_CHANNEL_50_ALERT:
+                    case SubscriptionManager.CB_CMAS_TEST_ALERT:
+                    case SubscriptionManager.CB_OPT_OUT_DIALOG:
+                        // same as Cursor.getInt() on a NULL column
+                        Integer value = row.getAsInteger(propKey);
+                        resultValue = ((value != null) ? value : 0) + "";
+                        break;
+                    default:
+                        if(DBG) logd("Invalid column name");
+                        break;
                 }
             } else {
-                if(DBG) logd("Query failed");
-            }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+                if(DBG) logd("Valid row not present in db");
             }
+        } else {
+            if(DBG) logd("Query failed");
         }
         if (DBG) logd("getSubscriptionProperty Query value = " + resultValue);
         return resultValue;
@@ -1903,6 +2035,13 @@ public class SubscriptionController extends ISub.Stub {
             pw.flush();
             pw.println("++++++++++++++++++++++++++++++++");
 
+            pw.println(" SubInfoSnapshot: hits=" + mSubInfoSnapshotHits.get()
+                    + " misses=" + mSubInfoSnapshotMisses.get()
+                    + " invalidations=" + mSubInfoSnapshotInvalidations.get()
+                    + " generation=" + mSubInfoGeneration.get());
+            pw.flush();
+            pw.println("++++++++++++++++++++++++++++++++");
+
             mLocalLog.dump(fd, pw, args);
             pw.flush();
             pw.println("++++++++++++++++++++++++++++++++");
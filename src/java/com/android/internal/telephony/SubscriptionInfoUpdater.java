@@ -427,9 +427,7 @@ public class SubscriptionInfoUpdater extends Handler {
             if (msisdn != null) {
                 ContentValues number = new ContentValues(1);
                 number.put(SubscriptionManager.NUMBER, msisdn);
-                contentResolver.update(SubscriptionManager.CONTENT_URI, number,
-                        SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID + "="
-                        + Long.toString(subId), null);
+                updateSubInfoRow(contentResolver, number, subId);
             }
 
             SubscriptionInfo subInfo = mSubscriptionManager.getActiveSubscriptionInfo(subId);
@@ -446,9 +444,7 @@ public class SubscriptionInfoUpdater extends Handler {
                 }
                 name.put(SubscriptionManager.DISPLAY_NAME, nameToSet);
                 logd("sim name = " + nameToSet);
-                contentResolver.update(SubscriptionManager.CONTENT_URI, name,
-                        SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID
-                        + "=" + Long.toString(subId), null);
+                updateSubInfoRow(contentResolver, name, subId);
             }
 
             /* Update preferred network type and network selection mode on SIM change.
@@ -560,9 +556,8 @@ public class SubscriptionInfoUpdater extends Handler {
                     ContentValues value = new ContentValues(1);
                     value.put(SubscriptionManager.SIM_SLOT_INDEX,
                             SubscriptionManager.INVALID_SIM_SLOT_INDEX);
-                    contentResolver.update(SubscriptionManager.CONTENT_URI, value,
-                            SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID + "="
-                            + Integer.toString(oldSubInfo.get(0).getSubscriptionId()), null);
+                    updateSubInfoRow(contentResolver, value,
+                            oldSubInfo.get(0).getSubscriptionId());
                 }
             } else {
                 if (mInsertSimState[i] == SIM_NOT_CHANGE) {
@@ -637,9 +632,7 @@ public class SubscriptionInfoUpdater extends Handler {
             if (msisdn != null) {
                 ContentValues value = new ContentValues(1);
                 value.put(SubscriptionManager.NUMBER, msisdn);
-                contentResolver.update(SubscriptionManager.CONTENT_URI, value,
-                        SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID + "="
-                        + Integer.toString(temp.getSubscriptionId()), null);
+                updateSubInfoRow(contentResolver, value, temp.getSubscriptionId());
             }
         }
 
@@ -651,6 +644,19 @@ public class SubscriptionInfoUpdater extends Handler {
         logd("updateSubscriptionInfoByIccId:- SsubscriptionInfo update complete");
     }
 
+    /**
+     * Writes columns of the subinfo row of a subscription. SubscriptionController serves
+     * reads from a copy of the table, which is dropped right away so that the listeners
+     * notified after this update do not read the old rows.
+     */
+    private void updateSubInfoRow(ContentResolver contentResolver, ContentValues values,
+            int subId) {
+        contentResolver.update(SubscriptionManager.CONTENT_URI, values,
+                SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID + "="
+                + Integer.toString(subId), null);
+        SubscriptionController.getInstance().invalidateSubInfoSnapshot();
+    }
+
     private boolean isNewSim(String iccId, String[] oldIccId) {
         boolean newSim = true;
         for(int i = 0; i < PROJECT_SIM_NUM; i++) {
@@ -84,23 +84,20 @@ public class CdmaSMSDispatcher extends SMSDispatcher {
      * @param sms the CDMA SMS message to process
      */
     private void handleCdmaStatusReport(SmsMessage sms) {
-        for (int i = 0, count = deliveryPendingList.size(); i < count; i++) {
-            SmsTracker tracker = deliveryPendingList.get(i);
-            if (tracker.mMessageRef == sms.mMessageRef) {
-                // Found it.  Remove from list and broadcast.
-                deliveryPendingList.remove(i);
-                // Update the message status (COMPLETE)
-                tracker.updateSentMessageStatus(mContext, Sms.STATUS_COMPLETE);
+        // Only expect to see one tracker matching this message.
+        SmsTracker tracker = mDeliveryPending.remove(sms.mMessageRef);
+        if (tracker != null) {
+            // Found it.  Removed from list, now broadcast.
+            // Update the message status (COMPLETE)
+            tracker.updateSentMessageStatus(mContext, Sms.STATUS_COMPLETE);
 
-                PendingIntent intent = tracker.mDeliveryIntent;
-                Intent fillIn = new Intent();
-                fillIn.putExtra("pdu", sms.getPdu());
-                fillIn.putExtra("format", getFormat());
-                try {
-                    intent.send(mContext, Activity.RESULT_OK, fillIn);
-                } catch (CanceledException ex) {}
-                break;  // Only expect to see one tracker matching this message.
-            }
+            PendingIntent intent = tracker.mDeliveryIntent;
+            Intent fillIn = new Intent();
+            fillIn.putExtra("pdu", sms.getPdu());
+            fillIn.putExtra("format", getFormat());
+            try {
+                intent.send(mContext, Activity.RESULT_OK, fillIn);
+            } catch (CanceledException ex) {}
         }
     }
 
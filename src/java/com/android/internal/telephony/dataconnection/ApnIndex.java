@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.telephony.ServiceState;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Lookup tables over the APNs of the current operator, so that DcTracker does not walk every
+ * APN on each data setup attempt. Built by DcTracker.createAllApnList() and replaced whenever
+ * the APN list is rebuilt; the list it was built from must not change afterwards.
+ *
+ * The candidates for an APN type and radio technology are computed on first use and kept for
+ * the lifetime of the index. Only used from the DcTracker handler thread.
+ */
+class ApnIndex {
+    private static final ApnSetting[] EMPTY = new ApnSetting[0];
+
+    private final ApnSetting[] mApns;
+    private final SparseArray<ApnSetting> mById = new SparseArray<ApnSetting>();
+    // APNs that can handle a type, in list order
+    private final HashMap<String, ApnSetting[]> mByType = new HashMap<String, ApnSetting[]>();
+    // the above further restricted to a radio technology
+    private final HashMap<String, SparseArray<ApnSetting[]>> mByTypeAndTech =
+            new HashMap<String, SparseArray<ApnSetting[]>>();
+
+    ApnIndex(List<ApnSetting> apns) {
+        mApns = apns.toArray(new ApnSetting[apns.size()]);
+        for (ApnSetting apn : mApns) {
+            // keep the first one, as a linear search would
+            if (mById.indexOfKey(apn.id) < 0) {
+                mById.put(apn.id, apn);
+            }
+        }
+    }
+
+    /**
+     * @return the first APN with the database id, or null
+     */
+    ApnSetting getById(int id) {
+        return mById.get(id);
+    }
+
+    /**
+     * @return the APNs that can handle the type, in list order
+     */
+    ApnSetting[] getApns(String type) {
+        ApnSetting[] apns = mByType.get(type);
+        if (apns == null) {
+            ArrayList<ApnSetting> list = new ArrayList<ApnSetting>();
+            for (ApnSetting apn : mApns) {
+                if (apn.canHandleType(type)) {
+                    list.add(apn);
+                }
+            }
+            apns = list.isEmpty() ? EMPTY : list.toArray(new ApnSetting[list.size()]);
+            mByType.put(type, apns);
+        }
+        return apns;
+    }
+
+    /**
+     * @return the APNs that can handle the type and whose bearer bitmask includes the radio
+     *         technology, in list order
+     */
+    ApnSetting[] getApns(String type, int radioTech) {
+        SparseArray<ApnSetting[]> byTech = mByTypeAndTech.get(type);
+        if (byTech == null) {
+            byTech = new SparseArray<ApnSetting[]>();
+            mByTypeAndTech.put(type, byTech);
+        }
+        ApnSetting[] apns = byTech.get(radioTech);
+        if (apns == null) {
+            ArrayList<ApnSetting> list = new ArrayList<ApnSetting>();
+            for (ApnSetting apn : getApns(type)) {
+                if (ServiceState.bitmaskHasTech(apn.bearerBitmask, radioTech)) {
+                    list.add(apn);
+                }
+            }
+            apns = list.isEmpty() ? EMPTY : list.toArray(new ApnSetting[list.size()]);
+            byTech.put(radioTech, apns);
+        }
+        return apns;
+    }
+
+    int size() {
+        return mApns.length;
+    }
+}
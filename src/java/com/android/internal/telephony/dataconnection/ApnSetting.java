@@ -57,6 +57,11 @@ public class ApnSetting {
     public final String password;
     public final int authType;
     public final String[] types;
+    /**
+     * Bits of {@link #getApnTypeBitmask} for each of {@link #types}; the wildcard type sets
+     * all of them.
+     */
+    public final int typesBitmask;
     public final int id;
     public final String numeric;
     public final String protocol;
@@ -124,6 +129,43 @@ public class ApnSetting {
      */
     private static HashMap<Integer, HashSet<String>> sMeteredRoamingApnTypes = new HashMap<>();
 
+    /**
+     * APN types with a bit in {@link #typesBitmask}, the bit being 1 << index. Other types are
+     * still supported but are matched by name.
+     */
+    private static final String[] BITMASK_APN_TYPES = {
+            PhoneConstants.APN_TYPE_DEFAULT,
+            PhoneConstants.APN_TYPE_MMS,
+            PhoneConstants.APN_TYPE_SUPL,
+            PhoneConstants.APN_TYPE_DUN,
+            PhoneConstants.APN_TYPE_HIPRI,
+            PhoneConstants.APN_TYPE_FOTA,
+            PhoneConstants.APN_TYPE_IMS,
+            PhoneConstants.APN_TYPE_CBS,
+            PhoneConstants.APN_TYPE_IA,
+            PhoneConstants.APN_TYPE_EMERGENCY
+    };
+
+    private static final HashMap<String, Integer> sApnTypeBits = new HashMap<>();
+    static {
+        for (int i = 0; i < BITMASK_APN_TYPES.length; i++) {
+            sApnTypeBits.put(BITMASK_APN_TYPES[i], 1 << i);
+        }
+    }
+
+    public static final int APN_TYPE_BITMASK_ALL = (1 << BITMASK_APN_TYPES.length) - 1;
+
+    private static final int APN_TYPE_BITMASK_DEFAULT =
+            getApnTypeBitmask(PhoneConstants.APN_TYPE_DEFAULT);
+    private static final int APN_TYPE_BITMASK_HIPRI =
+            getApnTypeBitmask(PhoneConstants.APN_TYPE_HIPRI);
+
+    // typesBitmask plus HIPRI when DEFAULT is present, see canHandleType()
+    private final int mHandledTypesBitmask;
+    private final boolean mHasWildcardType;
+    // some of types have no bit
+    private final boolean mHasUnknownTypes;
+
     public ApnSetting(int id, String numeric, String carrier, String apn,
             String proxy, String port,
             String mmsc, String mmsProxy, String mmsPort,
@@ -144,9 +186,25 @@ public class ApnSetting {
         this.password = password;
         this.authType = authType;
         this.types = new String[types.length];
+        int typesBitmask = 0;
+        boolean hasWildcardType = false;
+        boolean hasUnknownTypes = false;
         for (int i = 0; i < types.length; i++) {
             this.types[i] = types[i].toLowerCase(Locale.ROOT);
+            if (this.types[i].equals(PhoneConstants.APN_TYPE_ALL)) {
+                hasWildcardType = true;
+                typesBitmask |= APN_TYPE_BITMASK_ALL;
+            } else {
+                int bit = getApnTypeBitmask(this.types[i]);
+                if (bit == 0) hasUnknownTypes = true;
+                typesBitmask |= bit;
+            }
         }
+        this.typesBitmask = typesBitmask;
+        mHandledTypesBitmask = ((typesBitmask & APN_TYPE_BITMASK_DEFAULT) != 0)
+                ? (typesBitmask | APN_TYPE_BITMASK_HIPRI) : typesBitmask;
+        mHasWildcardType = hasWildcardType;
+        mHasUnknownTypes = hasUnknownTypes;
         this.protocol = protocol;
         this.roamingProtocol = roamingProtocol;
         this.carrierEnabled = carrierEnabled;
@@ -350,20 +408,56 @@ public class ApnSetting {
         return !TextUtils.isEmpty(mvnoType) && !TextUtils.isEmpty(mvnoMatchData);
     }
 
+    /**
+     * @return the {@link #typesBitmask} bit of an APN type, ignoring case, or 0 if the type
+     *         has none, as for the wildcard type
+     */
+    public static int getApnTypeBitmask(String type) {
+        if (type == null) return 0;
+        Integer bit = sApnTypeBits.get(type);
+        if (bit != null) return bit;
+        for (int i = 0; i < BITMASK_APN_TYPES.length; i++) {
+            if (BITMASK_APN_TYPES[i].equalsIgnoreCase(type)) {
+                return 1 << i;
+            }
+        }
+        return 0;
+    }
+
     public boolean canHandleType(String type) {
         if (!carrierEnabled) return false;
+        // the wildcard type handles all, and HIPRI is handled by DEFAULT
+        if (mHasWildcardType) return true;
+        int bit = getApnTypeBitmask(type);
+        if (bit != 0) return (mHandledTypesBitmask & bit) != 0;
+        if (!mHasUnknownTypes) return false;
         for (String t : types) {
-            // DEFAULT handles all, and HIPRI is handled by DEFAULT
-            if (t.equalsIgnoreCase(type) ||
-                    t.equalsIgnoreCase(PhoneConstants.APN_TYPE_ALL) ||
-                    (t.equalsIgnoreCase(PhoneConstants.APN_TYPE_DEFAULT) &&
-                    type.equalsIgnoreCase(PhoneConstants.APN_TYPE_HIPRI))) {
+            if (t.equalsIgnoreCase(type)) {
                 return true;
             }
         }
         return false;
     }
 
+    /**
+     * @return true if the two settings have an APN type in common, or either one has the
+     *         wildcard type and the other has any type
+     */
+    public boolean typesOverlap(ApnSetting other) {
+        if (types.length == 0 || other.types.length == 0) return false;
+        if (mHasWildcardType || other.mHasWildcardType) return true;
+        if ((typesBitmask & other.typesBitmask) != 0) return true;
+        if (!mHasUnknownTypes || !other.mHasUnknownTypes) return false;
+        for (String t : types) {
+            for (String otherType : other.types) {
+                if (t.equals(otherType)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     private static boolean imsiMatches(String imsiDB, String imsiSIM) {
         // Note: imsiDB value has digit number or 'x' character for seperating USIM information
         // for MVNO operator. And then digit number is matched at same order and 'x' character
@@ -95,6 +95,7 @@ import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -244,9 +245,19 @@ public class DcTracker extends Handler {
     /** allApns holds all apns */
     private ArrayList<ApnSetting> mAllApnSettings = null;
 
+    /** lookup tables over mAllApnSettings, null when mAllApnSettings is */
+    private ApnIndex mApnIndex = null;
+
     /** preferred apn */
     private ApnSetting mPreferredApn = null;
 
+    /** id of the preferred apn in the provider, -1 for none, valid if mPreferredApnIdLoaded */
+    private int mPreferredApnId = -1;
+    private boolean mPreferredApnIdLoaded = false;
+
+    /** !config_dontPreferApn, read again whenever the apn list is rebuilt */
+    private boolean mUsePreferredApn = true;
+
     /** Is packet service restricted by network */
     private boolean mIsPsRestricted = false;
 
@@ -2437,6 +2448,8 @@ public class DcTracker extends Handler {
 
         cleanUpAllConnections(true, Phone.REASON_SIM_NOT_READY);
         mAllApnSettings = null;
+        mApnIndex = null;
+        mPreferredApnIdLoaded = false;
         mAutoAttachOnCreationConfig = false;
     }
 
@@ -3341,6 +3354,9 @@ public class DcTracker extends Handler {
     private void createAllApnList() {
         mMvnoMatched = false;
         mAllApnSettings = new ArrayList<ApnSetting>();
+        // the preferred apn may have changed along with the apns, and the resources with the sim
+        mPreferredApnIdLoaded = false;
+        mUsePreferredApn = readUsePreferredApn();
         IccRecords r = mIccRecords.get();
         String operator = (r != null) ? r.getOperatorNumeric() : "";
         if (operator != null) {
@@ -3366,6 +3382,8 @@ public class DcTracker extends Handler {
 
         dedupeApnSettings();
 
+        mApnIndex = new ApnIndex(mAllApnSettings);
+
         if (mAllApnSettings.isEmpty()) {
             if (DBG) log("createAllApnList: No APN found for carrier: " + operator);
             mPreferredApn = null;
@@ -3385,61 +3403,83 @@ public class DcTracker extends Handler {
     }
 
     private void dedupeApnSettings() {
-        ArrayList<ApnSetting> resultApns = new ArrayList<ApnSetting>();
-
         // coalesce APNs if they are similar enough to prevent
-        // us from bringing up two data calls with the same interface
-        int i = 0;
-        while (i < mAllApnSettings.size() - 1) {
-            ApnSetting first = mAllApnSettings.get(i);
-            ApnSetting second = null;
-            int j = i + 1;
-            while (j < mAllApnSettings.size()) {
-                second = mAllApnSettings.get(j);
-                if (apnsSimilar(first, second)) {
-                    ApnSetting newApn = mergeApns(first, second);
-                    mAllApnSettings.set(i, newApn);
-                    first = newApn;
-                    mAllApnSettings.remove(j);
-                } else {
-                    j++;
+        // us from bringing up two data calls with the same interface.
+        // Only APNs with the same ApnDedupeKey can be similar, and merging keeps the key, so
+        // each APN is compared with the earlier survivors of its group only. Taking the first
+        // similar survivor gives the same result as comparing every pair in list order.
+        if (mAllApnSettings.size() < 2) return;
+
+        ArrayList<ApnSetting> resultApns = new ArrayList<ApnSetting>(mAllApnSettings.size());
+        HashMap<ApnDedupeKey, ArrayList<Integer>> survivors =
+                new HashMap<ApnDedupeKey, ArrayList<Integer>>();
+        for (ApnSetting apn : mAllApnSettings) {
+            if (apn.canHandleType(PhoneConstants.APN_TYPE_DUN)) {
+                // never similar to anything
+                resultApns.add(apn);
+                continue;
+            }
+            ApnDedupeKey key = new ApnDedupeKey(apn);
+            ArrayList<Integer> group = survivors.get(key);
+            if (group == null) {
+                group = new ArrayList<Integer>(1);
+                survivors.put(key, group);
+            }
+            boolean merged = false;
+            for (int index : group) {
+                ApnSetting first = resultApns.get(index);
+                if (apnsSimilar(first, apn)) {
+                    resultApns.set(index, mergeApns(first, apn));
+                    merged = true;
+                    break;
                 }
             }
-            i++;
+            if (!merged) {
+                group.add(resultApns.size());
+                resultApns.add(apn);
+            }
         }
+        mAllApnSettings = resultApns;
     }
 
-    //check whether the types of two APN same (even only one type of each APN is same)
-    private boolean apnTypeSameAny(ApnSetting first, ApnSetting second) {
-        if(VDBG) {
-            StringBuilder apnType1 = new StringBuilder(first.apn + ": ");
-            for(int index1 = 0; index1 < first.types.length; index1++) {
-                apnType1.append(first.types[index1]);
-                apnType1.append(",");
-            }
+    /**
+     * The fields that apnsSimilar() requires to be equal
+     */
+    private static final class ApnDedupeKey {
+        private final ApnSetting mApn;
 
-            StringBuilder apnType2 = new StringBuilder(second.apn + ": ");
-            for(int index1 = 0; index1 < second.types.length; index1++) {
-                apnType2.append(second.types[index1]);
-                apnType2.append(",");
-            }
-            log("APN1: is " + apnType1);
-            log("APN2: is " + apnType2);
+        ApnDedupeKey(ApnSetting apn) {
+            mApn = apn;
         }
 
-        for(int index1 = 0; index1 < first.types.length; index1++) {
-            for(int index2 = 0; index2 < second.types.length; index2++) {
-                if(first.types[index1].equals(PhoneConstants.APN_TYPE_ALL) ||
-                        second.types[index2].equals(PhoneConstants.APN_TYPE_ALL) ||
-                        first.types[index1].equals(second.types[index2])) {
-                    if(VDBG)log("apnTypeSameAny: return true");
-                    return true;
-                }
-            }
+        @Override
+        public int hashCode() {
+            return Objects.hash(mApn.apn, mApn.carrierEnabled, mApn.bearerBitmask,
+                    mApn.profileId, mApn.mvnoType, mApn.mvnoMatchData);
         }
 
-        if(VDBG)log("apnTypeSameAny: return false");
-        return false;
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ApnDedupeKey)) return false;
+            ApnSetting other = ((ApnDedupeKey) o).mApn;
+            return Objects.equals(mApn.apn, other.apn)
+                    && mApn.carrierEnabled == other.carrierEnabled
+                    && mApn.bearerBitmask == other.bearerBitmask
+                    && mApn.profileId == other.profileId
+                    && Objects.equals(mApn.mvnoType, other.mvnoType)
+                    && Objects.equals(mApn.mvnoMatchData, other.mvnoMatchData);
+        }
+    }
+
+    //check whether the types of two APN same (even only one type of each APN is same)
+    private boolean apnTypeSameAny(ApnSetting first, ApnSetting second) {
+        boolean same = first.typesOverlap(second);
+        if (VDBG) {
+            log("apnTypeSameAny: APN1=" + first.apn + " " + Arrays.toString(first.types)
+                    + " APN2=" + second.apn + " " + Arrays.toString(second.types)
+                    + " return " + same);
+        }
+        return same;
     }
 
     // Check if neither mention DUN and are substantially similar
@@ -3546,19 +3586,7 @@ public class DcTracker extends Handler {
         IccRecords r = mIccRecords.get();
         String operator = (r != null) ? r.getOperatorNumeric() : "";
 
-        // This is a workaround for a bug (7305641) where we don't failover to other
-        // suitable APNs if our preferred APN fails.  On prepaid ATT sims we need to
-        // failover to a provisioning APN, but once we've used their default data
-        // connection we are locked to it for life.  This change allows ATT devices
-        // to say they don't want to use preferred at all.
-        boolean usePreferred = true;
-        try {
-            usePreferred = ! mPhone.getContext().getResources().getBoolean(com.android.
-                    internal.R.bool.config_dontPreferApn);
-        } catch (Resources.NotFoundException e) {
-            if (DBG) log("buildWaitingApns: usePreferred NotFoundException set to true");
-            usePreferred = true;
-        }
+        boolean usePreferred = mUsePreferredApn;
         if (usePreferred) {
             mPreferredApn = getPreferredApn();
         }
@@ -3592,24 +3620,9 @@ public class DcTracker extends Handler {
                 mPreferredApn = null;
             }
         }
-        if (mAllApnSettings != null) {
+        if (mApnIndex != null) {
             if (DBG) log("buildWaitingApns: mAllApnSettings=" + mAllApnSettings);
-            for (ApnSetting apn : mAllApnSettings) {
-                if (apn.canHandleType(requestedApnType)) {
-                    if (ServiceState.bitmaskHasTech(apn.bearerBitmask, radioTech)) {
-                        if (DBG) log("buildWaitingApns: adding apn=" + apn);
-                        apnList.add(apn);
-                    } else {
-                        if (DBG) {
-                            log("buildWaitingApns: bearerBitmask:" + apn.bearerBitmask + " does " +
-                                    "not include radioTech:" + radioTech);
-                        }
-                    }
-                } else if (DBG) {
-                    log("buildWaitingApns: couldn't handle requested ApnType="
-                            + requestedApnType);
-                }
-            }
+            Collections.addAll(apnList, mApnIndex.getApns(requestedApnType, radioTech));
         } else {
             loge("mAllApnSettings is null!");
         }
@@ -3627,11 +3640,32 @@ public class DcTracker extends Handler {
         return result.toString();
     }
 
+    /**
+     * This is a workaround for a bug (7305641) where we don't failover to other
+     * suitable APNs if our preferred APN fails.  On prepaid ATT sims we need to
+     * failover to a provisioning APN, but once we've used their default data
+     * connection we are locked to it for life.  This change allows ATT devices
+     * to say they don't want to use preferred at all.
+     *
+     * @return false if config_dontPreferApn is set
+     */
+    private boolean readUsePreferredApn() {
+        try {
+            return ! mPhone.getContext().getResources().getBoolean(com.android.
+                    internal.R.bool.config_dontPreferApn);
+        } catch (Resources.NotFoundException e) {
+            if (DBG) log("readUsePreferredApn: usePreferred NotFoundException set to true");
+            return true;
+        }
+    }
+
     private void setPreferredApn(int pos) {
         if (!mCanSetPreferApn) {
             log("setPreferredApn: X !canSEtPreferApn");
             return;
         }
+        mPreferredApnId = (pos >= 0) ? pos : -1;
+        mPreferredApnIdLoaded = true;
 
         String subId = Long.toString(mPhone.getSubId());
         Uri uri = Uri.withAppendedPath(PREFERAPN_NO_UPDATE_URI_USING_SUBID, subId);
@@ -3653,6 +3687,26 @@ public class DcTracker extends Handler {
             return null;
         }
 
+        if (!mPreferredApnIdLoaded) {
+            loadPreferredApnId();
+        }
+        if (mCanSetPreferApn && mPreferredApnId >= 0) {
+            ApnSetting p = mApnIndex.getById(mPreferredApnId);
+            if (p != null && p.canHandleType(mRequestedApnType)) {
+                if (VDBG) log("getPreferredApn: X found apnSetting" + p);
+                return p;
+            }
+        }
+
+        if (VDBG) log("getPreferredApn: X not found");
+        return null;
+    }
+
+    /**
+     * Read the preferred apn id from the provider into mPreferredApnId. It is kept until
+     * setPreferredApn() changes it or the apn list is rebuilt.
+     */
+    private void loadPreferredApnId() {
         String subId = Long.toString(mPhone.getSubId());
         Uri uri = Uri.withAppendedPath(PREFERAPN_NO_UPDATE_URI_USING_SUBID, subId);
         Cursor cursor = mPhone.getContext().getContentResolver().query(
@@ -3664,29 +3718,20 @@ public class DcTracker extends Handler {
         } else {
             mCanSetPreferApn = false;
         }
-        log("getPreferredApn: mRequestedApnType=" + mRequestedApnType + " cursor=" + cursor
+        log("loadPreferredApnId: cursor=" + cursor
                 + " cursor.count=" + ((cursor != null) ? cursor.getCount() : 0));
 
+        mPreferredApnId = -1;
         if (mCanSetPreferApn && cursor.getCount() > 0) {
-            int pos;
             cursor.moveToFirst();
-            pos = cursor.getInt(cursor.getColumnIndexOrThrow(Telephony.Carriers._ID));
-            for(ApnSetting p : mAllApnSettings) {
-                log("getPreferredApn: apnSetting=" + p);
-                if (p.id == pos && p.canHandleType(mRequestedApnType)) {
-                    log("getPreferredApn: X found apnSetting" + p);
-                    cursor.close();
-                    return p;
-                }
-            }
+            mPreferredApnId = cursor.getInt(cursor.getColumnIndexOrThrow(Telephony.Carriers._ID));
         }
+        mPreferredApnIdLoaded = true;
 
         if (cursor != null) {
             cursor.close();
         }
-
-        log("getPreferredApn: X not found");
-        return null;
+        log("loadPreferredApnId: X mPreferredApnId=" + mPreferredApnId);
     }
 
     @Override
@@ -4355,6 +4400,9 @@ public class DcTracker extends Handler {
             pw.println(" mAllApnSettings=null");
         }
         pw.println(" mPreferredApn=" + mPreferredApn);
+        pw.println(" mPreferredApnId=" + mPreferredApnId
+                + " mPreferredApnIdLoaded=" + mPreferredApnIdLoaded);
+        pw.println(" mUsePreferredApn=" + mUsePreferredApn);
         pw.println(" mIsPsRestricted=" + mIsPsRestricted);
         pw.println(" mIsDisposed=" + mIsDisposed);
         pw.println(" mIntentReceiver=" + mIntentReceiver);
@@ -1801,8 +1801,16 @@ public class SimulatedCommands extends BaseCommands
         mCellInfoList = list;
     }
 
+    private final AtomicInteger mGetCellInfoListCallCount = new AtomicInteger(0);
+
+    @VisibleForTesting
+    public int getGetCellInfoListCallCount() {
+        return mGetCellInfoListCallCount.get();
+    }
+
     @Override
     public void getCellInfoList(Message response) {
+        mGetCellInfoListCallCount.incrementAndGet();
         if (mCellInfoList == null) {
             Parcel p = Parcel.obtain();
             p.writeInt(1);
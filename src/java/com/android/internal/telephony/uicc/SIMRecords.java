@@ -22,6 +22,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.AsyncResult;
 import android.os.Message;
+import android.os.SystemProperties;
 import android.telephony.CarrierConfigManager;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.SmsMessage;
@@ -30,6 +31,7 @@ import android.text.TextUtils;
 import android.telephony.Rlog;
 import android.content.res.Resources;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.CommandsInterface;
 import com.android.internal.telephony.MccTable;
 import com.android.internal.telephony.SmsConstants;
@@ -38,6 +40,7 @@ import com.android.internal.telephony.gsm.SimTlv;
 import com.android.internal.telephony.uicc.IccCardApplicationStatus.AppState;
 import com.android.internal.telephony.uicc.IccCardApplicationStatus.AppType;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
@@ -92,6 +95,11 @@ public class SIMRecords extends IccRecords {
 
     UsimServiceTable mUsimServiceTable;
 
+    // The EFs in CACHED_EFS of the last SIM in this slot, null if not enabled
+    private SimEfCache mEfCache;
+    // Whether mEfCache is set to the ICCID of this SIM; it is left alone until then
+    private boolean mEfCacheInUse;
+
     @Override
     public String toString() {
         return "SimRecords: " + super.toString()
@@ -169,6 +177,25 @@ public class SIMRecords extends IccRecords {
     private static final int EVENT_GET_GID2_DONE = 36;
     private static final int EVENT_CARRIER_CONFIG_CHANGED = 37;
 
+    // EF cache
+    private static final boolean EF_CACHE_ENABLED =
+            SystemProperties.getBoolean("ro.ril.sim_ef_cache", true);
+    private static final String EF_CACHE_DIRECTORY = "/data/misc/radio";
+    private static final String EF_CACHE_FILE_NAME = "sim_ef_cache_";
+
+    // EFs that rarely change, kept across boots, and the events reading them
+    private static final int[] CACHED_EFS = {
+        EF_AD, EF_SPDI, EF_PNN, EF_SST, EF_INFO_CPHS, EF_CSP_CPHS, EF_GID1, EF_GID2
+    };
+    private static final int[] CACHED_EF_EVENTS = {
+        EVENT_GET_AD_DONE, EVENT_GET_SPDI_DONE, EVENT_GET_PNN_DONE, EVENT_GET_SST_DONE,
+        EVENT_GET_INFO_CPHS_DONE, EVENT_GET_CSP_CPHS_DONE, EVENT_GET_GID1_DONE,
+        EVENT_GET_GID2_DONE
+    };
+
+    // msg.arg1 of a read of an EF already handled from the cache
+    private static final int EF_CACHE_REVALIDATE = 1;
+
     // Lookup table for carriers known to produce SIMs which incorrectly indicate MNC length.
 
     private static final String[] MCCMNC_CODES_HAVING_3DIGITS_MNC = {
@@ -206,6 +233,11 @@ public class SIMRecords extends IccRecords {
         // recordsToLoad is set to 0 because no requests are made yet
         mRecordsToLoad = 0;
 
+        if (EF_CACHE_ENABLED) {
+            mEfCache = new SimEfCache(new File(EF_CACHE_DIRECTORY,
+                    EF_CACHE_FILE_NAME + mParentApp.getPhoneId()));
+        }
+
         mCi.setOnSmsOnSim(this, EVENT_SMS_ON_SIM, null);
         mCi.registerForIccRefresh(this, EVENT_SIM_REFRESH, null);
 
@@ -220,6 +252,11 @@ public class SIMRecords extends IccRecords {
         c.registerReceiver(mReceiver, intentfilter);
     }
 
+    @VisibleForTesting
+    void setEfCache(SimEfCache efCache) {
+        mEfCache = efCache;
+    }
+
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -254,6 +291,7 @@ public class SIMRecords extends IccRecords {
         log("setting0 mMncLength" + mMncLength);
         mIccId = null;
         mFullIccId = null;
+        mEfCacheInUse = false;
         // -1 means no EF_SPN found; treat accordingly.
         mSpnDisplayCondition = -1;
         mEfMWIS = null;
@@ -600,6 +638,16 @@ public class SIMRecords extends IccRecords {
     @Override
     public void onRefresh(boolean fileChanged, int[] fileList) {
         if (fileChanged) {
+            if (mEfCache != null) {
+                if (fileList != null) {
+                    for (int efid : fileList) {
+                        mEfCache.invalidate(efid);
+                    }
+                } else {
+                    mEfCache.invalidateAll();
+                }
+                mEfCache.save();
+            }
             // A future optimization would be to inspect fileList and
             // only reload those files that we care about.  For now,
             // just re-fetch all SIM records that we cache.
@@ -635,6 +683,7 @@ public class SIMRecords extends IccRecords {
         byte data[];
 
         boolean isRecordLoadResponse = false;
+        boolean isEfRevalidated = false;
 
         if (mDestroyed.get()) {
             loge("Received message " + msg + "[" + msg.what + "] " +
@@ -642,6 +691,17 @@ public class SIMRecords extends IccRecords {
             return;
         }
 
+        if (getCachedEfIndex(msg.what) >= 0) {
+            boolean changed = updateEfCache(msg);
+            if (msg.arg1 == EF_CACHE_REVALIDATE) {
+                if (!changed) {
+                    // already handled from the cache
+                    return;
+                }
+                isEfRevalidated = true;
+            }
+        }
+
         try { switch (msg.what) {
             case EVENT_APP_READY:
                 onReady();
@@ -881,6 +941,7 @@ public class SIMRecords extends IccRecords {
                 data = (byte[])ar.result;
 
                 if (ar.exception != null) {
+                    loadCachedEfs(null);
                     break;
                 }
 
@@ -888,6 +949,7 @@ public class SIMRecords extends IccRecords {
                 mFullIccId = IccUtils.bchToString(data, 0, data.length);
 
                 log("iccid: " + SubscriptionInfo.givePrintableIccid(mFullIccId));
+                loadCachedEfs(mFullIccId);
 
             break;
 
@@ -1251,12 +1313,94 @@ public class SIMRecords extends IccRecords {
             logw("Exception parsing SIM record", exc);
         } finally {
             // Count up record load responses even if they are fails
-            if (isRecordLoadResponse) {
+            if (isEfRevalidated) {
+                // the SIM no longer matched the cache that was used
+                mEfCache.save();
+                if (getRecordsLoaded()) {
+                    onAllRecordsLoaded();
+                }
+            } else if (isRecordLoadResponse) {
                 onRecordLoaded();
             }
         }
     }
 
+    private static int getCachedEfIndex(int what) {
+        for (int i = 0; i < CACHED_EF_EVENTS.length; i++) {
+            if (CACHED_EF_EVENTS[i] == what) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the EFs in CACHED_EFS once the ICCID is known. Those cached for this SIM
+     * are handled from the cache right away and read again from the SIM without
+     * holding up the records loaded notification; the others are read as usual.
+     * Without an ICCID they are all read from the SIM and the cache is not touched,
+     * since it may hold the EFs of another SIM.
+     * @param iccId ICCID of the SIM, or null if it could not be read
+     */
+    private void loadCachedEfs(String iccId) {
+        mEfCacheInUse = mEfCache != null && iccId != null;
+        boolean cached = mEfCacheInUse && mEfCache.hasIccId(iccId);
+        if (mEfCacheInUse && !cached) {
+            mEfCache.setIccId(iccId);
+        }
+        if (DBG) log("loadCachedEfs cached=" + cached);
+
+        for (int i = 0; i < CACHED_EFS.length; i++) {
+            int efid = CACHED_EFS[i];
+            if (cached && mEfCache.contains(efid)) {
+                byte[] data = mEfCache.get(efid);
+                Message response = obtainMessage(CACHED_EF_EVENTS[i]);
+                AsyncResult.forMessage(response, data,
+                        data == null ? new IccFileNotFound(efid) : null);
+                response.sendToTarget();
+                mRecordsToLoad++;
+
+                loadCachedEf(efid, obtainMessage(CACHED_EF_EVENTS[i], EF_CACHE_REVALIDATE, 0));
+            } else {
+                loadCachedEf(efid, obtainMessage(CACHED_EF_EVENTS[i]));
+                mRecordsToLoad++;
+            }
+        }
+    }
+
+    private void loadCachedEf(int efid, Message response) {
+        if (efid == EF_PNN) {
+            mFh.loadEFLinearFixed(efid, 1, response);
+        } else {
+            mFh.loadEFTransparent(efid, response);
+        }
+    }
+
+    /**
+     * Stores the result of reading one of CACHED_EFS in the cache.
+     * @return whether the cached contents changed
+     */
+    private boolean updateEfCache(Message msg) {
+        if (!mEfCacheInUse || !(msg.obj instanceof AsyncResult)) {
+            return false;
+        }
+        AsyncResult ar = (AsyncResult) msg.obj;
+        int efid = CACHED_EFS[getCachedEfIndex(msg.what)];
+        boolean changed;
+        if (ar.exception == null) {
+            changed = mEfCache.put(efid, (byte[]) ar.result);
+        } else if (ar.exception instanceof IccFileNotFound) {
+            changed = mEfCache.put(efid, null);
+        } else {
+            // not known whether the EF changed, keep what is cached
+            changed = false;
+        }
+        if (changed && msg.arg1 == EF_CACHE_REVALIDATE) {
+            log("EF 0x" + Integer.toHexString(efid) + " changed since it was cached");
+        }
+        return changed;
+    }
+
     private class EfPlLoaded implements IccRecordLoaded {
         public String getEfName() {
             return "EF_PL";
@@ -1337,16 +1481,28 @@ public class SIMRecords extends IccRecords {
         switch (refreshResponse.refreshResult) {
             case IccRefreshResponse.REFRESH_RESULT_FILE_UPDATE:
                 if (DBG) log("handleSimRefresh with SIM_FILE_UPDATED");
+                if (mEfCache != null) {
+                    mEfCache.invalidate(refreshResponse.efId);
+                    mEfCache.save();
+                }
                 handleFileUpdate(refreshResponse.efId);
                 break;
             case IccRefreshResponse.REFRESH_RESULT_INIT:
                 if (DBG) log("handleSimRefresh with SIM_REFRESH_INIT");
+                if (mEfCache != null) {
+                    mEfCache.invalidateAll();
+                    mEfCache.save();
+                }
                 // need to reload all files (that we care about)
                 onIccRefreshInit();
                 break;
             case IccRefreshResponse.REFRESH_RESULT_RESET:
                 // Refresh reset is handled by the UiccCard object.
                 if (DBG) log("handleSimRefresh with SIM_REFRESH_RESET");
+                if (mEfCache != null) {
+                    mEfCache.invalidateAll();
+                    mEfCache.save();
+                }
                 break;
             default:
                 // unknown refresh operation
@@ -1455,6 +1611,10 @@ public class SIMRecords extends IccRecords {
     protected void onAllRecordsLoaded() {
         if (DBG) log("record load complete");
 
+        if (mEfCache != null) {
+            mEfCache.save();
+        }
+
         Resources resource = Resources.getSystem();
         if (resource.getBoolean(com.android.internal.R.bool.config_use_sim_language_file)) {
             setSimLanguage(mEfLi, mEfPl);
@@ -1575,6 +1735,7 @@ public class SIMRecords extends IccRecords {
         mCi.getIMSIForApp(mParentApp.getAid(), obtainMessage(EVENT_GET_IMSI_DONE));
         mRecordsToLoad++;
 
+        // The EFs in CACHED_EFS are read once the ICCID is known, see loadCachedEfs()
         mFh.loadEFTransparent(EF_ICCID, obtainMessage(EVENT_GET_ICCID_DONE));
         mRecordsToLoad++;
 
@@ -1588,9 +1749,6 @@ public class SIMRecords extends IccRecords {
         mFh.loadEFLinearFixed(EF_MBI, 1, obtainMessage(EVENT_GET_MBI_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_AD, obtainMessage(EVENT_GET_AD_DONE));
-        mRecordsToLoad++;
-
         // Record number is subscriber profile
         mFh.loadEFLinearFixed(EF_MWIS, 1, obtainMessage(EVENT_GET_MWIS_DONE));
         mRecordsToLoad++;
@@ -1611,27 +1769,6 @@ public class SIMRecords extends IccRecords {
 
         getSpnFsm(true, null);
 
-        mFh.loadEFTransparent(EF_SPDI, obtainMessage(EVENT_GET_SPDI_DONE));
-        mRecordsToLoad++;
-
-        mFh.loadEFLinearFixed(EF_PNN, 1, obtainMessage(EVENT_GET_PNN_DONE));
-        mRecordsToLoad++;
-
-        mFh.loadEFTransparent(EF_SST, obtainMessage(EVENT_GET_SST_DONE));
-        mRecordsToLoad++;
-
-        mFh.loadEFTransparent(EF_INFO_CPHS, obtainMessage(EVENT_GET_INFO_CPHS_DONE));
-        mRecordsToLoad++;
-
-        mFh.loadEFTransparent(EF_CSP_CPHS,obtainMessage(EVENT_GET_CSP_CPHS_DONE));
-        mRecordsToLoad++;
-
-        mFh.loadEFTransparent(EF_GID1, obtainMessage(EVENT_GET_GID1_DONE));
-        mRecordsToLoad++;
-
-        mFh.loadEFTransparent(EF_GID2, obtainMessage(EVENT_GET_GID2_DONE));
-        mRecordsToLoad++;
-
         loadEfLiAndEfPl();
 
         // XXX should seek instead of examining them all
@@ -1994,6 +2131,7 @@ public class SIMRecords extends IccRecords {
         pw.println(" mSpnState=" + mSpnState);
         pw.println(" mCphsInfo=" + mCphsInfo);
         pw.println(" mCspPlmnEnabled=" + mCspPlmnEnabled);
+        pw.println(" mEfCache size=" + (mEfCache != null ? mEfCache.size() : "disabled"));
         pw.println(" mEfMWIS[]=" + Arrays.toString(mEfMWIS));
         pw.println(" mEfCPHS_MWI[]=" + Arrays.toString(mEfCPHS_MWI));
         pw.println(" mEfCff[]=" + Arrays.toString(mEfCff));
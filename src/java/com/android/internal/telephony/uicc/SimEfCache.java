@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import android.telephony.Rlog;
+import android.text.TextUtils;
+import android.util.AtomicFile;
+import android.util.SparseArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The contents of the EFs of one SIM that rarely change, kept on disk so
+ * they can be used at boot before the SIM has been read.
+ *
+ * The file holds the EFs of the last SIM seen in a slot along with its
+ * ICCID; EFs are only returned for that ICCID. An EF the SIM does not have
+ * is kept as well, so a missing EF is not read again every boot either.
+ * Not thread safe, used from the SIMRecords handler.
+ *
+ * {@hide}
+ */
+class SimEfCache {
+    private static final String LOG_TAG = "SimEfCache";
+
+    private static final int VERSION = 1;
+    // length stored for an EF the SIM does not have
+    private static final int NOT_PRESENT = -1;
+    // EFs read here are at most a few hundred bytes
+    private static final int MAX_EF_BYTES = 4096;
+
+    private final AtomicFile mFile;
+    private boolean mLoaded;
+    private boolean mDirty;
+
+    private String mIccId;
+    // EF contents by file id, null for an EF the SIM does not have
+    private final SparseArray<byte[]> mEfs = new SparseArray<byte[]>();
+
+    SimEfCache(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            String iccId = in.readUTF();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int efid = in.readInt();
+                int length = in.readInt();
+                if (length == NOT_PRESENT) {
+                    mEfs.put(efid, null);
+                } else if (length >= 0 && length <= MAX_EF_BYTES) {
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+                    mEfs.put(efid, data);
+                } else {
+                    throw new IOException("bad length " + length + " for EF " + efid);
+                }
+            }
+            mIccId = TextUtils.isEmpty(iccId) ? null : iccId;
+        } catch (FileNotFoundException e) {
+            // Nothing cached yet
+        } catch (IOException e) {
+            Rlog.e(LOG_TAG, "Unable to read " + mFile.getBaseFile(), e);
+            mEfs.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether EFs are cached for the SIM with the ICCID
+     */
+    boolean hasIccId(String iccId) {
+        load();
+        return iccId != null && iccId.equals(mIccId);
+    }
+
+    /**
+     * Sets the SIM the cached EFs belong to, dropping them if it is a different one.
+     */
+    void setIccId(String iccId) {
+        load();
+        if (iccId == null || !iccId.equals(mIccId)) {
+            mIccId = iccId;
+            mEfs.clear();
+            mDirty = true;
+        }
+    }
+
+    /**
+     * @return whether the EF is cached, with its contents or as not present
+     */
+    boolean contains(int efid) {
+        load();
+        return mIccId != null && mEfs.indexOfKey(efid) >= 0;
+    }
+
+    /**
+     * @return the cached contents of the EF, or null if it is not present or not cached
+     */
+    byte[] get(int efid) {
+        load();
+        return mIccId != null ? mEfs.get(efid) : null;
+    }
+
+    /**
+     * Caches an EF of the current SIM.
+     * @param data contents of the EF, or null if the SIM does not have it
+     * @return whether this changed the cache
+     */
+    boolean put(int efid, byte[] data) {
+        load();
+        if (mIccId == null || (data != null && data.length > MAX_EF_BYTES)) {
+            return false;
+        }
+        int index = mEfs.indexOfKey(efid);
+        if (index >= 0 && Arrays.equals(mEfs.valueAt(index), data)) {
+            return false;
+        }
+        mEfs.put(efid, data);
+        mDirty = true;
+        return true;
+    }
+
+    /** Drops an EF, eg. when a SIM refresh reports it changed. */
+    void invalidate(int efid) {
+        load();
+        if (mEfs.indexOfKey(efid) >= 0) {
+            mEfs.delete(efid);
+            mDirty = true;
+        }
+    }
+
+    /** Drops all EFs, eg. when the SIM is refreshed. */
+    void invalidateAll() {
+        load();
+        if (mEfs.size() > 0) {
+            mEfs.clear();
+            mDirty = true;
+        }
+    }
+
+    /** Writes the cache to disk if it changed. */
+    void save() {
+        if (!mDirty) {
+            return;
+        }
+        mDirty = false;
+
+        FileOutputStream outfile = null;
+        try {
+            outfile = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outfile));
+            out.writeInt(VERSION);
+            out.writeUTF(mIccId != null ? mIccId : "");
+            out.writeInt(mEfs.size());
+            for (int i = 0; i < mEfs.size(); i++) {
+                byte[] data = mEfs.valueAt(i);
+                out.writeInt(mEfs.keyAt(i));
+                if (data == null) {
+                    out.writeInt(NOT_PRESENT);
+                } else {
+                    out.writeInt(data.length);
+                    out.write(data);
+                }
+            }
+            out.flush();
+            mFile.finishWrite(outfile);
+        } catch (IOException e) {
+            Rlog.e(LOG_TAG, "Unable to write " + mFile.getBaseFile(), e);
+            if (outfile != null) {
+                mFile.failWrite(outfile);
+            }
+        }
+    }
+
+    /** @return number of cached EFs */
+    int size() {
+        load();
+        return mIccId != null ? mEfs.size() : 0;
+    }
+}
@@ -26,6 +26,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 
@@ -979,11 +980,12 @@ public class PduComposer {
             int headerLength = attachment.getLength();
 
             int dataLength = 0; // Just for safety...
-            byte[] partData = part.getData();
+            ByteBuffer partData = part.getDataBuffer();
 
             if (partData != null) {
-                arraycopy(partData, 0, partData.length);
-                dataLength = partData.length;
+                dataLength = partData.remaining();
+                arraycopy(partData.array(), partData.arrayOffset() + partData.position(),
+                        dataLength);
             } else {
                 InputStream cr = null;
                 try {
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Cursor over a pdu byte array used by {@link PduParser}.
+ *
+ * It is a {@link ByteArrayInputStream} so that the protected parse helpers
+ * keep their signatures, but none of its methods are synchronized: a stream
+ * is only ever used by the parser that created it. It also gives direct
+ * access to the underlying array, so strings are copied out in one step and
+ * part data can be returned as slices of the pdu instead of copies.
+ */
+class PduDataStream extends ByteArrayInputStream {
+
+    PduDataStream(byte[] buf) {
+        super(buf);
+    }
+
+    PduDataStream(byte[] buf, int offset, int length) {
+        super(buf, offset, length);
+    }
+
+    @Override
+    public int read() {
+        return (pos < count) ? (buf[pos++] & 0xff) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (pos >= count) {
+            return -1;
+        }
+        int n = Math.min(len, count - pos);
+        if (n <= 0) {
+            return 0;
+        }
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        long k = Math.max(0, Math.min(n, count - pos));
+        pos += (int) k;
+        return k;
+    }
+
+    @Override
+    public int available() {
+        return count - pos;
+    }
+
+    @Override
+    public void mark(int readAheadLimit) {
+        mark = pos;
+    }
+
+    @Override
+    public void reset() {
+        pos = mark;
+    }
+
+    /**
+     * Return the next <code>length</code> bytes, or as many as are left, as a
+     * buffer sharing the pdu array, and advance past them.
+     */
+    ByteBuffer readSlice(int length) {
+        int n = Math.max(0, Math.min(length, count - pos));
+        ByteBuffer slice = ByteBuffer.wrap(buf, pos, n).slice();
+        pos += n;
+        return slice;
+    }
+
+    /**
+     * Return a cursor over the next <code>length</code> bytes, or as many as
+     * are left, sharing the pdu array, and advance past them.
+     */
+    PduDataStream readSubStream(int length) {
+        int n = Math.max(0, Math.min(length, count - pos));
+        PduDataStream sub = new PduDataStream(buf, pos, n);
+        pos += n;
+        return sub;
+    }
+
+    /**
+     * Read up to and including the next End-of-string octet.
+     *
+     * @param tokenOnly true to keep only TOKEN characters, false to keep only TEXT
+     * @return the kept characters, or null if there are none
+     */
+    byte[] readWapString(boolean tokenOnly) {
+        int start = pos;
+        int end = start;
+        boolean allValid = true;
+        while (end < count && buf[end] != 0) {
+            int ch = buf[end] & 0xff;
+            if (allValid && !(tokenOnly ? PduParser.isTokenCharacter(ch)
+                    : PduParser.isText(ch))) {
+                allValid = false;
+            }
+            end++;
+        }
+        // skip the End-of-string octet as well
+        pos = (end < count) ? end + 1 : end;
+
+        if (end == start) {
+            return null;
+        }
+        if (allValid) {
+            return Arrays.copyOfRange(buf, start, end);
+        }
+
+        // rare: drop the characters that are not allowed
+        byte[] out = new byte[end - start];
+        int n = 0;
+        for (int i = start; i < end; i++) {
+            int ch = buf[i] & 0xff;
+            if (tokenOnly ? PduParser.isTokenCharacter(ch) : PduParser.isText(ch)) {
+                out[n++] = buf[i];
+            }
+        }
+        return (n > 0) ? Arrays.copyOf(out, n) : null;
+    }
+}
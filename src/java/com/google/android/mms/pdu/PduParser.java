@@ -25,8 +25,14 @@ import com.google.android.mms.InvalidHeaderValueException;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class PduParser {
     /**
@@ -70,13 +76,14 @@ public class PduParser {
 
     /**
      * Store the "type" parameter in "Content-Type" header field.
+     * Kept per instance so that parsers on different threads do not interfere.
      */
-    private static byte[] mTypeParam = null;
+    private byte[] mTypeParam = null;
 
     /**
      * Store the "start" parameter in "Content-Type" header field.
      */
-    private static byte[] mStartParam = null;
+    private byte[] mStartParam = null;
 
     /**
      * The log tag.
@@ -97,7 +104,7 @@ public class PduParser {
      * @param parseContentDisposition whether to parse the Content-Disposition part header
      */
     public PduParser(byte[] pduDataStream, boolean parseContentDisposition) {
-        mPduDataStream = new ByteArrayInputStream(pduDataStream);
+        mPduDataStream = new PduDataStream(pduDataStream);
         mParseContentDisposition = parseContentDisposition;
     }
 
@@ -227,6 +234,40 @@ public class PduParser {
         }
     }
 
+    /**
+     * Parse a batch of pdus on the given executor. Each pdu is parsed by its own
+     * parser instance, so the result is the same as parsing them one after another.
+     *
+     * @param pdus pdu data to be parsed
+     * @param parseContentDisposition whether to parse the Content-Disposition part header
+     * @param executor executor to run the parsers on
+     * @return the parsed pdus in the same order as the input; an element is null
+     *         if that pdu could not be parsed.
+     * @throws InterruptedException if interrupted while waiting for the results
+     */
+    public static GenericPdu[] parseAll(byte[][] pdus, final boolean parseContentDisposition,
+            ExecutorService executor) throws InterruptedException {
+        ArrayList<Future<GenericPdu>> futures = new ArrayList<Future<GenericPdu>>(pdus.length);
+        for (final byte[] pdu : pdus) {
+            futures.add(executor.submit(new Callable<GenericPdu>() {
+                @Override
+                public GenericPdu call() {
+                    return new PduParser(pdu, parseContentDisposition).parse();
+                }
+            }));
+        }
+
+        GenericPdu[] results = new GenericPdu[pdus.length];
+        for (int i = 0; i < results.length; i++) {
+            try {
+                results[i] = futures.get(i).get();
+            } catch (ExecutionException e) {
+                Log.e(LOG_TAG, "parseAll: failed to parse pdu " + i, e.getCause());
+            }
+        }
+        return results;
+    }
+
     /**
      * Parse pdu headers.
      *
@@ -897,34 +938,45 @@ public class PduParser {
 
             /* get part's data */
             if (dataLength > 0) {
-                byte[] partData = new byte[dataLength];
                 String partContentType = new String(part.getContentType());
-                pduDataStream.read(partData, 0, dataLength);
+                byte[] partDataEncoding = part.getContentTransferEncoding();
                 if (partContentType.equalsIgnoreCase(ContentType.MULTIPART_ALTERNATIVE)) {
                     // parse "multipart/vnd.wap.multipart.alternative".
-                    PduBody childBody = parseParts(new ByteArrayInputStream(partData));
+                    PduBody childBody = parseParts(readSubStream(pduDataStream, dataLength));
                     // take the first part of children.
                     part = childBody.getPart(0);
+                } else if (null == partDataEncoding) {
+                    // "binary" is the default encoding.
+                    part.setDataBuffer(readData(pduDataStream, dataLength));
                 } else {
                     // Check Content-Transfer-Encoding.
-                    byte[] partDataEncoding = part.getContentTransferEncoding();
-                    if (null != partDataEncoding) {
-                        String encoding = new String(partDataEncoding);
-                        if (encoding.equalsIgnoreCase(PduPart.P_BASE64)) {
-                            // Decode "base64" into "binary".
-                            partData = Base64.decodeBase64(partData);
-                        } else if (encoding.equalsIgnoreCase(PduPart.P_QUOTED_PRINTABLE)) {
-                            // Decode "quoted-printable" into "binary".
-                            partData = QuotedPrintable.decodeQuotedPrintable(partData);
-                        } else {
-                            // "binary" is the default encoding.
+                    String encoding = new String(partDataEncoding);
+                    if (encoding.equalsIgnoreCase(PduPart.P_BASE64)) {
+                        // Decode "base64" into "binary".
+                        byte[] partData = new byte[dataLength];
+                        pduDataStream.read(partData, 0, dataLength);
+                        partData = Base64.decodeBase64(partData);
+                        if (null == partData) {
+                            log("Decode part data error!");
+                            return null;
                         }
+                        // the decoded array is already private to this part
+                        part.setDataBuffer(ByteBuffer.wrap(partData));
+                    } else if (encoding.equalsIgnoreCase(PduPart.P_QUOTED_PRINTABLE)) {
+                        // Decode "quoted-printable" into "binary".
+                        byte[] partData = new byte[dataLength];
+                        pduDataStream.read(partData, 0, dataLength);
+                        partData = QuotedPrintable.decodeQuotedPrintable(partData);
+                        if (null == partData) {
+                            log("Decode part data error!");
+                            return null;
+                        }
+                        // the decoded array is already private to this part
+                        part.setDataBuffer(ByteBuffer.wrap(partData));
+                    } else {
+                        // "binary" is the default encoding.
+                        part.setDataBuffer(readData(pduDataStream, dataLength));
                     }
-                    if (null == partData) {
-                        log("Decode part data error!");
-                        return null;
-                    }
-                    part.setData(partData);
                 }
             }
 
@@ -941,6 +993,41 @@ public class PduParser {
         return body;
     }
 
+    /**
+     * Read the next bytes of part data, sharing the pdu array when the stream is
+     * a {@link PduDataStream} and copying them otherwise.
+     *
+     * @param pduDataStream pdu data input stream
+     * @param length the number of bytes to read
+     * @return the data
+     */
+    private static ByteBuffer readData(ByteArrayInputStream pduDataStream, int length) {
+        if (pduDataStream instanceof PduDataStream) {
+            return ((PduDataStream) pduDataStream).readSlice(length);
+        }
+        byte[] data = new byte[length];
+        pduDataStream.read(data, 0, length);
+        return ByteBuffer.wrap(data);
+    }
+
+    /**
+     * Read the next bytes of part data as a stream of their own, sharing the pdu
+     * array when the stream is a {@link PduDataStream} and copying them otherwise.
+     *
+     * @param pduDataStream pdu data input stream
+     * @param length the number of bytes to read
+     * @return the stream over the data
+     */
+    private static ByteArrayInputStream readSubStream(ByteArrayInputStream pduDataStream,
+            int length) {
+        if (pduDataStream instanceof PduDataStream) {
+            return ((PduDataStream) pduDataStream).readSubStream(length);
+        }
+        byte[] data = new byte[length];
+        pduDataStream.read(data, 0, length);
+        return new ByteArrayInputStream(data);
+    }
+
     /**
      * Log status.
      *
@@ -1191,6 +1278,11 @@ public class PduParser {
     protected static byte[] getWapString(ByteArrayInputStream pduDataStream,
             int stringType) {
         assert(null != pduDataStream);
+        if (pduDataStream instanceof PduDataStream) {
+            // scan the pdu array directly instead of copying byte by byte
+            return ((PduDataStream) pduDataStream).readWapString(
+                    stringType == TYPE_TOKEN_STRING);
+        }
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         int temp = pduDataStream.read();
         assert(-1 != temp);
@@ -1759,7 +1851,7 @@ public class PduParser {
      * @return part position, THE_FIRST_PART when it's the
      * first one, THE_LAST_PART when it's the last one.
      */
-    private static int checkPartPosition(PduPart part) {
+    private int checkPartPosition(PduPart part) {
         assert(null != part);
         if ((null == mTypeParam) &&
                 (null == mStartParam)) {
@@ -19,6 +19,7 @@ package com.google.android.mms.pdu;
 
 import android.net.Uri;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -115,9 +116,9 @@ public class PduPart {
      private Uri mUri = null;
 
      /**
-      * Part data.
+      * Part data. Either a private copy or a slice of the pdu the part was parsed from.
       */
-     private byte[] mPartData = null;
+     private ByteBuffer mPartData = null;
 
      private static final String TAG = "PduPart";
 
@@ -138,8 +139,24 @@ public class PduPart {
             return;
         }
 
-         mPartData = new byte[data.length];
-         System.arraycopy(data, 0, mPartData, 0, data.length);
+         byte[] partData = new byte[data.length];
+         System.arraycopy(data, 0, partData, 0, data.length);
+         mPartData = ByteBuffer.wrap(partData);
+     }
+
+     /**
+      * Set part data without copying it. Used by the parser so that part data
+      * share the pdu array instead of duplicating it; the array backing
+      * <code>data</code> must not be modified afterwards.
+      *
+      * @param data the data, from its position to its limit
+      */
+     void setDataBuffer(ByteBuffer data) {
+         if (data == null) {
+             return;
+         }
+
+         mPartData = data.slice();
      }
 
      /**
@@ -152,17 +169,32 @@ public class PduPart {
             return null;
          }
 
-         byte[] byteArray = new byte[mPartData.length];
-         System.arraycopy(mPartData, 0, byteArray, 0, mPartData.length);
+         byte[] byteArray = new byte[mPartData.remaining()];
+         mPartData.duplicate().get(byteArray);
          return byteArray;
      }
 
+     /**
+      * @return The part data without copying it, or null if the data wasn't set
+      *         or the data is stored as Uri. The buffer is array backed and may
+      *         share the pdu array with other parts, so it must not be modified;
+      *         callers outside this package get a copy from {@link #getData}.
+      * @see #getData
+      */
+     ByteBuffer getDataBuffer() {
+         if (mPartData == null) {
+             return null;
+         }
+
+         return mPartData.duplicate();
+     }
+
     /**
      * @return The length of the data, if this object have data, else 0.
      */
      public int getDataLength() {
          if(mPartData != null){
-             return mPartData.length;
+             return mPartData.remaining();
          } else {
              return 0;
          }
@@ -26,15 +26,19 @@ import com.google.android.mms.util.PduCache;
 import com.google.android.mms.util.PduCacheEntry;
 import com.google.android.mms.util.SqliteWrapper;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteException;
 import android.drm.DrmManagerClient;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.provider.MediaStore;
 import android.provider.Telephony;
 import android.provider.Telephony.Mms;
@@ -56,9 +60,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
@@ -173,6 +179,27 @@ public class PduPersister {
         Part.TEXT
     };
 
+    // PART_PROJECTION followed by the message ID, for loading the parts of several messages
+    private static final String[] BULK_PART_PROJECTION = new String[] {
+        Part._ID,
+        Part.CHARSET,
+        Part.CONTENT_DISPOSITION,
+        Part.CONTENT_ID,
+        Part.CONTENT_LOCATION,
+        Part.CONTENT_TYPE,
+        Part.FILENAME,
+        Part.NAME,
+        Part.TEXT,
+        Part.MSG_ID
+    };
+
+    // The order the provider returns the parts of one message in when none is given. Both
+    // load(Uri) and load(Uri[]) use it so they build the same PduBody.
+    private static final String PART_SORT_ORDER = Part._ID;
+
+    /** Maximum number of messages loaded by one bulk query. */
+    private static final int BULK_LOAD_CHUNK_SIZE = 100;
+
     private static final int PART_COLUMN_ID                  = 0;
     private static final int PART_COLUMN_CHARSET             = 1;
     private static final int PART_COLUMN_CONTENT_DISPOSITION = 2;
@@ -182,6 +209,7 @@ public class PduPersister {
     private static final int PART_COLUMN_FILENAME            = 6;
     private static final int PART_COLUMN_NAME                = 7;
     private static final int PART_COLUMN_TEXT                = 8;
+    private static final int PART_COLUMN_MSG_ID              = 9;
 
     private static final HashMap<Uri, Integer> MESSAGE_BOX_MAP;
     // These map are used for convenience in persist() and load().
@@ -360,7 +388,7 @@ public class PduPersister {
     private PduPart[] loadParts(long msgId) throws MmsException {
         Cursor c = SqliteWrapper.query(mContext, mContentResolver,
                 Uri.parse("content://mms/" + msgId + "/part"),
-                PART_PROJECTION, null, null, null);
+                PART_PROJECTION, null, null, PART_SORT_ORDER);
 
         PduPart[] parts = null;
 
@@ -376,110 +404,116 @@ public class PduPersister {
             int partIdx = 0;
             parts = new PduPart[partCount];
             while (c.moveToNext()) {
-                PduPart part = new PduPart();
-                Integer charset = getIntegerFromPartColumn(
-                        c, PART_COLUMN_CHARSET);
-                if (charset != null) {
-                    part.setCharset(charset);
-                }
+                parts[partIdx++] = loadPart(c);
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
 
-                byte[] contentDisposition = getByteArrayFromPartColumn(
-                        c, PART_COLUMN_CONTENT_DISPOSITION);
-                if (contentDisposition != null) {
-                    part.setContentDisposition(contentDisposition);
-                }
+        return parts;
+    }
 
-                byte[] contentId = getByteArrayFromPartColumn(
-                        c, PART_COLUMN_CONTENT_ID);
-                if (contentId != null) {
-                    part.setContentId(contentId);
-                }
+    /**
+     * Load the part at the current position of a cursor over {@link #PART_PROJECTION}.
+     */
+    private PduPart loadPart(Cursor c) throws MmsException {
+        PduPart part = new PduPart();
+        Integer charset = getIntegerFromPartColumn(
+                c, PART_COLUMN_CHARSET);
+        if (charset != null) {
+            part.setCharset(charset);
+        }
 
-                byte[] contentLocation = getByteArrayFromPartColumn(
-                        c, PART_COLUMN_CONTENT_LOCATION);
-                if (contentLocation != null) {
-                    part.setContentLocation(contentLocation);
-                }
+        byte[] contentDisposition = getByteArrayFromPartColumn(
+                c, PART_COLUMN_CONTENT_DISPOSITION);
+        if (contentDisposition != null) {
+            part.setContentDisposition(contentDisposition);
+        }
 
-                byte[] contentType = getByteArrayFromPartColumn(
-                        c, PART_COLUMN_CONTENT_TYPE);
-                if (contentType != null) {
-                    part.setContentType(contentType);
-                } else {
-                    throw new MmsException("Content-Type must be set.");
-                }
+        byte[] contentId = getByteArrayFromPartColumn(
+                c, PART_COLUMN_CONTENT_ID);
+        if (contentId != null) {
+            part.setContentId(contentId);
+        }
 
-                byte[] fileName = getByteArrayFromPartColumn(
-                        c, PART_COLUMN_FILENAME);
-                if (fileName != null) {
-                    part.setFilename(fileName);
-                }
+        byte[] contentLocation = getByteArrayFromPartColumn(
+                c, PART_COLUMN_CONTENT_LOCATION);
+        if (contentLocation != null) {
+            part.setContentLocation(contentLocation);
+        }
 
-                byte[] name = getByteArrayFromPartColumn(
-                        c, PART_COLUMN_NAME);
-                if (name != null) {
-                    part.setName(name);
-                }
+        byte[] contentType = getByteArrayFromPartColumn(
+                c, PART_COLUMN_CONTENT_TYPE);
+        if (contentType != null) {
+            part.setContentType(contentType);
+        } else {
+            throw new MmsException("Content-Type must be set.");
+        }
+
+        byte[] fileName = getByteArrayFromPartColumn(
+                c, PART_COLUMN_FILENAME);
+        if (fileName != null) {
+            part.setFilename(fileName);
+        }
+
+        byte[] name = getByteArrayFromPartColumn(
+                c, PART_COLUMN_NAME);
+        if (name != null) {
+            part.setName(name);
+        }
+
+        // Construct a Uri for this part.
+        long partId = c.getLong(PART_COLUMN_ID);
+        Uri partURI = Uri.parse("content://mms/part/" + partId);
+        part.setDataUri(partURI);
+
+        // For images/audio/video, we won't keep their data in Part
+        // because their renderer accept Uri as source.
+        String type = toIsoString(contentType);
+        if (!ContentType.isImageType(type)
+                && !ContentType.isAudioType(type)
+                && !ContentType.isVideoType(type)) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            InputStream is = null;
+
+            // Store simple string values directly in the database instead of an
+            // external file.  This makes the text searchable and retrieval slightly
+            // faster.
+            if (ContentType.TEXT_PLAIN.equals(type) || ContentType.APP_SMIL.equals(type)
+                    || ContentType.TEXT_HTML.equals(type)) {
+                String text = c.getString(PART_COLUMN_TEXT);
+                byte [] blob = new EncodedStringValue(text != null ? text : "")
+                    .getTextString();
+                baos.write(blob, 0, blob.length);
+            } else {
 
-                // Construct a Uri for this part.
-                long partId = c.getLong(PART_COLUMN_ID);
-                Uri partURI = Uri.parse("content://mms/part/" + partId);
-                part.setDataUri(partURI);
-
-                // For images/audio/video, we won't keep their data in Part
-                // because their renderer accept Uri as source.
-                String type = toIsoString(contentType);
-                if (!ContentType.isImageType(type)
-                        && !ContentType.isAudioType(type)
-                        && !ContentType.isVideoType(type)) {
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    InputStream is = null;
-
-                    // Store simple string values directly in the database instead of an
-                    // external file.  This makes the text searchable and retrieval slightly
-                    // faster.
-                    if (ContentType.TEXT_PLAIN.equals(type) || ContentType.APP_SMIL.equals(type)
-                            || ContentType.TEXT_HTML.equals(type)) {
-                        String text = c.getString(PART_COLUMN_TEXT);
-                        byte [] blob = new EncodedStringValue(text != null ? text : "")
-                            .getTextString();
-                        baos.write(blob, 0, blob.length);
-                    } else {
+                try {
+                    is = mContentResolver.openInputStream(partURI);
 
+                    byte[] buffer = new byte[256];
+                    int len = is.read(buffer);
+                    while (len >= 0) {
+                        baos.write(buffer, 0, len);
+                        len = is.read(buffer);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to load part data", e);
+                    throw new MmsException(e);
+                } finally {
+                    if (is != null) {
                         try {
-                            is = mContentResolver.openInputStream(partURI);
-
-                            byte[] buffer = new byte[256];
-                            int len = is.read(buffer);
-                            while (len >= 0) {
-                                baos.write(buffer, 0, len);
-                                len = is.read(buffer);
-                            }
+                            is.close();
                         } catch (IOException e) {
-                            Log.e(TAG, "Failed to load part data", e);
-                            c.close();
-                            throw new MmsException(e);
-                        } finally {
-                            if (is != null) {
-                                try {
-                                    is.close();
-                                } catch (IOException e) {
-                                    Log.e(TAG, "Failed to close stream", e);
-                                } // Ignore
-                            }
-                        }
+                            Log.e(TAG, "Failed to close stream", e);
+                        } // Ignore
                     }
-                    part.setData(baos.toByteArray());
                 }
-                parts[partIdx++] = part;
-            }
-        } finally {
-            if (c != null) {
-                c.close();
             }
+            part.setData(baos.toByteArray());
         }
-
-        return parts;
+        return part;
     }
 
     private void loadAddress(long msgId, PduHeaders headers) {
@@ -532,13 +566,13 @@ public class PduPersister {
         int msgBox = 0;
         long threadId = -1;
         try {
-            synchronized(PDU_CACHE_INSTANCE) {
+            synchronized(PDU_CACHE_INSTANCE.getLock(uri)) {
                 if (PDU_CACHE_INSTANCE.isUpdating(uri)) {
                     if (LOCAL_LOGV) {
                         Log.v(TAG, "load: " + uri + " blocked by isUpdating()");
                     }
                     try {
-                        PDU_CACHE_INSTANCE.wait();
+                        PDU_CACHE_INSTANCE.getLock(uri).wait();
                     } catch (InterruptedException e) {
                         Log.e(TAG, "load: ", e);
                     }
@@ -555,7 +589,6 @@ public class PduPersister {
             Cursor c = SqliteWrapper.query(mContext, mContentResolver, uri,
                     PDU_PROJECTION, null, null, null);
             PduHeaders headers = new PduHeaders();
-            Set<Entry<Integer, Integer>> set;
             long msgId = ContentUris.parseId(uri);
 
             try {
@@ -565,30 +598,7 @@ public class PduPersister {
 
                 msgBox = c.getInt(PDU_COLUMN_MESSAGE_BOX);
                 threadId = c.getLong(PDU_COLUMN_THREAD_ID);
-
-                set = ENCODED_STRING_COLUMN_INDEX_MAP.entrySet();
-                for (Entry<Integer, Integer> e : set) {
-                    setEncodedStringValueToHeaders(
-                            c, e.getValue(), headers, e.getKey());
-                }
-
-                set = TEXT_STRING_COLUMN_INDEX_MAP.entrySet();
-                for (Entry<Integer, Integer> e : set) {
-                    setTextStringToHeaders(
-                            c, e.getValue(), headers, e.getKey());
-                }
-
-                set = OCTET_COLUMN_INDEX_MAP.entrySet();
-                for (Entry<Integer, Integer> e : set) {
-                    setOctetToHeaders(
-                            c, e.getValue(), headers, e.getKey());
-                }
-
-                set = LONG_COLUMN_INDEX_MAP.entrySet();
-                for (Entry<Integer, Integer> e : set) {
-                    setLongToHeaders(
-                            c, e.getValue(), headers, e.getKey());
-                }
+                loadHeaders(c, headers);
             } finally {
                 if (c != null) {
                     c.close();
@@ -619,7 +629,243 @@ public class PduPersister {
                 }
             }
 
-            switch (msgType) {
+            pdu = createPdu(msgType, headers, body);
+        } finally {
+            synchronized(PDU_CACHE_INSTANCE.getLock(uri)) {
+                if (pdu != null) {
+                    assert(PDU_CACHE_INSTANCE.get(uri) == null);
+                    // Update the cache entry with the real info
+                    cacheEntry = new PduCacheEntry(pdu, msgBox, threadId);
+                    PDU_CACHE_INSTANCE.put(uri, cacheEntry);
+                }
+                PDU_CACHE_INSTANCE.setUpdating(uri, false);
+                // tell anybody waiting on this entry to go ahead
+                PDU_CACHE_INSTANCE.getLock(uri).notifyAll();
+            }
+        }
+        return pdu;
+    }
+
+    /**
+     * Load several PDUs from storage. The messages that are not cached are loaded with one
+     * query for their headers and one for their parts per {@link #BULK_LOAD_CHUNK_SIZE}
+     * messages, plus one address query per message, instead of three queries per message.
+     *
+     * @param uris The Uris of the PDUs to be loaded.
+     * @return The PDUs, in the order of <code>uris</code>. An element is null if the message
+     *         does not exist or could not be loaded.
+     * @throws MmsException One of the uris does not name a message.
+     */
+    public GenericPdu[] load(Uri[] uris) throws MmsException {
+        GenericPdu[] pdus = new GenericPdu[uris.length];
+        int[] msgBoxes = new int[uris.length];
+        long[] threadIds = new long[uris.length];
+        long[] msgIds = new long[uris.length];
+        for (int i = 0; i < uris.length; i++) {
+            try {
+                msgIds[i] = ContentUris.parseId(uris[i]);
+            } catch (NumberFormatException e) {
+                msgIds[i] = -1L;
+            }
+            if (msgIds[i] == -1L) {
+                throw new MmsException("Bad uri: " + uris[i]);
+            }
+        }
+
+        // Position of each message loaded by this call, by message ID.
+        HashMap<Long, Integer> positions = new HashMap<Long, Integer>();
+        // Messages being loaded or updated by someone else, or listed twice.
+        ArrayList<Integer> deferred = new ArrayList<Integer>();
+        try {
+            for (int i = 0; i < uris.length; i++) {
+                Uri uri = uris[i];
+                synchronized(PDU_CACHE_INSTANCE.getLock(uri)) {
+                    PduCacheEntry cacheEntry = PDU_CACHE_INSTANCE.get(uri);
+                    if (cacheEntry != null) {
+                        pdus[i] = cacheEntry.getPdu();
+                    } else if (PDU_CACHE_INSTANCE.isUpdating(uri)
+                            || positions.containsKey(msgIds[i])) {
+                        deferred.add(i);
+                    } else {
+                        PDU_CACHE_INSTANCE.setUpdating(uri, true);
+                        positions.put(msgIds[i], i);
+                    }
+                }
+            }
+
+            ArrayList<Long> ids = new ArrayList<Long>(positions.keySet());
+            for (int start = 0; start < ids.size(); start += BULK_LOAD_CHUNK_SIZE) {
+                List<Long> chunk = ids.subList(start,
+                        Math.min(ids.size(), start + BULK_LOAD_CHUNK_SIZE));
+                loadChunk(chunk, positions, pdus, msgBoxes, threadIds);
+            }
+        } finally {
+            for (int i : positions.values()) {
+                Uri uri = uris[i];
+                synchronized(PDU_CACHE_INSTANCE.getLock(uri)) {
+                    if (pdus[i] != null) {
+                        PDU_CACHE_INSTANCE.put(uri,
+                                new PduCacheEntry(pdus[i], msgBoxes[i], threadIds[i]));
+                    }
+                    PDU_CACHE_INSTANCE.setUpdating(uri, false);
+                    PDU_CACHE_INSTANCE.getLock(uri).notifyAll();
+                }
+            }
+        }
+
+        for (int i : deferred) {
+            Integer first = positions.get(msgIds[i]);
+            if (first != null) {
+                pdus[i] = pdus[first];
+                continue;
+            }
+            try {
+                pdus[i] = load(uris[i]);
+            } catch (MmsException e) {
+                Log.e(TAG, "load: failed to load " + uris[i], e);
+            }
+        }
+        return pdus;
+    }
+
+    /**
+     * Load the headers, addresses and parts of a chunk of messages.
+     */
+    private void loadChunk(List<Long> ids, HashMap<Long, Integer> positions,
+            GenericPdu[] pdus, int[] msgBoxes, long[] threadIds) {
+        String inIds = " IN (" + TextUtils.join(",", ids) + ")";
+        HashMap<Long, PduHeaders> headersById = new HashMap<Long, PduHeaders>(ids.size());
+
+        Cursor c = SqliteWrapper.query(mContext, mContentResolver, Mms.CONTENT_URI,
+                PDU_PROJECTION, Mms._ID + inIds, null, null);
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                long msgId = c.getLong(PDU_COLUMN_ID);
+                Integer i = positions.get(msgId);
+                if (i == null) {
+                    continue;
+                }
+                PduHeaders headers = new PduHeaders();
+                try {
+                    loadHeaders(c, headers);
+                } catch (InvalidHeaderValueException e) {
+                    Log.e(TAG, "loadChunk: bad header in message " + msgId, e);
+                    continue;
+                }
+                msgBoxes[i] = c.getInt(PDU_COLUMN_MESSAGE_BOX);
+                threadIds[i] = c.getLong(PDU_COLUMN_THREAD_ID);
+                headersById.put(msgId, headers);
+            }
+        } finally {
+            c.close();
+        }
+
+        // For PDU which type is M_retrieve.conf or Send.req, we should
+        // load multiparts and put them into the body of the PDU.
+        ArrayList<Long> withParts = new ArrayList<Long>();
+        for (Entry<Long, PduHeaders> e : headersById.entrySet()) {
+            int msgType = e.getValue().getOctet(PduHeaders.MESSAGE_TYPE);
+            if ((msgType == PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF)
+                    || (msgType == PduHeaders.MESSAGE_TYPE_SEND_REQ)) {
+                withParts.add(e.getKey());
+            }
+        }
+        HashMap<Long, PduBody> bodies = new HashMap<Long, PduBody>(withParts.size());
+        HashSet<Long> failed = new HashSet<Long>();
+        if (!withParts.isEmpty()) {
+            c = SqliteWrapper.query(mContext, mContentResolver,
+                    Uri.parse("content://mms/part"), BULK_PART_PROJECTION,
+                    Part.MSG_ID + " IN (" + TextUtils.join(",", withParts) + ")", null,
+                    Part.MSG_ID + "," + PART_SORT_ORDER);
+            if (c == null) {
+                return;
+            }
+            try {
+                while (c.moveToNext()) {
+                    long msgId = c.getLong(PART_COLUMN_MSG_ID);
+                    if (failed.contains(msgId)) {
+                        continue;
+                    }
+                    PduBody body = bodies.get(msgId);
+                    if (body == null) {
+                        body = new PduBody();
+                        bodies.put(msgId, body);
+                    }
+                    try {
+                        body.addPart(loadPart(c));
+                    } catch (MmsException e) {
+                        Log.e(TAG, "loadChunk: failed to load a part of message " + msgId, e);
+                        failed.add(msgId);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        for (Entry<Long, PduHeaders> e : headersById.entrySet()) {
+            long msgId = e.getKey();
+            if (failed.contains(msgId)) {
+                continue;
+            }
+            PduHeaders headers = e.getValue();
+            // The provider only lists the addresses of one message at a time.
+            loadAddress(msgId, headers);
+
+            PduBody body = bodies.get(msgId);
+            try {
+                pdus[positions.get(msgId)] = createPdu(headers.getOctet(PduHeaders.MESSAGE_TYPE),
+                        headers, (body != null) ? body : new PduBody());
+            } catch (MmsException ex) {
+                Log.e(TAG, "loadChunk: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Load the header columns at the current position of a cursor over
+     * {@link #PDU_PROJECTION}.
+     */
+    private void loadHeaders(Cursor c, PduHeaders headers) throws InvalidHeaderValueException {
+        Set<Entry<Integer, Integer>> set;
+
+        set = ENCODED_STRING_COLUMN_INDEX_MAP.entrySet();
+        for (Entry<Integer, Integer> e : set) {
+            setEncodedStringValueToHeaders(
+                    c, e.getValue(), headers, e.getKey());
+        }
+
+        set = TEXT_STRING_COLUMN_INDEX_MAP.entrySet();
+        for (Entry<Integer, Integer> e : set) {
+            setTextStringToHeaders(
+                    c, e.getValue(), headers, e.getKey());
+        }
+
+        set = OCTET_COLUMN_INDEX_MAP.entrySet();
+        for (Entry<Integer, Integer> e : set) {
+            setOctetToHeaders(
+                    c, e.getValue(), headers, e.getKey());
+        }
+
+        set = LONG_COLUMN_INDEX_MAP.entrySet();
+        for (Entry<Integer, Integer> e : set) {
+            setLongToHeaders(
+                    c, e.getValue(), headers, e.getKey());
+        }
+    }
+
+    /**
+     * Create the PDU object for a message type.
+     *
+     * @throws MmsException The message type is not supported.
+     */
+    private static GenericPdu createPdu(int msgType, PduHeaders headers, PduBody body)
+            throws MmsException {
+        GenericPdu pdu = null;
+        switch (msgType) {
             case PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND:
                 pdu = new NotificationInd(headers);
                 break;
@@ -666,18 +912,6 @@ public class PduPersister {
             default:
                 throw new MmsException(
                         "Unrecognized PDU type: " + Integer.toHexString(msgType));
-            }
-        } finally {
-            synchronized(PDU_CACHE_INSTANCE) {
-                if (pdu != null) {
-                    assert(PDU_CACHE_INSTANCE.get(uri) == null);
-                    // Update the cache entry with the real info
-                    cacheEntry = new PduCacheEntry(pdu, msgBox, threadId);
-                    PDU_CACHE_INSTANCE.put(uri, cacheEntry);
-                }
-                PDU_CACHE_INSTANCE.setUpdating(uri, false);
-                PDU_CACHE_INSTANCE.notifyAll(); // tell anybody waiting on this entry to go ahead
-            }
         }
         return pdu;
     }
@@ -701,31 +935,44 @@ public class PduPersister {
         return part.getContentType() == null ? null : toIsoString(part.getContentType());
     }
 
-    public Uri persistPart(PduPart part, long msgId, HashMap<Uri, InputStream> preOpenedFiles)
-            throws MmsException {
-        Uri uri = Uri.parse("content://mms/" + msgId + "/part");
-        ContentValues values = new ContentValues(8);
+    /**
+     * @return The MIME type to store for a part.
+     * @throws MmsException The part has no MIME type.
+     */
+    private static String getPartContentTypeToPersist(PduPart part) throws MmsException {
+        String contentType = getPartContentType(part);
+        if (contentType == null) {
+            throw new MmsException("MIME type of the part must be set.");
+        }
+        // There is no "image/jpg" in Android (and it's an invalid mimetype).
+        // Change it to "image/jpeg"
+        if (ContentType.IMAGE_JPG.equals(contentType)) {
+            contentType = ContentType.IMAGE_JPEG;
+        }
+        return contentType;
+    }
+
+    private static boolean isTextContentType(String contentType) {
+        return ContentType.TEXT_PLAIN.equals(contentType)
+                || ContentType.APP_SMIL.equals(contentType)
+                || ContentType.TEXT_HTML.equals(contentType);
+    }
+
+    /**
+     * @return The part table row of a part, without its data.
+     */
+    private static ContentValues getPartValues(PduPart part, String contentType) {
+        ContentValues values = new ContentValues(9);
 
         int charset = part.getCharset();
         if (charset != 0 ) {
             values.put(Part.CHARSET, charset);
         }
 
-        String contentType = getPartContentType(part);
-        if (contentType != null) {
-            // There is no "image/jpg" in Android (and it's an invalid mimetype).
-            // Change it to "image/jpeg"
-            if (ContentType.IMAGE_JPG.equals(contentType)) {
-                contentType = ContentType.IMAGE_JPEG;
-            }
-
-            values.put(Part.CONTENT_TYPE, contentType);
-            // To ensure the SMIL part is always the first part.
-            if (ContentType.APP_SMIL.equals(contentType)) {
-                values.put(Part.SEQ, -1);
-            }
-        } else {
-            throw new MmsException("MIME type of the part must be set.");
+        values.put(Part.CONTENT_TYPE, contentType);
+        // To ensure the SMIL part is always the first part.
+        if (ContentType.APP_SMIL.equals(contentType)) {
+            values.put(Part.SEQ, -1);
         }
 
         if (part.getFilename() != null) {
@@ -738,21 +985,25 @@ public class PduPersister {
             values.put(Part.NAME, name);
         }
 
-        Object value = null;
         if (part.getContentDisposition() != null) {
-            value = toIsoString(part.getContentDisposition());
-            values.put(Part.CONTENT_DISPOSITION, (String) value);
+            values.put(Part.CONTENT_DISPOSITION, toIsoString(part.getContentDisposition()));
         }
 
         if (part.getContentId() != null) {
-            value = toIsoString(part.getContentId());
-            values.put(Part.CONTENT_ID, (String) value);
+            values.put(Part.CONTENT_ID, toIsoString(part.getContentId()));
         }
 
         if (part.getContentLocation() != null) {
-            value = toIsoString(part.getContentLocation());
-            values.put(Part.CONTENT_LOCATION, (String) value);
+            values.put(Part.CONTENT_LOCATION, toIsoString(part.getContentLocation()));
         }
+        return values;
+    }
+
+    public Uri persistPart(PduPart part, long msgId, HashMap<Uri, InputStream> preOpenedFiles)
+            throws MmsException {
+        Uri uri = Uri.parse("content://mms/" + msgId + "/part");
+        String contentType = getPartContentTypeToPersist(part);
+        ContentValues values = getPartValues(part, contentType);
 
         Uri res = SqliteWrapper.insert(mContext, mContentResolver, uri, values);
         if (res == null) {
@@ -791,15 +1042,15 @@ public class PduPersister {
         String path = null;
 
         try {
-            byte[] data = part.getData();
-            if (ContentType.TEXT_PLAIN.equals(contentType)
-                    || ContentType.APP_SMIL.equals(contentType)
-                    || ContentType.TEXT_HTML.equals(contentType)) {
+            // parsed parts share the pdu array, write them out without copying
+            ByteBuffer data = part.getDataBuffer();
+            if (isTextContentType(contentType)) {
+                byte[] text = part.getData();
                 ContentValues cv = new ContentValues();
-                if (data == null) {
-                    data = new String("").getBytes(CharacterSets.DEFAULT_CHARSET_NAME);
+                if (text == null) {
+                    text = new String("").getBytes(CharacterSets.DEFAULT_CHARSET_NAME);
                 }
-                cv.put(Telephony.Mms.Part.TEXT, new EncodedStringValue(data).getString());
+                cv.put(Telephony.Mms.Part.TEXT, new EncodedStringValue(text).getString());
                 if (mContentResolver.update(uri, cv, null, null) != 1) {
                     throw new MmsException("unable to update " + uri.toString());
                 }
@@ -873,10 +1124,12 @@ public class PduPersister {
                         Log.v(TAG, "Saving data to: " + uri);
                     }
                     if (!isDrm) {
-                        os.write(data);
+                        os.write(data.array(), data.arrayOffset() + data.position(),
+                                data.remaining());
                     } else {
                         dataUri = uri;
-                        byte[] convertedData = drmConvertSession.convert(data, data.length);
+                        byte[] bytes = part.getData();
+                        byte[] convertedData = drmConvertSession.convert(bytes, bytes.length);
                         if (convertedData != null) {
                             os.write(convertedData, 0, convertedData.length);
                         } else {
@@ -985,7 +1238,7 @@ public class PduPersister {
      * @throws MmsException Bad URI or updating failed.
      */
     public void updateHeaders(Uri uri, SendReq sendReq) {
-        synchronized(PDU_CACHE_INSTANCE) {
+        synchronized(PDU_CACHE_INSTANCE.getLock(uri)) {
             // If the cache item is getting updated, wait until it's done updating before
             // purging it.
             if (PDU_CACHE_INSTANCE.isUpdating(uri)) {
@@ -993,7 +1246,7 @@ public class PduPersister {
                     Log.v(TAG, "updateHeaders: " + uri + " blocked by isUpdating()");
                 }
                 try {
-                    PDU_CACHE_INSTANCE.wait();
+                    PDU_CACHE_INSTANCE.getLock(uri).wait();
                 } catch (InterruptedException e) {
                     Log.e(TAG, "updateHeaders: ", e);
                 }
@@ -1137,7 +1390,7 @@ public class PduPersister {
         // Only update the data when:
         // 1. New binary data supplied or
         // 2. The Uri of the part is different from the current one.
-        if ((part.getData() != null)
+        if ((part.getDataBuffer() != null)
                 || (uri != part.getDataUri())) {
             persistData(part, uri, contentType, preOpenedFiles);
         }
@@ -1155,13 +1408,13 @@ public class PduPersister {
             throws MmsException {
         try {
             PduCacheEntry cacheEntry;
-            synchronized(PDU_CACHE_INSTANCE) {
+            synchronized(PDU_CACHE_INSTANCE.getLock(uri)) {
                 if (PDU_CACHE_INSTANCE.isUpdating(uri)) {
                     if (LOCAL_LOGV) {
                         Log.v(TAG, "updateParts: " + uri + " blocked by isUpdating()");
                     }
                     try {
-                        PDU_CACHE_INSTANCE.wait();
+                        PDU_CACHE_INSTANCE.getLock(uri).wait();
                     } catch (InterruptedException e) {
                         Log.e(TAG, "updateParts: ", e);
                     }
@@ -1218,9 +1471,9 @@ public class PduPersister {
                 updatePart(e.getKey(), e.getValue(), preOpenedFiles);
             }
         } finally {
-            synchronized(PDU_CACHE_INSTANCE) {
+            synchronized(PDU_CACHE_INSTANCE.getLock(uri)) {
                 PDU_CACHE_INSTANCE.setUpdating(uri, false);
-                PDU_CACHE_INSTANCE.notifyAll();
+                PDU_CACHE_INSTANCE.getLock(uri).notifyAll();
             }
         }
     }
@@ -1259,7 +1512,7 @@ public class PduPersister {
                     + "content://mms/drafts, content://mms/outbox, "
                     + "content://mms/temp.");
         }
-        synchronized(PDU_CACHE_INSTANCE) {
+        synchronized(PDU_CACHE_INSTANCE.getLock(uri)) {
             // If the cache item is getting updated, wait until it's done updating before
             // purging it.
             if (PDU_CACHE_INSTANCE.isUpdating(uri)) {
@@ -1267,7 +1520,7 @@ public class PduPersister {
                     Log.v(TAG, "persist: " + uri + " blocked by isUpdating()");
                 }
                 try {
-                    PDU_CACHE_INSTANCE.wait();
+                    PDU_CACHE_INSTANCE.getLock(uri).wait();
                 } catch (InterruptedException e) {
                     Log.e(TAG, "persist1: ", e);
                 }
@@ -1400,7 +1653,6 @@ public class PduPersister {
                 for (int i = 0; i < partsNum; i++) {
                     PduPart part = body.getPart(i);
                     messageSize += part.getDataLength();
-                    persistPart(part, dummyId, preOpenedFiles);
 
                     // If we've got anything besides text/plain or SMIL part, then we've got
                     // an mms message with some other type of attachment.
@@ -1410,6 +1662,7 @@ public class PduPersister {
                         textOnly = false;
                     }
                 }
+                persistParts(body, dummyId, preOpenedFiles);
             }
         }
         // Record whether this mms message is a simple plain text or not. This is a hint for the
@@ -1421,25 +1674,49 @@ public class PduPersister {
             values.put(Mms.MESSAGE_SIZE, messageSize);
         }
 
+        // Save the message, link the parts saved with the dummy ID to it and, if its ID is
+        // already known, save its addresses in one batch.
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        if (existingUri) {
+            ops.add(ContentProviderOperation.newUpdate(uri).withValues(values).build());
+        } else {
+            ops.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+        }
+        if ((body != null) && (body.getPartsNum() > 0)) {
+            ContentProviderOperation.Builder builder = ContentProviderOperation.newUpdate(
+                    Uri.parse("content://mms/" + dummyId + "/part"));
+            if (existingUri) {
+                builder.withValue(Part.MSG_ID, msgId);
+            } else {
+                // the ID of the row inserted by the first operation
+                builder.withValueBackReference(Part.MSG_ID, 0);
+            }
+            ops.add(builder.build());
+        }
+        if (existingUri) {
+            addAddressOperations(ops, msgId, addressMap);
+        }
+        ContentProviderResult[] results = applyBatch(ops);
+
         Uri res = null;
         if (existingUri) {
             res = uri;
-            SqliteWrapper.update(mContext, mContentResolver, res, values, null, null);
         } else {
-            res = SqliteWrapper.insert(mContext, mContentResolver, uri, values);
+            res = (results != null) ? results[0].uri : null;
             if (res == null) {
                 throw new MmsException("persist() failed: return null.");
             }
-            // Get the real ID of the PDU and update all parts which were
-            // saved with the dummy ID.
+            // Get the real ID of the PDU.
             msgId = ContentUris.parseId(res);
+
+            // Save address information.
+            ops = new ArrayList<ContentProviderOperation>();
+            addAddressOperations(ops, msgId, addressMap);
+            if (!ops.isEmpty()) {
+                applyBatch(ops);
+            }
         }
 
-        values = new ContentValues(1);
-        values.put(Part.MSG_ID, msgId);
-        SqliteWrapper.update(mContext, mContentResolver,
-                             Uri.parse("content://mms/" + dummyId + "/part"),
-                             values, null, null);
         // We should return the longest URI of the persisted PDU, for
         // example, if input URI is "content://mms/inbox" and the _ID of
         // persisted PDU is '8', we should return "content://mms/inbox/8"
@@ -1449,15 +1726,94 @@ public class PduPersister {
             res = Uri.parse(uri + "/" + msgId);
         }
 
-        // Save address information.
+        return res;
+    }
+
+    /**
+     * Persist the parts of a message with a single batch of inserts, then save the data of the
+     * parts that is not stored in the part table itself.
+     *
+     * @param body The parts to be persisted.
+     * @param msgId The ID, possibly a dummy one, of the message the parts belong to.
+     * @param preOpenedFiles if not null, a map of preopened InputStreams for the parts.
+     * @throws MmsException Failed to persist a part or its data.
+     */
+    private void persistParts(PduBody body, long msgId,
+            HashMap<Uri, InputStream> preOpenedFiles) throws MmsException {
+        int partsNum = body.getPartsNum();
+        if (partsNum == 0) {
+            return;
+        }
+
+        Uri uri = Uri.parse("content://mms/" + msgId + "/part");
+        String[] contentTypes = new String[partsNum];
+        ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(partsNum);
+        for (int i = 0; i < partsNum; i++) {
+            PduPart part = body.getPart(i);
+            contentTypes[i] = getPartContentTypeToPersist(part);
+            ContentValues values = getPartValues(part, contentTypes[i]);
+            if (isTextContentType(contentTypes[i])) {
+                // text is stored in the part table, save it with the row
+                byte[] data = part.getData();
+                values.put(Part.TEXT,
+                        (data != null) ? new EncodedStringValue(data).getString() : "");
+            }
+            ops.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+        }
+
+        ContentProviderResult[] results = applyBatch(ops);
+        for (int i = 0; i < partsNum; i++) {
+            Uri res = (results != null) ? results[i].uri : null;
+            if (res == null) {
+                throw new MmsException("Failed to persist part, return null.");
+            }
+            PduPart part = body.getPart(i);
+            if (!isTextContentType(contentTypes[i])) {
+                persistData(part, res, contentTypes[i], preOpenedFiles);
+            }
+            // After successfully store the data, we should update
+            // the dataUri of the part.
+            part.setDataUri(res);
+        }
+    }
+
+    private void addAddressOperations(ArrayList<ContentProviderOperation> ops, long msgId,
+            HashMap<Integer, EncodedStringValue[]> addressMap) {
+        Uri uri = Uri.parse("content://mms/" + msgId + "/addr");
         for (int addrType : ADDRESS_FIELDS) {
             EncodedStringValue[] array = addressMap.get(addrType);
-            if (array != null) {
-                persistAddress(msgId, addrType, array);
+            if (array == null) {
+                continue;
+            }
+            for (EncodedStringValue addr : array) {
+                ops.add(ContentProviderOperation.newInsert(uri)
+                        .withValue(Addr.ADDRESS, toIsoString(addr.getTextString()))
+                        .withValue(Addr.CHARSET, addr.getCharacterSet())
+                        .withValue(Addr.TYPE, addrType)
+                        .build());
             }
         }
+    }
 
-        return res;
+    /**
+     * Apply a batch of operations to the MMS provider in a single call. As with
+     * {@link SqliteWrapper#insert}, a SQLiteException is rethrown unless the database is
+     * low on memory.
+     *
+     * @return The results, or null if the database is low on memory.
+     * @throws MmsException An operation failed.
+     */
+    private ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> ops)
+            throws MmsException {
+        try {
+            return SqliteWrapper.applyBatch(mContext, mContentResolver,
+                    Mms.CONTENT_URI.getAuthority(), ops);
+        } catch (RemoteException e) {
+            throw new MmsException(e);
+        } catch (OperationApplicationException e) {
+            throw new MmsException(e);
+        }
     }
 
     /**
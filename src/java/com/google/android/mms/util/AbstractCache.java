@@ -20,7 +20,18 @@ package com.google.android.mms.util;
 import android.util.Log;
 
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 
+/**
+ * Cache bounded by number of entries and, optionally, by the estimated size of its values.
+ * When a bound is exceeded, entries chosen by the {@link EvictionPolicy} are evicted until the
+ * cache fits again.
+ *
+ * This class is not synchronized; subclasses that are shared between threads must synchronize
+ * every method, including {@link #get}, since a lookup updates the eviction order.
+ */
 public abstract class AbstractCache<K, V> {
     private static final String TAG = "AbstractCache";
     private static final boolean DEBUG = false;
@@ -28,10 +39,198 @@ public abstract class AbstractCache<K, V> {
 
     private static final int MAX_CACHED_ITEMS  = 500;
 
+    /** No limit on the estimated size of the cached values. */
+    public static final long NO_BYTE_LIMIT = -1;
+
     private final HashMap<K, CacheEntry<V>> mCacheMap;
+    private final EvictionPolicy<K> mPolicy;
+    private final int mMaxItems;
+    private final long mMaxBytes;
+    private long mSizeInBytes;
+
+    // Statistics
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+
+    /**
+     * Decides which entry is evicted when the cache is over its bounds.
+     */
+    public interface EvictionPolicy<K> {
+        /** A new key was added to the cache. */
+        void onInsert(K key);
+
+        /** An existing key was read. */
+        void onAccess(K key);
+
+        /** A key was removed from the cache. */
+        void onRemove(K key);
+
+        /** Returns the key to evict next, or null if the policy tracks no keys. */
+        K selectVictim();
+
+        /** All keys were removed from the cache. */
+        void clear();
+    }
+
+    /**
+     * Evicts the least recently used entry.
+     */
+    public static final class LruPolicy<K> implements EvictionPolicy<K> {
+        // access order, the eldest key is the least recently used one
+        private final LinkedHashMap<K, Boolean> mOrder =
+                new LinkedHashMap<K, Boolean>(16, 0.75f, true);
+
+        @Override
+        public void onInsert(K key) {
+            mOrder.put(key, Boolean.TRUE);
+        }
+
+        @Override
+        public void onAccess(K key) {
+            mOrder.get(key);
+        }
+
+        @Override
+        public void onRemove(K key) {
+            mOrder.remove(key);
+        }
+
+        @Override
+        public K selectVictim() {
+            Iterator<K> it = mOrder.keySet().iterator();
+            return it.hasNext() ? it.next() : null;
+        }
+
+        @Override
+        public void clear() {
+            mOrder.clear();
+        }
+    }
+
+    /**
+     * Evicts the least frequently used entry; among entries used equally often, the one that
+     * reached that count first. All operations are O(1) except selecting a victim right after the
+     * least used entry was removed, which is linear in the number of distinct counts.
+     */
+    public static final class LfuPolicy<K> implements EvictionPolicy<K> {
+        private final HashMap<K, Integer> mCounts = new HashMap<K, Integer>();
+        private final HashMap<Integer, LinkedHashSet<K>> mBuckets =
+                new HashMap<Integer, LinkedHashSet<K>>();
+        // lowest count with a non-empty bucket, or 0 if it has to be searched for
+        private int mMinCount;
+
+        @Override
+        public void onInsert(K key) {
+            mCounts.put(key, 1);
+            addToBucket(1, key);
+            mMinCount = 1;
+        }
+
+        @Override
+        public void onAccess(K key) {
+            Integer count = mCounts.get(key);
+            if (count == null || count == Integer.MAX_VALUE) {
+                return;
+            }
+            boolean emptied = removeFromBucket(count, key);
+            mCounts.put(key, count + 1);
+            addToBucket(count + 1, key);
+            if (emptied && count == mMinCount) {
+                mMinCount = count + 1;
+            }
+        }
+
+        @Override
+        public void onRemove(K key) {
+            Integer count = mCounts.remove(key);
+            if (count != null && removeFromBucket(count, key) && count == mMinCount) {
+                mMinCount = 0;
+            }
+        }
+
+        @Override
+        public K selectVictim() {
+            if (mCounts.isEmpty()) {
+                return null;
+            }
+            if (mMinCount == 0) {
+                int min = Integer.MAX_VALUE;
+                for (Integer count : mBuckets.keySet()) {
+                    min = Math.min(min, count);
+                }
+                mMinCount = min;
+            }
+            return mBuckets.get(mMinCount).iterator().next();
+        }
+
+        @Override
+        public void clear() {
+            mCounts.clear();
+            mBuckets.clear();
+            mMinCount = 0;
+        }
+
+        private void addToBucket(int count, K key) {
+            LinkedHashSet<K> bucket = mBuckets.get(count);
+            if (bucket == null) {
+                bucket = new LinkedHashSet<K>();
+                mBuckets.put(count, bucket);
+            }
+            bucket.add(key);
+        }
+
+        /** Returns true if the bucket is now empty. */
+        private boolean removeFromBucket(int count, K key) {
+            LinkedHashSet<K> bucket = mBuckets.get(count);
+            if (bucket == null) {
+                return false;
+            }
+            bucket.remove(key);
+            if (bucket.isEmpty()) {
+                mBuckets.remove(count);
+                return true;
+            }
+            return false;
+        }
+    }
 
+    /**
+     * Creates a least recently used cache of at most 500 entries.
+     */
     protected AbstractCache() {
+        this(new LruPolicy<K>(), MAX_CACHED_ITEMS, NO_BYTE_LIMIT);
+    }
+
+    /**
+     * @param policy chooses the entries to evict
+     * @param maxItems maximum number of entries
+     * @param maxBytes maximum sum of {@link #sizeOf} over all entries, or
+     *        {@link #NO_BYTE_LIMIT}
+     */
+    protected AbstractCache(EvictionPolicy<K> policy, int maxItems, long maxBytes) {
         mCacheMap = new HashMap<K, CacheEntry<V>>();
+        mPolicy = policy;
+        mMaxItems = maxItems;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the estimated size of an entry, in bytes. Only used when the cache has a byte
+     * limit. Must not change while the entry is cached.
+     */
+    protected long sizeOf(K key, V value) {
+        return 0;
+    }
+
+    /**
+     * Called when an entry leaves the cache because it was evicted or replaced by
+     * {@link #put}, before the new entry is added. Not called for {@link #purge} and
+     * {@link #purgeAll}.
+     *
+     * @param evicted true if the entry was evicted to make room, false if it was replaced
+     */
+    protected void onEntryRemoved(K key, V value, boolean evicted) {
     }
 
     public boolean put(K key, V value) {
@@ -39,26 +238,40 @@ public abstract class AbstractCache<K, V> {
             Log.v(TAG, "Trying to put " + key + " into cache.");
         }
 
-        if (mCacheMap.size() >= MAX_CACHED_ITEMS) {
-            // TODO Should remove the oldest or least hit cached entry
-            // and then cache the new one.
-            if (LOCAL_LOGV) {
-                Log.v(TAG, "Failed! size limitation reached.");
-            }
+        if (key == null) {
             return false;
         }
 
-        if (key != null) {
-            CacheEntry<V> cacheEntry = new CacheEntry<V>();
-            cacheEntry.value = value;
-            mCacheMap.put(key, cacheEntry);
+        // a replaced entry starts over as a new one; it is dropped even if the new value
+        // cannot be cached, so that it is not served in place of the new value
+        CacheEntry<V> previous = mCacheMap.remove(key);
+        if (previous != null) {
+            mSizeInBytes -= previous.size;
+            mPolicy.onRemove(key);
+            onEntryRemoved(key, previous.value, false);
+        }
 
+        long size = (mMaxBytes != NO_BYTE_LIMIT) ? sizeOf(key, value) : 0;
+        if (mMaxBytes != NO_BYTE_LIMIT && size > mMaxBytes) {
             if (LOCAL_LOGV) {
-                Log.v(TAG, key + " cached, " + mCacheMap.size() + " items total.");
+                Log.v(TAG, "Failed! " + key + " is larger than the cache.");
             }
-            return true;
+            return false;
+        }
+
+        trimToSize(1, size);
+
+        CacheEntry<V> cacheEntry = new CacheEntry<V>();
+        cacheEntry.value = value;
+        cacheEntry.size = size;
+        mCacheMap.put(key, cacheEntry);
+        mPolicy.onInsert(key);
+        mSizeInBytes += size;
+
+        if (LOCAL_LOGV) {
+            Log.v(TAG, key + " cached, " + mCacheMap.size() + " items total.");
         }
-        return false;
+        return true;
     }
 
     public V get(K key) {
@@ -70,12 +283,15 @@ public abstract class AbstractCache<K, V> {
             CacheEntry<V> cacheEntry = mCacheMap.get(key);
             if (cacheEntry != null) {
                 cacheEntry.hit++;
+                mHitCount++;
+                mPolicy.onAccess(key);
                 if (LOCAL_LOGV) {
                     Log.v(TAG, key + " hit " + cacheEntry.hit + " times.");
                 }
                 return cacheEntry.value;
             }
         }
+        mMissCount++;
         return null;
     }
 
@@ -85,6 +301,10 @@ public abstract class AbstractCache<K, V> {
         }
 
         CacheEntry<V> v = mCacheMap.remove(key);
+        if (v != null) {
+            mSizeInBytes -= v.size;
+            mPolicy.onRemove(key);
+        }
 
         if (LOCAL_LOGV) {
             Log.v(TAG, mCacheMap.size() + " items cached.");
@@ -99,14 +319,60 @@ public abstract class AbstractCache<K, V> {
                     + " items dropped.");
         }
         mCacheMap.clear();
+        mPolicy.clear();
+        mSizeInBytes = 0;
     }
 
     public int size() {
         return mCacheMap.size();
     }
 
+    /**
+     * Returns the sum of {@link #sizeOf} over all entries, or 0 if the cache has no byte limit.
+     */
+    public long sizeInBytes() {
+        return mSizeInBytes;
+    }
+
+    public long getHitCount() {
+        return mHitCount;
+    }
+
+    public long getMissCount() {
+        return mMissCount;
+    }
+
+    public long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * Evicts entries until there is room for the given number of entries and bytes.
+     */
+    private void trimToSize(int items, long bytes) {
+        while (mCacheMap.size() + items > mMaxItems
+                || (mMaxBytes != NO_BYTE_LIMIT && mSizeInBytes + bytes > mMaxBytes)) {
+            K victim = mPolicy.selectVictim();
+            if (victim == null) {
+                break;
+            }
+            CacheEntry<V> evicted = mCacheMap.remove(victim);
+            mPolicy.onRemove(victim);
+            if (evicted == null) {
+                continue;
+            }
+            mSizeInBytes -= evicted.size;
+            mEvictionCount++;
+            if (LOCAL_LOGV) {
+                Log.v(TAG, "Evicted " + victim + " after " + evicted.hit + " hits.");
+            }
+            onEntryRemoved(victim, evicted.value, true);
+        }
+    }
+
     private static class CacheEntry<V> {
         int hit;
+        long size;
         V value;
     }
 }
@@ -23,9 +23,32 @@ import android.net.Uri;
 import android.provider.Telephony.Mms;
 import android.util.Log;
 
+import com.android.internal.annotations.VisibleForTesting;
+import com.google.android.mms.pdu.GenericPdu;
+import com.google.android.mms.pdu.MultimediaMessagePdu;
+import com.google.android.mms.pdu.PduBody;
+
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Cache of loaded PDUs, indexed by message box and thread so that purging a folder or a
+ * conversation does not have to scan every entry.
+ *
+ * Entries are spread over lock stripes by message id, each stripe being a separate
+ * {@link AbstractCache} with its share of the bounds, so loads of different messages do not
+ * contend. The monitor of a stripe, returned by {@link #getLock}, guards its entries and the
+ * updating flag of their uris. The indexes are concurrent maps of sets with their own monitors,
+ * and are updated by a stripe while it holds its lock; no operation holds more than one stripe
+ * lock, except {@link #purgeAll} which takes all of them in order.
+ *
+ * PduCache is still an {@link AbstractCache} to callers. It overrides every public method to
+ * go through the stripes, and the storage it inherits stays empty.
+ */
 public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     private static final String TAG = "PduCache";
     private static final boolean DEBUG = false;
@@ -44,6 +67,14 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     private static final int MMS_CONVERSATION    = 10;
     private static final int MMS_CONVERSATION_ID = 11;
 
+    private static final int NUM_STRIPES = 16;
+    private static final int MAX_CACHED_PDUS = 500;
+    private static final long MAX_CACHED_BYTES = 2 * 1024 * 1024;
+
+    // rough size of a pdu object with its headers, and of a part without its data
+    private static final int PDU_OVERHEAD_BYTES = 1024;
+    private static final int PART_OVERHEAD_BYTES = 256;
+
     private static final UriMatcher URI_MATCHER;
     private static final HashMap<Integer, Integer> MATCH_TO_MSGBOX_ID_MAP;
 
@@ -71,14 +102,66 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         MATCH_TO_MSGBOX_ID_MAP.put(MMS_OUTBOX, Mms.MESSAGE_BOX_OUTBOX);
     }
 
-    private final HashMap<Integer, HashSet<Uri>> mMessageBoxes;
-    private final HashMap<Long, HashSet<Uri>> mThreads;
-    private final HashSet<Uri> mUpdating;
+    private final Segment[] mSegments;
+    private final ConcurrentHashMap<Integer, IndexSet> mMessageBoxes;
+    private final ConcurrentHashMap<Long, IndexSet> mThreads;
+    private final Set<Uri> mUpdating;
+
+    /**
+     * One lock stripe. Evicted and replaced entries leave the indexes through
+     * {@link #onEntryRemoved}, called with the stripe locked.
+     */
+    private final class Segment extends AbstractCache<Uri, PduCacheEntry> {
+        Segment(EvictionPolicy<Uri> policy, int maxItems, long maxBytes) {
+            super(policy, maxItems, maxBytes);
+        }
+
+        @Override
+        protected long sizeOf(Uri key, PduCacheEntry entry) {
+            return estimateSize(entry);
+        }
+
+        @Override
+        protected void onEntryRemoved(Uri key, PduCacheEntry entry, boolean evicted) {
+            removeFromIndexes(key, entry);
+        }
+    }
+
+    /**
+     * Keys of one message box or thread. Once emptied it is detached from its index, and
+     * writers that still hold it have to look it up again.
+     */
+    private static final class IndexSet {
+        final HashSet<Uri> mKeys = new HashSet<Uri>();
+        boolean mDetached;
+    }
 
     private PduCache() {
-        mMessageBoxes = new HashMap<Integer, HashSet<Uri>>();
-        mThreads = new HashMap<Long, HashSet<Uri>>();
-        mUpdating = new HashSet<Uri>();
+        this(NUM_STRIPES, MAX_CACHED_PDUS, MAX_CACHED_BYTES, false);
+    }
+
+    /**
+     * @param stripes number of lock stripes
+     * @param maxItems maximum number of entries, shared evenly by the stripes
+     * @param maxBytes maximum estimated size of the entries, shared evenly by the stripes, or
+     *        {@link AbstractCache#NO_BYTE_LIMIT}
+     * @param lfu true to evict the least frequently used entries instead of the least recently
+     *        used ones
+     */
+    @VisibleForTesting
+    PduCache(int stripes, int maxItems, long maxBytes, boolean lfu) {
+        mSegments = new Segment[stripes];
+        int segmentItems = (maxItems + stripes - 1) / stripes;
+        long segmentBytes = (maxBytes == AbstractCache.NO_BYTE_LIMIT)
+                ? AbstractCache.NO_BYTE_LIMIT : maxBytes / stripes;
+        for (int i = 0; i < stripes; i++) {
+            AbstractCache.EvictionPolicy<Uri> policy = lfu
+                    ? new AbstractCache.LfuPolicy<Uri>() : new AbstractCache.LruPolicy<Uri>();
+            mSegments[i] = new Segment(policy, segmentItems, segmentBytes);
+        }
+        mMessageBoxes = new ConcurrentHashMap<Integer, IndexSet>();
+        mThreads = new ConcurrentHashMap<Long, IndexSet>();
+        mUpdating = Collections.newSetFromMap(new ConcurrentHashMap<Uri, Boolean>());
     }
 
     synchronized public static final PduCache getInstance() {
@@ -91,33 +174,39 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         return sInstance;
     }
 
-    @Override
-    synchronized public boolean put(Uri uri, PduCacheEntry entry) {
-        int msgBoxId = entry.getMessageBox();
-        HashSet<Uri> msgBox = mMessageBoxes.get(msgBoxId);
-        if (msgBox == null) {
-            msgBox = new HashSet<Uri>();
-            mMessageBoxes.put(msgBoxId, msgBox);
-        }
+    /**
+     * Returns the monitor guarding the entry and the updating flag of a uri. Callers that wait
+     * for {@link #isUpdating} to become false wait on it, and whoever clears the flag notifies
+     * it.
+     */
+    public Object getLock(Uri uri) {
+        return segmentFor(uri);
+    }
 
-        long threadId = entry.getThreadId();
-        HashSet<Uri> thread = mThreads.get(threadId);
-        if (thread == null) {
-            thread = new HashSet<Uri>();
-            mThreads.put(threadId, thread);
+    @Override
+    public boolean put(Uri uri, PduCacheEntry entry) {
+        Uri finalKey = normalizeKey(uri);
+        Segment segment = segmentFor(uri);
+        synchronized (segment) {
+            boolean result = segment.put(finalKey, entry);
+            if (result) {
+                addToIndex(mMessageBoxes, entry.getMessageBox(), finalKey);
+                addToIndex(mThreads, entry.getThreadId(), finalKey);
+            }
+            setUpdating(uri, false);
+            return result;
         }
+    }
 
-        Uri finalKey = normalizeKey(uri);
-        boolean result = super.put(finalKey, entry);
-        if (result) {
-            msgBox.add(finalKey);
-            thread.add(finalKey);
+    @Override
+    public PduCacheEntry get(Uri uri) {
+        Segment segment = segmentFor(uri);
+        synchronized (segment) {
+            return segment.get(keyOf(uri));
         }
-        setUpdating(uri, false);
-        return result;
     }
 
-    synchronized public void setUpdating(Uri uri, boolean updating) {
+    public void setUpdating(Uri uri, boolean updating) {
         if (updating) {
             mUpdating.add(uri);
         } else {
@@ -125,12 +214,12 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         }
     }
 
-    synchronized public boolean isUpdating(Uri uri) {
+    public boolean isUpdating(Uri uri) {
         return mUpdating.contains(uri);
     }
 
     @Override
-    synchronized public PduCacheEntry purge(Uri uri) {
+    public PduCacheEntry purge(Uri uri) {
         int match = URI_MATCHER.match(uri);
         switch (match) {
             case MMS_ALL_ID:
@@ -161,23 +250,119 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     }
 
     private PduCacheEntry purgeSingleEntry(Uri key) {
-        mUpdating.remove(key);
-        PduCacheEntry entry = super.purge(key);
-        if (entry != null) {
-            removeFromThreads(key, entry);
-            removeFromMessageBoxes(key, entry);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            mUpdating.remove(key);
+            PduCacheEntry entry = segment.purge(key);
+            if (entry != null) {
+                removeFromIndexes(key, entry);
+            }
             return entry;
         }
-        return null;
     }
 
     @Override
-    synchronized public void purgeAll() {
-        super.purgeAll();
+    public void purgeAll() {
+        purgeAll(0);
+    }
+
+    private void purgeAll(int stripe) {
+        synchronized (mSegments[stripe]) {
+            if (stripe + 1 < mSegments.length) {
+                purgeAll(stripe + 1);
+                return;
+            }
+            // every stripe is locked, nothing can be added to the indexes meanwhile
+            for (Segment segment : mSegments) {
+                segment.purgeAll();
+            }
+            mMessageBoxes.clear();
+            mThreads.clear();
+            mUpdating.clear();
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public long sizeInBytes() {
+        long size = 0;
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                size += segment.sizeInBytes();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public long getHitCount() {
+        long count = 0;
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                count += segment.getHitCount();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long getMissCount() {
+        long count = 0;
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                count += segment.getMissCount();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long getEvictionCount() {
+        long count = 0;
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                count += segment.getEvictionCount();
+            }
+        }
+        return count;
+    }
 
-        mMessageBoxes.clear();
-        mThreads.clear();
-        mUpdating.clear();
+    private static long estimateSize(PduCacheEntry entry) {
+        long size = PDU_OVERHEAD_BYTES;
+        GenericPdu pdu = entry.getPdu();
+        if (pdu instanceof MultimediaMessagePdu) {
+            PduBody body = ((MultimediaMessagePdu) pdu).getBody();
+            if (body != null) {
+                for (int i = 0; i < body.getPartsNum(); i++) {
+                    size += PART_OVERHEAD_BYTES + body.getPart(i).getDataLength();
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the normalized key of the uri, or the uri itself if it does not name a message
+     */
+    private Uri keyOf(Uri uri) {
+        Uri key = normalizeKey(uri);
+        return (key != null) ? key : uri;
+    }
+
+    private Segment segmentFor(Uri uri) {
+        int h = keyOf(uri).hashCode();
+        h ^= (h >>> 16);
+        return mSegments[(h & 0x7fffffff) % mSegments.length];
     }
 
     /**
@@ -215,23 +400,7 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         }
 
         if (msgBoxId != null) {
-            HashSet<Uri> msgBox = mMessageBoxes.remove(msgBoxId);
-            if (msgBox != null) {
-                for (Uri key : msgBox) {
-                    mUpdating.remove(key);
-                    PduCacheEntry entry = super.purge(key);
-                    if (entry != null) {
-                        removeFromThreads(key, entry);
-                    }
-                }
-            }
-        }
-    }
-
-    private void removeFromThreads(Uri key, PduCacheEntry entry) {
-        HashSet<Uri> thread = mThreads.get(entry.getThreadId());
-        if (thread != null) {
-            thread.remove(key);
+            purgeIndexed(mMessageBoxes.get(msgBoxId));
         }
     }
 
@@ -240,22 +409,82 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
             Log.v(TAG, "Purge cache in thread: " + threadId);
         }
 
-        HashSet<Uri> thread = mThreads.remove(threadId);
-        if (thread != null) {
-            for (Uri key : thread) {
-                mUpdating.remove(key);
-                PduCacheEntry entry = super.purge(key);
-                if (entry != null) {
-                    removeFromMessageBoxes(key, entry);
+        purgeIndexed(mThreads.get(threadId));
+    }
+
+    /**
+     * Purges the keys of an index set, each under its own stripe lock. The set itself is
+     * detached once the last entry leaves it.
+     */
+    private void purgeIndexed(IndexSet set) {
+        if (set == null) {
+            return;
+        }
+        ArrayList<Uri> keys;
+        synchronized (set) {
+            keys = new ArrayList<Uri>(set.mKeys);
+        }
+        for (Uri key : keys) {
+            purgeSingleEntry(key);
+        }
+    }
+
+    private void removeFromIndexes(Uri key, PduCacheEntry entry) {
+        removeFromIndex(mThreads, entry.getThreadId(), key);
+        removeFromIndex(mMessageBoxes, entry.getMessageBox(), key);
+    }
+
+    private static <T> void addToIndex(ConcurrentHashMap<T, IndexSet> index, T id, Uri key) {
+        while (true) {
+            IndexSet set = index.get(id);
+            if (set == null) {
+                set = new IndexSet();
+                IndexSet previous = index.putIfAbsent(id, set);
+                if (previous != null) {
+                    set = previous;
+                }
+            }
+            synchronized (set) {
+                if (!set.mDetached) {
+                    set.mKeys.add(key);
+                    return;
                 }
             }
+            // emptied and detached by another stripe meanwhile, look it up again
         }
     }
 
-    private void removeFromMessageBoxes(Uri key, PduCacheEntry entry) {
-        HashSet<Uri> msgBox = mThreads.get(Long.valueOf(entry.getMessageBox()));
-        if (msgBox != null) {
-            msgBox.remove(key);
+    private static <T> void removeFromIndex(ConcurrentHashMap<T, IndexSet> index, T id,
+            Uri key) {
+        IndexSet set = index.get(id);
+        if (set == null) {
+            return;
+        }
+        synchronized (set) {
+            set.mKeys.remove(key);
+            if (set.mKeys.isEmpty() && !set.mDetached) {
+                set.mDetached = true;
+                index.remove(id, set);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    boolean isIndexed(Uri key) {
+        for (IndexSet set : mMessageBoxes.values()) {
+            synchronized (set) {
+                if (set.mKeys.contains(key)) {
+                    return true;
+                }
+            }
+        }
+        for (IndexSet set : mThreads.values()) {
+            synchronized (set) {
+                if (set.mKeys.contains(key)) {
+                    return true;
+                }
+            }
         }
+        return false;
     }
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Debug;
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class CarrierRoamingNetworksTest {
+    private static final String TAG = "CarrierRoamingNetworksTest";
+
+    @Test
+    @SmallTest
+    public void testLookups() {
+        PersistableBundle b = new PersistableBundle();
+        b.putStringArray(CarrierConfigManager.KEY_GSM_ROAMING_NETWORKS_STRING_ARRAY,
+                new String[] {"310260", "310410"});
+        b.putStringArray(CarrierConfigManager.KEY_GSM_NONROAMING_NETWORKS_STRING_ARRAY,
+                new String[] {"310120"});
+        b.putStringArray(CarrierConfigManager.KEY_CDMA_ROAMING_NETWORKS_STRING_ARRAY,
+                new String[] {"4", "065", "abc"});
+        CarrierRoamingNetworks networks = new CarrierRoamingNetworks(b);
+
+        assertFalse(networks.alwaysOnHomeNetwork());
+        assertTrue(networks.isRoamingInGsmNetwork("310410"));
+        assertFalse(networks.isRoamingInGsmNetwork("310120"));
+        assertFalse(networks.isRoamingInGsmNetwork(null));
+        assertTrue(networks.isNonRoamingInGsmNetwork("310120"));
+        assertTrue(networks.isRoamingInCdmaNetwork(4));
+        // "065" is not what Integer.toString(65) gives, so it never matched
+        assertFalse(networks.isRoamingInCdmaNetwork(65));
+        assertFalse(networks.isNonRoamingInCdmaNetwork(4));
+
+        b.putBoolean(CarrierConfigManager.KEY_FORCE_HOME_NETWORK_BOOL, true);
+        assertTrue(new CarrierRoamingNetworks(b).alwaysOnHomeNetwork());
+    }
+
+    /**
+     * Membership checks against a carrier with a long list of roaming partners, compared with
+     * reading the bundle each time as ServiceStateTracker used to.
+     */
+    @Test
+    @LargeTest
+    public void testLookupBenchmark() {
+        final int partners = 2000;
+        final int iterations = 20000;
+        String[] gsm = new String[partners];
+        for (int i = 0; i < partners; i++) {
+            gsm[i] = Integer.toString(200000 + i);
+        }
+        PersistableBundle b = new PersistableBundle();
+        b.putStringArray(CarrierConfigManager.KEY_GSM_ROAMING_NETWORKS_STRING_ARRAY, gsm);
+        // the worst case: not in the list
+        String network = "999999";
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            String[] networks =
+                    b.getStringArray(CarrierConfigManager.KEY_GSM_ROAMING_NETWORKS_STRING_ARRAY);
+            Arrays.asList(networks).contains(network);
+        }
+        long bundleNs = System.nanoTime() - start;
+
+        CarrierRoamingNetworks networks = new CarrierRoamingNetworks(b);
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            networks.isRoamingInGsmNetwork(network);
+            networks.isRoamingInCdmaNetwork(i);
+        }
+        long cachedNs = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        int allocations = Debug.getThreadAllocCount();
+
+        Log.d(TAG, partners + " partners: bundle " + (bundleNs / iterations) + " ns/check, cached "
+                + (cachedNs / (2L * iterations)) + " ns/check, " + allocations + " allocations");
+        assertEquals(0, allocations);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.Telephony;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InboundSmsDuplicateFilterTest {
+    private static final String FAKE_ADDRESS = "1234567890";
+    private static final long FAKE_TIMESTAMP = 123456L;
+    private static final int FAKE_MESSAGE_COUNT = 3;
+
+    private InboundSmsDuplicateFilter mFilter;
+    private MockContentResolver mResolver;
+    private final List<Object[]> mRawRows = new ArrayList<Object[]>();
+
+    @Before
+    public void setUp() throws Exception {
+        mFilter = new InboundSmsDuplicateFilter();
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(Telephony.Sms.CONTENT_URI.getAuthority(),
+                new MockContentProvider() {
+                    @Override
+                    public Cursor query(Uri uri, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder) {
+                        MatrixCursor cursor = new MatrixCursor(projection);
+                        for (Object[] row : mRawRows) {
+                            cursor.addRow(row);
+                        }
+                        return cursor;
+                    }
+                });
+    }
+
+    private static InboundSmsTracker makeSegment(int referenceNumber, int sequenceNumber) {
+        return new InboundSmsTracker(new byte[]{1}, FAKE_TIMESTAMP, -1, false, FAKE_ADDRESS,
+                referenceNumber, sequenceNumber, FAKE_MESSAGE_COUNT, false, "body");
+    }
+
+    @Test
+    @SmallTest
+    public void testNotLoadedAlwaysQueries() {
+        assertTrue(mFilter.mightContain(makeSegment(1, 1)));
+        assertEquals(InboundSmsDuplicateFilter.RESULT_NOT_LOADED,
+                mFilter.lookup(makeSegment(1, 1)));
+        assertEquals(0, mFilter.getHitCount());
+        assertEquals(0, mFilter.getMissCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testLookupResults() {
+        mFilter.loadFromRawTable(mResolver);
+        mFilter.add(makeSegment(9, 1));
+        assertEquals(InboundSmsDuplicateFilter.RESULT_MAYBE_PRESENT,
+                mFilter.lookup(makeSegment(9, 1)));
+        assertEquals(InboundSmsDuplicateFilter.RESULT_NOT_PRESENT,
+                mFilter.lookup(makeSegment(9, 2)));
+        mFilter.onFalsePositive();
+        assertEquals(1, mFilter.getFalsePositiveCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testLoadedRowsAndAddedSegmentsHit() {
+        mRawRows.add(new Object[]{FAKE_ADDRESS, 7, FAKE_MESSAGE_COUNT, 2, FAKE_TIMESTAMP,
+                "body"});
+        mFilter.loadFromRawTable(mResolver);
+
+        // persisted before the load
+        assertTrue(mFilter.mightContain(makeSegment(7, 2)));
+        assertEquals(1, mFilter.getHitCount());
+
+        // never stored
+        assertFalse(mFilter.mightContain(makeSegment(8, 1)));
+        assertEquals(1, mFilter.getMissCount());
+
+        // stored after the load
+        mFilter.add(makeSegment(8, 1));
+        assertTrue(mFilter.mightContain(makeSegment(8, 1)));
+        assertEquals(2, mFilter.getHitCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testRebuildWhenFull() {
+        mFilter.loadFromRawTable(mResolver);
+        for (int i = 0; i < InboundSmsDuplicateFilter.MAX_INSERTIONS; i++) {
+            assertFalse(mFilter.add(makeSegment(i, 1)));
+        }
+        assertTrue(mFilter.add(makeSegment(-1, 1)));
+
+        // cleared and unloaded until reloaded from the raw table
+        assertTrue(mFilter.mightContain(makeSegment(-2, 1)));
+        mFilter.loadFromRawTable(mResolver);
+        assertFalse(mFilter.mightContain(makeSegment(0, 1)));
+    }
+}
@@ -86,4 +86,20 @@ public class InboundSmsTrackerTest {
         mInboundSmsTracker = new InboundSmsTracker(createFakeCursor(), false);
         testInitialization();
     }
-}
\ No newline at end of file
+
+    @Test
+    @SmallTest
+    public void testDuplicateHash() {
+        InboundSmsTracker fromDb = new InboundSmsTracker(createFakeCursor(), false);
+        assertEquals(mInboundSmsTracker.getDuplicateHash(), fromDb.getDuplicateHash());
+        assertEquals(mInboundSmsTracker.getDuplicateHash(),
+                InboundSmsTracker.getDuplicateHash(FAKE_ADDRESS, FAKE_REFERENCE_NUMBER,
+                        FAKE_MESSAGE_COUNT, FAKE_SEQUENCE_NUMBER, FAKE_TIMESTAMP,
+                        FAKE_MESSAGE_BODY));
+
+        InboundSmsTracker otherSegment = new InboundSmsTracker(FAKE_PDU, FAKE_TIMESTAMP,
+                FAKE_DEST_PORT, false, FAKE_ADDRESS, FAKE_REFERENCE_NUMBER,
+                FAKE_SEQUENCE_NUMBER + 1, FAKE_MESSAGE_COUNT, false, FAKE_MESSAGE_BODY);
+        assertNotEquals(mInboundSmsTracker.getDuplicateHash(), otherSegment.getDuplicateHash());
+    }
+}
@@ -17,18 +17,22 @@
 package com.android.internal.telephony;
 
 import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
 
 import com.android.internal.telephony.gsm.SmsBroadcastConfigInfo;
 
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Random;
 
 /**
  * Test cases for the IntRangeManager class.
  */
 public class IntRangeManagerTest extends AndroidTestCase {
+    private static final String TAG = "IntRangeManagerTest";
 
     private static final int SMS_CB_CODE_SCHEME_MIN = 0;
     private static final int SMS_CB_CODE_SCHEME_MAX = 255;
@@ -48,6 +52,13 @@ public class IntRangeManagerTest extends AndroidTestCase {
         int flags;
         boolean finishUpdateReturnValue = true;
 
+        TestIntRangeManager() {
+        }
+
+        TestIntRangeManager(boolean incrementalUpdates) {
+            super(incrementalUpdates);
+        }
+
         /**
          * Called when the list of enabled ranges has changed. This will be
          * followed by zero or more calls to {@link #addRange} followed by
@@ -1161,4 +1172,106 @@ public class IntRangeManagerTest extends AndroidTestCase {
                 testManager.flags);
         assertEquals("configlist size", 0, testManager.mConfigList.size());
     }
+
+    @Test @SmallTest
+    public void testIncrementalUpdates() {
+        TestIntRangeManager testManager = new TestIntRangeManager(true);
+        assertTrue("enabling range 1", testManager.enableRange(10, 20, "client1"));
+        assertTrue("enabling range 2", testManager.enableRange(30, 40, "client1"));
+        testManager.reset();
+
+        // only the gaps of the new range are enabled
+        assertTrue("enabling range 3", testManager.enableRange(5, 45, "client2"));
+        assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
+        assertEquals("configlist size", 3, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 5, 9, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+        checkConfigInfo(testManager.mConfigList.get(1), 21, 29, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+        checkConfigInfo(testManager.mConfigList.get(2), 41, 45, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+
+        // only the ids no other client wants are disabled
+        testManager.reset();
+        assertTrue("disabling range 3", testManager.disableRange(5, 45, "client2"));
+        assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
+        assertEquals("configlist size", 3, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 5, 9, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
+        checkConfigInfo(testManager.mConfigList.get(1), 21, 29, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
+        checkConfigInfo(testManager.mConfigList.get(2), 41, 45, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
+
+        testManager.reset();
+        assertTrue("disabling range 1", testManager.disableRange(10, 20, "client1"));
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 10, 20, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, false);
+
+        // a full update still sends everything that is enabled
+        testManager.reset();
+        assertTrue("updating ranges", testManager.updateRanges());
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 30, 40, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+    }
+
+    /** IntRangeManager that counts the ranges sent to the radio. */
+    private static class CountingIntRangeManager extends IntRangeManager {
+        int mRangesSent;
+
+        CountingIntRangeManager(boolean incrementalUpdates) {
+            super(incrementalUpdates);
+        }
+
+        @Override
+        protected void startUpdate() {}
+
+        @Override
+        protected void addRange(int startId, int endId, boolean selected) {
+            mRangesSent++;
+        }
+
+        @Override
+        protected boolean finishUpdate() {
+            return true;
+        }
+    }
+
+    /**
+     * Hundreds of clients toggling their ETWS and CMAS channels, sending all ranges on each
+     * update and sending only the changes.
+     */
+    @Test @LargeTest
+    public void testEmergencyChannelToggleBenchmark() {
+        final int clients = 300;
+        final int toggles = 20000;
+        // ETWS, CMAS presidential, extreme, severe, amber and test alerts
+        final int[][] channels = {{0x1100, 0x1104}, {0x1112, 0x1112}, {0x1113, 0x1114},
+                {0x1115, 0x111A}, {0x111B, 0x111B}, {0x111C, 0x111C}};
+
+        for (boolean incremental : new boolean[] {false, true}) {
+            CountingIntRangeManager manager = new CountingIntRangeManager(incremental);
+            boolean[][] enabled = new boolean[clients][channels.length];
+            Random random = new Random(0);
+            long start = System.nanoTime();
+            for (int i = 0; i < toggles; i++) {
+                int client = random.nextInt(clients);
+                int channel = random.nextInt(channels.length);
+                String name = "client" + client;
+                int[] range = channels[channel];
+                if (enabled[client][channel]) {
+                    assertTrue(manager.disableRange(range[0], range[1], name));
+                } else {
+                    assertTrue(manager.enableRange(range[0], range[1], name));
+                }
+                enabled[client][channel] = !enabled[client][channel];
+            }
+            long elapsedNs = System.nanoTime() - start;
+            Log.d(TAG, clients + " clients, incremental=" + incremental + ": "
+                    + (elapsedNs / toggles) + " ns/toggle, "
+                    + manager.mRangesSent + " ranges sent");
+        }
+    }
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+import android.util.TimeUtils;
+
+import java.util.Date;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NitzTimeZoneLookupTest {
+    private static final String TAG = "NitzTimeZoneLookupTest";
+    private static final int HOUR = 60 * 60 * 1000;
+    // 2016-07-01T12:00Z and 2016-01-01T12:00Z
+    private static final long SUMMER = 1467374400000L;
+    private static final long WINTER = 1451649600000L;
+
+    private NitzTimeZoneLookup mLookup;
+
+    @Before
+    public void setUp() throws Exception {
+        mLookup = new NitzTimeZoneLookup();
+    }
+
+    /**
+     * The lookup ServiceStateTracker did before answers were cached.
+     */
+    private static TimeZone findTimeZone(int offset, boolean dst, long when) {
+        int rawOffset = dst ? offset - HOUR : offset;
+        Date d = new Date(when);
+        for (String id : TimeZone.getAvailableIDs(rawOffset)) {
+            TimeZone tz = TimeZone.getTimeZone(id);
+            if (tz.getOffset(when) == offset && tz.inDaylightTime(d) == dst) {
+                return tz;
+            }
+        }
+        return null;
+    }
+
+    private static String uncachedNitzZoneId(int offset, boolean dst, long when) {
+        TimeZone zone = findTimeZone(offset, dst, when);
+        if (zone == null) {
+            zone = findTimeZone(offset, !dst, when);
+        }
+        return zone == null ? null : zone.getID();
+    }
+
+    private static String idOf(TimeZone zone) {
+        return zone == null ? null : zone.getID();
+    }
+
+    @Test
+    @SmallTest
+    public void testMatchesUncachedLookup() {
+        for (long when : new long[] {SUMMER, WINTER}) {
+            for (int offset = -12 * HOUR; offset <= 14 * HOUR; offset += HOUR / 4) {
+                for (boolean dst : new boolean[] {false, true}) {
+                    assertEquals("offset=" + offset + " dst=" + dst + " when=" + when,
+                            uncachedNitzZoneId(offset, dst, when),
+                            idOf(mLookup.getNitzTimeZone(offset, dst, when)));
+                }
+            }
+        }
+        assertEquals(TimeUtils.getTimeZone(2 * HOUR, true, SUMMER, "de").getID(),
+                idOf(mLookup.getTimeZone(2 * HOUR, true, SUMMER, "de")));
+    }
+
+    @Test
+    @SmallTest
+    public void testAnswersCachedPerQuarterHour() {
+        TimeZone zone = mLookup.getNitzTimeZone(2 * HOUR, true, SUMMER);
+        assertSame(zone, mLookup.getNitzTimeZone(2 * HOUR, true, SUMMER + 60 * 1000));
+        assertEquals(1, mLookup.getMissCount());
+        assertEquals(1, mLookup.getHitCount());
+
+        // a different quarter hour, country or DST flag is looked up again
+        mLookup.getNitzTimeZone(2 * HOUR, true, SUMMER + HOUR / 4);
+        mLookup.getTimeZone(2 * HOUR, true, SUMMER, "de");
+        mLookup.getNitzTimeZone(2 * HOUR, false, SUMMER);
+        assertEquals(4, mLookup.getMissCount());
+
+        // no zone is an answer too
+        assertNull(mLookup.getTimeZone(2 * HOUR, true, SUMMER, "jp"));
+        assertNull(mLookup.getTimeZone(2 * HOUR, true, SUMMER, "jp"));
+        assertEquals(5, mLookup.getMissCount());
+
+        mLookup.invalidate();
+        mLookup.getNitzTimeZone(2 * HOUR, true, SUMMER);
+        assertEquals(6, mLookup.getMissCount());
+    }
+
+    /**
+     * A NITZ burst alternating between two neighbouring networks, as seen on a train crossing a
+     * border, with and without a country.
+     */
+    @Test
+    @LargeTest
+    public void testNitzBurstBenchmark() {
+        final int iterations = 2000;
+        final int[] offsets = {HOUR, 2 * HOUR};
+        final String[] isos = {"fr", "ch"};
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            int offset = offsets[i % 2];
+            uncachedNitzZoneId(offset, false, WINTER + i * 1000L);
+            TimeUtils.getTimeZone(offset, false, WINTER + i * 1000L, isos[i % 2]);
+        }
+        long uncachedNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            int offset = offsets[i % 2];
+            mLookup.getNitzTimeZone(offset, false, WINTER + i * 1000L);
+            mLookup.getTimeZone(offset, false, WINTER + i * 1000L, isos[i % 2]);
+        }
+        long cachedNs = System.nanoTime() - start;
+
+        Log.d(TAG, "NITZ zone lookups: uncached " + (uncachedNs / iterations) + " ns/NITZ, cached "
+                + (cachedNs / iterations) + " ns/NITZ, hits=" + mLookup.getHitCount()
+                + " misses=" + mLookup.getMissCount());
+        assertTrue(mLookup.getHitCount() > mLookup.getMissCount());
+    }
+}
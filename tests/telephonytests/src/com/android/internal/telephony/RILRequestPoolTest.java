@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Debug;
+import android.telephony.Rlog;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import static com.android.internal.telephony.RILConstants.*;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class RILRequestPoolTest {
+    private static final String TAG = "RILRequestPoolTest";
+
+    /** Marshals the request as RILSender does. */
+    private static void send(RILRequest rr) {
+        rr.mParcel.marshall();
+        rr.recycleParcel();
+    }
+
+    @Test
+    @SmallTest
+    public void testRequestAndParcelReused() {
+        RILRequest rr = RILRequest.obtain(RIL_REQUEST_SIM_IO, null);
+        int serial = rr.mSerial;
+        send(rr);
+        rr.release();
+
+        long requestMisses = RILRequest.getPoolMissCount();
+        long parcelMisses = RILRequest.getParcelMissCount();
+        RILRequest reused = RILRequest.obtain(RIL_REQUEST_SIGNAL_STRENGTH, null);
+        assertSame(rr, reused);
+        assertEquals(serial + 1, reused.mSerial);
+        assertEquals(RIL_REQUEST_SIGNAL_STRENGTH, reused.mRequest);
+        assertEquals(requestMisses, RILRequest.getPoolMissCount());
+        assertEquals(parcelMisses, RILRequest.getParcelMissCount());
+        // the reused Parcel only holds the new header
+        assertEquals(8, reused.mParcel.dataSize());
+        reused.mParcel.setDataPosition(0);
+        assertEquals(RIL_REQUEST_SIGNAL_STRENGTH, reused.mParcel.readInt());
+        assertEquals(reused.mSerial, reused.mParcel.readInt());
+
+        // a Parcel grown large is not kept
+        reused.mParcel.writeByteArray(new byte[4096]);
+        send(reused);
+        reused.release();
+        RILRequest.obtain(RIL_REQUEST_SIGNAL_STRENGTH, null).release();
+        assertEquals(parcelMisses + 1, RILRequest.getParcelMissCount());
+
+        StringWriter sw = new StringWriter();
+        RILRequest.dumpPool(new PrintWriter(sw));
+        assertTrue(sw.toString().contains("misses=" + RILRequest.getPoolMissCount()));
+    }
+
+    /**
+     * Bursts of SIM_IO requests obtained on one thread and released on
+     * another, as SIMRecords issues them at SIM load and RILReceiver answers
+     * them. Once the pool has warmed up no request should be allocated.
+     */
+    @Test
+    @LargeTest
+    public void testSimLoadBurstBenchmark() throws Exception {
+        final int burst = 32;
+        final int warmUpBursts = 20;
+        final int bursts = 2000;
+        final ArrayBlockingQueue<RILRequest> responses = new ArrayBlockingQueue<RILRequest>(burst);
+        final Semaphore released = new Semaphore(0);
+
+        Thread receiver = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < (warmUpBursts + bursts) * burst; i++) {
+                        RILRequest rr = responses.take();
+                        send(rr);
+                        rr.release();
+                        released.release();
+                    }
+                } catch (InterruptedException e) {
+                    Rlog.e(TAG, "interrupted", e);
+                }
+            }
+        };
+        receiver.start();
+
+        RILRequest[] outstanding = new RILRequest[burst];
+        long requestMisses = 0;
+        long parcelMisses = 0;
+        long start = 0;
+        for (int b = 0; b < warmUpBursts + bursts; b++) {
+            if (b == warmUpBursts) {
+                requestMisses = RILRequest.getPoolMissCount();
+                parcelMisses = RILRequest.getParcelMissCount();
+                Debug.resetThreadAllocCount();
+                Debug.startAllocCounting();
+                start = System.nanoTime();
+            }
+            for (int i = 0; i < burst; i++) {
+                outstanding[i] = RILRequest.obtain(RIL_REQUEST_SIM_IO, null);
+                outstanding[i].mParcel.writeInt(0xc0);
+                outstanding[i].mParcel.writeInt(0x6f07);
+            }
+            for (int i = 0; i < burst; i++) {
+                responses.put(outstanding[i]);
+            }
+            // the next burst waits for this one, as SIMRecords waits for its records
+            released.acquire(burst);
+        }
+        long elapsedNs = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        int allocations = Debug.getThreadAllocCount();
+        receiver.join();
+
+        long total = (long) bursts * burst;
+        requestMisses = RILRequest.getPoolMissCount() - requestMisses;
+        parcelMisses = RILRequest.getParcelMissCount() - parcelMisses;
+        Rlog.d(TAG, (elapsedNs / total) + " ns/request, " + requestMisses + " request and "
+                + parcelMisses + " parcel misses, " + allocations + " allocations");
+        assertEquals(0, requestMisses);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.Message;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+import static com.android.internal.telephony.RILConstants.RIL_REQUEST_VOICE_RADIO_TECH;
+import static com.android.internal.telephony.TelephonyTestUtils.waitForMs;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class RILTest extends TelephonyTest {
+    private static final int EVENT_RESPONSE = 1;
+    private static final int DEADLINE_MS = 200;
+
+    @Mock
+    private Handler mTestHandler;
+    @Mock
+    private TelephonyDevController mTelephonyDevController;
+
+    private RIL mRil;
+    private LocalServerSocket mServerSocket;
+    private LocalSocket mModemSocket;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(getClass().getSimpleName());
+        replaceInstance(TelephonyDevController.class, "sTelephonyDevController", null,
+                mTelephonyDevController);
+        // no RILReceiver is started, as the mocked ConnectivityManager supports no mobile
+        mRil = new RIL(mContext, RILConstants.NETWORK_MODE_WCDMA_PREF, 0, 0);
+
+        // a rild that reads the requests and never answers
+        String name = "RILTest" + System.nanoTime();
+        mServerSocket = new LocalServerSocket(name);
+        LocalSocket socket = new LocalSocket();
+        socket.connect(new LocalSocketAddress(name));
+        mModemSocket = mServerSocket.accept();
+        mRil.mSocket = socket;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mRil.mSenderThread.quit();
+        mRil.mSocket.close();
+        mModemSocket.close();
+        mServerSocket.close();
+        super.tearDown();
+    }
+
+    @Test
+    @MediumTest
+    public void testRequestFailsPastDeadline() {
+        mRil.setRequestDeadline(RIL_REQUEST_VOICE_RADIO_TECH, DEADLINE_MS);
+        mRil.getVoiceRadioTechnology(Message.obtain(mTestHandler, EVENT_RESPONSE));
+        waitForMs(DEADLINE_MS / 4);
+
+        // sent and waiting for its response
+        assertEquals(1, mRil.mRequestList.size());
+        assertEquals(1, mRil.mWakeLockCount);
+        assertTrue(mRil.mWakeLock.isHeld());
+        verify(mTestHandler, never()).sendMessageAtTime(any(Message.class), anyLong());
+
+        waitForMs(DEADLINE_MS * 2);
+
+        ArgumentCaptor<Message> messageArgumentCaptor = ArgumentCaptor.forClass(Message.class);
+        verify(mTestHandler, times(1)).sendMessageAtTime(messageArgumentCaptor.capture(),
+                anyLong());
+        Message msg = messageArgumentCaptor.getValue();
+        assertEquals(EVENT_RESPONSE, msg.what);
+        CommandException ex = (CommandException) ((AsyncResult) msg.obj).exception;
+        assertEquals(CommandException.Error.GENERIC_FAILURE, ex.getCommandError());
+
+        assertEquals(0, mRil.mRequestList.size());
+        assertEquals(0, mRil.mWakeLockCount);
+        assertFalse(mRil.mWakeLock.isHeld());
+    }
+}
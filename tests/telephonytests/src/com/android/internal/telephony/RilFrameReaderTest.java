@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Parcel;
+import android.system.Os;
+import android.system.OsConstants;
+import android.telephony.Rlog;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class RilFrameReaderTest {
+    private static final String TAG = "RilFrameReaderTest";
+
+    private static final int MAX_FRAME = RIL.RIL_MAX_COMMAND_BYTES;
+    private static final int BUFFER = RIL.RIL_RECEIVE_BUFFER_BYTES;
+
+    private static void writeFrame(OutputStream os, byte[] payload) throws IOException {
+        os.write(new byte[] {(byte) (payload.length >>> 24), (byte) (payload.length >>> 16),
+                (byte) (payload.length >>> 8), (byte) payload.length});
+        os.write(payload);
+    }
+
+    private static byte[] payload(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed + i);
+        }
+        return data;
+    }
+
+    private static void assertFrame(RilFrameReader reader, byte[] expected) throws IOException {
+        assertEquals(expected.length, reader.readFrame());
+        assertEquals(expected.length, reader.getFrameLength());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], reader.getBuffer()[reader.getFrameOffset() + i]);
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testBatchedFramesUseOneRead() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[][] frames = new byte[10][];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = payload(20 + i, i);
+            writeFrame(bos, frames[i]);
+        }
+
+        RilFrameReader reader = new RilFrameReader(
+                new ByteArrayInputStream(bos.toByteArray()), MAX_FRAME, BUFFER);
+        for (byte[] frame : frames) {
+            assertFrame(reader, frame);
+        }
+        assertEquals(1, reader.getReadCount());
+        assertEquals(-1, reader.readFrame());
+        assertEquals(frames.length, reader.getFrameCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testFramesSpanningBufferWrap() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[][] frames = new byte[20][];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = payload(i % 2 == 0 ? MAX_FRAME : 7, i);
+            writeFrame(bos, frames[i]);
+        }
+
+        RilFrameReader reader = new RilFrameReader(
+                new ByteArrayInputStream(bos.toByteArray()), MAX_FRAME, MAX_FRAME + 4);
+        for (byte[] frame : frames) {
+            assertFrame(reader, frame);
+        }
+        assertEquals(-1, reader.readFrame());
+    }
+
+    @Test
+    @SmallTest
+    public void testTruncatedFrame() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        writeFrame(bos, payload(100, 0));
+        byte[] data = bos.toByteArray();
+
+        RilFrameReader reader = new RilFrameReader(
+                new ByteArrayInputStream(data, 0, data.length - 1), MAX_FRAME, BUFFER);
+        assertEquals(-1, reader.readFrame());
+    }
+
+    @Test
+    @SmallTest
+    public void testOversizedFrame() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        writeFrame(bos, payload(MAX_FRAME + 1, 0));
+
+        RilFrameReader reader = new RilFrameReader(
+                new ByteArrayInputStream(bos.toByteArray()), MAX_FRAME, BUFFER);
+        try {
+            reader.readFrame();
+            fail("Expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * Throughput of the receive path fed by a socketpair standing in for rild.
+     * A writer thread sends bursts of unsolicited-sized frames while this
+     * thread reads and unmarshalls them the way RILReceiver does.
+     */
+    @Test
+    @LargeTest
+    public void testSocketPairThroughput() throws Exception {
+        final int frameCount = 50000;
+        final byte[] frame = payload(96, 0);
+        FileDescriptor rild = new FileDescriptor();
+        FileDescriptor rilj = new FileDescriptor();
+        Os.socketpair(OsConstants.AF_UNIX, OsConstants.SOCK_STREAM, 0, rild, rilj);
+
+        final FileOutputStream os = new FileOutputStream(rild);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ByteArrayOutputStream burst = new ByteArrayOutputStream();
+                    for (int i = 0; i < frameCount; i++) {
+                        writeFrame(burst, frame);
+                        if (burst.size() > 4096 || i == frameCount - 1) {
+                            os.write(burst.toByteArray());
+                            burst.reset();
+                        }
+                    }
+                    os.close();
+                } catch (IOException e) {
+                    Rlog.e(TAG, "writer failed", e);
+                }
+            }
+        };
+
+        RilFrameReader reader = new RilFrameReader(new FileInputStream(rilj), MAX_FRAME, BUFFER);
+        long start = System.nanoTime();
+        writer.start();
+        int received = 0;
+        while (reader.readFrame() >= 0) {
+            Parcel p = Parcel.obtain();
+            p.unmarshall(reader.getBuffer(), reader.getFrameOffset(), reader.getFrameLength());
+            p.recycle();
+            received++;
+        }
+        long elapsedNs = System.nanoTime() - start;
+        writer.join();
+        Os.close(rilj);
+
+        assertEquals(frameCount, received);
+        assertTrue(reader.getReadCount() < frameCount);
+        Rlog.d(TAG, "frames=" + received + " reads=" + reader.getReadCount()
+                + " frames/sec=" + (received * 1000000000L / Math.max(elapsedNs, 1)));
+    }
+}
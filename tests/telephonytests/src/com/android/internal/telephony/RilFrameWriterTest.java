@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.system.Os;
+import android.system.OsConstants;
+import android.telephony.Rlog;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class RilFrameWriterTest {
+    private static final String TAG = "RilFrameWriterTest";
+
+    private static final int MAX_FRAME = RIL.RIL_MAX_COMMAND_BYTES;
+    private static final int BUFFER = RIL.RIL_SEND_BUFFER_BYTES;
+
+    /** Counts the writes made to it. */
+    private static class CountingOutputStream extends ByteArrayOutputStream {
+        int mWrites;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            mWrites++;
+            super.write(b, off, len);
+        }
+    }
+
+    private static byte[] payload(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed + i);
+        }
+        return data;
+    }
+
+    @Test
+    @SmallTest
+    public void testQueuedFramesUseOneWrite() throws Exception {
+        RilFrameWriter writer = new RilFrameWriter(MAX_FRAME, BUFFER);
+        byte[][] frames = new byte[10][];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = payload(i == 0 ? 300 : 20 + i, i);
+            writer.append(frames[i]);
+        }
+        assertEquals(frames.length, writer.getBufferedFrameCount());
+
+        CountingOutputStream os = new CountingOutputStream();
+        writer.writeTo(os);
+        assertEquals(1, os.mWrites);
+        assertEquals(0, writer.getBufferedFrameCount());
+        assertEquals(frames.length, writer.getFrameCount());
+        assertEquals(1, writer.getWriteCount());
+
+        // nothing buffered, nothing written
+        writer.writeTo(os);
+        assertEquals(1, os.mWrites);
+
+        RilFrameReader reader = new RilFrameReader(
+                new ByteArrayInputStream(os.toByteArray()), MAX_FRAME, BUFFER);
+        for (byte[] frame : frames) {
+            assertEquals(frame.length, reader.readFrame());
+            assertArrayEquals(frame, Arrays.copyOfRange(reader.getBuffer(),
+                    reader.getFrameOffset(), reader.getFrameOffset() + frame.length));
+        }
+        assertEquals(-1, reader.readFrame());
+    }
+
+    @Test
+    @SmallTest
+    public void testBufferLimits() throws Exception {
+        RilFrameWriter writer = new RilFrameWriter(MAX_FRAME, MAX_FRAME + 4);
+        assertTrue(writer.hasRoomFor(MAX_FRAME));
+        writer.append(payload(MAX_FRAME, 0));
+        assertFalse(writer.hasRoomFor(0));
+        try {
+            writer.append(payload(1, 0));
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+
+        writer.clear();
+        assertEquals(0, writer.getBufferedFrameCount());
+        try {
+            writer.append(payload(MAX_FRAME + 1, 0));
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testFailedWriteEmptiesBuffer() throws Exception {
+        RilFrameWriter writer = new RilFrameWriter(MAX_FRAME, BUFFER);
+        writer.append(payload(10, 0));
+        try {
+            writer.writeTo(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    throw new IOException("closed");
+                }
+            });
+            fail("Expected IOException");
+        } catch (IOException expected) {
+        }
+        assertEquals(0, writer.getBufferedFrameCount());
+        assertEquals(0, writer.getFrameCount());
+    }
+
+    /**
+     * Requests sent in bursts to a socketpair standing in for rild, which
+     * answers every frame with its 4-byte serial. Compares writing the length
+     * and the payload of each request separately with coalescing each burst
+     * into one write.
+     */
+    @Test
+    @LargeTest
+    public void testSocketPairRequestLatency() throws Exception {
+        final int bursts = 5000;
+        final int burstSize = 8;
+        for (boolean coalesce : new boolean[] {false, true}) {
+            FileDescriptor rild = new FileDescriptor();
+            FileDescriptor rilj = new FileDescriptor();
+            Os.socketpair(OsConstants.AF_UNIX, OsConstants.SOCK_STREAM, 0, rild, rilj);
+
+            final FileInputStream rildIn = new FileInputStream(rild);
+            final FileOutputStream rildOut = new FileOutputStream(rild);
+            Thread rildThread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        RilFrameReader reader = new RilFrameReader(rildIn, MAX_FRAME, BUFFER);
+                        while (reader.readFrame() >= 0) {
+                            rildOut.write(reader.getBuffer(), reader.getFrameOffset(), 4);
+                        }
+                    } catch (IOException e) {
+                        Rlog.e(TAG, "rild stand-in failed", e);
+                    }
+                }
+            };
+            rildThread.start();
+
+            FileOutputStream os = new FileOutputStream(rilj);
+            DataInputStream is = new DataInputStream(new FileInputStream(rilj));
+            RilFrameWriter writer = new RilFrameWriter(MAX_FRAME, BUFFER);
+            byte[] header = new byte[4];
+            byte[] data = payload(64, 0);
+            long[] latencies = new long[bursts * burstSize];
+            int serial = 0;
+
+            long start = System.nanoTime();
+            for (int b = 0; b < bursts; b++) {
+                long sent = System.nanoTime();
+                for (int i = 0; i < burstSize; i++, serial++) {
+                    data[0] = (byte) (serial >>> 24);
+                    data[1] = (byte) (serial >>> 16);
+                    data[2] = (byte) (serial >>> 8);
+                    data[3] = (byte) serial;
+                    if (coalesce) {
+                        writer.append(data);
+                    } else {
+                        header[2] = (byte) (data.length >>> 8);
+                        header[3] = (byte) data.length;
+                        os.write(header);
+                        os.write(data);
+                    }
+                }
+                if (coalesce) {
+                    writer.writeTo(os);
+                }
+                for (int i = burstSize; i > 0; i--) {
+                    assertEquals(serial - i, is.readInt());
+                    latencies[serial - i] = System.nanoTime() - sent;
+                }
+            }
+            long elapsedNs = System.nanoTime() - start;
+            Os.close(rilj);
+            rildThread.join();
+            Os.close(rild);
+
+            Arrays.sort(latencies);
+            Rlog.d(TAG, "coalesce=" + coalesce + " requests/sec="
+                    + (latencies.length * 1000000000L / Math.max(elapsedNs, 1))
+                    + " p50=" + latencies[latencies.length / 2] / 1000 + "us"
+                    + " p99=" + latencies[latencies.length * 99 / 100] / 1000 + "us"
+                    + (coalesce ? " writes=" + writer.getWriteCount() : ""));
+        }
+    }
+}
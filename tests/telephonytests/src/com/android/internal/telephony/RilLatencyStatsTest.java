@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.telephony.Rlog;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+
+import static com.android.internal.telephony.RILConstants.*;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RilLatencyStatsTest {
+    private static final String TAG = "RilLatencyStatsTest";
+
+    private RilLatencyStats mStats;
+
+    @Before
+    public void setUp() throws Exception {
+        mStats = new RilLatencyStats();
+    }
+
+    @Test
+    @SmallTest
+    public void testPercentiles() {
+        assertEquals(0, mStats.getPercentile(RIL_REQUEST_SIGNAL_STRENGTH, 50));
+
+        for (int i = 0; i < 98; i++) {
+            mStats.onResponse(RIL_REQUEST_SIGNAL_STRENGTH, 0, 15);
+        }
+        mStats.onResponse(RIL_REQUEST_SIGNAL_STRENGTH, 0, 400);
+        mStats.onResponse(RIL_REQUEST_SIGNAL_STRENGTH, 0, 90000);
+
+        assertEquals(100, mStats.getCount(RIL_REQUEST_SIGNAL_STRENGTH));
+        assertEquals(20, mStats.getPercentile(RIL_REQUEST_SIGNAL_STRENGTH, 50));
+        assertEquals(20, mStats.getPercentile(RIL_REQUEST_SIGNAL_STRENGTH, 98));
+        assertEquals(500, mStats.getPercentile(RIL_REQUEST_SIGNAL_STRENGTH, 99));
+        // beyond the last bound the longest response is reported
+        assertEquals(90000, mStats.getPercentile(RIL_REQUEST_SIGNAL_STRENGTH, 100));
+
+        // other types are counted separately
+        assertEquals(0, mStats.getCount(RIL_REQUEST_DIAL));
+    }
+
+    @Test
+    @SmallTest
+    public void testTimeoutsAndUnknownRequests() {
+        mStats.onTimeout(RIL_REQUEST_GET_ACTIVITY_INFO);
+        assertEquals(1, mStats.getTimeoutCount(RIL_REQUEST_GET_ACTIVITY_INFO));
+        assertEquals(0, mStats.getCount(RIL_REQUEST_GET_ACTIVITY_INFO));
+
+        // codes past the table share one slot
+        mStats.onResponse(RIL_RESPONSE_ACKNOWLEDGEMENT, 0, 3);
+        mStats.onResponse(RilLatencyStats.MAX_REQUEST + 1, 0, 3);
+        assertEquals(2, mStats.getCount(RIL_RESPONSE_ACKNOWLEDGEMENT));
+
+        StringWriter sw = new StringWriter();
+        mStats.dump(new PrintWriter(sw));
+        assertTrue(sw.toString().contains("OTHER count=2"));
+        assertTrue(sw.toString().contains("timeouts=1"));
+    }
+
+    /**
+     * Several threads recording responses at once, as RILReceiver does while
+     * dump() reads the histograms.
+     */
+    @Test
+    @LargeTest
+    public void testConcurrentRecordBenchmark() throws Exception {
+        final int threads = 4;
+        final int responses = 500000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < responses; i++) {
+                            mStats.onResponse(RIL_REQUEST_SIGNAL_STRENGTH, 1, i % 1000);
+                        }
+                    } catch (InterruptedException e) {
+                        Rlog.e(TAG, "interrupted", e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        long startNs = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsedNs = System.nanoTime() - startNs;
+
+        long total = (long) threads * responses;
+        assertEquals(total, mStats.getCount(RIL_REQUEST_SIGNAL_STRENGTH));
+        Rlog.d(TAG, threads + " threads: " + (elapsedNs / total) + " ns/response, p99="
+                + mStats.getPercentile(RIL_REQUEST_SIGNAL_STRENGTH, 99));
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.telephony.Rlog;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.android.internal.telephony.RILConstants.*;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class RilRequestTableTest {
+    private static final String TAG = "RilRequestTableTest";
+
+    private static RILRequest[] obtain(int count) {
+        RILRequest[] requests = new RILRequest[count];
+        for (int i = 0; i < count; i++) {
+            requests[i] = RILRequest.obtain(RIL_REQUEST_SIGNAL_STRENGTH, null);
+        }
+        return requests;
+    }
+
+    private static void release(RILRequest[] requests) {
+        for (RILRequest rr : requests) {
+            rr.release();
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testPutGetRemove() {
+        RilRequestTable table = new RilRequestTable(8);
+        RILRequest[] requests = obtain(3);
+        for (RILRequest rr : requests) {
+            table.put(rr);
+        }
+        assertEquals(3, table.size());
+        assertSame(requests[1], table.get(requests[1].mSerial));
+        assertSame(requests[1], table.remove(requests[1].mSerial));
+        assertNull(table.get(requests[1].mSerial));
+        assertNull(table.remove(requests[1].mSerial));
+        // a serial sharing the slot of an outstanding request is not found
+        assertNull(table.get(requests[0].mSerial + 8));
+        assertEquals(2, table.size());
+        assertEquals(0, table.getOverflowCount());
+        release(requests);
+    }
+
+    @Test
+    @SmallTest
+    public void testOverflowAndRemoveAll() {
+        RilRequestTable table = new RilRequestTable(4);
+        // more outstanding requests than slots
+        RILRequest[] requests = obtain(6);
+        for (RILRequest rr : requests) {
+            table.put(rr);
+        }
+        assertEquals(6, table.size());
+        assertEquals(2, table.getOverflowCount());
+        for (RILRequest rr : requests) {
+            assertSame(rr, table.get(rr.mSerial));
+        }
+        assertEquals(6, table.snapshot().size());
+
+        assertSame(requests[5], table.remove(requests[5].mSerial));
+        ArrayList<RILRequest> removed = table.removeAll();
+        assertEquals(5, removed.size());
+        assertEquals(0, table.size());
+        assertNull(table.get(requests[4].mSerial));
+        release(requests);
+    }
+
+    /**
+     * A sender thread adding requests while a receiver thread removes them as
+     * their responses would arrive, with up to 64 outstanding, compared with
+     * a SparseArray under a lock as RIL used.
+     */
+    @Test
+    @LargeTest
+    public void testSenderReceiverContentionBenchmark() throws Exception {
+        final int count = 200000;
+        final int window = 64;
+        final RILRequest[] requests = obtain(count);
+
+        for (final boolean locked : new boolean[] {true, false}) {
+            final SparseArray<RILRequest> list = new SparseArray<RILRequest>();
+            final RilRequestTable table = new RilRequestTable(RIL.RIL_REQUEST_TABLE_SIZE);
+            final AtomicInteger removed = new AtomicInteger();
+
+            Thread receiver = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < count; i++) {
+                        int serial = requests[i].mSerial;
+                        RILRequest rr;
+                        do {
+                            if (locked) {
+                                synchronized (list) {
+                                    rr = list.get(serial);
+                                    if (rr != null) {
+                                        list.remove(serial);
+                                    }
+                                }
+                            } else {
+                                rr = table.remove(serial);
+                            }
+                        } while (rr == null);
+                        removed.set(i + 1);
+                    }
+                }
+            };
+
+            long start = System.nanoTime();
+            receiver.start();
+            for (int i = 0; i < count; i++) {
+                while (i - removed.get() >= window) {
+                    // wait for responses, as the modem limits outstanding requests
+                }
+                if (locked) {
+                    synchronized (list) {
+                        list.append(requests[i].mSerial, requests[i]);
+                    }
+                } else {
+                    table.put(requests[i]);
+                }
+            }
+            receiver.join();
+            long elapsedNs = System.nanoTime() - start;
+
+            if (!locked) {
+                assertEquals(0, table.size());
+                assertEquals(0, table.getOverflowCount());
+            }
+            Rlog.d(TAG, (locked ? "SparseArray" : "RilRequestTable") + ": "
+                    + (elapsedNs / count) + " ns/request");
+        }
+        release(requests);
+    }
+}
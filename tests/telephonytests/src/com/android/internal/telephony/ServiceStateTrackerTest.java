@@ -26,14 +26,17 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Parcel;
+import android.os.PersistableBundle;
 import android.os.SystemClock;
 import android.os.UserHandle;
+import android.telephony.CarrierConfigManager;
 import android.telephony.CellInfo;
 import android.telephony.CellInfoGsm;
 import android.telephony.ServiceState;
 import android.telephony.SignalStrength;
 import android.telephony.SubscriptionManager;
 import android.telephony.gsm.GsmCellLocation;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.MediumTest;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.util.Pair;
@@ -62,6 +65,7 @@ import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -88,6 +92,7 @@ public class ServiceStateTrackerTest extends TelephonyTest {
     private static final int EVENT_DATA_RAT_CHANGED = 7;
     private static final int EVENT_PS_RESTRICT_ENABLED = 8;
     private static final int EVENT_PS_RESTRICT_DISABLED = 9;
+    private static final int EVENT_CELL_INFO_LIST = 10;
 
     private class ServiceStateTrackerTestHandler extends HandlerThread {
 
@@ -256,6 +261,116 @@ public class ServiceStateTrackerTest extends TelephonyTest {
         assertEquals(sst.getAllCellInfo(), list);
     }
 
+    @Test
+    @MediumTest
+    public void testCellInfoListCached() {
+        ArrayList<CellInfo> list = new ArrayList<CellInfo>();
+        list.add(new CellInfoGsm());
+        mSimulatedCommands.setCellInfoList(list);
+        sst.setCellInfoListMaxAge(60 * 1000);
+
+        sst.requestAllCellInfo(Message.obtain(mTestHandler, EVENT_CELL_INFO_LIST));
+        waitForMs(200);
+
+        // the modem is not asked again while the list is recent
+        mSimulatedCommands.setCellInfoList(new ArrayList<CellInfo>());
+        assertEquals(list, sst.getAllCellInfo());
+        sst.requestAllCellInfo(Message.obtain(mTestHandler, EVENT_CELL_INFO_LIST));
+        waitForMs(200);
+
+        ArgumentCaptor<Message> messageArgumentCaptor = ArgumentCaptor.forClass(Message.class);
+        verify(mTestHandler, times(2)).sendMessageAtTime(messageArgumentCaptor.capture(),
+                anyLong());
+        for (Message msg : messageArgumentCaptor.getAllValues()) {
+            assertEquals(EVENT_CELL_INFO_LIST, msg.what);
+            assertEquals(list, ((AsyncResult) msg.obj).result);
+        }
+
+        sst.setCellInfoListMaxAge(0);
+        waitForMs(10);
+        assertEquals(0, sst.getAllCellInfo().size());
+    }
+
+    @Test
+    @MediumTest
+    public void testCellInfoListRequestsCoalesced() throws Exception {
+        ArrayList<CellInfo> list = new ArrayList<CellInfo>();
+        list.add(new CellInfoGsm());
+        mSimulatedCommands.setCellInfoList(list);
+        sst.setCellInfoListMaxAge(0);
+        int callCount = mSimulatedCommands.getGetCellInfoListCallCount();
+
+        // stale callers, async and blocking, while the modem has not answered yet
+        mSimulatedCommands.pauseResponses();
+        for (int i = 0; i < 3; i++) {
+            sst.requestAllCellInfo(Message.obtain(mTestHandler, EVENT_CELL_INFO_LIST));
+        }
+        final Object[] results = new Object[2];
+        Thread[] callers = new Thread[results.length];
+        for (int i = 0; i < callers.length; i++) {
+            final int index = i;
+            callers[i] = new Thread() {
+                @Override
+                public void run() {
+                    results[index] = sst.getAllCellInfo();
+                }
+            };
+            callers[i].start();
+        }
+        waitForMs(200);
+        assertEquals(callCount + 1, mSimulatedCommands.getGetCellInfoListCallCount());
+
+        mSimulatedCommands.resumeResponses();
+        for (Thread caller : callers) {
+            caller.join(1000);
+        }
+        waitForMs(200);
+
+        // every caller gets the one result
+        assertEquals(callCount + 1, mSimulatedCommands.getGetCellInfoListCallCount());
+        for (Object result : results) {
+            assertEquals(list, result);
+        }
+        ArgumentCaptor<Message> messageArgumentCaptor = ArgumentCaptor.forClass(Message.class);
+        verify(mTestHandler, times(3)).sendMessageAtTime(messageArgumentCaptor.capture(),
+                anyLong());
+        for (Message msg : messageArgumentCaptor.getAllValues()) {
+            assertEquals(EVENT_CELL_INFO_LIST, msg.what);
+            assertEquals(list, ((AsyncResult) msg.obj).result);
+        }
+    }
+
+    @Test
+    @MediumTest
+    public void testCellInfoListTimedOutRequestReplaced() {
+        ArrayList<CellInfo> list = new ArrayList<CellInfo>();
+        list.add(new CellInfoGsm());
+        mSimulatedCommands.setCellInfoList(list);
+        sst.setCellInfoListMaxAge(0);
+        sst.setCellInfoListQueryTimeout(100);
+        int callCount = mSimulatedCommands.getGetCellInfoListCallCount();
+
+        mSimulatedCommands.pauseResponses();
+        sst.requestAllCellInfo(Message.obtain(mTestHandler, EVENT_CELL_INFO_LIST));
+        waitForMs(200);
+
+        // the unanswered request is sent again and carries the earlier caller along
+        sst.requestAllCellInfo(Message.obtain(mTestHandler, EVENT_CELL_INFO_LIST));
+        assertEquals(callCount + 2, mSimulatedCommands.getGetCellInfoListCallCount());
+
+        mSimulatedCommands.resumeResponses();
+        waitForMs(200);
+
+        // each caller is answered once
+        ArgumentCaptor<Message> messageArgumentCaptor = ArgumentCaptor.forClass(Message.class);
+        verify(mTestHandler, times(2)).sendMessageAtTime(messageArgumentCaptor.capture(),
+                anyLong());
+        for (Message msg : messageArgumentCaptor.getAllValues()) {
+            assertEquals(EVENT_CELL_INFO_LIST, msg.what);
+            assertEquals(list, ((AsyncResult) msg.obj).result);
+        }
+    }
+
     @Test
     @MediumTest
     public void testImsRegState() {
@@ -321,6 +436,46 @@ public class ServiceStateTrackerTest extends TelephonyTest {
         assertEquals(sst.getSignalStrength().isGsm(), false);
     }
 
+    /**
+     * updateRoamingState() and setRoamingType() on every poll, for a carrier with a long list of
+     * roaming partners. The carrier config is only read once after it changes.
+     */
+    @Test
+    @LargeTest
+    public void testRoamingStateBenchmark() {
+        final int partners = 2000;
+        final int iterations = 5000;
+        String[] networks = new String[partners];
+        for (int i = 0; i < partners; i++) {
+            networks[i] = Integer.toString(200000 + i);
+        }
+        PersistableBundle bundle = mContextFixture.getCarrierConfigBundle();
+        bundle.putStringArray(CarrierConfigManager.KEY_GSM_ROAMING_NETWORKS_STRING_ARRAY,
+                networks);
+        bundle.putStringArray(CarrierConfigManager.KEY_GSM_NONROAMING_NETWORKS_STRING_ARRAY,
+                networks);
+        // a manager of its own so that only the reads made from here on are counted
+        CarrierConfigManager carrierConfigManager = mock(CarrierConfigManager.class);
+        doReturn(bundle).when(carrierConfigManager).getConfigForSubId(anyInt());
+        mContextFixture.setSystemService(Context.CARRIER_CONFIG_SERVICE, carrierConfigManager);
+        mContext.sendBroadcast(new Intent(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED));
+        waitForMs(100);
+        ServiceState ss = new ServiceState(sst.mSS);
+        ss.setVoiceRegState(ServiceState.STATE_IN_SERVICE);
+        ss.setVoiceRoaming(true);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sst.updateRoamingState();
+            sst.setRoamingType(ss);
+        }
+        long elapsedNs = System.nanoTime() - start;
+
+        logd(partners + " partners: " + (elapsedNs / iterations)
+                + " ns per updateRoamingState() and setRoamingType()");
+        verify(carrierConfigManager, times(1)).getConfigForSubId(anyInt());
+    }
+
     @Test
     @MediumTest
     public void testGsmCellLocation() {
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import static com.android.internal.telephony.SignalStrengthPollScheduler.*;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SignalStrengthPollSchedulerTest {
+    private SignalStrengthPollScheduler mScheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        mScheduler = new SignalStrengthPollScheduler(0);
+    }
+
+    @Test
+    @SmallTest
+    public void testBackOffWhileStable() {
+        assertEquals(DEFAULT_PERIOD_MILLIS, mScheduler.getNextPollDelay(0));
+
+        for (int i = 0; i < STABLE_READINGS_BEFORE_BACKOFF; i++) {
+            mScheduler.onPollResult(false);
+        }
+        assertEquals(2 * DEFAULT_PERIOD_MILLIS, mScheduler.getNextPollDelay(0));
+
+        for (int i = 0; i < 100; i++) {
+            mScheduler.onPollResult(false);
+        }
+        assertEquals(MAX_STABLE_PERIOD_MILLIS, mScheduler.getNextPollDelay(0));
+
+        // a change brings the default rate back
+        mScheduler.onPollResult(true);
+        assertEquals(DEFAULT_PERIOD_MILLIS, mScheduler.getNextPollDelay(0));
+    }
+
+    @Test
+    @SmallTest
+    public void testScreenOffAndHandover() {
+        mScheduler.onHandover(1000);
+        assertEquals(HANDOVER_PERIOD_MILLIS, mScheduler.getNextPollDelay(1000));
+        assertEquals(DEFAULT_PERIOD_MILLIS,
+                mScheduler.getNextPollDelay(1000 + HANDOVER_WINDOW_MILLIS));
+
+        mScheduler.setScreenOn(false);
+        mScheduler.onHandover(2000);
+        assertEquals(SCREEN_OFF_PERIOD_MILLIS, mScheduler.getNextPollDelay(2000));
+        mScheduler.setScreenOn(true);
+        assertEquals(HANDOVER_PERIOD_MILLIS, mScheduler.getNextPollDelay(2000));
+    }
+
+    @Test
+    @SmallTest
+    public void testPollsSaved() {
+        mScheduler.onPollResult(false);
+        assertEquals(10 - 1, mScheduler.getPollsSaved(10 * DEFAULT_PERIOD_MILLIS));
+        assertEquals(1, mScheduler.getPollCount());
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.SMSDispatcher.SmsTracker;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SmsDeliveryPendingIndexTest {
+    private static final long TTL = 1000;
+
+    private SmsDeliveryPendingIndex mIndex;
+
+    @Before
+    public void setUp() throws Exception {
+        mIndex = new SmsDeliveryPendingIndex(TTL);
+    }
+
+    private static SmsTracker makeTracker(int messageRef) {
+        SmsTracker tracker = mock(SmsTracker.class);
+        tracker.mMessageRef = messageRef;
+        return tracker;
+    }
+
+    @Test
+    @SmallTest
+    public void testLookupByMessageRef() {
+        SmsTracker first = makeTracker(1);
+        SmsTracker second = makeTracker(2);
+        mIndex.add(first, 0);
+        mIndex.add(second, 0);
+        assertEquals(2, mIndex.size());
+
+        assertSame(second, mIndex.get(2));
+        assertNull(mIndex.get(3));
+        // a pending status report leaves the tracker in place
+        assertSame(second, mIndex.get(2));
+
+        assertSame(second, mIndex.remove(2));
+        assertNull(mIndex.get(2));
+        assertNull(mIndex.remove(2));
+        assertEquals(1, mIndex.size());
+        assertEquals(1, mIndex.getMatchedCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testSharedMessageRefOldestFirst() {
+        SmsTracker older = makeTracker(7);
+        SmsTracker newer = makeTracker(7);
+        mIndex.add(older, 0);
+        mIndex.add(makeTracker(8), 5);
+        mIndex.add(newer, 10);
+
+        assertSame(older, mIndex.remove(7));
+        assertSame(newer, mIndex.get(7));
+        assertSame(newer, mIndex.remove(7));
+        assertNull(mIndex.get(7));
+        assertEquals(1, mIndex.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testExpiry() {
+        SmsTracker first = makeTracker(1);
+        SmsTracker second = makeTracker(2);
+        SmsTracker third = makeTracker(1);
+        mIndex.add(first, 0);
+        mIndex.add(second, 100);
+        mIndex.add(third, 200);
+
+        assertEquals(TTL, mIndex.getNextExpiryTime());
+        assertEquals(500, mIndex.getOldestAge(500));
+        assertTrue(mIndex.removeExpired(TTL - 1).isEmpty());
+
+        List<SmsTracker> expired = mIndex.removeExpired(TTL + 100);
+        assertEquals(2, expired.size());
+        assertSame(first, expired.get(0));
+        assertSame(second, expired.get(1));
+        assertEquals(2, mIndex.getExpiredCount());
+
+        // the newer tracker with the expired one's message reference is still found
+        assertSame(third, mIndex.get(1));
+        assertEquals(200 + TTL, mIndex.getNextExpiryTime());
+
+        // removing by message reference moves the next expiry on
+        assertSame(third, mIndex.remove(1));
+        assertEquals(0, mIndex.size());
+        assertEquals(-1, mIndex.getNextExpiryTime());
+        assertEquals(0, mIndex.getOldestAge(5000));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SmsReassemblyIndexTest {
+    private static final String FAKE_ADDRESS = "1234567890";
+    private static final int FAKE_REFERENCE_NUMBER = 42;
+    private static final int FAKE_MESSAGE_COUNT = 3;
+
+    private SmsReassemblyIndex mIndex;
+
+    @Before
+    public void setUp() throws Exception {
+        mIndex = new SmsReassemblyIndex();
+    }
+
+    private static InboundSmsTracker makeSegment(int referenceNumber, int sequenceNumber) {
+        return new InboundSmsTracker(new byte[]{(byte) sequenceNumber}, 1000L, -1, false,
+                FAKE_ADDRESS, referenceNumber, sequenceNumber, FAKE_MESSAGE_COUNT, false,
+                "part " + sequenceNumber);
+    }
+
+    private int lookup(InboundSmsTracker tracker, byte[][] pdus) {
+        return mIndex.lookup(tracker, pdus, new int[]{-1});
+    }
+
+    @Test
+    @SmallTest
+    public void testCompleteAfterAllSegments() {
+        mIndex.setPrimed();
+        InboundSmsTracker[] segments = new InboundSmsTracker[FAKE_MESSAGE_COUNT];
+        for (int i = 0; i < FAKE_MESSAGE_COUNT; i++) {
+            segments[i] = makeSegment(FAKE_REFERENCE_NUMBER, i + 1);
+        }
+
+        byte[][] pdus = new byte[FAKE_MESSAGE_COUNT][];
+        mIndex.recordSegment(segments[0]);
+        assertEquals(SmsReassemblyIndex.LOOKUP_INCOMPLETE, lookup(segments[0], pdus));
+        mIndex.recordSegment(segments[2]);
+        mIndex.recordSegment(segments[1]);
+        assertEquals(SmsReassemblyIndex.LOOKUP_COMPLETE, lookup(segments[2], pdus));
+        for (int i = 0; i < FAKE_MESSAGE_COUNT; i++) {
+            assertEquals(i + 1, pdus[i][0]);
+        }
+
+        // the remaining event finds the message already dispatched, then the entry is dropped
+        assertEquals(SmsReassemblyIndex.LOOKUP_DISPATCHED, lookup(segments[1], pdus));
+        assertEquals(0, mIndex.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testUnprimedIncompleteNeedsRawTable() {
+        InboundSmsTracker segment = makeSegment(FAKE_REFERENCE_NUMBER, 1);
+        mIndex.recordSegment(segment);
+        byte[][] pdus = new byte[FAKE_MESSAGE_COUNT][];
+        assertEquals(SmsReassemblyIndex.LOOKUP_UNKNOWN, lookup(segment, pdus));
+
+        // rows found in the raw table make the entry authoritative
+        byte[][] stored = new byte[FAKE_MESSAGE_COUNT][];
+        stored[0] = segment.getPdu();
+        mIndex.setVerifiedSegments(segment, stored, -1);
+        assertEquals(SmsReassemblyIndex.LOOKUP_INCOMPLETE, lookup(segment, pdus));
+    }
+
+    @Test
+    @SmallTest
+    public void testSeededSegmentsComplete() {
+        mIndex.seedSegment(makeSegment(FAKE_REFERENCE_NUMBER, 1));
+        mIndex.seedSegment(makeSegment(FAKE_REFERENCE_NUMBER, 2));
+        mIndex.setPrimed();
+
+        InboundSmsTracker last = makeSegment(FAKE_REFERENCE_NUMBER, 3);
+        mIndex.recordSegment(last);
+        assertEquals(SmsReassemblyIndex.LOOKUP_COMPLETE,
+                lookup(last, new byte[FAKE_MESSAGE_COUNT][]));
+    }
+
+    @Test
+    @SmallTest
+    public void testEvictedKeyIsNotTrusted() {
+        mIndex.setPrimed();
+        InboundSmsTracker first = makeSegment(0, 1);
+        mIndex.recordSegment(first);
+        for (int i = 1; i <= SmsReassemblyIndex.MAX_ENTRIES; i++) {
+            mIndex.recordSegment(makeSegment(i, 1));
+        }
+        assertEquals(SmsReassemblyIndex.MAX_ENTRIES, mIndex.size());
+
+        // the first message was evicted, its next segment cannot be trusted to be the only one
+        InboundSmsTracker second = makeSegment(0, 2);
+        mIndex.recordSegment(second);
+        assertEquals(SmsReassemblyIndex.LOOKUP_UNKNOWN,
+                lookup(second, new byte[FAKE_MESSAGE_COUNT][]));
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Looper;
+import android.provider.Settings;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test cases for the per-application send limit and short code cache in SmsUsageMonitor.
+ */
+public class SmsUsageMonitorTest extends AndroidTestCase {
+    private static final String TAG = "SmsUsageMonitorTest";
+
+    private SmsUsageMonitor mMonitor;
+    private int mMaxAllowed;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // InstrumentationTestRunner prepares a looper, but AndroidJUnitRunner does not.
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+        mMonitor = new SmsUsageMonitor(getContext());
+        mMaxAllowed = Settings.Global.getInt(getContext().getContentResolver(),
+                Settings.Global.SMS_OUTGOING_CHECK_MAX_COUNT, 30);
+    }
+
+    @SmallTest
+    public void testLimitPerApp() {
+        assertTrue(mMonitor.check("com.example.a", mMaxAllowed - 1));
+        assertFalse(mMonitor.check("com.example.a", 2));
+        assertTrue(mMonitor.check("com.example.a", 1));
+        assertFalse(mMonitor.check("com.example.a", 1));
+
+        // other apps have their own limit
+        assertTrue(mMonitor.check("com.example.b", mMaxAllowed));
+        assertFalse(mMonitor.check("com.example.b", 1));
+        assertFalse(mMonitor.check("com.example.c", mMaxAllowed + 1));
+        assertTrue(mMonitor.check(null, 1));
+    }
+
+    /**
+     * Many apps checking their limit at the same time from several threads, as binder threads
+     * do when several apps send at once.
+     */
+    @LargeTest
+    public void testConcurrentCheckBenchmark() throws Exception {
+        final int threads = 8;
+        final int appsPerThread = 64;
+        final int checksPerThread = 200000;
+        final AtomicInteger allowed = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            final String[] apps = new String[appsPerThread];
+            for (int i = 0; i < appsPerThread; i++) {
+                apps[i] = "com.example.sender" + t + "." + i;
+            }
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        int count = 0;
+                        for (int i = 0; i < checksPerThread; i++) {
+                            if (mMonitor.check(apps[i % appsPerThread], 1)) {
+                                count++;
+                            }
+                        }
+                        allowed.addAndGet(count);
+                    } catch (InterruptedException e) {
+                        Log.e(TAG, "interrupted", e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        long startNs = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsedNs = System.nanoTime() - startNs;
+
+        long checks = (long) threads * checksPerThread;
+        Log.d(TAG, threads + " threads, " + (threads * appsPerThread) + " apps: "
+                + (elapsedNs / checks) + " ns/check, "
+                + (checks * 1000000000L / elapsedNs) + " checks/s");
+        // each app gets its full quota, unless the check period ran out during the test
+        assertTrue(allowed.get() >= threads * appsPerThread * mMaxAllowed);
+    }
+
+    /**
+     * Switching between countries must give the answers a freshly loaded monitor gives. A
+     * null country keeps the patterns of the last known one, so for null the fresh monitor
+     * is first given that country.
+     */
+    @SmallTest
+    public void testClassificationAcrossCountries() {
+        String[] countries = {"us", "gb", "us", "fr", null, "gb"};
+        String[] destinations = {"99000", "87654", "80080", "112", "18001234567"};
+        String lastCountry = null;
+        for (String country : countries) {
+            SmsUsageMonitor fresh = new SmsUsageMonitor(getContext());
+            if (country == null && lastCountry != null) {
+                fresh.checkDestination(destinations[0], lastCountry);
+            } else {
+                lastCountry = country;
+            }
+            for (String dest : destinations) {
+                int expected = fresh.checkDestination(dest, country);
+                assertEquals(country + " " + dest, expected,
+                        mMonitor.checkDestination(dest, country));
+                // the second answer comes from the cache
+                assertEquals(country + " " + dest, expected,
+                        mMonitor.checkDestination(dest, country));
+            }
+            fresh.dispose();
+        }
+    }
+
+    /**
+     * Classifying the destinations of a few conversations in a country, as every premium SMS
+     * check does.
+     */
+    @LargeTest
+    public void testCheckDestinationBenchmark() {
+        final int iterations = 20000;
+        String[] destinations = {"99000", "87654", "80080", "611", "18001234567", "4567"};
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            mMonitor.checkDestination(destinations[i % destinations.length], "us");
+        }
+        long elapsedNs = System.nanoTime() - start;
+        Log.d(TAG, "checkDestination: " + (elapsedNs / iterations) + " ns/check");
+    }
+}
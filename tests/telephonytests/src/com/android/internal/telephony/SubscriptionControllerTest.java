@@ -22,10 +22,13 @@ import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Debug;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.test.mock.MockContentProvider;
 import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
@@ -40,7 +43,9 @@ import android.telephony.SubscriptionManager;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class SubscriptionControllerTest extends TelephonyTest {
 
@@ -48,6 +53,7 @@ public class SubscriptionControllerTest extends TelephonyTest {
     private String mCallingPackage;
     private SubscriptionController mSubscriptionControllerUT;
     private MockContentResolver mMockContentResolver;
+    private FakeSubscriptionContentProvider mFakeProvider;
 
     @Mock private List<SubscriptionInfo> mSubList;
     @Mock private AppOpsManager mAppOps;
@@ -56,6 +62,7 @@ public class SubscriptionControllerTest extends TelephonyTest {
 
         private ArrayList<ContentValues> mSubscriptionArray =
                 new ArrayList<ContentValues>();
+        private int mQueryCount;
 
         private String[] mKeyMappingSet = new String[]{
                 SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID,
@@ -112,6 +119,7 @@ public class SubscriptionControllerTest extends TelephonyTest {
         @Override
         public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                             String sortOrder) {
+            mQueryCount++;
             if (mSubscriptionArray.size() > 0) {
                 return convertFromContentToCursor(mSubscriptionArray.get(0));
             }
@@ -157,8 +165,9 @@ public class SubscriptionControllerTest extends TelephonyTest {
 
         mSubscriptionControllerUT.getInstance().updatePhonesAvailability(new Phone[]{mPhone});
         mMockContentResolver = (MockContentResolver) mContext.getContentResolver();
+        mFakeProvider = new FakeSubscriptionContentProvider();
         mMockContentResolver.addProvider(SubscriptionManager.CONTENT_URI.getAuthority(),
-                new FakeSubscriptionContentProvider());
+                mFakeProvider);
     }
 
     @After
@@ -288,6 +297,110 @@ public class SubscriptionControllerTest extends TelephonyTest {
                 captorIntent.getValue().getAction());
     }
 
+    @Test @SmallTest
+    public void testSubInfoSnapshot() {
+        testInsertSim();
+        int subId = mSubscriptionControllerUT.getActiveSubIdList()[0];
+
+        // served from one query until the table changes
+        mFakeProvider.mQueryCount = 0;
+        for (int i = 0; i < 10; i++) {
+            assertEquals(1, mSubscriptionControllerUT
+                    .getActiveSubscriptionInfoList(mCallingPackage).size());
+            assertEquals(1, mSubscriptionControllerUT.getActiveSubInfoCount(mCallingPackage));
+            assertEquals(1, mSubscriptionControllerUT.getAllSubInfoCount(mCallingPackage));
+            mSubscriptionControllerUT.getSubscriptionProperty(subId,
+                    SubscriptionManager.CB_AMBER_ALERT, mCallingPackage);
+        }
+        assertEquals(1, mFakeProvider.mQueryCount);
+
+        // callers get their own copy of the list
+        mSubscriptionControllerUT.getActiveSubscriptionInfoList(mCallingPackage).clear();
+        assertEquals(1, mSubscriptionControllerUT.getActiveSubInfoCount(mCallingPackage));
+
+        // a write is seen by the next read
+        mSubscriptionControllerUT.setDisplayName("SNAPSHOT", subId);
+        assertEquals("SNAPSHOT", mSubscriptionControllerUT
+                .getActiveSubscriptionInfo(subId, mCallingPackage).getDisplayName());
+        mSubscriptionControllerUT.setSubscriptionProperty(subId,
+                SubscriptionManager.CB_AMBER_ALERT, "1");
+        assertEquals("1", mSubscriptionControllerUT.getSubscriptionProperty(subId,
+                SubscriptionManager.CB_AMBER_ALERT, mCallingPackage));
+        assertEquals(3, mFakeProvider.mQueryCount);
+    }
+
+    @Test @SmallTest
+    public void testSubInfoSnapshotAfterDirectUpdate() {
+        testInsertSim();
+        assertEquals(1, mSubscriptionControllerUT.getActiveSubInfoCount(mCallingPackage));
+
+        // SubscriptionInfoUpdater removing the SIM by writing the table itself
+        ContentValues value = new ContentValues(1);
+        value.put(SubscriptionManager.SIM_SLOT_INDEX, SubscriptionManager.INVALID_SIM_SLOT_INDEX);
+        mMockContentResolver.update(SubscriptionManager.CONTENT_URI, value, null, null);
+        mSubscriptionControllerUT.invalidateSubInfoSnapshot();
+
+        // read right away, before any content observer could have run
+        assertNull(mSubscriptionControllerUT.getActiveSubscriptionInfoList(mCallingPackage));
+        assertEquals(0, mSubscriptionControllerUT.getActiveSubInfoCount(mCallingPackage));
+        assertEquals(1, mSubscriptionControllerUT.getAllSubInfoCount(mCallingPackage));
+    }
+
+    @Test @SmallTest
+    public void testSlotSubIdIndex() {
+        Map<Integer, Integer> slotIdxToSubId = new HashMap<Integer, Integer>();
+        slotIdxToSubId.put(0, 7);
+        slotIdxToSubId.put(2, 3);
+        SubscriptionController.SlotSubIdIndex index =
+                new SubscriptionController.SlotSubIdIndex(slotIdxToSubId);
+
+        assertEquals(2, index.size());
+        assertArrayEquals(new int[] {7}, index.getSubIds(0));
+        assertNull(index.getSubIds(1));
+        assertArrayEquals(new int[] {3}, index.getSubIds(2));
+        assertNull(index.getSubIds(3));
+        assertNull(index.getSubIds(-1));
+        assertEquals(0, index.getSlotId(7, -1));
+        assertEquals(2, index.getSlotId(3, -1));
+        assertEquals(-1, index.getSlotId(1, -1));
+        assertTrue(index.containsSubId(3));
+        assertFalse(index.containsSubId(0));
+
+        // the same array is returned every time
+        assertSame(index.getSubIds(0), index.getSubIds(0));
+        assertEquals(0, SubscriptionController.SlotSubIdIndex.EMPTY.size());
+    }
+
+    @Test @LargeTest
+    public void testSlotSubIdLookupBenchmark() {
+        testInsertSim();
+        int subId = mSubscriptionControllerUT.getSubId(0)[0];
+        final int iterations = 100000;
+
+        // warm up
+        for (int i = 0; i < iterations; i++) {
+            mSubscriptionControllerUT.getSubId(0);
+            mSubscriptionControllerUT.getSlotId(subId);
+            mSubscriptionControllerUT.getPhoneId(subId);
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < iterations; i++) {
+            mSubscriptionControllerUT.getSubId(0);
+            mSubscriptionControllerUT.getSlotId(subId);
+            mSubscriptionControllerUT.getPhoneId(subId);
+        }
+        long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        Debug.stopAllocCounting();
+        int allocations = Debug.getThreadAllocCount();
+
+        Log.d(TAG, "slot/subId lookups: " + (elapsed / (3L * iterations)) + " ns/lookup, "
+                + allocations + " allocations in " + (3 * iterations) + " lookups");
+        assertEquals(0, allocations);
+    }
+
     @Test
     @SmallTest
     public void testSetDefaultDataSubId() throws Exception {
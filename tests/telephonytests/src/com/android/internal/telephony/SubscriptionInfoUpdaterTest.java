@@ -43,6 +43,7 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -59,6 +60,7 @@ import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -160,6 +162,13 @@ public class SubscriptionInfoUpdaterTest extends TelephonyTest {
         verify(mConfigManager).updateConfigForPhoneId(eq(0),
                 eq(IccCardConstants.INTENT_VALUE_ICC_ABSENT));
         verify(mSubscriptionController, times(1)).notifySubscriptionInfoChanged();
+
+        // listeners notified of the removal must not be served the old rows
+        InOrder inOrder = inOrder(mSubscriptionContent, mSubscriptionController);
+        inOrder.verify(mSubscriptionContent).put(eq(SubscriptionManager.SIM_SLOT_INDEX),
+                eq(SubscriptionManager.INVALID_SIM_SLOT_INDEX));
+        inOrder.verify(mSubscriptionController).invalidateSubInfoSnapshot();
+        inOrder.verify(mSubscriptionController).notifySubscriptionInfoChanged();
     }
 
     @Test
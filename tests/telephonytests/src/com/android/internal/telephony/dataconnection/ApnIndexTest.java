@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.telephony.ServiceState;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.PhoneConstants;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ApnIndexTest {
+
+    private static final int LTE_ONLY =
+            1 << (ServiceState.RIL_RADIO_TECHNOLOGY_LTE - 1);
+
+    private static ApnSetting createApnSetting(int id, String[] types, boolean carrierEnabled,
+            int bearerBitmask) {
+        return new ApnSetting(id, "44010", "name" + id, "apn" + id, "", "", "", "", "", "", "",
+                -1, types, "IP", "IP", carrierEnabled, 0, bearerBitmask, 0, false, 0, 0, 0, 0,
+                "", "");
+    }
+
+    @Test
+    @SmallTest
+    public void testGetApnsMatchesLinearScan() {
+        ApnSetting defaultAll = createApnSetting(1,
+                new String[] {PhoneConstants.APN_TYPE_DEFAULT}, true, 0);
+        ApnSetting mmsLte = createApnSetting(2,
+                new String[] {PhoneConstants.APN_TYPE_MMS}, true, LTE_ONLY);
+        ApnSetting wildcard = createApnSetting(3,
+                new String[] {PhoneConstants.APN_TYPE_ALL}, true, 0);
+        ApnSetting disabled = createApnSetting(4,
+                new String[] {PhoneConstants.APN_TYPE_DEFAULT}, false, 0);
+        ArrayList<ApnSetting> apns = new ArrayList<ApnSetting>(
+                Arrays.asList(defaultAll, mmsLte, wildcard, disabled));
+        ApnIndex index = new ApnIndex(apns);
+
+        assertEquals(4, index.size());
+        assertArrayEquals(new ApnSetting[] {defaultAll, wildcard},
+                index.getApns(PhoneConstants.APN_TYPE_DEFAULT));
+        // hipri is handled by default
+        assertArrayEquals(new ApnSetting[] {defaultAll, wildcard},
+                index.getApns(PhoneConstants.APN_TYPE_HIPRI));
+        assertArrayEquals(new ApnSetting[] {mmsLte, wildcard},
+                index.getApns(PhoneConstants.APN_TYPE_MMS, ServiceState.RIL_RADIO_TECHNOLOGY_LTE));
+        assertArrayEquals(new ApnSetting[] {wildcard},
+                index.getApns(PhoneConstants.APN_TYPE_MMS, ServiceState.RIL_RADIO_TECHNOLOGY_UMTS));
+
+        // same result every time, without filtering again
+        int lte = ServiceState.RIL_RADIO_TECHNOLOGY_LTE;
+        assertSame(index.getApns(PhoneConstants.APN_TYPE_MMS, lte),
+                index.getApns(PhoneConstants.APN_TYPE_MMS, lte));
+    }
+
+    @Test
+    @SmallTest
+    public void testGetById() {
+        ApnSetting first = createApnSetting(7, new String[] {PhoneConstants.APN_TYPE_DEFAULT},
+                true, 0);
+        ApnSetting duplicate = createApnSetting(7, new String[] {PhoneConstants.APN_TYPE_MMS},
+                true, 0);
+        ApnIndex index = new ApnIndex(Arrays.asList(first, duplicate));
+
+        assertSame(first, index.getById(7));
+        assertNull(index.getById(8));
+    }
+}
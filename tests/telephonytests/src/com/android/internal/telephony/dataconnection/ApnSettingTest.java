@@ -495,4 +495,63 @@ public class ApnSettingTest extends TelephonyTest {
                 isMetered(mContext, 4, isRoaming));
 
     }
-}
\ No newline at end of file
+
+    @Test
+    @SmallTest
+    public void testCanHandleType() throws Exception {
+        ApnSetting defaultMms = createApnSetting(
+                new String[]{PhoneConstants.APN_TYPE_DEFAULT, PhoneConstants.APN_TYPE_MMS});
+        assertTrue(defaultMms.canHandleType(PhoneConstants.APN_TYPE_DEFAULT));
+        assertTrue(defaultMms.canHandleType("MMS"));
+        // HIPRI is handled by DEFAULT
+        assertTrue(defaultMms.canHandleType(PhoneConstants.APN_TYPE_HIPRI));
+        assertFalse(defaultMms.canHandleType(PhoneConstants.APN_TYPE_DUN));
+        assertFalse(defaultMms.canHandleType(PhoneConstants.APN_TYPE_ALL));
+        assertFalse(defaultMms.canHandleType("xcap"));
+
+        ApnSetting wildcard = createApnSetting(new String[]{PhoneConstants.APN_TYPE_ALL});
+        assertEquals(ApnSetting.APN_TYPE_BITMASK_ALL, wildcard.typesBitmask);
+        assertTrue(wildcard.canHandleType(PhoneConstants.APN_TYPE_DUN));
+        assertTrue(wildcard.canHandleType("xcap"));
+
+        // types without a bit are matched by name
+        ApnSetting xcap = createApnSetting(new String[]{"XCAP"});
+        assertEquals(0, xcap.typesBitmask);
+        assertTrue(xcap.canHandleType("xcap"));
+        assertFalse(xcap.canHandleType(PhoneConstants.APN_TYPE_DEFAULT));
+    }
+
+    @Test
+    @SmallTest
+    public void testTypesOverlap() throws Exception {
+        ApnSetting defaultMms = createApnSetting(
+                new String[]{PhoneConstants.APN_TYPE_DEFAULT, PhoneConstants.APN_TYPE_MMS});
+        ApnSetting mmsSupl = createApnSetting(
+                new String[]{PhoneConstants.APN_TYPE_MMS, PhoneConstants.APN_TYPE_SUPL});
+        ApnSetting hipri = createApnSetting(new String[]{PhoneConstants.APN_TYPE_HIPRI});
+        ApnSetting wildcard = createApnSetting(new String[]{PhoneConstants.APN_TYPE_ALL});
+        ApnSetting xcap = createApnSetting(new String[]{"xcap"});
+
+        assertTrue(defaultMms.typesOverlap(mmsSupl));
+        // unlike canHandleType(), DEFAULT and HIPRI are different types here
+        assertFalse(defaultMms.typesOverlap(hipri));
+        assertTrue(wildcard.typesOverlap(hipri));
+        assertTrue(xcap.typesOverlap(wildcard));
+        assertTrue(xcap.typesOverlap(createApnSetting(new String[]{"xcap", "mms"})));
+        assertFalse(xcap.typesOverlap(mmsSupl));
+        assertFalse(wildcard.typesOverlap(createApnSetting(new String[0])));
+    }
+
+    @Test
+    @SmallTest
+    public void testGetApnTypeBitmask() throws Exception {
+        int mms = ApnSetting.getApnTypeBitmask(PhoneConstants.APN_TYPE_MMS);
+        assertTrue(mms != 0);
+        assertEquals(mms, ApnSetting.getApnTypeBitmask("MmS"));
+        assertEquals(mms | ApnSetting.getApnTypeBitmask(PhoneConstants.APN_TYPE_IMS),
+                createApnSetting(new String[]{PhoneConstants.APN_TYPE_MMS,
+                        PhoneConstants.APN_TYPE_IMS}).typesBitmask);
+        assertEquals(0, ApnSetting.getApnTypeBitmask(PhoneConstants.APN_TYPE_ALL));
+        assertEquals(0, ApnSetting.getApnTypeBitmask(null));
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.internal.telephony.CommandException;
+import com.android.internal.telephony.TelephonyTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.util.HashMap;
+
+import static com.android.internal.telephony.TelephonyTestUtils.waitForMs;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class SIMRecordsTest extends TelephonyTest {
+    private static final int EVENT_RECORDS_LOADED = 1;
+    // SIMRecords.EVENT_GET_ICCID_DONE
+    private static final int EVENT_GET_ICCID_DONE = 4;
+
+    private static final String ICCID = "89014103211118510720";
+    private static final String OTHER_ICCID = "89014103211118510721";
+    // EF_ICCID of ICCID, its digits swapped in each byte
+    private static final byte[] EF_ICCID = IccUtils.hexStringToBytes("98104130121181150270");
+    private static final byte[] GID1 = {0x12, 0x34};
+    private static final byte[] NEW_GID1 = {0x56, 0x78};
+    private static final int[] CACHED_EFS = {
+        IccConstants.EF_AD, IccConstants.EF_SPDI, IccConstants.EF_PNN, IccConstants.EF_SST,
+        IccConstants.EF_INFO_CPHS, IccConstants.EF_CSP_CPHS, IccConstants.EF_GID1,
+        IccConstants.EF_GID2
+    };
+
+    @Mock
+    private UiccCardApplication mUiccCardApplication;
+    @Mock
+    private IccFileHandler mIccFileHandler;
+    @Mock
+    private Handler mTestHandler;
+
+    private SIMRecords mSIMRecords;
+    private SIMRecordsTestHandlerThread mTestHandlerThread;
+    private File mFile;
+    // pending reads from the SIM by EF
+    private final HashMap<Integer, Message> mReads = new HashMap<Integer, Message>();
+
+    private class SIMRecordsTestHandlerThread extends HandlerThread {
+
+        private SIMRecordsTestHandlerThread(String name) {
+            super(name);
+        }
+
+        @Override
+        public void onLooperPrepared() {
+            mSIMRecords = new SIMRecords(mUiccCardApplication, mContext, mSimulatedCommands);
+            mSIMRecords.registerForRecordsLoaded(mTestHandler, EVENT_RECORDS_LOADED, null);
+            setReady(true);
+        }
+    }
+
+    private class ReadAnswer implements Answer<Void> {
+        @Override
+        public Void answer(InvocationOnMock invocation) {
+            Object[] args = invocation.getArguments();
+            synchronized (mReads) {
+                mReads.put((Integer) args[0], (Message) args[args.length - 1]);
+            }
+            return null;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(getClass().getSimpleName());
+        mFile = File.createTempFile("sim_ef_cache", null);
+        mFile.delete();
+
+        doReturn(mIccFileHandler).when(mUiccCardApplication).getIccFileHandler();
+        doReturn(0).when(mUiccCardApplication).getPhoneId();
+        doAnswer(new ReadAnswer()).when(mIccFileHandler).loadEFTransparent(anyInt(),
+                any(Message.class));
+        doAnswer(new ReadAnswer()).when(mIccFileHandler).loadEFLinearFixed(anyInt(),
+                anyInt(), any(Message.class));
+
+        mTestHandlerThread = new SIMRecordsTestHandlerThread(TAG);
+        mTestHandlerThread.start();
+        waitUntilReady();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mTestHandlerThread.quitSafely();
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private void saveCache(String iccId, byte[] gid1) {
+        SimEfCache cache = new SimEfCache(mFile);
+        cache.setIccId(iccId);
+        for (int efid : CACHED_EFS) {
+            cache.put(efid, efid == IccConstants.EF_GID1 ? gid1 : null);
+        }
+        cache.save();
+    }
+
+    private void loadIccId(byte[] efIccId) {
+        mSIMRecords.setEfCache(new SimEfCache(mFile));
+        // as if fetchSimRecords() had only asked for EF_ICCID
+        mSIMRecords.mRecordsRequested = true;
+        mSIMRecords.mRecordsToLoad = 1;
+
+        Message msg = mSIMRecords.obtainMessage(EVENT_GET_ICCID_DONE);
+        AsyncResult.forMessage(msg, efIccId, efIccId == null
+                ? new CommandException(CommandException.Error.GENERIC_FAILURE) : null);
+        msg.sendToTarget();
+        waitForMs(100);
+    }
+
+    private int getPendingReadCount() {
+        synchronized (mReads) {
+            return mReads.size();
+        }
+    }
+
+    // answers the pending reads of CACHED_EFS, only EF_GID1 being on the SIM
+    private void answerReads(byte[] gid1) {
+        for (int efid : CACHED_EFS) {
+            Message msg;
+            synchronized (mReads) {
+                msg = mReads.remove(efid);
+            }
+            if (efid == IccConstants.EF_GID1) {
+                AsyncResult.forMessage(msg, gid1, null);
+            } else {
+                AsyncResult.forMessage(msg, null, new IccFileNotFound(efid));
+            }
+            msg.sendToTarget();
+        }
+        waitForMs(100);
+    }
+
+    private void verifyRecordsLoaded(int count) {
+        verify(mTestHandler, times(count)).sendMessageAtTime(any(Message.class), anyLong());
+    }
+
+    @Test
+    @MediumTest
+    public void testCacheHit() {
+        saveCache(ICCID, GID1);
+        loadIccId(EF_ICCID);
+
+        // loaded from the cache while the SIM reads are still pending
+        verifyRecordsLoaded(1);
+        assertEquals("1234", mSIMRecords.getGid1());
+        assertEquals(CACHED_EFS.length, getPendingReadCount());
+
+        // nothing changed, so no second notification
+        answerReads(GID1);
+        verifyRecordsLoaded(1);
+        assertEquals("1234", mSIMRecords.getGid1());
+    }
+
+    @Test
+    @MediumTest
+    public void testRevalidationFindsChange() {
+        saveCache(ICCID, GID1);
+        loadIccId(EF_ICCID);
+        verifyRecordsLoaded(1);
+
+        answerReads(NEW_GID1);
+        verifyRecordsLoaded(2);
+        assertEquals("5678", mSIMRecords.getGid1());
+
+        SimEfCache saved = new SimEfCache(mFile);
+        assertTrue(saved.hasIccId(ICCID));
+        assertArrayEquals(NEW_GID1, saved.get(IccConstants.EF_GID1));
+    }
+
+    @Test
+    @MediumTest
+    public void testIccIdMismatch() {
+        saveCache(OTHER_ICCID, NEW_GID1);
+        loadIccId(EF_ICCID);
+
+        // the cache is of another SIM, so wait for the SIM
+        verify(mTestHandler, never()).sendMessageAtTime(any(Message.class), anyLong());
+        assertEquals(CACHED_EFS.length, getPendingReadCount());
+
+        answerReads(GID1);
+        verifyRecordsLoaded(1);
+        assertEquals("1234", mSIMRecords.getGid1());
+
+        SimEfCache saved = new SimEfCache(mFile);
+        assertTrue(saved.hasIccId(ICCID));
+        assertEquals(CACHED_EFS.length, saved.size());
+        assertArrayEquals(GID1, saved.get(IccConstants.EF_GID1));
+    }
+
+    @Test
+    @MediumTest
+    public void testIccIdReadFailure() {
+        saveCache(ICCID, GID1);
+        long lastModified = mFile.lastModified();
+        loadIccId(null);
+
+        // without an ICCID the cache is not used
+        verify(mTestHandler, never()).sendMessageAtTime(any(Message.class), anyLong());
+        assertEquals(CACHED_EFS.length, getPendingReadCount());
+
+        answerReads(NEW_GID1);
+        verifyRecordsLoaded(1);
+        assertEquals("5678", mSIMRecords.getGid1());
+
+        // nor updated
+        assertEquals(lastModified, mFile.lastModified());
+        SimEfCache saved = new SimEfCache(mFile);
+        assertTrue(saved.hasIccId(ICCID));
+        assertArrayEquals(GID1, saved.get(IccConstants.EF_GID1));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SimEfCacheTest {
+    private static final String ICCID = "89014103211118510720";
+    private static final byte[] AD = {0x00, 0x00, 0x00, 0x03};
+    private static final byte[] SPDI = {(byte) 0xa3, 0x05, (byte) 0x80, 0x03, 0x13, 0x00, 0x14};
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("sim_ef_cache", null);
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    @Test
+    @SmallTest
+    public void testSaveAndLoad() {
+        SimEfCache cache = new SimEfCache(mFile);
+        assertFalse(cache.hasIccId(ICCID));
+        // nothing is cached before the ICCID is known
+        assertFalse(cache.put(IccConstants.EF_AD, AD));
+
+        cache.setIccId(ICCID);
+        assertTrue(cache.put(IccConstants.EF_AD, AD));
+        assertTrue(cache.put(IccConstants.EF_SPDI, SPDI));
+        assertTrue(cache.put(IccConstants.EF_GID2, null));
+        assertFalse(cache.put(IccConstants.EF_AD, AD.clone()));
+        cache.save();
+
+        SimEfCache loaded = new SimEfCache(mFile);
+        assertTrue(loaded.hasIccId(ICCID));
+        assertEquals(3, loaded.size());
+        assertArrayEquals(AD, loaded.get(IccConstants.EF_AD));
+        assertArrayEquals(SPDI, loaded.get(IccConstants.EF_SPDI));
+        // known not to be on the SIM
+        assertTrue(loaded.contains(IccConstants.EF_GID2));
+        assertNull(loaded.get(IccConstants.EF_GID2));
+        assertFalse(loaded.contains(IccConstants.EF_GID1));
+    }
+
+    @Test
+    @SmallTest
+    public void testOtherSimAndInvalidation() {
+        SimEfCache cache = new SimEfCache(mFile);
+        cache.setIccId(ICCID);
+        cache.put(IccConstants.EF_AD, AD);
+        cache.put(IccConstants.EF_SPDI, SPDI);
+        cache.save();
+
+        cache = new SimEfCache(mFile);
+        assertFalse(cache.hasIccId("89014103211118510721"));
+        cache.invalidate(IccConstants.EF_SPDI);
+        cache.save();
+        cache = new SimEfCache(mFile);
+        assertTrue(cache.contains(IccConstants.EF_AD));
+        assertFalse(cache.contains(IccConstants.EF_SPDI));
+
+        // a different SIM drops what was cached
+        cache.setIccId("89014103211118510721");
+        assertFalse(cache.contains(IccConstants.EF_AD));
+        cache.put(IccConstants.EF_SST, AD);
+        cache.invalidateAll();
+        cache.save();
+        assertEquals(0, new SimEfCache(mFile).size());
+    }
+
+    @Test
+    @SmallTest
+    public void testCorruptFileIgnored() throws Exception {
+        FileOutputStream out = new FileOutputStream(mFile);
+        out.write(new byte[] {0, 0, 0, 1, 0, 2, '8', '9', 0, 0, 0, 1, 0, 0, 0x6f});
+        out.close();
+
+        SimEfCache cache = new SimEfCache(mFile);
+        assertFalse(cache.hasIccId("89"));
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import android.content.Context;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PduParserTest {
+    private static final int PDU_COUNT = 32;
+
+    private Context mContext;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = mock(Context.class);
+    }
+
+    /**
+     * Compose a M-Send.req with a text part and a binary part. The odd pdus put the binary part
+     * first so that the "start" parameter decides the part order.
+     */
+    private byte[] makeSendReq(int index) {
+        SendReq req = new SendReq();
+        req.addTo(new EncodedStringValue("+1555000" + index));
+        req.setSubject(new EncodedStringValue("subject " + index));
+
+        PduPart text = new PduPart();
+        text.setContentType("text/plain".getBytes());
+        text.setContentId(("<text" + index + ">").getBytes());
+        text.setContentLocation(("text" + index + ".txt").getBytes());
+        text.setCharset(CharacterSets.UTF_8);
+        text.setData(("body of message " + index).getBytes());
+
+        PduPart image = new PduPart();
+        image.setContentType("image/jpeg".getBytes());
+        image.setContentId(("<image" + index + ">").getBytes());
+        image.setContentLocation(("image" + index + ".jpg").getBytes());
+        byte[] data = new byte[512 + index];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * index);
+        }
+        image.setData(data);
+
+        PduBody body = new PduBody();
+        if (index % 2 == 0) {
+            body.addPart(text);
+            body.addPart(image);
+        } else {
+            body.addPart(image);
+            body.addPart(text);
+        }
+        req.setBody(body);
+        return new PduComposer(mContext, req).make();
+    }
+
+    private byte[][] makePdus() {
+        byte[][] pdus = new byte[PDU_COUNT][];
+        for (int i = 0; i < PDU_COUNT; i++) {
+            pdus[i] = makeSendReq(i);
+            assertNotNull(pdus[i]);
+        }
+        return pdus;
+    }
+
+    private static void assertPduEquals(GenericPdu expected, GenericPdu actual) {
+        assertNotNull(expected);
+        assertNotNull(actual);
+        assertEquals(expected.getMessageType(), actual.getMessageType());
+
+        SendReq expectedReq = (SendReq) expected;
+        SendReq actualReq = (SendReq) actual;
+        assertEquals(expectedReq.getSubject().getString(), actualReq.getSubject().getString());
+        assertEquals(expectedReq.getTo()[0].getString(), actualReq.getTo()[0].getString());
+
+        PduBody expectedBody = expectedReq.getBody();
+        PduBody actualBody = actualReq.getBody();
+        assertEquals(expectedBody.getPartsNum(), actualBody.getPartsNum());
+        for (int i = 0; i < expectedBody.getPartsNum(); i++) {
+            PduPart expectedPart = expectedBody.getPart(i);
+            PduPart actualPart = actualBody.getPart(i);
+            assertTrue(Arrays.equals(expectedPart.getContentType(), actualPart.getContentType()));
+            assertTrue(Arrays.equals(expectedPart.getContentId(), actualPart.getContentId()));
+            assertTrue(Arrays.equals(expectedPart.getData(), actualPart.getData()));
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testStartParameterOrdersParts() {
+        GenericPdu pdu = new PduParser(makeSendReq(1), false).parse();
+        assertNotNull(pdu);
+        PduBody body = ((SendReq) pdu).getBody();
+        assertEquals(2, body.getPartsNum());
+        assertEquals("image/jpeg", new String(body.getPart(0).getContentType()));
+
+        // the start parameter of the previous pdu must not leak into this one
+        pdu = new PduParser(makeSendReq(2), false).parse();
+        body = ((SendReq) pdu).getBody();
+        assertEquals("text/plain", new String(body.getPart(0).getContentType()));
+    }
+
+    @Test
+    @SmallTest
+    public void testPartDataIsSliceOfPdu() {
+        byte[] pdu = makeSendReq(2);
+        GenericPdu parsed = new PduParser(pdu, false).parse();
+        PduPart image = ((SendReq) parsed).getBody().getPart(1);
+        assertEquals("image/jpeg", new String(image.getContentType()));
+
+        ByteBuffer data = image.getDataBuffer();
+        assertSame(pdu, data.array());
+        assertEquals(512 + 2, data.remaining());
+        assertEquals(data.remaining(), image.getDataLength());
+        for (int i = 0; i < data.remaining(); i++) {
+            assertEquals((byte) (i * 2), data.get(data.position() + i));
+        }
+
+        // getData() still hands out a private copy
+        byte[] copy = image.getData();
+        copy[0] = (byte) 0x7f;
+        assertEquals(0, data.get(data.position()));
+    }
+
+    @Test
+    @LargeTest
+    public void testParallelParseMatchesSequential() throws Exception {
+        byte[][] pdus = makePdus();
+        GenericPdu[] sequential = new GenericPdu[pdus.length];
+        for (int i = 0; i < pdus.length; i++) {
+            sequential[i] = new PduParser(pdus[i], false).parse();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int round = 0; round < 50; round++) {
+                GenericPdu[] parallel = PduParser.parseAll(pdus, false, executor);
+                assertEquals(pdus.length, parallel.length);
+                for (int i = 0; i < pdus.length; i++) {
+                    assertPduEquals(sequential[i], parallel[i]);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.provider.Telephony.Mms;
+import android.provider.Telephony.Mms.Addr;
+import android.provider.Telephony.Mms.Part;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.google.android.mms.MmsException;
+import com.google.android.mms.util.PduCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PduPersisterTest {
+    private static final Pattern IN_SELECTION = Pattern.compile("(\\w+) IN \\(([\\d,]+)\\)");
+
+    /**
+     * Keeps the pdu, part and addr tables of the MMS provider in memory. Parts are returned
+     * in reverse order unless a sort order is given, as the order of an unsorted query is
+     * up to the provider.
+     */
+    private static class FakeMmsProvider extends MockContentProvider {
+        final ArrayList<ContentValues> mPdus = new ArrayList<ContentValues>();
+        final ArrayList<ContentValues> mParts = new ArrayList<ContentValues>();
+        final ArrayList<ContentValues> mAddrs = new ArrayList<ContentValues>();
+        boolean mFailPartInsert;
+        boolean mFailAddrInsert;
+        private long mNextId = 1;
+
+        @Override
+        public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> ops)
+                throws OperationApplicationException {
+            ContentProviderResult[] results = new ContentProviderResult[ops.size()];
+            for (int i = 0; i < ops.size(); i++) {
+                results[i] = ops.get(i).apply(this, results, i);
+            }
+            return results;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            List<String> path = uri.getPathSegments();
+            ContentValues row = new ContentValues(values);
+            long id = mNextId++;
+            row.put(Mms._ID, id);
+            if (path.size() == 2 && "part".equals(path.get(1))) {
+                if (mFailPartInsert) {
+                    return null;
+                }
+                row.put(Part.MSG_ID, Long.parseLong(path.get(0)));
+                mParts.add(row);
+                return Uri.parse("content://mms/part/" + id);
+            } else if (path.size() == 2 && "addr".equals(path.get(1))) {
+                if (mFailAddrInsert) {
+                    throw new SQLiteException("addr insert failed");
+                }
+                row.put(Addr.MSG_ID, Long.parseLong(path.get(0)));
+                mAddrs.add(row);
+                return Uri.parse("content://mms/" + path.get(0) + "/addr/" + id);
+            }
+            mPdus.add(row);
+            return ContentUris.withAppendedId(Mms.CONTENT_URI, id);
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            List<String> path = uri.getPathSegments();
+            if (path.size() != 2 || !"part".equals(path.get(1))) {
+                return 0;
+            }
+            // moves the parts saved under a dummy message ID
+            long msgId = Long.parseLong(path.get(0));
+            int count = 0;
+            for (ContentValues row : mParts) {
+                if (row.getAsLong(Part.MSG_ID) == msgId) {
+                    row.putAll(values);
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            List<String> path = uri.getPathSegments();
+            ArrayList<ContentValues> rows = new ArrayList<ContentValues>();
+            if (path.isEmpty()) {
+                rows.addAll(select(mPdus, Mms._ID, selection));
+            } else if (path.size() == 1 && "part".equals(path.get(0))) {
+                rows.addAll(select(mParts, Part.MSG_ID, selection));
+            } else if (path.size() == 2 && "part".equals(path.get(1))) {
+                rows.addAll(select(mParts, Part.MSG_ID, "mid IN (" + path.get(0) + ")"));
+            } else if (path.size() == 2 && "addr".equals(path.get(1))) {
+                rows.addAll(select(mAddrs, Addr.MSG_ID, "msg_id IN (" + path.get(0) + ")"));
+            } else {
+                String id = path.get(path.size() - 1);
+                rows.addAll(select(mPdus, Mms._ID, "_id IN (" + id + ")"));
+            }
+            sort(rows, sortOrder);
+
+            MatrixCursor cursor = new MatrixCursor(projection);
+            for (ContentValues row : rows) {
+                Object[] values = new Object[projection.length];
+                for (int i = 0; i < projection.length; i++) {
+                    values[i] = row.get(projection[i]);
+                }
+                cursor.addRow(values);
+            }
+            return cursor;
+        }
+
+        private static List<ContentValues> select(List<ContentValues> table, String column,
+                String selection) {
+            Matcher m = IN_SELECTION.matcher(selection);
+            assertTrue(selection, m.matches());
+            assertEquals(column, m.group(1));
+            List<String> ids = Arrays.asList(m.group(2).split(","));
+            ArrayList<ContentValues> rows = new ArrayList<ContentValues>();
+            for (ContentValues row : table) {
+                if (ids.contains(row.getAsString(column))) {
+                    rows.add(row);
+                }
+            }
+            return rows;
+        }
+
+        private static void sort(List<ContentValues> rows, String sortOrder) {
+            if (sortOrder == null) {
+                Collections.reverse(rows);
+                return;
+            }
+            final String[] columns = sortOrder.split(",");
+            Collections.sort(rows, new Comparator<ContentValues>() {
+                @Override
+                public int compare(ContentValues a, ContentValues b) {
+                    for (String column : columns) {
+                        int result = Long.compare(a.getAsLong(column.trim()),
+                                b.getAsLong(column.trim()));
+                        if (result != 0) {
+                            return result;
+                        }
+                    }
+                    return 0;
+                }
+            });
+        }
+    }
+
+    private FakeMmsProvider mProvider;
+    private PduPersister mPersister;
+
+    @Before
+    public void setUp() throws Exception {
+        mProvider = new FakeMmsProvider();
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(Mms.CONTENT_URI.getAuthority(), mProvider);
+        Context context = mock(Context.class);
+        doReturn(resolver).when(context).getContentResolver();
+        mPersister = PduPersister.getPduPersister(context);
+        PduCache.getInstance().purgeAll();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        PduCache.getInstance().purgeAll();
+    }
+
+    private static PduPart makePart(String contentType, String contentId, String data) {
+        PduPart part = new PduPart();
+        part.setContentType(contentType.getBytes());
+        part.setContentId(contentId.getBytes());
+        part.setData(data.getBytes());
+        return part;
+    }
+
+    private static SendReq makeSendReq(int index) {
+        SendReq req = new SendReq();
+        req.addTo(new EncodedStringValue("+1555000" + index));
+        req.addTo(new EncodedStringValue("+1555100" + index));
+        req.setSubject(new EncodedStringValue("subject " + index));
+        PduBody body = new PduBody();
+        body.addPart(makePart("application/smil", "<smil>", "<smil>" + index + "</smil>"));
+        body.addPart(makePart("text/plain", "<text1>", "first text of " + index));
+        body.addPart(makePart("text/plain", "<text2>", "second text of " + index));
+        req.setBody(body);
+        return req;
+    }
+
+    private static void assertSameBody(PduBody expected, PduBody actual) {
+        assertEquals(expected.getPartsNum(), actual.getPartsNum());
+        for (int i = 0; i < expected.getPartsNum(); i++) {
+            PduPart e = expected.getPart(i);
+            PduPart a = actual.getPart(i);
+            assertArrayEquals(e.getContentType(), a.getContentType());
+            assertArrayEquals(e.getContentId(), a.getContentId());
+            assertArrayEquals(e.getData(), a.getData());
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testPersistBatches() throws Exception {
+        SendReq req = makeSendReq(1);
+        Uri uri = mPersister.persist(req, Mms.Sent.CONTENT_URI, false, false, null);
+        long msgId = ContentUris.parseId(uri);
+        assertEquals(Mms.Sent.CONTENT_URI + "/" + msgId, uri.toString());
+        assertEquals(1, mProvider.mPdus.size());
+        assertEquals(PduHeaders.MESSAGE_TYPE_SEND_REQ,
+                (int) mProvider.mPdus.get(0).getAsInteger(Mms.MESSAGE_TYPE));
+
+        // the parts saved under the dummy ID now belong to the message
+        assertEquals(3, mProvider.mParts.size());
+        for (int i = 0; i < 3; i++) {
+            ContentValues row = mProvider.mParts.get(i);
+            assertEquals(msgId, (long) row.getAsLong(Part.MSG_ID));
+            assertEquals(new String(req.getBody().getPart(i).getData()),
+                    row.getAsString(Part.TEXT));
+            assertEquals("content://mms/part/" + row.getAsLong(Part._ID),
+                    req.getBody().getPart(i).getDataUri().toString());
+        }
+        assertEquals(-1, (int) mProvider.mParts.get(0).getAsInteger(Part.SEQ));
+
+        // FROM and both TOs
+        assertEquals(3, mProvider.mAddrs.size());
+        for (ContentValues row : mProvider.mAddrs) {
+            assertEquals(msgId, (long) row.getAsLong(Addr.MSG_ID));
+        }
+
+        SendReq loaded = (SendReq) mPersister.load(uri);
+        assertEquals("subject 1", loaded.getSubject().getString());
+        assertEquals(2, loaded.getTo().length);
+        assertSameBody(req.getBody(), loaded.getBody());
+    }
+
+    @Test
+    @SmallTest
+    public void testBulkLoadMatchesLoad() throws Exception {
+        Uri[] uris = new Uri[3];
+        for (int i = 0; i < uris.length; i++) {
+            uris[i] = mPersister.persist(makeSendReq(i), Mms.Sent.CONTENT_URI, false, false,
+                    null);
+        }
+        GenericPdu[] single = new GenericPdu[uris.length];
+        for (int i = 0; i < uris.length; i++) {
+            single[i] = mPersister.load(uris[i]);
+        }
+        PduCache.getInstance().purgeAll();
+
+        GenericPdu[] bulk = mPersister.load(uris);
+        assertEquals(uris.length, bulk.length);
+        for (int i = 0; i < uris.length; i++) {
+            SendReq expected = (SendReq) single[i];
+            SendReq actual = (SendReq) bulk[i];
+            assertEquals(expected.getSubject().getString(), actual.getSubject().getString());
+            assertEquals(expected.getTo().length, actual.getTo().length);
+            assertSameBody(expected.getBody(), actual.getBody());
+        }
+        // the SMIL part comes first either way
+        assertArrayEquals("application/smil".getBytes(),
+                ((SendReq) bulk[0]).getBody().getPart(0).getContentType());
+    }
+
+    @Test
+    @SmallTest
+    public void testPartInsertFailure() throws Exception {
+        mProvider.mFailPartInsert = true;
+        try {
+            mPersister.persist(makeSendReq(1), Mms.Sent.CONTENT_URI, false, false, null);
+            fail("persist should fail");
+        } catch (MmsException expected) {
+        }
+        // the message is not saved without its parts
+        assertEquals(0, mProvider.mPdus.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testAddressInsertFailure() throws Exception {
+        mProvider.mFailAddrInsert = true;
+        try {
+            mPersister.persist(makeSendReq(1), Mms.Sent.CONTENT_URI, false, false, null);
+            fail("persist should fail");
+        } catch (SQLiteException expected) {
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testBulkLoadSkipsBadMessage() throws Exception {
+        Uri good = mPersister.persist(makeSendReq(1), Mms.Sent.CONTENT_URI, false, false, null);
+        Uri bad = mPersister.persist(makeSendReq(2), Mms.Sent.CONTENT_URI, false, false, null);
+        // a part without a content type cannot be loaded
+        mProvider.mParts.get(mProvider.mParts.size() - 1).remove(Part.CONTENT_TYPE);
+
+        GenericPdu[] pdus = mPersister.load(new Uri[] {good, bad});
+        assertNotNull(pdus[0]);
+        assertNull(pdus[1]);
+        try {
+            mPersister.load(bad);
+            fail("load should fail");
+        } catch (MmsException expected) {
+        }
+
+        try {
+            mPersister.load(new Uri[] {Mms.Sent.CONTENT_URI});
+            fail("load should reject a uri without an ID");
+        } catch (MmsException expected) {
+        }
+    }
+}
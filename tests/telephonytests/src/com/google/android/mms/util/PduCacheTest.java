@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.util;
+
+import android.content.ContentUris;
+import android.net.Uri;
+import android.provider.Telephony.Mms;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.google.android.mms.pdu.PduBody;
+import com.google.android.mms.pdu.PduPart;
+import com.google.android.mms.pdu.SendReq;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class PduCacheTest {
+    private static final String TAG = "PduCacheTest";
+    private static final long THREAD_ID = 7;
+
+    private static Uri uri(long id) {
+        return ContentUris.withAppendedId(Mms.CONTENT_URI, id);
+    }
+
+    private static PduCacheEntry entry(int msgBox, long threadId, int dataLength) {
+        SendReq req = new SendReq();
+        PduBody body = new PduBody();
+        PduPart part = new PduPart();
+        part.setContentType("text/plain".getBytes());
+        part.setData(new byte[dataLength]);
+        body.addPart(part);
+        req.setBody(body);
+        return new PduCacheEntry(req, msgBox, threadId);
+    }
+
+    @Test
+    @SmallTest
+    public void testUsableAsAbstractCache() {
+        AbstractCache<Uri, PduCacheEntry> cache = new PduCache(4, 8, AbstractCache.NO_BYTE_LIMIT,
+                false);
+        assertTrue(cache.put(uri(1), entry(Mms.MESSAGE_BOX_INBOX, THREAD_ID, 10)));
+        assertTrue(cache.put(uri(2), entry(Mms.MESSAGE_BOX_INBOX, THREAD_ID, 10)));
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get(uri(1)));
+        assertNotNull(cache.purge(uri(1)));
+        assertNull(cache.get(uri(1)));
+        cache.purgeAll();
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testLruEvictsLeastRecentlyUsed() {
+        PduCache cache = new PduCache(1, 3, AbstractCache.NO_BYTE_LIMIT, false);
+        for (int i = 1; i <= 3; i++) {
+            assertTrue(cache.put(uri(i), entry(Mms.MESSAGE_BOX_INBOX, THREAD_ID, 10)));
+        }
+        assertNotNull(cache.get(uri(1)));
+
+        // the cache no longer refuses new entries once full
+        assertTrue(cache.put(uri(4), entry(Mms.MESSAGE_BOX_INBOX, THREAD_ID, 10)));
+        assertEquals(3, cache.size());
+        assertNull(cache.get(uri(2)));
+        assertNotNull(cache.get(uri(1)));
+        assertNotNull(cache.get(uri(4)));
+
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testLfuKeepsFrequentlyUsed() {
+        PduCache cache = new PduCache(1, 3, AbstractCache.NO_BYTE_LIMIT, true);
+        for (int i = 1; i <= 3; i++) {
+            cache.put(uri(i), entry(Mms.MESSAGE_BOX_INBOX, THREAD_ID, 10));
+        }
+        for (int i = 0; i < 5; i++) {
+            cache.get(uri(1));
+            cache.get(uri(3));
+        }
+        cache.get(uri(2));
+
+        cache.put(uri(4), entry(Mms.MESSAGE_BOX_INBOX, THREAD_ID, 10));
+        assertNull(cache.get(uri(2)));
+        assertNotNull(cache.get(uri(1)));
+        assertNotNull(cache.get(uri(3)));
+
+        // the new entry is now the least frequently used one
+        cache.put(uri(5), entry(Mms.MESSAGE_BOX_INBOX, THREAD_ID, 10));
+        assertNull(cache.get(uri(4)));
+        assertNotNull(cache.get(uri(5)));
+    }
+
+    @Test
+    @SmallTest
+    public void testByteLimit() {
+        PduCache cache = new PduCache(1, 100, 20 * 1024, false);
+        assertTrue(cache.put(uri(1), entry(Mms.MESSAGE_BOX_INBOX, THREAD_ID, 8 * 1024)));
+        assertTrue(cache.put(uri(2), entry(Mms.MESSAGE_BOX_INBOX, THREAD_ID, 8 * 1024)));
+        assertTrue(cache.put(uri(3), entry(Mms.MESSAGE_BOX_INBOX, THREAD_ID, 8 * 1024)));
+        assertEquals(2, cache.size());
+        assertNull(cache.get(uri(1)));
+        assertTrue(cache.sizeInBytes() <= 20 * 1024);
+
+        // an entry larger than the whole cache is not cached
+        assertFalse(cache.put(uri(4), entry(Mms.MESSAGE_BOX_INBOX, THREAD_ID, 32 * 1024)));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testOversizeReplacementDropsOldValue() {
+        PduCache cache = new PduCache(1, 100, 20 * 1024, false);
+        assertTrue(cache.put(uri(1), entry(Mms.MESSAGE_BOX_INBOX, THREAD_ID, 10)));
+        assertTrue(cache.isIndexed(uri(1)));
+
+        // the new value is too large to cache, and the old one must not be served instead
+        assertFalse(cache.put(uri(1), entry(Mms.MESSAGE_BOX_INBOX, THREAD_ID, 32 * 1024)));
+        assertNull(cache.get(uri(1)));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.sizeInBytes());
+        assertFalse(cache.isIndexed(uri(1)));
+    }
+
+    @Test
+    @SmallTest
+    public void testEvictionUpdatesIndexes() {
+        PduCache cache = new PduCache(1, 2, AbstractCache.NO_BYTE_LIMIT, false);
+        cache.put(uri(1), entry(Mms.MESSAGE_BOX_INBOX, 1, 10));
+        cache.put(uri(2), entry(Mms.MESSAGE_BOX_SENT, 2, 10));
+        cache.put(uri(3), entry(Mms.MESSAGE_BOX_SENT, 2, 10));
+        assertFalse(cache.isIndexed(uri(1)));
+        assertTrue(cache.isIndexed(uri(2)));
+
+        // purging by thread and by message box only touches entries still cached
+        cache.purge(ContentUris.withAppendedId(Uri.parse("content://mms-sms/conversations"), 2));
+        assertEquals(0, cache.size());
+        assertFalse(cache.isIndexed(uri(2)));
+        assertFalse(cache.isIndexed(uri(3)));
+
+        cache.put(uri(4), entry(Mms.MESSAGE_BOX_INBOX, 1, 10));
+        cache.put(uri(5), entry(Mms.MESSAGE_BOX_SENT, 2, 10));
+        cache.purge(Uri.parse("content://mms/inbox"));
+        assertNull(cache.get(uri(4)));
+        assertNotNull(cache.get(uri(5)));
+        assertFalse(cache.isIndexed(uri(4)));
+    }
+
+    /**
+     * Mixed workload of loads (get, then put on a miss) and purges of single messages and
+     * threads, run at 1 to 16 threads. Reports throughput and checks that every cached entry
+     * is still indexed afterwards.
+     */
+    @Test
+    @LargeTest
+    public void testConcurrentLoadPurgeThroughput() throws Exception {
+        final int keys = 2000;
+        final int opsPerThread = 100000;
+        final Uri[] uris = new Uri[keys];
+        final PduCacheEntry[] entries = new PduCacheEntry[keys];
+        for (int i = 0; i < keys; i++) {
+            uris[i] = uri(i);
+            entries[i] = entry(Mms.MESSAGE_BOX_INBOX + (i % 4), i % 50, 100);
+        }
+        final Uri conversations = Uri.parse("content://mms-sms/conversations");
+
+        for (int threads = 1; threads <= 16; threads *= 2) {
+            final PduCache cache = new PduCache(16, 500, AbstractCache.NO_BYTE_LIMIT, false);
+            final CountDownLatch start = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(threads);
+            for (int t = 0; t < threads; t++) {
+                final Random random = new Random(t);
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            for (int i = 0; i < opsPerThread; i++) {
+                                int key = random.nextInt(keys);
+                                int op = random.nextInt(100);
+                                if (op < 85) {
+                                    if (cache.get(uris[key]) == null) {
+                                        cache.put(uris[key], entries[key]);
+                                    }
+                                } else if (op < 99) {
+                                    cache.purge(uris[key]);
+                                } else {
+                                    cache.purge(ContentUris.withAppendedId(conversations,
+                                            key % 50));
+                                }
+                            }
+                        } catch (InterruptedException e) {
+                            fail(e.toString());
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }.start();
+            }
+            long startTime = System.nanoTime();
+            start.countDown();
+            done.await();
+            long elapsedNs = System.nanoTime() - startTime;
+            Log.d(TAG, threads + " threads: "
+                    + ((long) threads * opsPerThread * 1000000000L / elapsedNs) + " ops/s, hits="
+                    + cache.getHitCount() + " misses=" + cache.getMissCount()
+                    + " evictions=" + cache.getEvictionCount());
+
+            assertTrue(cache.size() <= 16 * ((500 + 15) / 16));
+            for (int i = 0; i < keys; i++) {
+                if (cache.get(uris[i]) != null) {
+                    assertTrue(cache.isIndexed(uris[i]));
+                }
+            }
+        }
+    }
+}